@@ -0,0 +1,191 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.util.GregorianCalendar;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark JMH delle operazioni di {@link Aula} al variare del numero di
+ * prenotazioni presenti. L'aula ha prenotazioni di un'ora, una ogni due ore
+ * a partire da {@link #BASE}: fra una prenotazione e l'altra resta un'ora
+ * libera.
+ *
+ * I benchmark che modificano l'aula eseguono {@link #OPERAZIONI} operazioni
+ * per invocazione; le modifiche vengono annullate dopo ogni invocazione,
+ * fuori dalla misura, per cui ogni invocazione trova l'aula nello stesso
+ * stato.
+ *
+ * @author Collettiva
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class AulaBenchmark {
+
+    static final long ORA = 60L * 60 * 1000;
+
+    // Inizio della prima prenotazione: 1/1/2019 alle 0.00
+    static final long BASE = new GregorianCalendar(2019, 0, 1)
+            .getTimeInMillis();
+
+    // Operazioni eseguite da ogni invocazione dei benchmark che modificano
+    // l'aula; non supera il minimo numero di prenotazioni
+    static final int OPERAZIONI = 100;
+
+    static TimeSlot slot(long inizio, long fine) {
+        GregorianCalendar g1 = new GregorianCalendar();
+        g1.setTimeInMillis(inizio);
+        GregorianCalendar g2 = new GregorianCalendar();
+        g2.setTimeInMillis(fine);
+        return new TimeSlot(g1, g2);
+    }
+
+    /*
+     * Il time slot dell'i-esima prenotazione di aulaConPrenotazioni.
+     */
+    static TimeSlot prenotata(long i) {
+        return slot(BASE + 2 * i * ORA, BASE + (2 * i + 1) * ORA);
+    }
+
+    static Aula aulaConPrenotazioni(String nome, int n) {
+        Aula a = new Aula(nome, "Benchmark");
+        for (int i = 0; i < n; i++)
+            a.addPrenotazione(prenotata(i), "Docente", "Lezione");
+        return a;
+    }
+
+    /**
+     * Un'aula con il numero di prenotazioni dato dal parametro.
+     */
+    @State(Scope.Benchmark)
+    public static class AulaPrenotata {
+        @Param({ "100", "10000", "1000000" })
+        public int prenotazioni;
+
+        Aula aula;
+
+        @Setup(Level.Trial)
+        public void creaAula() {
+            aula = aulaConPrenotazioni("A", prenotazioni);
+        }
+    }
+
+    /**
+     * Time slot di un'ora, metà su una prenotazione e metà in un'ora libera.
+     */
+    @State(Scope.Thread)
+    public static class Richieste {
+        TimeSlot[] slots;
+
+        int prossima;
+
+        @Setup(Level.Trial)
+        public void creaRichieste(AulaPrenotata a) {
+            Random r = new Random(1);
+            slots = new TimeSlot[1024];
+            for (int i = 0; i < slots.length; i++) {
+                long inizio = BASE + r.nextInt(2 * a.prenotazioni) * ORA;
+                slots[i] = slot(inizio, inizio + ORA);
+            }
+        }
+
+        TimeSlot prossima() {
+            return slots[prossima++ & (slots.length - 1)];
+        }
+    }
+
+    /**
+     * {@link #OPERAZIONI} ore libere dell'aula, scelte a caso, che vengono
+     * prenotate da un'invocazione e liberate dopo.
+     */
+    @State(Scope.Benchmark)
+    public static class Aggiunte extends AulaPrenotata {
+        TimeSlot[] buchi;
+
+        @Setup(Level.Trial)
+        public void scegliBuchi() {
+            Random r = new Random(2);
+            Set<Integer> scelti = new LinkedHashSet<Integer>();
+            while (scelti.size() < OPERAZIONI)
+                scelti.add(r.nextInt(prenotazioni));
+            buchi = new TimeSlot[OPERAZIONI];
+            int i = 0;
+            for (int b : scelti) {
+                long inizio = BASE + (2L * b + 1) * ORA;
+                buchi[i++] = slot(inizio, inizio + ORA);
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void liberaBuchi() {
+            for (TimeSlot ts : buchi)
+                aula.removePrenotazione(new Prenotazione(aula, ts, "", ""));
+        }
+    }
+
+    /**
+     * Istanti che cancellano con removePrenotazioniBefore le prime
+     * {@link #OPERAZIONI} prenotazioni, una per volta; dopo un'invocazione
+     * vengono reinserite.
+     */
+    @State(Scope.Benchmark)
+    public static class Cancellazioni extends AulaPrenotata {
+        GregorianCalendar[] istanti;
+
+        @Setup(Level.Trial)
+        public void creaIstanti() {
+            istanti = new GregorianCalendar[OPERAZIONI];
+            for (int i = 0; i < OPERAZIONI; i++) {
+                istanti[i] = new GregorianCalendar();
+                istanti[i].setTimeInMillis(BASE + 2 * i * ORA);
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void reinserisci() {
+            for (int i = 0; i < OPERAZIONI; i++)
+                aula.addPrenotazione(prenotata(i), "Docente", "Lezione");
+        }
+    }
+
+    @Benchmark
+    public void isFree(AulaPrenotata a, Richieste r, Blackhole bh) {
+        bh.consume(a.aula.isFree(r.prossima()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERAZIONI)
+    public void addPrenotazione(Aggiunte a) {
+        for (TimeSlot ts : a.buchi)
+            a.aula.addPrenotazione(ts, "Docente", "Esame");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERAZIONI)
+    public void removePrenotazioniBefore(Cancellazioni c, Blackhole bh) {
+        for (GregorianCalendar t : c.istanti)
+            bh.consume(c.aula.removePrenotazioniBefore(t));
+    }
+
+}
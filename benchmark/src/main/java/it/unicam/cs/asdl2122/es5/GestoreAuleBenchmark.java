@@ -0,0 +1,84 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark JMH di {@link GestoreAule#cercaAuleLibere(Set, TimeSlot)} al
+ * variare del numero complessivo di prenotazioni, distribuite fra
+ * {@link #NUM_AULE} aule con facilities diverse. Il gestore non ha la cache
+ * dei risultati, che altrimenti servirebbe quasi tutte le ricerche: si misura
+ * la ricerca vera e propria.
+ *
+ * @author Collettiva
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class GestoreAuleBenchmark {
+
+    static final int NUM_AULE = 100;
+
+    @Param({ "100", "10000", "1000000" })
+    public int prenotazioni;
+
+    private GestoreAule gestore;
+
+    private Set<Facility> richieste;
+
+    private TimeSlot[] slots;
+
+    private int prossimo;
+
+    @Setup(Level.Trial)
+    public void creaGestore() {
+        gestore = new GestoreAule(0);
+        Random r = new Random(3);
+        int perAula = Math.max(1, prenotazioni / NUM_AULE);
+        for (int i = 0; i < NUM_AULE; i++) {
+            Aula a = AulaBenchmark.aulaConPrenotazioni("A" + i, perAula);
+            if (r.nextBoolean())
+                a.addFacility(new PresenceFacility("HDMI", ""));
+            a.addFacility(new QuantitativeFacility("POSTI", "",
+                    20 + r.nextInt(181)));
+            gestore.addAula(a);
+        }
+        richieste = new HashSet<Facility>();
+        richieste.add(new PresenceFacility("HDMI", ""));
+        richieste.add(new QuantitativeFacility("POSTI", "", 50));
+        slots = new TimeSlot[1024];
+        for (int i = 0; i < slots.length; i++) {
+            long inizio = AulaBenchmark.BASE
+                    + r.nextInt(2 * perAula) * AulaBenchmark.ORA;
+            slots[i] = AulaBenchmark.slot(inizio,
+                    inizio + AulaBenchmark.ORA);
+        }
+    }
+
+    @Benchmark
+    public void cercaAuleLibere(Blackhole bh) {
+        bh.consume(gestore.cercaAuleLibere(richieste,
+                slots[prossimo++ & (slots.length - 1)]));
+    }
+
+}
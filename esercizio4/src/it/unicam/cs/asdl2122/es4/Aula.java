@@ -25,6 +25,12 @@ public class Aula implements Comparable<Aula> {
      */
     protected static final int INIT_NUM_PRENOTAZIONI = 100;
 
+    /*
+     * dimensione iniziale dell'indice hash dei codici delle facilities: deve
+     * essere una potenza di due, almeno il doppio di INIT_NUM_FACILITIES.
+     */
+    private static final int INIT_DIM_INDICE_FACILITIES = 16;
+
     // Identificativo unico di un'aula
     private final String nome;
 
@@ -43,16 +49,38 @@ public class Aula implements Comparable<Aula> {
     private int numFacilities;
 
     /*
-     * Insieme delle prenotazioni per quest'aula. L'array viene creato
-     * all'inizio della dimensione specificata nella costante
-     * INIT_NUM_PRENOTAZIONI. Il metodo addPrenotazione(TimeSlot, String,
-     * String) raddoppia l'array qualora non ci sia più spazio per inserire la
+     * Indice hash ad indirizzamento aperto (scansione lineare) dei codici
+     * delle facilities inserite, mantenuto da addFacility(Facility). La
+     * dimensione è sempre una potenza di due e la tabella viene raddoppiata
+     * quando è piena per metà, così che le sequenze di scansione restino
+     * corte. Le posizioni libere sono null.
+     */
+    private String[] indiceCodici;
+
+    /*
+     * Firma a 64 bit delle facilities di quest'aula: l'OR dei bit associati ai
+     * codici inseriti (vedi bitFirma). Se una richiesta ha un bit che non
+     * compare nella firma l'aula non può soddisfarla, e lo si scopre con una
+     * sola operazione sulle maschere.
+     */
+    private long firmaFacilities;
+
+    /*
+     * Insieme delle prenotazioni per quest'aula, memorizzate per colonne di
+     * primitivi (vedi ColonnePrenotazioni) e tenute ordinate secondo
+     * l'ordinamento dei time slot. Le colonne vengono create all'inizio della
+     * dimensione specificata nella costante INIT_NUM_PRENOTAZIONI e
+     * raddoppiate qualora non ci sia più spazio per inserire una
      * prenotazione.
      */
-    private Prenotazione[] prenotazioni;
+    private final ColonnePrenotazioni prenotazioni;
 
-    // numero corrente di prenotazioni inserite
-    private int numPrenotazioni;
+    /*
+     * Gli oggetti Prenotazione creati dall'ultima chiamata di
+     * getPrenotazioni(), oppure null se da allora è stata inserita una
+     * prenotazione.
+     */
+    private Prenotazione[] prenotazioniMaterializzate;
 
     /**
      * Costruisce una certa aula con nome e location. Il set delle facilities è
@@ -67,7 +95,8 @@ public class Aula implements Comparable<Aula> {
         if (nome == null || location == null) throw new NullPointerException("Il nome o la location dell'aula sono" +
                 "null");
         facilities = new Facility[INIT_NUM_FACILITIES];
-        prenotazioni = new Prenotazione[INIT_NUM_PRENOTAZIONI];
+        indiceCodici = new String[INIT_DIM_INDICE_FACILITIES];
+        prenotazioni = new ColonnePrenotazioni(INIT_NUM_PRENOTAZIONI);
         this.nome = nome;
         this.location = location;
     }
@@ -125,17 +154,21 @@ public class Aula implements Comparable<Aula> {
     }
 
     /**
-     * @return the prenotazioni
+     * @return the prenotazioni, in ordine di time slot, in un array lungo
+     * quanto la capacità corrente in cui le posizioni dopo l'ultima
+     * prenotazione sono null. Gli oggetti vengono creati alla prima chiamata
+     * dopo un inserimento.
      */
     public Prenotazione[] getPrenotazioni() {
-        return this.prenotazioni;
+        if (prenotazioniMaterializzate == null) prenotazioniMaterializzate = prenotazioni.materializza(this);
+        return this.prenotazioniMaterializzate;
     }
 
     /**
      * @return il numero corrente di prenotazioni
      */
     public int getNumeroPrenotazioni() {
-        return this.numPrenotazioni;
+        return prenotazioni.dimensione();
     }
 
     /**
@@ -156,24 +189,58 @@ public class Aula implements Comparable<Aula> {
          * è richiesto di ridefinire ulteriormente il metodo equals...
          */
         if (f == null) throw new NullPointerException("La facility passatta è null");
-        //Se facilities è vuoto
-        if (numFacilities == 0) {
-            facilities[0] = f;
-            numFacilities++;
-            return true;
-        }
-        //Controllo se la facility esiste
-        for (int i = 0; i < numFacilities; i++) {
-            if (facilities[i].equals(f)) return false;
-        }
+        //Controllo se la facility esiste: l'uguaglianza è basata sul codice
+        if (contieneCodice(f.getCodice())) return false;
         //Se facilities è pieno ne raddoppio lo spazio
         if (facilities[facilities.length - 1] != null) facilities = Arrays.copyOf(facilities,
                 facilities.length * 2);
         facilities[numFacilities] = f;
         numFacilities++;
+        //Se l'indice è pieno per metà ne raddoppio lo spazio e reinserisco i codici
+        if (2 * numFacilities > indiceCodici.length) {
+            indiceCodici = new String[indiceCodici.length * 2];
+            for (int i = 0; i < numFacilities - 1; i++) inserisciCodice(facilities[i].getCodice());
+        }
+        inserisciCodice(f.getCodice());
+        firmaFacilities |= bitFirma(f.getCodice());
         return true;
     }
 
+    /*
+     * Posizione iniziale della scansione per un codice. L'hash viene
+     * rimescolato perché si usano solo i bit bassi.
+     */
+    private static int hashCodice(String codice) {
+        int h = codice.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * Bit della firma associato a un codice: si usano i 6 bit alti dell'hash
+     * moltiplicato per una costante dispari, per non avere gli stessi bit
+     * usati dalla tabella.
+     */
+    private static long bitFirma(String codice) {
+        return 1L << ((codice.hashCode() * 0x9E3779B9) >>> 26);
+    }
+
+    private void inserisciCodice(String codice) {
+        int maschera = indiceCodici.length - 1;
+        int i = hashCodice(codice) & maschera;
+        while (indiceCodici[i] != null) i = (i + 1) & maschera;
+        indiceCodici[i] = codice;
+    }
+
+    private boolean contieneCodice(String codice) {
+        int maschera = indiceCodici.length - 1;
+        int i = hashCodice(codice) & maschera;
+        while (indiceCodici[i] != null) {
+            if (indiceCodici[i].equals(codice)) return true;
+            i = (i + 1) & maschera;
+        }
+        return false;
+    }
+
     /**
      * Determina se l'aula è libera in un certo time slot.
      *
@@ -184,8 +251,9 @@ public class Aula implements Comparable<Aula> {
      */
     public boolean isFree(TimeSlot ts) {
         if (ts == null) throw new NullPointerException("Il time slot passato è nullo");
-        for (int i = 0; i < numPrenotazioni; i++) if (prenotazioni[i].getTimeSlot().overlapsWith(ts)) return false;
-        return true;
+        // Le colonne vengono scorse a partire dalla prima prenotazione che
+        // può ancora sovrapporsi a ts, trovata con la ricerca binaria
+        return prenotazioni.libero(ts.getStart().getTimeInMillis(), ts.getStop().getTimeInMillis());
     }
 
     /**
@@ -201,9 +269,16 @@ public class Aula implements Comparable<Aula> {
      */
     public boolean satisfiesFacilities(Facility[] requestedFacilities) {
         if (requestedFacilities == null) throw new NullPointerException("il set di facility richieste è nullo");
+        //Prima si scartano con la firma le aule a cui manca sicuramente qualcosa
+        long firmaRichiesta = 0;
+        for (int i = 0; i < requestedFacilities.length; i++) {
+            if (requestedFacilities[i] != null) firmaRichiesta |= bitFirma(requestedFacilities[i].getCodice());
+        }
+        if ((firmaRichiesta & ~firmaFacilities) != 0) return false;
+        //Poi si controlla ogni codice richiesto nell'indice
         for (int i = 0; i < requestedFacilities.length; i++) {
             if (requestedFacilities[i] != null) {
-                if (!(Arrays.asList(facilities).contains(requestedFacilities[i]))) return false;
+                if (!contieneCodice(requestedFacilities[i].getCodice())) return false;
             }
         }
         return true;
@@ -226,12 +301,8 @@ public class Aula implements Comparable<Aula> {
             throw new NullPointerException("ts o docente o motivo sono" +
                     "null");
         if (isFree(ts)) {
-            Prenotazione tempPrenotazione = new Prenotazione(this, ts, docente, motivo);
-            //Se array prenotazione è pieno ne raddoppio lo spazio
-            if(prenotazioni[prenotazioni.length-1] !=null) prenotazioni = Arrays.copyOf(prenotazioni,
-                    prenotazioni.length*2);
-            prenotazioni[numPrenotazioni] = tempPrenotazione;
-            numPrenotazioni++;
+            prenotazioni.inserisci(ts.getStart().getTimeInMillis(), ts.getStop().getTimeInMillis(), docente, motivo);
+            prenotazioniMaterializzate = null;
         } else {
             throw new IllegalArgumentException("L'aula è occupata per quel determinato timeslot");
         }
@@ -6,7 +6,10 @@ package it.unicam.cs.asdl2122.es4;
 import static org.junit.jupiter.api.Assertions.*;
 
 
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
 
 
 import org.junit.jupiter.api.Test;
@@ -283,6 +286,32 @@ class AulaTest {
 
     }
 
+    /**
+     * Test method for
+     * {@link it.unicam.cs.asdl2122.es4.Aula#satisfiesFacilities(it.unicam.cs.asdl2122.es4.Facility[])}
+     * con più facilities di quanti siano i bit della firma.
+     */
+    @Test
+    final void testSatisfiesFacilitiesMolteFacilities() {
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        // I codici pari sono presenti, quelli dispari no
+        for (int i = 0; i < 200; i += 2)
+            assertTrue(a.addFacility(new PresenceFacility("F" + i, "")));
+        assertTrue(a.getNumeroFacilities() == 100);
+        assertFalse(a.addFacility(new PresenceFacility("F42", "Doppione")));
+        assertTrue(a.getNumeroFacilities() == 100);
+        Facility[] requestedFacilities = new Facility[2];
+        for (int i = 0; i < 200; i++) {
+            requestedFacilities[0] = new PresenceFacility("F" + i, "");
+            assertTrue(a.satisfiesFacilities(requestedFacilities) == (i % 2 == 0));
+        }
+        requestedFacilities[0] = new PresenceFacility("F0", "");
+        requestedFacilities[1] = new PresenceFacility("F198", "");
+        assertTrue(a.satisfiesFacilities(requestedFacilities));
+        requestedFacilities[1] = new PresenceFacility("F199", "");
+        assertFalse(a.satisfiesFacilities(requestedFacilities));
+    }
+
     /**
      * Test method for
      * {@link it.unicam.cs.asdl2122.es4.Aula#addPrenotazione(it.unicam.cs.asdl2122.es4.TimeSlot, java.lang.String, java.lang.String)}.
@@ -320,4 +349,89 @@ class AulaTest {
                 () -> a.addPrenotazione(ts3, "Luca Tesei", "Pippo"));
     }
 
+    /**
+     * Test method for
+     * {@link it.unicam.cs.asdl2122.es4.Aula#addPrenotazione(it.unicam.cs.asdl2122.es4.TimeSlot, java.lang.String, java.lang.String)}
+     * con inserimenti non in ordine.
+     */
+    @Test
+    final void testAddPrenotazioneOrdinata() {
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        // Più prenotazioni di INIT_NUM_PRENOTAZIONI, inserite non in ordine
+        int n = Aula.INIT_NUM_PRENOTAZIONI + 20;
+        for (int i = 0; i < n; i++) {
+            int giorno = 1 + (i * 37) % n;
+            a.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 0, giorno, 11, 00),
+                    new GregorianCalendar(2019, 0, giorno, 13, 00)), "Luca Tesei", "Lezione ASDL");
+        }
+        assertTrue(a.getNumeroPrenotazioni() == n);
+        assertTrue(a.getPrenotazioni().length == 2 * Aula.INIT_NUM_PRENOTAZIONI);
+        Prenotazione[] cmp = a.getPrenotazioni();
+        for (int i = 1; i < n; i++)
+            assertTrue(cmp[i - 1].getTimeSlot().compareTo(cmp[i].getTimeSlot()) < 0);
+        assertTrue(cmp[n] == null);
+        // Una prenotazione lunga che inizia molto prima di una richiesta deve
+        // essere trovata anche se fra le due ce ne sono altre
+        Aula b = new Aula("LA2", "Polo Lodovici Piano Terra");
+        b.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 8, 00),
+                new GregorianCalendar(2019, 10, 4, 20, 00)), "Luca Tesei", "Esame");
+        b.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 00),
+                new GregorianCalendar(2019, 10, 4, 9, 05)), "Luca Tesei", "Ricevimento");
+        b.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 10, 00),
+                new GregorianCalendar(2019, 10, 4, 10, 05)), "Luca Tesei", "Ricevimento");
+        assertFalse(b.isFree(new TimeSlot(new GregorianCalendar(2019, 10, 4, 15, 00),
+                new GregorianCalendar(2019, 10, 4, 16, 00))));
+        assertTrue(b.isFree(new TimeSlot(new GregorianCalendar(2019, 10, 4, 19, 55),
+                new GregorianCalendar(2019, 10, 4, 21, 00))));
+    }
+
+    /**
+     * Test method for
+     * {@link it.unicam.cs.asdl2122.es4.Aula#getPrenotazioni()} e
+     * {@link it.unicam.cs.asdl2122.es4.Aula#isFree(it.unicam.cs.asdl2122.es4.TimeSlot)}
+     * sulle prenotazioni memorizzate per colonne: isFree deve dare lo stesso
+     * risultato di overlapsWith confrontato con ogni prenotazione, e le
+     * prenotazioni create su richiesta devono avere gli stessi dati di quelle
+     * inserite.
+     */
+    @Test
+    final void testPrenotazioniPerColonne() {
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        Random caso = new Random(24);
+        List<TimeSlot> inseriti = new ArrayList<TimeSlot>();
+        for (int i = 0; i < 2000; i++) {
+            GregorianCalendar inizio = new GregorianCalendar(2019, 10, 1 + caso.nextInt(10), caso.nextInt(24),
+                    caso.nextInt(60), caso.nextInt(3) == 0 ? caso.nextInt(60) : 0);
+            GregorianCalendar fine = (GregorianCalendar) inizio.clone();
+            // Qualche prenotazione lunga più giorni, che libero cerca a parte
+            fine.add(GregorianCalendar.MINUTE, caso.nextInt(100) == 0 ? 1 + caso.nextInt(3 * 1440) : 1 + caso.nextInt(180));
+            TimeSlot ts = new TimeSlot(inizio, fine);
+            boolean libera = true;
+            for (TimeSlot t : inseriti)
+                libera &= !t.overlapsWith(ts);
+            assertEquals(libera, a.isFree(ts));
+            if (libera) {
+                a.addPrenotazione(ts, "Docente " + caso.nextInt(5), "Motivo " + i);
+                inseriti.add(ts);
+            }
+        }
+        Prenotazione[] p = a.getPrenotazioni();
+        assertSame(p, a.getPrenotazioni());
+        assertEquals(inseriti.size(), a.getNumeroPrenotazioni());
+        assertTrue(p.length >= inseriti.size());
+        for (int i = 0; i < inseriti.size(); i++) {
+            assertTrue(inseriti.contains(p[i].getTimeSlot()));
+            assertSame(a, p[i].getAula());
+            assertTrue(p[i].getDocente().startsWith("Docente "));
+            if (i > 0) assertTrue(p[i - 1].getTimeSlot().compareTo(p[i].getTimeSlot()) < 0);
+        }
+        for (int i = inseriti.size(); i < p.length; i++)
+            assertNull(p[i]);
+        // Un nuovo inserimento rende da ricreare le prenotazioni
+        a.addPrenotazione(new TimeSlot(new GregorianCalendar(2020, 0, 1, 9, 0),
+                new GregorianCalendar(2020, 0, 1, 10, 0)), "Luca Tesei", "Esame");
+        assertNotSame(p, a.getPrenotazioni());
+        assertEquals("Esame", a.getPrenotazioni()[inseriti.size()].getMotivo());
+    }
+
 }
@@ -0,0 +1,240 @@
+package it.unicam.cs.asdl2122.es4;
+
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+
+/**
+ * Prenotazioni di un'aula memorizzate per colonne: inizio e fine in
+ * millisecondi in due array di long, docente e motivo come codici interi in
+ * due array di int, tutti nella stessa posizione. Le prenotazioni sono tenute
+ * ordinate per inizio e poi per fine, cioè secondo l'ordinamento dei time
+ * slot, per cui isFree scorre solo array di primitivi contigui in memoria
+ * invece di seguire per ogni prenotazione i riferimenti a Prenotazione,
+ * TimeSlot e GregorianCalendar. Gli oggetti Prenotazione vengono creati solo
+ * quando vengono richiesti, con materializza.
+ *
+ * I codici di docente e motivo sono posizioni in un dizionario delle stringhe
+ * di quest'aula, in cui ogni stringa distinta compare una volta sola.
+ *
+ * @author Collettiva
+ */
+final class ColonnePrenotazioni {
+
+    // Sovrapposizione minima, in millisecondi, perché due time slot si
+    // sovrappongano secondo TimeSlot.overlapsWith
+    private static final long SOVRAPPOSIZIONE_MINIMA = (TimeSlot.MINUTES_OF_TOLERANCE_FOR_OVERLAPPING + 1) * 60000L;
+
+    // Durata, in millisecondi, oltre la quale una prenotazione è lunga: un
+    // giorno
+    static final long DURATA_CORTA = 24 * 60 * 60000L;
+
+    private long[] inizi;
+
+    private long[] fini;
+
+    private int[] docenti;
+
+    private int[] motivi;
+
+    // numero corrente di prenotazioni
+    private int dimensione;
+
+    /*
+     * Durata massima, in millisecondi, fra le prenotazioni inserite non più
+     * lunghe di DURATA_CORTA: quelle che iniziano prima di inizio -
+     * durataMassima finiscono sicuramente prima di inizio, oppure sono
+     * lunghe. Una sola prenotazione lunga non allarga quindi la finestra
+     * esaminata da libero oltre un giorno.
+     */
+    private long durataMassima;
+
+    // Inizio e fine delle prenotazioni lunghe, che sono poche, tenute anche
+    // qui in ordine di inizio insieme alla loro durata massima
+    private long[] iniziLunghe;
+
+    private long[] finiLunghe;
+
+    private int numLunghe;
+
+    private long durataMassimaLunghe;
+
+    // Dizionario di docenti e motivi: stringhe per codice e codici per stringa
+    private String[] stringhe;
+
+    private int numStringhe;
+
+    private final HashMap<String, Integer> codici;
+
+    /**
+     * Crea un insieme vuoto di prenotazioni con la capacità data, che viene
+     * raddoppiata quando è piena.
+     *
+     * @param capacita la capacità iniziale, positiva
+     */
+    ColonnePrenotazioni(int capacita) {
+        inizi = new long[capacita];
+        fini = new long[capacita];
+        docenti = new int[capacita];
+        motivi = new int[capacita];
+        iniziLunghe = new long[4];
+        finiLunghe = new long[4];
+        stringhe = new String[16];
+        codici = new HashMap<String, Integer>();
+    }
+
+    /**
+     * @return il numero di prenotazioni
+     */
+    int dimensione() {
+        return dimensione;
+    }
+
+    /**
+     * @return il numero di prenotazioni che si possono inserire prima di
+     * raddoppiare le colonne
+     */
+    int capacita() {
+        return inizi.length;
+    }
+
+    /**
+     * Determina se l'intervallo [inizio, fine) non si sovrappone a nessuna
+     * prenotazione, con la stessa tolleranza di TimeSlot.overlapsWith. Si
+     * parte dalla prima prenotazione che può ancora sovrapporsi, trovata con
+     * la ricerca binaria, e ci si ferma alla prima che inizia dopo fine; le
+     * prenotazioni lunghe che iniziano prima della finestra si cercano a
+     * parte allo stesso modo. Il costo è O(log n + k), dove k è il numero di
+     * prenotazioni che iniziano da un giorno al più prima di inizio fino a
+     * fine, più quelle lunghe che iniziano dopo inizio - durataMassimaLunghe.
+     *
+     * @param inizio l'inizio in millisecondi
+     * @param fine   la fine in millisecondi
+     * @return true se nessuna prenotazione si sovrappone all'intervallo
+     */
+    boolean libero(long inizio, long fine) {
+        for (int i = primaCheIniziaDa(inizi, dimensione, inizio - durataMassima); i < dimensione; i++) {
+            long inizioP = inizi[i];
+            if (inizioP > fine) break;
+            if (Math.min(fini[i], fine) - Math.max(inizioP, inizio) >= SOVRAPPOSIZIONE_MINIMA) return false;
+        }
+        for (int i = primaCheIniziaDa(iniziLunghe, numLunghe, inizio - durataMassimaLunghe); i < numLunghe; i++) {
+            long inizioP = iniziLunghe[i];
+            if (inizioP > fine) break;
+            if (Math.min(finiLunghe[i], fine) - Math.max(inizioP, inizio) >= SOVRAPPOSIZIONE_MINIMA) return false;
+        }
+        return true;
+    }
+
+    /*
+     * Ricerca binaria, fra i primi n inizi, della posizione della prima
+     * prenotazione che inizia nell'istante dato o dopo; restituisce n se non
+     * ce ne sono.
+     */
+    private static int primaCheIniziaDa(long[] inizi, int n, long istante) {
+        int inf = 0;
+        int sup = n;
+        while (inf < sup) {
+            int medio = (inf + sup) >>> 1;
+            if (inizi[medio] < istante) inf = medio + 1;
+            else sup = medio;
+        }
+        return inf;
+    }
+
+    /*
+     * Ricerca binaria della posizione in cui inserire [inizio, fine) per
+     * mantenere l'ordinamento: la prima prenotazione che inizia dopo, oppure
+     * insieme ma finisce dopo.
+     */
+    private int posizioneDiInserimento(long inizio, long fine) {
+        int inf = 0;
+        int sup = dimensione;
+        while (inf < sup) {
+            int medio = (inf + sup) >>> 1;
+            if (inizi[medio] < inizio || (inizi[medio] == inizio && fini[medio] <= fine)) inf = medio + 1;
+            else sup = medio;
+        }
+        return inf;
+    }
+
+    /**
+     * Inserisce una prenotazione, già controllata con libero, mantenendo
+     * l'ordinamento. Se le colonne sono piene ne raddoppia lo spazio.
+     *
+     * @param inizio  l'inizio in millisecondi
+     * @param fine    la fine in millisecondi
+     * @param docente il docente
+     * @param motivo  il motivo
+     */
+    void inserisci(long inizio, long fine, String docente, String motivo) {
+        if (dimensione == inizi.length) {
+            inizi = Arrays.copyOf(inizi, inizi.length * 2);
+            fini = Arrays.copyOf(fini, fini.length * 2);
+            docenti = Arrays.copyOf(docenti, docenti.length * 2);
+            motivi = Arrays.copyOf(motivi, motivi.length * 2);
+        }
+        //Inserimento ordinato: sposto di una posizione le prenotazioni successive
+        int posizione = posizioneDiInserimento(inizio, fine);
+        int daSpostare = dimensione - posizione;
+        System.arraycopy(inizi, posizione, inizi, posizione + 1, daSpostare);
+        System.arraycopy(fini, posizione, fini, posizione + 1, daSpostare);
+        System.arraycopy(docenti, posizione, docenti, posizione + 1, daSpostare);
+        System.arraycopy(motivi, posizione, motivi, posizione + 1, daSpostare);
+        inizi[posizione] = inizio;
+        fini[posizione] = fine;
+        docenti[posizione] = codifica(docente);
+        motivi[posizione] = codifica(motivo);
+        dimensione++;
+        if (fine - inizio <= DURATA_CORTA) {
+            if (fine - inizio > durataMassima) durataMassima = fine - inizio;
+            return;
+        }
+        if (numLunghe == iniziLunghe.length) {
+            iniziLunghe = Arrays.copyOf(iniziLunghe, numLunghe * 2);
+            finiLunghe = Arrays.copyOf(finiLunghe, numLunghe * 2);
+        }
+        int i = primaCheIniziaDa(iniziLunghe, numLunghe, inizio);
+        System.arraycopy(iniziLunghe, i, iniziLunghe, i + 1, numLunghe - i);
+        System.arraycopy(finiLunghe, i, finiLunghe, i + 1, numLunghe - i);
+        iniziLunghe[i] = inizio;
+        finiLunghe[i] = fine;
+        numLunghe++;
+        if (fine - inizio > durataMassimaLunghe) durataMassimaLunghe = fine - inizio;
+    }
+
+    /*
+     * Restituisce il codice di una stringa nel dizionario, aggiungendola se
+     * non c'è.
+     */
+    private int codifica(String s) {
+        Integer codice = codici.get(s);
+        if (codice != null) return codice;
+        if (numStringhe == stringhe.length) stringhe = Arrays.copyOf(stringhe, stringhe.length * 2);
+        stringhe[numStringhe] = s;
+        codici.put(s, numStringhe);
+        return numStringhe++;
+    }
+
+    /**
+     * Crea gli oggetti Prenotazione di tutte le prenotazioni, in ordine, in un
+     * array lungo quanto la capacità delle colonne in cui le posizioni dopo
+     * l'ultima prenotazione sono null. I time slot hanno calendari nel fuso
+     * orario di default.
+     *
+     * @param aula l'aula a cui appartengono le prenotazioni
+     * @return l'array delle prenotazioni
+     */
+    Prenotazione[] materializza(Aula aula) {
+        Prenotazione[] prenotazioni = new Prenotazione[inizi.length];
+        for (int i = 0; i < dimensione; i++) {
+            GregorianCalendar inizio = new GregorianCalendar();
+            inizio.setTimeInMillis(inizi[i]);
+            GregorianCalendar fine = new GregorianCalendar();
+            fine.setTimeInMillis(fini[i]);
+            prenotazioni[i] = new Prenotazione(aula, new TimeSlot(inizio, fine), stringhe[docenti[i]],
+                    stringhe[motivi[i]]);
+        }
+        return prenotazioni;
+    }
+}
@@ -0,0 +1,262 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Archivio delle prenotazioni di un'aula fuori dallo heap, in un ByteBuffer
+ * diretto: per grandi archivi storici lo heap resta piccolo e il garbage
+ * collector non deve scorrere milioni di oggetti Prenotazione, TimeSlot e
+ * GregorianCalendar. Ogni prenotazione è un record di 24 byte (inizio e fine
+ * in millisecondi, codici di docente e motivo nel {@link DizionarioStringhe}
+ * dell'archivio) e i record sono tenuti ordinati per inizio e fine, per cui il
+ * buffer stesso fa da indice ordinato: le ricerche sono binarie e le
+ * scansioni leggono memoria contigua.
+ *
+ * Gli oggetti Prenotazione vengono creati solo quando servono (dal cursore,
+ * dalla rimozione e da {@link #vista()}); sono copie, per cui le modifiche di
+ * docente e motivo non vengono riportate nell'archivio. Quando è pieno il
+ * buffer viene raddoppiato; quello vecchio viene liberato dal garbage
+ * collector, per cui durante la crescita la memoria diretta occupata arriva a
+ * qualche volta quella dei record (vedi {@link Aula#fuoriHeap(String, String,
+ * int)} per il limite -XX:MaxDirectMemorySize). Il buffer non è sincronizzato:
+ * tutti gli accessi, compreso {@link #vista()}, avvengono sotto il lock
+ * dell'aula.
+ *
+ * @author Collettiva
+ *
+ */
+final class ArchivioFuoriHeap implements ArchivioPrenotazioni {
+
+    static final int RECORD = 24;
+
+    private static final int INIZIO = 0;
+
+    private static final int FINE = 8;
+
+    // Docente e motivo, letti e scritti insieme come un solo long
+    private static final int CODICI = 16;
+
+    // Numero massimo di record indirizzabili in un ByteBuffer
+    private static final int CAPACITA_MASSIMA = Integer.MAX_VALUE / RECORD;
+
+    private final Aula aula;
+
+    // Docente e motivo delle prenotazioni di quest'aula: il dizionario vive
+    // quanto l'archivio, e non cresce con le stringhe delle prenotazioni
+    // usate solo per le ricerche
+    private final DizionarioStringhe dizionario;
+
+    private ByteBuffer record;
+
+    private int dimensione;
+
+    // Appoggio di sposta, multiplo della dimensione di un record; gli
+    // accessi all'archivio avvengono sotto il lock dell'aula, per cui basta
+    // uno per archivio
+    private final byte[] appoggio = new byte[RECORD * 512];
+
+    ArchivioFuoriHeap(Aula aula, int capacita) {
+        if (capacita <= 0 || capacita > CAPACITA_MASSIMA)
+            throw new IllegalArgumentException(
+                    "Capacità non valida: " + capacita);
+        this.aula = aula;
+        this.dizionario = new DizionarioStringhe();
+        this.record = alloca(capacita);
+    }
+
+    private static ByteBuffer alloca(int capacita) {
+        return ByteBuffer.allocateDirect(capacita * RECORD)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return il numero di record che il buffer può contenere
+     */
+    int capacita() {
+        return record.capacity() / RECORD;
+    }
+
+    private long inizio(int i) {
+        return record.getLong(i * RECORD + INIZIO);
+    }
+
+    private long fine(int i) {
+        return record.getLong(i * RECORD + FINE);
+    }
+
+    /*
+     * Ricerca binaria della prima posizione il cui record segue (inizio,
+     * fine), oppure è uguale se uguale vale true.
+     */
+    private int posizione(long inizio, long fine, boolean uguale) {
+        int inf = 0;
+        int sup = dimensione;
+        while (inf < sup) {
+            int medio = (inf + sup) >>> 1;
+            long im = inizio(medio);
+            long fm = fine(medio);
+            boolean prima = im < inizio || (im == inizio
+                    && (uguale ? fm < fine : fm <= fine));
+            if (prima)
+                inf = medio + 1;
+            else
+                sup = medio;
+        }
+        return inf;
+    }
+
+    /*
+     * Sposta i record [da, dimensione) di spostamento posizioni, in avanti
+     * se positivo e indietro se negativo. La copia passa a pezzi da appoggio,
+     * con get e put assoluti: ogni pezzo viene letto tutto prima di essere
+     * scritto, e i pezzi si copiano dall'ultimo in avanti e dal primo
+     * indietro, per cui nessuno sovrascrive byte non ancora letti. Non si
+     * usa put fra due duplicati del buffer, che per le regioni sovrapposte
+     * in Java 8 è definito come una copia in avanti un byte per volta.
+     */
+    private void sposta(int da, int spostamento) {
+        int inizio = da * RECORD;
+        int fine = dimensione * RECORD;
+        int passo = spostamento * RECORD;
+        ByteBuffer sorgente = record.duplicate();
+        ByteBuffer destinazione = record.duplicate();
+        if (spostamento > 0)
+            for (int a = fine; a > inizio;) {
+                int n = Math.min(appoggio.length, a - inizio);
+                a -= n;
+                copia(sorgente, destinazione, a, a + passo, n);
+            }
+        else
+            for (int d = inizio; d < fine;) {
+                int n = Math.min(appoggio.length, fine - d);
+                copia(sorgente, destinazione, d, d + passo, n);
+                d += n;
+            }
+    }
+
+    private void copia(ByteBuffer sorgente, ByteBuffer destinazione, int da,
+            int a, int n) {
+        sorgente.position(da);
+        sorgente.get(appoggio, 0, n);
+        destinazione.position(a);
+        destinazione.put(appoggio, 0, n);
+    }
+
+    /*
+     * Ricrea la prenotazione del record in posizione i.
+     */
+    private Prenotazione prenotazione(int i) {
+        long codici = record.getLong(i * RECORD + CODICI);
+        return Prenotazione.of(aula, new CompactTimeSlot(inizio(i), fine(i)),
+                dizionario.decodifica((int) (codici >>> 32)),
+                dizionario.decodifica((int) codici));
+    }
+
+    @Override
+    public int dimensione() {
+        return dimensione;
+    }
+
+    @Override
+    public boolean aggiungi(Prenotazione p) {
+        long inizio = p.getCompactTimeSlot().getStartMillis();
+        long fine = p.getCompactTimeSlot().getStopMillis();
+        int i = posizione(inizio, fine, true);
+        if (i < dimensione && inizio(i) == inizio && fine(i) == fine)
+            return false;
+        if (dimensione == capacita()) {
+            if (dimensione == CAPACITA_MASSIMA)
+                throw new IllegalStateException(
+                        "Archivio pieno: " + dimensione + " prenotazioni");
+            ByteBuffer nuovo = alloca(
+                    (int) Math.min(2L * dimensione, CAPACITA_MASSIMA));
+            ByteBuffer vecchio = record.duplicate();
+            vecchio.clear();
+            nuovo.put(vecchio);
+            nuovo.clear();
+            record = nuovo;
+        }
+        sposta(i, 1);
+        int base = i * RECORD;
+        record.putLong(base + INIZIO, inizio);
+        record.putLong(base + FINE, fine);
+        record.putLong(base + CODICI,
+                ((long) dizionario.codifica(p.getDocente()) << 32)
+                        | (dizionario.codifica(p.getMotivo()) & 0xFFFFFFFFL));
+        dimensione++;
+        return true;
+    }
+
+    @Override
+    public Prenotazione rimuovi(Prenotazione p) {
+        long inizio = p.getCompactTimeSlot().getStartMillis();
+        long fine = p.getCompactTimeSlot().getStopMillis();
+        int i = posizione(inizio, fine, true);
+        if (i == dimensione || inizio(i) != inizio || fine(i) != fine
+                || !p.getAula().equals(aula))
+            return null;
+        Prenotazione presente = prenotazione(i);
+        sposta(i + 1, -1);
+        dimensione--;
+        return presente;
+    }
+
+    @Override
+    public int rimuoviFinoA(long istante) {
+        // I record da rimuovere sono un prefisso: si spostano i rimanenti una
+        // volta sola
+        int k = posizione(istante, Long.MAX_VALUE, false);
+        sposta(k, -k);
+        dimensione -= k;
+        return k;
+    }
+
+    @Override
+    public Cursore da(long istante) {
+        final int primo = posizione(istante, Long.MIN_VALUE, true);
+        return new Cursore() {
+            private int i = primo - 1;
+
+            @Override
+            public boolean avanza() {
+                return ++i < dimensione;
+            }
+
+            @Override
+            public long inizio() {
+                return ArchivioFuoriHeap.this.inizio(i);
+            }
+
+            @Override
+            public long fine() {
+                return ArchivioFuoriHeap.this.fine(i);
+            }
+
+            @Override
+            public Prenotazione prenotazione() {
+                return ArchivioFuoriHeap.this.prenotazione(i);
+            }
+        };
+    }
+
+    /**
+     * Restituisce una copia sullo heap delle prenotazioni, creata a ogni
+     * chiamata: a differenza di quella di {@link ArchivioInMemoria} non
+     * riflette le modifiche successive.
+     */
+    @Override
+    public SortedSet<Prenotazione> vista() {
+        List<Prenotazione> tutte = new ArrayList<Prenotazione>(dimensione);
+        for (int i = 0; i < dimensione; i++)
+            tutte.add(prenotazione(i));
+        return Collections.unmodifiableSortedSet(
+                new TreeSet<Prenotazione>(tutte));
+    }
+
+}
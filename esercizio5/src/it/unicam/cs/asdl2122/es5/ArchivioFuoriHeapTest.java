@@ -0,0 +1,189 @@
+package it.unicam.cs.asdl2122.es5;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Classe di test per ArchivioFuoriHeap e per le aule create con
+ * Aula.fuoriHeap
+ *
+ * @author Collettiva
+ *
+ */
+class ArchivioFuoriHeapTest {
+
+    private static final long MINUTO = 60000L;
+
+    private static TimeSlot slot(long inizio, long fine) {
+        GregorianCalendar g1 = new GregorianCalendar();
+        g1.setTimeInMillis(inizio);
+        GregorianCalendar g2 = new GregorianCalendar();
+        g2.setTimeInMillis(fine);
+        return new TimeSlot(g1, g2);
+    }
+
+    @Test
+    final void testFuoriHeap() {
+        assertThrows(NullPointerException.class,
+                () -> Aula.fuoriHeap(null, "", 10));
+        assertThrows(IllegalArgumentException.class,
+                () -> Aula.fuoriHeap("LA1", "", 0));
+        Aula a = Aula.fuoriHeap("LA1", "Polo Lodovici Piano Terra", 1);
+        assertTrue(a.getPrenotazioni().isEmpty());
+        TimeSlot ts1 = new TimeSlot(new GregorianCalendar(2019, 10, 4, 11, 0),
+                new GregorianCalendar(2019, 10, 4, 13, 0));
+        TimeSlot ts2 = new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 0),
+                new GregorianCalendar(2019, 10, 4, 11, 0));
+        a.addPrenotazione(ts1, "Luca Tesei", "Lezione ASDL");
+        a.addPrenotazione(ts2, "Michele Loreti", "Lezione PSD");
+        assertThrows(IllegalArgumentException.class,
+                () -> a.addPrenotazione(ts1, "x", "y"));
+        assertFalse(a.isFree(ts1));
+        // Le prenotazioni vengono ricreate in ordine, con i loro dati
+        Iterator<Prenotazione> it = a.getPrenotazioni().iterator();
+        Prenotazione p = it.next();
+        assertEquals(ts2, p.getTimeSlot());
+        assertEquals("Michele Loreti", p.getDocente());
+        assertSame(a, p.getAula());
+        assertEquals("Lezione ASDL", it.next().getMotivo());
+        assertFalse(it.hasNext());
+        // La prenotazione notificata e restituita è quella memorizzata
+        assertTrue(a.removePrenotazione(new Prenotazione(a, ts1, "", "")));
+        assertFalse(a.removePrenotazione(new Prenotazione(a, ts1, "", "")));
+        assertTrue(a.isFree(ts1));
+        assertEquals(1, a.getPrenotazioni().size());
+        // Una prenotazione di un'altra aula con lo stesso time slot non c'è
+        assertFalse(a.removePrenotazione(
+                new Prenotazione(new Aula("LA2", ""), ts2, "", "")));
+    }
+
+    @Test
+    final void testCrescita() {
+        Aula a = Aula.fuoriHeap("LA1", "", 1);
+        long base = new GregorianCalendar(2019, 0, 1, 8, 0).getTimeInMillis();
+        // Inserite al contrario, perché ogni inserimento sposti i record,
+        // più di quanti ne stiano nell'appoggio di una copia
+        for (int i = 1999; i >= 0; i--)
+            a.addPrenotazione(slot(base + i * 60 * MINUTO,
+                    base + (i * 60 + 50) * MINUTO), "d" + i % 7, "m");
+        List<Prenotazione> tutte = new ArrayList<Prenotazione>(
+                a.getPrenotazioni());
+        assertEquals(2000, tutte.size());
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(base + i * 60 * MINUTO,
+                    tutte.get(i).getTimeSlot().getStart().getTimeInMillis());
+            assertEquals("d" + i % 7, tutte.get(i).getDocente());
+        }
+        GregorianCalendar t = new GregorianCalendar();
+        t.setTimeInMillis(base + 499 * 60 * MINUTO);
+        assertEquals(500, a.purgePrenotazioniBefore(t));
+        assertEquals(1500, a.getPrenotazioni().size());
+        assertEquals(base + 500 * 60 * MINUTO, a.getPrenotazioni().first()
+                .getTimeSlot().getStart().getTimeInMillis());
+        assertEquals("d" + 1999 % 7, a.getPrenotazioni().last().getDocente());
+    }
+
+    /*
+     * Esegue le stesse operazioni casuali su un'aula con le prenotazioni
+     * sullo heap e su una con le prenotazioni fuori dallo heap, che devono
+     * comportarsi allo stesso modo.
+     */
+    @Test
+    final void testStessaSemantica() {
+        Random caso = new Random(25);
+        long base = new GregorianCalendar(2019, 10, 4, 0, 0).getTimeInMillis();
+        Aula heap = new Aula("LA1", "");
+        Aula fuori = Aula.fuoriHeap("LA1", "", 4);
+        PrenotazioneRicorrente r = null;
+        for (int passo = 0; passo < 3000; passo++) {
+            long inizio = base + caso.nextInt(10 * 1440) * MINUTO;
+            if (caso.nextInt(20) == 0)
+                inizio += caso.nextInt(60000);
+            TimeSlot ts = slot(inizio,
+                    inizio + (1 + caso.nextInt(300)) * MINUTO);
+            int scelta = caso.nextInt(10);
+            if (scelta < 5) {
+                String docente = "Docente " + caso.nextInt(30);
+                boolean accettata = true;
+                try {
+                    heap.addPrenotazione(ts, docente, "Lezione");
+                } catch (IllegalArgumentException e) {
+                    accettata = false;
+                }
+                if (accettata)
+                    fuori.addPrenotazione(ts, docente, "Lezione");
+                else
+                    assertThrows(IllegalArgumentException.class,
+                            () -> fuori.addPrenotazione(ts, "x", "y"));
+            } else if (scelta < 7 && !heap.getPrenotazioni().isEmpty()) {
+                List<Prenotazione> presenti = new ArrayList<Prenotazione>(
+                        heap.getPrenotazioni());
+                Prenotazione p = presenti.get(caso.nextInt(presenti.size()));
+                assertTrue(heap.removePrenotazione(p));
+                assertTrue(fuori.removePrenotazione(
+                        new Prenotazione(fuori, p.getTimeSlot(), "", "")));
+            } else if (scelta == 7 && caso.nextInt(20) == 0) {
+                GregorianCalendar t = new GregorianCalendar();
+                t.setTimeInMillis(base + caso.nextInt(3 * 1440) * MINUTO);
+                assertEquals(heap.purgePrenotazioniBefore(t),
+                        fuori.purgePrenotazioniBefore(t));
+            } else if (scelta == 8 && r == null) {
+                try {
+                    r = heap.addPrenotazioneRicorrente(ts, Duration.ofDays(1),
+                            5, new HashSet<Integer>(), "MQ", "Lab");
+                    fuori.addPrenotazioneRicorrente(ts, Duration.ofDays(1), 5,
+                            new HashSet<Integer>(), "MQ", "Lab");
+                } catch (IllegalArgumentException e) {
+                    assertThrows(IllegalArgumentException.class,
+                            () -> fuori.addPrenotazioneRicorrente(ts,
+                                    Duration.ofDays(1), 5,
+                                    new HashSet<Integer>(), "MQ", "Lab"));
+                }
+            }
+            assertEquals(heap.isFree(ts), fuori.isFree(ts));
+            GregorianCalendar da = new GregorianCalendar();
+            da.setTimeInMillis(inizio);
+            Duration d = Duration.ofMinutes(1 + caso.nextInt(240));
+            assertEquals(heap.findFirstFreeSlot(da, d).getStart()
+                    .getTimeInMillis(),
+                    fuori.findFirstFreeSlot(da, d).getStart()
+                            .getTimeInMillis());
+        }
+        List<Prenotazione> h = new ArrayList<Prenotazione>(
+                heap.getPrenotazioni());
+        List<Prenotazione> f = new ArrayList<Prenotazione>(
+                fuori.getPrenotazioni());
+        assertEquals(h.size(), f.size());
+        for (int i = 0; i < h.size(); i++) {
+            assertEquals(0, h.get(i).getTimeSlot()
+                    .compareTo(f.get(i).getTimeSlot()));
+            assertEquals(h.get(i).getDocente(), f.get(i).getDocente());
+        }
+    }
+
+    @Test
+    final void testGestore() {
+        // Un'aula fuori dallo heap si usa con il gestore come le altre
+        GestoreAule g = new GestoreAule();
+        Aula a = Aula.fuoriHeap("LA1", "", 16);
+        a.addFacility(new QuantitativeFacility("POSTI", "", 80));
+        g.addAula(a);
+        TimeSlot ts = new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 0),
+                new GregorianCalendar(2019, 10, 4, 11, 0));
+        HashSet<Facility> richieste = new HashSet<Facility>();
+        richieste.add(new QuantitativeFacility("POSTI", "", 50));
+        assertEquals(1, g.cercaAuleLibere(richieste, ts).size());
+        a.addPrenotazione(ts, "Luca Tesei", "Esame");
+        assertTrue(g.cercaAuleLibere(richieste, ts).isEmpty());
+    }
+
+}
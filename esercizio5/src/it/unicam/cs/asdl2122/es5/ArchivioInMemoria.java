@@ -0,0 +1,118 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Archivio delle prenotazioni di un'aula sullo heap, in un TreeSet. È
+ * l'archivio predefinito delle aule: la vista restituita da
+ * {@link #vista()} riflette le modifiche successive.
+ *
+ * @author Collettiva
+ *
+ */
+final class ArchivioInMemoria implements ArchivioPrenotazioni {
+
+    private final Aula aula;
+
+    private final TreeSet<Prenotazione> prenotazioni;
+
+    ArchivioInMemoria(Aula aula) {
+        this.aula = aula;
+        this.prenotazioni = new TreeSet<Prenotazione>();
+    }
+
+    /*
+     * Cursore su una vista del TreeSet.
+     */
+    private static final class CursoreInMemoria implements Cursore {
+        private final Iterator<Prenotazione> it;
+
+        private Prenotazione corrente;
+
+        CursoreInMemoria(Iterator<Prenotazione> it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean avanza() {
+            corrente = it.hasNext() ? it.next() : null;
+            return corrente != null;
+        }
+
+        @Override
+        public long inizio() {
+            return corrente.getCompactTimeSlot().getStartMillis();
+        }
+
+        @Override
+        public long fine() {
+            return corrente.getCompactTimeSlot().getStopMillis();
+        }
+
+        @Override
+        public Prenotazione prenotazione() {
+            return corrente;
+        }
+    }
+
+    /*
+     * Crea una prenotazione fittizia dell'aula che inizia nell'istante dato e
+     * dura un millisecondo. Nell'ordinamento delle prenotazioni precede (o è
+     * uguale a) ogni prenotazione dell'aula che inizia nell'istante dato o
+     * dopo, per cui può essere usata come estremo nelle viste
+     * tailSet/headSet.
+     */
+    private Prenotazione sonda(long istante) {
+        return Prenotazione.of(aula, new CompactTimeSlot(istante, istante + 1),
+                null, null);
+    }
+
+    @Override
+    public int dimensione() {
+        return prenotazioni.size();
+    }
+
+    @Override
+    public boolean aggiungi(Prenotazione p) {
+        return prenotazioni.add(p);
+    }
+
+    @Override
+    public Prenotazione rimuovi(Prenotazione p) {
+        Prenotazione presente = prenotazioni.ceiling(p);
+        if (presente == null || !presente.equals(p))
+            return null;
+        prenotazioni.remove(presente);
+        return presente;
+    }
+
+    @Override
+    public int rimuoviFinoA(long istante) {
+        // Le prenotazioni da cancellare sono esattamente quelle della vista
+        // headSet che precede la prima prenotazione che inizia dopo istante
+        Iterator<Prenotazione> it = prenotazioni
+                .headSet(sonda(istante + 1), false).iterator();
+        int rimosse = 0;
+        while (it.hasNext()) {
+            it.next();
+            it.remove();
+            rimosse++;
+        }
+        return rimosse;
+    }
+
+    @Override
+    public Cursore da(long istante) {
+        return new CursoreInMemoria(
+                prenotazioni.tailSet(sonda(istante), true).iterator());
+    }
+
+    @Override
+    public SortedSet<Prenotazione> vista() {
+        return Collections.unmodifiableSortedSet(prenotazioni);
+    }
+
+}
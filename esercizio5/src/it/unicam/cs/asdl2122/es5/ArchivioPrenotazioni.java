@@ -0,0 +1,99 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.util.SortedSet;
+
+/**
+ * Archivio delle prenotazioni singole di un'aula, tenute nell'ordinamento
+ * naturale delle prenotazioni (per inizio e poi per fine). Aula vi accede
+ * solo attraverso questa interfaccia, per cui le prenotazioni possono stare
+ * sullo heap ({@link ArchivioInMemoria}) oppure fuori dallo heap
+ * ({@link ArchivioFuoriHeap}) senza cambiare la semantica di isFree,
+ * addPrenotazione e degli altri metodi dell'aula.
+ *
+ * Le scansioni passano per un {@link Cursore}, che legge inizio e fine in
+ * millisecondi senza bisogno di un oggetto Prenotazione. Gli archivi non
+ * sono thread-safe: vengono protetti dal lock dell'aula.
+ *
+ * @author Collettiva
+ *
+ */
+interface ArchivioPrenotazioni {
+
+    /**
+     * Posizione in una scansione delle prenotazioni in ordine. Prima di
+     * leggere la prima prenotazione va chiamato avanza. Un cursore non va più
+     * usato dopo una modifica dell'archivio.
+     */
+    interface Cursore {
+        /**
+         * Passa alla prenotazione successiva.
+         *
+         * @return false se non ci sono altre prenotazioni
+         */
+        boolean avanza();
+
+        /**
+         * @return l'inizio in millisecondi della prenotazione corrente
+         */
+        long inizio();
+
+        /**
+         * @return la fine in millisecondi della prenotazione corrente
+         */
+        long fine();
+
+        /**
+         * @return la prenotazione corrente
+         */
+        Prenotazione prenotazione();
+    }
+
+    /**
+     * @return il numero di prenotazioni
+     */
+    int dimensione();
+
+    /**
+     * Aggiunge una prenotazione.
+     *
+     * @param p
+     *              la prenotazione, di quest'aula
+     * @return false se c'era già una prenotazione con lo stesso time slot, e
+     *         in quel caso l'archivio non cambia
+     */
+    boolean aggiungi(Prenotazione p);
+
+    /**
+     * Rimuove la prenotazione uguale a quella data.
+     *
+     * @param p
+     *              la prenotazione da rimuovere
+     * @return la prenotazione memorizzata che è stata rimossa, che può avere
+     *         docente e motivo diversi da p, oppure null se non c'era
+     */
+    Prenotazione rimuovi(Prenotazione p);
+
+    /**
+     * Rimuove tutte le prenotazioni che iniziano prima dell'istante dato o
+     * esattamente in esso, senza creare oggetti per le prenotazioni rimosse.
+     *
+     * @param istante
+     *                    l'istante in millisecondi
+     * @return il numero di prenotazioni rimosse
+     */
+    int rimuoviFinoA(long istante);
+
+    /**
+     * @param istante
+     *                    un istante in millisecondi
+     * @return un cursore sulle prenotazioni che iniziano nell'istante dato o
+     *         dopo, in ordine
+     */
+    Cursore da(long istante);
+
+    /**
+     * @return le prenotazioni in ordine, in sola lettura
+     */
+    SortedSet<Prenotazione> vista();
+
+}
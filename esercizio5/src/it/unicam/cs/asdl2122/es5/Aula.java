@@ -1,12 +1,23 @@
 package it.unicam.cs.asdl2122.es5;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 /**
  * Un oggetto della classe aula rappresenta una certa aula con le sue facilities
  * e le sue prenotazioni.
  * 
+ * I metodi della classe possono essere chiamati in concorrenza da più thread:
+ * ogni aula ha il proprio lock in lettura/scrittura, per cui il controllo di
+ * sovrapposizione e l'inserimento di una prenotazione avvengono in modo
+ * atomico, mentre operazioni su aule diverse non si contendono nessun lock. La
+ * vista restituita da getPrenotazioni() non va invece scorsa mentre altri
+ * thread modificano l'aula.
+ * 
  * @author Template: Luca Tesei, Implementazione: Collettiva
  *
  */
@@ -17,12 +28,61 @@ public class Aula implements Comparable<Aula> {
     // Location dell'aula
     private final String location;
 
-    // Insieme delle facilities di quest'aula
-    private final Set<Facility> facilities;
+    // Insieme delle facilities di quest'aula. Cambia raramente, per cui è
+    // immutabile e viene sostituito da addFacility: può essere letto senza
+    // prendere il lock dell'aula
+    private final AtomicReference<Dotazione> facilities;
 
     // Insieme delle prenotazioni per quest'aula, segue l'ordinamento naturale
-    // delle prenotazioni
-    private final SortedSet<Prenotazione> prenotazioni;
+    // delle prenotazioni. Sta sullo heap, oppure fuori per le aule create con
+    // fuoriHeap
+    private final ArchivioPrenotazioni prenotazioni;
+
+    // Durata, in millisecondi, oltre la quale una prenotazione singola è
+    // considerata lunga: un giorno
+    static final long DURATA_CORTA = MappaOccupazione.GIORNO;
+
+    /*
+     * Durate, in millisecondi, delle prenotazioni singole presenti, ciascuna
+     * con il numero di prenotazioni che la hanno. Servono a delimitare la
+     * finestra di prenotazioni da esaminare (vedi prenotazioniDa): una
+     * prenotazione corta che inizia prima di ts.getStart() meno la durata
+     * massima delle prenotazioni corte termina sicuramente prima dell'inizio
+     * di ts. Le durate massime vengono ricalcolate quando si cancellano
+     * prenotazioni.
+     */
+    private final TreeMap<Long, Integer> durate;
+
+    // Le prenotazioni singole lunghe, che sono poche, tenute anche a parte:
+    // così una sola prenotazione lunga non allarga la finestra in cui si
+    // cercano quelle corte
+    private final ArchivioPrenotazioni lunghe;
+
+    // Prenotazioni ricorrenti di quest'aula, ciascuna memorizzata come un solo
+    // oggetto. Sono poche (una per corso), per cui vengono scorse tutte
+    private final List<PrenotazioneRicorrente> ricorrenti;
+
+    // Occupazione delle prenotazioni singole giorno per giorno, usata da
+    // isFree quando può rispondere in modo esatto
+    private final MappaOccupazione occupazione;
+
+    // Ascoltatori da notificare quando l'aula viene modificata
+    private final List<AulaListener> listeners;
+
+    // Metriche in cui registrare addPrenotazione e isFree: quelle globali,
+    // oppure quelle del gestore a cui l'aula è stata aggiunta
+    private volatile Metriche metriche;
+
+    /*
+     * Lock che protegge le prenotazioni, le prenotazioni ricorrenti,
+     * l'occupazione, le durate e le prenotazioni lunghe: isFree
+     * prende il lock in lettura, le operazioni che modificano le prenotazioni
+     * quello in scrittura. Anche le aggiunte di facilities prendono il lock in
+     * scrittura, mentre le letture delle facilities non lo prendono. Gli
+     * ascoltatori vengono notificati, e confermano le modifiche, tenendo il
+     * lock in scrittura.
+     */
+    private final ReentrantReadWriteLock lock;
 
     /**
      * Costruisce una certa aula con nome e location. Il set delle facilities è
@@ -42,8 +102,74 @@ public class Aula implements Comparable<Aula> {
                 "null");
         this.nome = nome;
         this.location = location;
-        this.facilities = new HashSet<Facility>();
-        this.prenotazioni = new TreeSet<Prenotazione>();
+        this.facilities = new AtomicReference<Dotazione>(Dotazione.VUOTA);
+        this.prenotazioni = new ArchivioInMemoria(this);
+        this.durate = new TreeMap<Long, Integer>();
+        this.lunghe = new ArchivioInMemoria(this);
+        this.ricorrenti = new ArrayList<PrenotazioneRicorrente>();
+        this.occupazione = new MappaOccupazione();
+        this.listeners = new CopyOnWriteArrayList<AulaListener>();
+        this.metriche = Metriche.getGlobali();
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /*
+     * Costruisce un'aula senza facilities né prenotazioni le cui prenotazioni
+     * singole sono memorizzate fuori dallo heap.
+     */
+    private Aula(String nome, String location, int capacitaFuoriHeap) {
+        if(nome == null || location == null) throw new NullPointerException("Il nome o la location dell'aula sono" +
+                "null");
+        this.nome = nome;
+        this.location = location;
+        this.facilities = new AtomicReference<Dotazione>(Dotazione.VUOTA);
+        this.prenotazioni = new ArchivioFuoriHeap(this, capacitaFuoriHeap);
+        this.durate = new TreeMap<Long, Integer>();
+        this.lunghe = new ArchivioInMemoria(this);
+        this.ricorrenti = new ArrayList<PrenotazioneRicorrente>();
+        this.occupazione = new MappaOccupazione();
+        this.listeners = new CopyOnWriteArrayList<AulaListener>();
+        this.metriche = Metriche.getGlobali();
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Crea un'aula, senza facilities e senza prenotazioni, le cui prenotazioni
+     * singole vengono memorizzate fuori dallo heap, in record di dimensione
+     * fissa tenuti ordinati in un buffer diretto. È pensata per archivi
+     * storici con moltissime prenotazioni, che altrimenti occuperebbero lo
+     * heap con milioni di oggetti: isFree, addPrenotazione e gli altri metodi
+     * si comportano allo stesso modo, ma getPrenotazioni() restituisce una
+     * copia creata a ogni chiamata invece di una vista, e le prenotazioni
+     * restituite sono copie di quelle memorizzate.
+     *
+     * Il buffer è memoria diretta, limitata da
+     * {@code -XX:MaxDirectMemorySize} (per default quanto lo heap massimo)
+     * e non da {@code -Xmx}. Quando il buffer raddoppia, quello vecchio viene
+     * liberato solo quando il garbage collector raccoglie il suo piccolo
+     * oggetto sullo heap; il JDK lo sollecita con System.gc() prima di
+     * rinunciare a un'allocazione, ma non con {@code -XX:+DisableExplicitGC}.
+     * Conviene quindi un limite di circa quattro volte 24 byte per il numero
+     * di prenotazioni previste, oppure una capacità iniziale che non debba
+     * crescere.
+     * 
+     * @param nome
+     *                     il nome dell'aula
+     * @param location
+     *                     la location dell'aula
+     * @param capacita
+     *                     il numero di prenotazioni per cui riservare spazio
+     *                     all'inizio; lo spazio raddoppia quando serve
+     * @return la nuova aula
+     * @throws NullPointerException
+     *                                      se il nome o la location sono
+     *                                      nulli
+     * @throws IllegalArgumentException
+     *                                      se la capacità non è positiva o è
+     *                                      troppo grande per un buffer
+     */
+    public static Aula fuoriHeap(String nome, String location, int capacita) {
+        return new Aula(nome, location, capacita);
     }
 
     /**
@@ -65,8 +191,21 @@ public class Aula implements Comparable<Aula> {
                 +" informazioni è null");
         this.nome = nome;
         this.location = location;
-        this.facilities = facilities;
-        this.prenotazioni = new TreeSet<Prenotazione>();
+        // Copia difensiva: le facilities possono cambiare solo con addFacility
+        Dotazione d = Dotazione.VUOTA;
+        for(Facility f:facilities) {
+            Dotazione nuova = d.con(f);
+            if(nuova != null) d = nuova;
+        }
+        this.facilities = new AtomicReference<Dotazione>(d);
+        this.prenotazioni = new ArchivioInMemoria(this);
+        this.durate = new TreeMap<Long, Integer>();
+        this.lunghe = new ArchivioInMemoria(this);
+        this.ricorrenti = new ArrayList<PrenotazioneRicorrente>();
+        this.occupazione = new MappaOccupazione();
+        this.listeners = new CopyOnWriteArrayList<AulaListener>();
+        this.metriche = Metriche.getGlobali();
+        this.lock = new ReentrantReadWriteLock();
     }
 
     /*
@@ -91,10 +230,11 @@ public class Aula implements Comparable<Aula> {
     }
 
     /**
-     * @return the facilities
+     * @return the facilities, in sola lettura: le modifiche vanno fatte
+     *         tramite addFacility
      */
     public Set<Facility> getFacilities() {
-        return facilities;
+        return facilities.get();
     }
 
     /**
@@ -112,10 +252,88 @@ public class Aula implements Comparable<Aula> {
     }
 
     /**
-     * @return the prenotazioni
+     * @return the prenotazioni, in sola lettura: le modifiche vanno fatte
+     *         tramite i metodi di questa classe. Per le aule create con
+     *         {@link #fuoriHeap(String, String, int)} è una copia
      */
     public SortedSet<Prenotazione> getPrenotazioni() {
-        return prenotazioni;
+        // La copia di un archivio fuori dallo heap va fatta mentre nessuno lo
+        // modifica
+        lock.readLock().lock();
+        try {
+            return prenotazioni.vista();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return una copia della lista delle prenotazioni ricorrenti di
+     *         quest'aula, in ordine di inserimento
+     */
+    public List<PrenotazioneRicorrente> getPrenotazioniRicorrenti() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<PrenotazioneRicorrente>(ricorrenti);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Restituisce un iteratore su tutte le prenotazioni di quest'aula, sia
+     * quelle singole sia le occorrenze delle prenotazioni ricorrenti, secondo
+     * l'ordinamento naturale delle prenotazioni. Le occorrenze vengono create
+     * una per volta, man mano che si scorre l'iteratore. Come la vista di
+     * getPrenotazioni(), l'iteratore non va scorso mentre altri thread
+     * modificano l'aula.
+     * 
+     * @return un iteratore su tutte le prenotazioni di quest'aula
+     */
+    public Iterator<Prenotazione> iteratorOccorrenze() {
+        final PriorityQueue<Testa> teste = new PriorityQueue<Testa>();
+        Testa t = new Testa(getPrenotazioni().iterator());
+        if(t.prossima != null) teste.add(t);
+        for(PrenotazioneRicorrente r:getPrenotazioniRicorrenti()) {
+            t = new Testa(r.iterator());
+            if(t.prossima != null) teste.add(t);
+        }
+        return new Iterator<Prenotazione>() {
+            @Override
+            public boolean hasNext() {
+                return !teste.isEmpty();
+            }
+
+            @Override
+            public Prenotazione next() {
+                if(teste.isEmpty()) throw new NoSuchElementException();
+                Testa t = teste.poll();
+                Prenotazione p = t.prossima;
+                t.prossima = t.resto.hasNext() ? t.resto.next() : null;
+                if(t.prossima != null) teste.add(t);
+                return p;
+            }
+        };
+    }
+
+    /*
+     * Un iteratore sulle prenotazioni, in ordine, insieme alla sua prossima
+     * prenotazione. Serve a fondere più sequenze ordinate in
+     * iteratorOccorrenze().
+     */
+    private static final class Testa implements Comparable<Testa> {
+        final Iterator<Prenotazione> resto;
+        Prenotazione prossima;
+
+        Testa(Iterator<Prenotazione> it) {
+            this.resto = it;
+            this.prossima = it.hasNext() ? it.next() : null;
+        }
+
+        @Override
+        public int compareTo(Testa o) {
+            return prossima.compareTo(o.prossima);
+        }
     }
 
     /**
@@ -130,17 +348,111 @@ public class Aula implements Comparable<Aula> {
      */
     public boolean addFacility(Facility f) {
         if(f == null) throw new NullPointerException("La facility passata è nulla");
-        if(!(facilities.contains(f))) {
-            facilities.add(f);
-            return true;
+        // Le aggiunte sono serializzate dal lock in scrittura, per cui la
+        // dotazione precedente si può ripristinare se la conferma fallisce;
+        // le letture non prendono il lock e vedono l'una o l'altra dotazione
+        lock.writeLock().lock();
+        try {
+            Dotazione d = facilities.get();
+            Dotazione nuova = d.con(f);
+            if(nuova == null) return false;
+            facilities.set(nuova);
+            try {
+                for(AulaListener l:listeners) l.facilityAggiunta(this, f);
+                confermaModifiche();
+            } catch(RuntimeException e) {
+                facilities.set(d);
+                throw e;
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
-        return false;
+        return true;
+    }
+
+    /*
+     * Facilities di un'aula, immutabili: addFacility ne crea una nuova
+     * copia. Sono anche l'insieme restituito da getFacilities. Le facilities
+     * che RegistroFacilities conosce sono memorizzate, oltre che nell'elenco
+     * come istanze canoniche, come coppie (identificativo, quantità) in
+     * ordine di identificativo, su cui satisfiesFacilities confronta interi.
+     */
+    private static final class Dotazione extends AbstractSet<Facility> {
+        static final Dotazione VUOTA = new Dotazione(new Facility[0], new int[0], new int[0], false);
+
+        final Facility[] elenco;
+        final int[] ids;
+        final int[] quantita;
+        // Vale se ci sono facilities che il registro non conosce, che vanno
+        // controllate con satisfies
+        final boolean altre;
+
+        Dotazione(Facility[] elenco, int[] ids, int[] quantita, boolean altre) {
+            this.elenco = elenco;
+            this.ids = ids;
+            this.quantita = quantita;
+            this.altre = altre;
+        }
+
+        /*
+         * Restituisce una copia con in più la facility data, oppure null se
+         * ce n'è già una uguale (cioè con lo stesso codice).
+         */
+        Dotazione con(Facility f) {
+            for(Facility e:elenco) if(e.equals(f)) return null;
+            RegistroFacilities registro = RegistroFacilities.getGlobale();
+            Facility[] nuovoElenco = Arrays.copyOf(elenco, elenco.length + 1);
+            nuovoElenco[elenco.length] = registro.canonica(f);
+            int id = registro.registra(f);
+            if(id < 0) return new Dotazione(nuovoElenco, ids, quantita, true);
+            int i = -Arrays.binarySearch(ids, id) - 1;
+            int[] nuoviIds = new int[ids.length + 1];
+            int[] nuoveQuantita = new int[ids.length + 1];
+            System.arraycopy(ids, 0, nuoviIds, 0, i);
+            System.arraycopy(quantita, 0, nuoveQuantita, 0, i);
+            nuoviIds[i] = id;
+            nuoveQuantita[i] = RegistroFacilities.quantita(f);
+            System.arraycopy(ids, i, nuoviIds, i + 1, ids.length - i);
+            System.arraycopy(quantita, i, nuoveQuantita, i + 1, ids.length - i);
+            return new Dotazione(nuovoElenco, nuoviIds, nuoveQuantita, altre);
+        }
+
+        @Override
+        public Iterator<Facility> iterator() {
+            return Collections.unmodifiableList(Arrays.asList(elenco)).iterator();
+        }
+
+        @Override
+        public int size() {
+            return elenco.length;
+        }
+    }
+
+    /*
+     * Registra un ascoltatore delle modifiche di quest'aula.
+     */
+    void addListener(AulaListener l) {
+        listeners.add(l);
+    }
+
+    /*
+     * Toglie un ascoltatore registrato con addListener.
+     */
+    void removeListener(AulaListener l) {
+        listeners.remove(l);
+    }
+
+    /*
+     * Chiede agli ascoltatori di confermare le modifiche dell'operazione in
+     * corso. Va chiamato tenendo il lock in scrittura dell'aula, prima di
+     * rilasciarlo; se solleva un'eccezione il chiamante deve annullare le
+     * modifiche prima di rilasciare il lock.
+     */
+    void confermaModifiche() {
+        for(AulaListener l:listeners) l.confermaModifiche(this);
     }
 
     /**
-     *
-     *
-     *
      * Determina se l'aula è libera in un certo time slot.
      * 
      * @param ts
@@ -153,19 +465,265 @@ public class Aula implements Comparable<Aula> {
      */
     public boolean isFree(TimeSlot ts) {
         if(ts == null) throw new NullPointerException("Il time slot passato è null");
-        for(Prenotazione p:prenotazioni) {
-            //Quando il time slot di p è successivo a ts
-            if(p.getTimeSlot().getStart().compareTo(ts.getStop()) > 0) break;
-            if(p.getTimeSlot().overlapsWith(ts)) return false;
-        }
         /*
-         * NOTA: sfruttare l'ordinamento tra le prenotazioni per rispondere in
-         * maniera efficiente: poiché le prenotazioni sono in ordine crescente
-         * di time slot se arrivo a una prenotazione che segue il time slot
-         * specificato posso concludere che l'aula è libera nel time slot
-         * desiderato e posso interrompere la ricerca
+         * Le prenotazioni sono in ordine crescente di inizio: le prenotazioni
+         * corte che iniziano prima di ts.getStart() meno la durata massima
+         * delle prenotazioni corte, al più un giorno, non possono
+         * sovrapporsi a ts, per cui la ricerca parte direttamente dalla prima
+         * prenotazione successiva a quell'istante (O(log n)) e si ferma alla
+         * prima prenotazione che inizia dopo la fine di ts. Le prenotazioni
+         * lunghe che iniziano prima vengono cercate a parte, allo stesso
+         * modo. Il costo è O(log n + k) dove k è il numero di prenotazioni
+         * esaminate: quelle che iniziano nella finestra, che comincia al più
+         * un giorno prima di ts, e quelle lunghe che iniziano meno della loro
+         * durata massima prima di ts. Prima però si prova la mappa di
+         * occupazione giornaliera, che per i time slot a minuti interi dentro
+         * un giorno risponde con poche operazioni sui bit.
          */
-        return true;
+        long t0 = System.nanoTime();
+        boolean libera = libera(ts.getStart().getTimeInMillis(), ts.getStop().getTimeInMillis());
+        metriche.isFree(t0);
+        return libera;
+    }
+
+    /*
+     * Il controllo di isFree sull'intervallo [inizio, fine) in millisecondi,
+     * senza registrarne la durata nelle metriche.
+     */
+    private boolean libera(long inizio, long fine) {
+        lock.readLock().lock();
+        try {
+            int esito = occupazione.verifica(inizio, fine);
+            if(esito == MappaOccupazione.OCCUPATA) return false;
+            if(esito == MappaOccupazione.INDETERMINATA) {
+                for(ArchivioPrenotazioni.Cursore c = prenotazioniDa(inizio); c.avanza();) {
+                    long inizioP = c.inizio();
+                    //Quando il time slot della prenotazione è successivo a ts
+                    if(inizioP > fine) break;
+                    // Stessa semantica di overlapsWith, ma sui millisecondi
+                    if(CompactTimeSlot.overlaps(inizioP, c.fine(), inizio, fine)) return false;
+                }
+            }
+            return !sovrappostoARicorrenti(inizio, fine);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Determina se una prenotazione ricorrente di quest'aula ha un'occorrenza
+     * che si sovrappone all'intervallo [inizio, fine) in millisecondi. Per
+     * ogni serie le occorrenze da esaminare si calcolano con una divisione.
+     * Va chiamato tenendo il lock dell'aula.
+     */
+    private boolean sovrappostoARicorrenti(long inizio, long fine) {
+        for(PrenotazioneRicorrente r:ricorrenti)
+            if(r.primaOccorrenzaSovrapposta(inizio, fine) >= 0) return true;
+        return false;
+    }
+
+    /*
+     * Restituisce un cursore, in ordine crescente, su tutte le prenotazioni
+     * che terminano dopo l'istante dato e su alcune di quelle che terminano
+     * prima: le prenotazioni lunghe che iniziano prima della finestra delle
+     * prenotazioni corte e terminano dopo l'istante, seguite da tutte quelle
+     * che iniziano a partire da istante meno la durata massima delle
+     * prenotazioni corte. Va chiamato tenendo il lock dell'aula.
+     */
+    private ArchivioPrenotazioni.Cursore prenotazioniDa(final long istante) {
+        Long durataCorta = durate.floorKey(DURATA_CORTA);
+        final long limite = istante - (durataCorta == null ? 0 : durataCorta);
+        final ArchivioPrenotazioni.Cursore corte = prenotazioni.da(limite);
+        if(lunghe.dimensione() == 0) return corte;
+        final ArchivioPrenotazioni.Cursore prime = lunghe.da(istante - durate.lastKey());
+        return new ArchivioPrenotazioni.Cursore() {
+            private ArchivioPrenotazioni.Cursore c = prime;
+
+            @Override
+            public boolean avanza() {
+                if(c == prime) {
+                    // Le prenotazioni lunghe dalla finestra in poi sono
+                    // anche fra quelle di corte
+                    while(prime.avanza() && prime.inizio() < limite)
+                        if(prime.fine() > istante) return true;
+                    c = corte;
+                }
+                return corte.avanza();
+            }
+
+            @Override
+            public long inizio() {
+                return c.inizio();
+            }
+
+            @Override
+            public long fine() {
+                return c.fine();
+            }
+
+            @Override
+            public Prenotazione prenotazione() {
+                return c.prenotazione();
+            }
+        };
+    }
+
+    /*
+     * Tiene conto della durata di una prenotazione inserita. Va chiamato
+     * tenendo il lock in scrittura dell'aula.
+     */
+    private void registraDurata(Prenotazione p) {
+        long durata = durata(p);
+        Integer n = durate.get(durata);
+        durate.put(durata, n == null ? 1 : n + 1);
+        if(durata > DURATA_CORTA) lunghe.aggiungi(p);
+    }
+
+    /*
+     * Dimentica la durata di una prenotazione cancellata. Va chiamato tenendo
+     * il lock in scrittura dell'aula.
+     */
+    private void dimenticaDurata(Prenotazione p) {
+        long durata = durata(p);
+        dimenticaDurate(durata, 1);
+        if(durata > DURATA_CORTA) lunghe.rimuovi(p);
+    }
+
+    /*
+     * Dimentica quante prenotazioni cancellate della stessa durata, senza
+     * toglierle dalle prenotazioni lunghe. Va chiamato tenendo il lock in
+     * scrittura dell'aula.
+     */
+    private void dimenticaDurate(long durata, int quante) {
+        int n = durate.get(durata);
+        if(n == quante) durate.remove(durata);
+        else durate.put(durata, n - quante);
+    }
+
+    private static long durata(Prenotazione p) {
+        return p.getCompactTimeSlot().getStopMillis() - p.getCompactTimeSlot().getStartMillis();
+    }
+
+    /*
+     * Restituisce inizio e fine, in millisecondi e in ordine di inizio, delle
+     * prenotazioni che possono sovrapporsi all'intervallo [da, a): quelle che
+     * iniziano prima di a e finiscono dopo da. Le coppie sono memorizzate di
+     * seguito nell'array restituito.
+     */
+    long[] intervalliFra(long da, long a) {
+        lock.readLock().lock();
+        try {
+            long[] intervalli = new long[16];
+            int n = 0;
+            for(ArchivioPrenotazioni.Cursore c = prenotazioniDa(da); c.avanza();) {
+                long inizioP = c.inizio();
+                if(inizioP >= a) break;
+                long fineP = c.fine();
+                if(fineP <= da) continue;
+                if(n == intervalli.length) intervalli = Arrays.copyOf(intervalli, 2 * n);
+                intervalli[n++] = inizioP;
+                intervalli[n++] = fineP;
+            }
+            if(ricorrenti.isEmpty()) return Arrays.copyOf(intervalli, n);
+            // Le occorrenze delle prenotazioni ricorrenti vanno fuse con le
+            // prenotazioni singole mantenendo l'ordine di inizio
+            List<long[]> coppie = new ArrayList<long[]>();
+            for(int i = 0; i < n; i += 2) coppie.add(new long[] {intervalli[i], intervalli[i + 1]});
+            for(PrenotazioneRicorrente r:ricorrenti) {
+                long d = r.getDurataMillis();
+                long p = r.getPeriodoMillis();
+                long kMin = Math.max(0, Math.floorDiv(da - d - r.getInizioMillis(), p) + 1);
+                long kMax = Math.min(r.getNumero() - 1, Math.floorDiv(a - 1 - r.getInizioMillis(), p));
+                for(long k = kMin; k <= kMax; k++)
+                    if(r.isOccorrenza((int) k))
+                        coppie.add(new long[] {r.inizioOccorrenza((int) k), r.inizioOccorrenza((int) k) + d});
+            }
+            Collections.sort(coppie, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] c1, long[] c2) {
+                    return Long.compare(c1[0], c2[0]);
+                }
+            });
+            long[] tutti = new long[2 * coppie.size()];
+            for(int i = 0; i < coppie.size(); i++) {
+                tutti[2 * i] = coppie.get(i)[0];
+                tutti[2 * i + 1] = coppie.get(i)[1];
+            }
+            return tutti;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Cerca il primo time slot di una certa durata, a partire da un certo
+     * istante, in cui l'aula è libera secondo {@link #isFree(TimeSlot)}.
+     * Gli inizi presi in considerazione sono l'istante dato e le fini delle
+     * prenotazioni anticipate di
+     * {@link TimeSlot#MINUTES_OF_TOLERANCE_FOR_OVERLAPPING} minuti: se gli
+     * istanti sono tutti a minuti interi il risultato è quindi il primo inizio
+     * libero a minuti interi.
+     * 
+     * @param from
+     *                   l'istante a partire dal quale cercare
+     * @param length
+     *                   la durata del time slot cercato
+     * @return il primo time slot libero della durata richiesta che non inizia
+     *         prima di from
+     * @throws NullPointerException
+     *                                      se una delle informazioni passate è
+     *                                      nulla
+     * @throws IllegalArgumentException
+     *                                      se la durata non è positiva
+     */
+    public TimeSlot findFirstFreeSlot(GregorianCalendar from, Duration length) {
+        if(from == null || length == null) throw new NullPointerException("L'istante o la durata passati sono null");
+        if(length.isNegative() || length.isZero()) throw new IllegalArgumentException("La durata deve essere positiva");
+        long durata = length.toMillis();
+        long tolleranza = TimeSlot.MINUTES_OF_TOLERANCE_FOR_OVERLAPPING * 60000L;
+        long inizio = from.getTimeInMillis();
+        lock.readLock().lock();
+        try {
+            /*
+             * Una sola scansione in ordine di inizio: quando il candidato si
+             * sovrappone a una prenotazione viene spostato al primo inizio che
+             * non si sovrappone più a essa. Il candidato si sposta solo in
+             * avanti e le prenotazioni già esaminate non possono sovrapporsi ai
+             * candidati successivi, per cui il costo è O(log n + k) dove k è il
+             * numero di prenotazioni scavalcate più quelle esaminate da isFree
+             * per il primo candidato. Le occorrenze delle
+             * prenotazioni ricorrenti spostano il candidato allo stesso modo;
+             * se lo spostano, la scansione delle prenotazioni singole riparte
+             * dal nuovo candidato.
+             */
+            boolean spostato;
+            do {
+                for(ArchivioPrenotazioni.Cursore c = prenotazioniDa(inizio); c.avanza();) {
+                    long inizioP = c.inizio();
+                    // Questa prenotazione e le successive iniziano dopo la
+                    // fine del candidato
+                    if(inizioP >= inizio + durata) break;
+                    long fineP = c.fine();
+                    if(CompactTimeSlot.overlaps(inizioP, fineP, inizio, inizio + durata))
+                        inizio = Math.max(inizio, fineP - tolleranza);
+                }
+                spostato = false;
+                for(PrenotazioneRicorrente r:ricorrenti) {
+                    int k;
+                    while((k = r.primaOccorrenzaSovrapposta(inizio, inizio + durata)) >= 0) {
+                        inizio = Math.max(inizio, r.inizioOccorrenza(k) + r.getDurataMillis() - tolleranza);
+                        spostato = true;
+                    }
+                }
+            } while(spostato);
+        } finally {
+            lock.readLock().unlock();
+        }
+        GregorianCalendar g1 = new GregorianCalendar();
+        g1.setTimeInMillis(inizio);
+        GregorianCalendar g2 = new GregorianCalendar();
+        g2.setTimeInMillis(inizio + durata);
+        return new TimeSlot(g1, g2);
     }
 
     /**
@@ -182,7 +740,46 @@ public class Aula implements Comparable<Aula> {
      */
     public boolean satisfiesFacilities(Set<Facility> requestedFacilities) {
         if(requestedFacilities == null) throw new NullPointerException("Il set di facility è null");
-        return facilities.containsAll(requestedFacilities);
+        return satisfiesFacilities(requestedFacilities,
+                RegistroFacilities.getGlobale().richiesta(requestedFacilities));
+    }
+
+    /*
+     * Come satisfiesFacilities, con la richiesta già tradotta una volta per
+     * tutte le aule da RegistroFacilities.richiesta (null se contiene
+     * facilities che il registro non conosce).
+     */
+    boolean satisfiesFacilities(Set<Facility> requestedFacilities, RegistroFacilities.Richiesta tradotta) {
+        Dotazione d = facilities.get();
+        if(tradotta != null && !d.altre) {
+            // Entrambi gli identificativi sono in ordine crescente: basta
+            // scorrerli insieme una volta
+            if(tradotta.impossibile) return false;
+            int j = 0;
+            for(int i = 0; i < tradotta.ids.length; i++) {
+                while(j < d.ids.length && d.ids[j] < tradotta.ids[i]) j++;
+                if(j == d.ids.length || d.ids[j] != tradotta.ids[i] || d.quantita[j] < tradotta.minimi[i])
+                    return false;
+            }
+            return true;
+        }
+        /*
+         * Non basta containsAll, che usa equals e quindi confronta solo i
+         * codici: ogni facility richiesta deve essere soddisfatta, tramite
+         * satisfies, da una facility dell'aula (ad esempio 80 posti
+         * soddisfano una richiesta di 60 posti ma non una di 100).
+         */
+        for(Facility richiesta:requestedFacilities) {
+            boolean soddisfatta = false;
+            for(Facility f:d.elenco) {
+                if(f.satisfies(richiesta)) {
+                    soddisfatta = true;
+                    break;
+                }
+            }
+            if(!soddisfatta) return false;
+        }
+        return true;
     }
 
     /**
@@ -202,8 +799,315 @@ public class Aula implements Comparable<Aula> {
     public void addPrenotazione(TimeSlot ts, String docente, String motivo) {
         if(ts == null || docente == null || motivo == null) throw new NullPointerException("Una delle informazioni" +
                 "per aggiungere una prenotazione  è null");
-        if(!isFree(ts)) throw new IllegalArgumentException("La prenotazione si sovrappone ad un altra nela stessa aula");
-        prenotazioni.add(new Prenotazione(this, ts, docente, motivo));
+        // Il controllo e l'inserimento avvengono sotto lo stesso lock in
+        // scrittura, per cui due prenotazioni concorrenti sovrapposte non
+        // possono essere accettate entrambe
+        long t0 = System.nanoTime();
+        boolean accettata = prenota(new Prenotazione(this, ts, docente, motivo));
+        metriche.addPrenotazione(t0, accettata);
+        if(!accettata) throw new IllegalArgumentException("La prenotazione si sovrappone ad un altra nela stessa aula");
+    }
+
+    /*
+     * Inserisce una prenotazione di questa aula se non si sovrappone ad
+     * altre, e la conferma agli ascoltatori; restituisce false, senza
+     * inserirla, se si sovrappone. Lo usa anche RegistroOperazioni, che
+     * ricostruisce le prenotazioni direttamente dagli istanti registrati.
+     */
+    boolean prenota(Prenotazione p) {
+        CompactTimeSlot ts = p.getCompactTimeSlot();
+        lock.writeLock().lock();
+        try {
+            if(!libera(ts.getStartMillis(), ts.getStopMillis())) return false;
+            try {
+                inserisci(p);
+                confermaModifiche();
+            } catch(RuntimeException e) {
+                // La prenotazione non è stata confermata (ad esempio il
+                // registro non l'ha scritta su disco): viene tolta prima che
+                // diventi visibile
+                togli(p);
+                throw e;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    /*
+     * Inserisce una prenotazione già controllata, aggiornando le durate, e la
+     * notifica agli ascoltatori. Va chiamato tenendo il lock in scrittura
+     * dell'aula.
+     */
+    void inserisci(Prenotazione p) {
+        if(metti(p)) for(AulaListener l:listeners) l.prenotazioneAggiunta(this, p);
+    }
+
+    /*
+     * Inserisce una prenotazione già controllata nell'archivio, nelle durate
+     * e nell'occupazione, senza notificarla; restituisce false se era già
+     * presente. Va chiamato tenendo il lock in scrittura dell'aula.
+     */
+    private boolean metti(Prenotazione p) {
+        if(!prenotazioni.aggiungi(p)) return false;
+        registraDurata(p);
+        CompactTimeSlot ts = p.getCompactTimeSlot();
+        occupazione.aggiungi(ts.getStartMillis(), ts.getStopMillis());
+        return true;
+    }
+
+    /*
+     * Toglie una prenotazione dall'archivio, dalle durate e dall'occupazione,
+     * senza notificarlo, e restituisce quella memorizzata, o null se non era
+     * presente. Va chiamato tenendo il lock in scrittura dell'aula.
+     */
+    Prenotazione togli(Prenotazione p) {
+        Prenotazione presente = prenotazioni.rimuovi(p);
+        if(presente != null) {
+            dimenticaDurata(presente);
+            ricalcolaOccupazione(presente.getCompactTimeSlot().getStartMillis(),
+                    presente.getCompactTimeSlot().getStopMillis());
+        }
+        return presente;
+    }
+
+    /*
+     * Ricostruisce l'occupazione dei giorni toccati dall'intervallo
+     * [inizio, fine) dopo la cancellazione di una prenotazione: i minuti non
+     * possono essere semplicemente spenti, perché due prenotazioni possono
+     * condividere fino a MINUTES_OF_TOLERANCE_FOR_OVERLAPPING minuti. Va
+     * chiamato tenendo il lock in scrittura dell'aula.
+     */
+    private void ricalcolaOccupazione(long inizio, long fine) {
+        for(long g = MappaOccupazione.giorno(inizio); g <= MappaOccupazione.giorno(fine - 1); g++) {
+            occupazione.azzera(g);
+            long da = MappaOccupazione.inizioGiorno(g);
+            for(ArchivioPrenotazioni.Cursore c = prenotazioniDa(da); c.avanza();) {
+                long inizioP = c.inizio();
+                if(inizioP >= da + MappaOccupazione.GIORNO) break;
+                long fineP = c.fine();
+                if(fineP > da) occupazione.segna(g, inizioP, fineP);
+            }
+        }
+    }
+
+    /*
+     * Cambia le metriche in cui l'aula registra addPrenotazione e isFree. Lo
+     * usa GestoreAule.addAula.
+     */
+    void setMetriche(Metriche metriche) {
+        this.metriche = metriche;
+    }
+
+    /*
+     * Restituisce il lock di quest'aula, usato da GestoreAule per bloccare
+     * più aule insieme durante un inserimento in blocco.
+     */
+    ReentrantReadWriteLock getLock() {
+        return lock;
+    }
+
+    /*
+     * Intervallo in millisecondi usato nella scansione di conflitti(): può
+     * essere una prenotazione esistente o una richiesta del blocco.
+     */
+    private static final class Intervallo {
+        final long inizio;
+        final long fine;
+        // null per le prenotazioni già presenti nell'aula
+        final Prenotazione richiesta;
+
+        Intervallo(long inizio, long fine, Prenotazione richiesta) {
+            this.inizio = inizio;
+            this.fine = fine;
+            this.richiesta = richiesta;
+        }
+    }
+
+    /*
+     * Determina quali fra le richieste date, ordinate secondo l'ordinamento
+     * naturale delle prenotazioni, sono in conflitto con una prenotazione già
+     * presente in quest'aula oppure con un'altra richiesta dello stesso
+     * blocco. Il conflitto è la sovrapposizione di TimeSlot.overlapsWith,
+     * oppure la coincidenza con un time slot già presente.
+     *
+     * Le richieste e le prenotazioni esistenti nella finestra interessata
+     * vengono fuse in un'unica scansione in ordine di inizio (O(n + m)). Si
+     * tengono "aperti", in una coda ordinata per fine, solo gli intervalli che
+     * possono ancora sovrapporsi a quelli successivi. Va chiamato tenendo il
+     * lock dell'aula.
+     */
+    List<Prenotazione> conflitti(List<Prenotazione> richiesteOrdinate) {
+        List<Prenotazione> conflitti = new ArrayList<Prenotazione>();
+        if(richiesteOrdinate.isEmpty()) return conflitti;
+        long fineMassima = Long.MIN_VALUE;
+        for(Prenotazione r:richiesteOrdinate)
+            fineMassima = Math.max(fineMassima, r.getCompactTimeSlot().getStopMillis());
+        long inizioMinimo = richiesteOrdinate.get(0).getCompactTimeSlot().getStartMillis();
+        ArchivioPrenotazioni.Cursore esistenti = prenotazioniDa(inizioMinimo);
+        Iterator<Prenotazione> richieste = richiesteOrdinate.iterator();
+        boolean e = esistenti.avanza();
+        Prenotazione r = richieste.hasNext() ? richieste.next() : null;
+        PriorityQueue<Intervallo> aperti = new PriorityQueue<Intervallo>(new Comparator<Intervallo>() {
+            @Override
+            public int compare(Intervallo i1, Intervallo i2) {
+                return Long.compare(i1.fine, i2.fine);
+            }
+        });
+        Set<Prenotazione> inConflitto = new HashSet<Prenotazione>();
+        while(r != null || (e && esistenti.inizio() <= fineMassima)) {
+            Intervallo x;
+            // A parità di time slot la prenotazione esistente viene prima
+            if(r == null || (e && precedeOUguale(esistenti.inizio(), esistenti.fine(), r.getCompactTimeSlot()))) {
+                x = new Intervallo(esistenti.inizio(), esistenti.fine(), null);
+                e = esistenti.avanza();
+            } else {
+                x = new Intervallo(r.getCompactTimeSlot().getStartMillis(),
+                        r.getCompactTimeSlot().getStopMillis(), r);
+                r = richieste.hasNext() ? richieste.next() : null;
+            }
+            // Chiude gli intervalli che non possono sovrapporsi né a x né ai
+            // successivi, che non iniziano prima di x
+            while(!aperti.isEmpty() && aperti.peek().inizio < x.inizio
+                    && !CompactTimeSlot.overlaps(aperti.peek().inizio, aperti.peek().fine, x.inizio, Long.MAX_VALUE))
+                aperti.poll();
+            for(Intervallo y:aperti) {
+                if(y.richiesta == null && x.richiesta == null) continue;
+                if(CompactTimeSlot.overlaps(y.inizio, y.fine, x.inizio, x.fine)
+                        || (y.inizio == x.inizio && y.fine == x.fine)) {
+                    if(x.richiesta != null) inConflitto.add(x.richiesta);
+                    if(y.richiesta != null) inConflitto.add(y.richiesta);
+                }
+            }
+            aperti.add(x);
+        }
+        for(Prenotazione p:richiesteOrdinate)
+            if(inConflitto.contains(p) || sovrappostoARicorrenti(p.getCompactTimeSlot().getStartMillis(),
+                    p.getCompactTimeSlot().getStopMillis()))
+                conflitti.add(p);
+        return conflitti;
+    }
+
+    /*
+     * Determina se l'intervallo [inizio, fine) precede il time slot dato, o
+     * coincide con esso, nell'ordinamento dei time slot.
+     */
+    private static boolean precedeOUguale(long inizio, long fine, CompactTimeSlot ts) {
+        long inizioTs = ts.getStartMillis();
+        return inizio < inizioTs || (inizio == inizioTs && fine <= ts.getStopMillis());
+    }
+
+    /**
+     * Prenota l'aula per una serie di time slot che si ripetono a intervalli
+     * regolari, controllando che nessuna occorrenza si sovrapponga a un'altra
+     * prenotazione, singola o ricorrente, della stessa aula. La serie viene
+     * memorizzata come un solo oggetto.
+     * 
+     * @param primo
+     *                      il time slot della prima occorrenza
+     * @param periodo
+     *                      la distanza fra gli inizi di due occorrenze
+     *                      successive
+     * @param numero
+     *                      il numero di occorrenze, comprese le eccezioni
+     * @param eccezioni
+     *                      gli indici, a partire da 0, delle occorrenze da
+     *                      saltare
+     * @param docente
+     *                      il docente che prenota
+     * @param motivo
+     *                      il motivo della prenotazione
+     * @return la prenotazione ricorrente aggiunta
+     * @throws IllegalArgumentException
+     *                                      se la serie non è valida (vedi
+     *                                      {@link PrenotazioneRicorrente}) o
+     *                                      se una sua occorrenza si sovrappone
+     *                                      a un'altra prenotazione nella
+     *                                      stessa aula
+     * @throws NullPointerException
+     *                                      se una qualsiasi delle informazioni
+     *                                      richieste è nulla
+     */
+    public PrenotazioneRicorrente addPrenotazioneRicorrente(TimeSlot primo, Duration periodo, int numero,
+            Set<Integer> eccezioni, String docente, String motivo) {
+        PrenotazioneRicorrente r = new PrenotazioneRicorrente(this, primo, periodo, numero, eccezioni, docente, motivo);
+        aggiungiRicorrente(r);
+        return r;
+    }
+
+    /*
+     * Aggiunge una prenotazione ricorrente di questa aula controllando le
+     * sovrapposizioni, come addPrenotazioneRicorrente. Lo usa anche
+     * RegistroOperazioni, che ricostruisce la serie dagli istanti registrati.
+     */
+    void aggiungiRicorrente(PrenotazioneRicorrente r) {
+        lock.writeLock().lock();
+        try {
+            // Le prenotazioni singole da confrontare sono solo quelle comprese
+            // fra l'inizio della prima occorrenza e la fine dell'ultima
+            for(ArchivioPrenotazioni.Cursore c = prenotazioniDa(r.getInizioMillis()); c.avanza();) {
+                long inizioP = c.inizio();
+                if(inizioP >= r.getFineMillis()) break;
+                if(r.primaOccorrenzaSovrapposta(inizioP, c.fine()) >= 0)
+                    throw new IllegalArgumentException("Un'occorrenza si sovrappone alla prenotazione "
+                            + c.prenotazione());
+            }
+            for(PrenotazioneRicorrente o:ricorrenti)
+                if(r.siSovrapponeA(o))
+                    throw new IllegalArgumentException("Un'occorrenza si sovrappone alla prenotazione ricorrente " + o);
+            try {
+                inserisciRicorrente(r);
+                confermaModifiche();
+            } catch(RuntimeException e) {
+                ricorrenti.remove(r);
+                throw e;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Inserisce una prenotazione ricorrente già controllata e la notifica agli
+     * ascoltatori. Va chiamato tenendo il lock in scrittura dell'aula.
+     */
+    void inserisciRicorrente(PrenotazioneRicorrente r) {
+        ricorrenti.add(r);
+        for(AulaListener l:listeners) l.prenotazioneRicorrenteAggiunta(this, r);
+    }
+
+    /**
+     * Cancella una prenotazione ricorrente di questa aula, con tutte le sue
+     * occorrenze.
+     * 
+     * @param r
+     *              la prenotazione ricorrente da cancellare
+     * @return true se la prenotazione è stata cancellata, false se non era
+     *         presente
+     * @throws NullPointerException
+     *                                  se la prenotazione passata è null
+     */
+    public boolean removePrenotazioneRicorrente(PrenotazioneRicorrente r) {
+        if(r == null) throw new NullPointerException("La prenotazione ricorrente da rimuovere è null");
+        PrenotazioneRicorrente presente = null;
+        lock.writeLock().lock();
+        try {
+            int i = ricorrenti.indexOf(r);
+            if(i >= 0) {
+                presente = ricorrenti.remove(i);
+                try {
+                    for(AulaListener l:listeners) l.prenotazioneRicorrenteRimossa(this, presente);
+                    confermaModifiche();
+                } catch(RuntimeException e) {
+                    ricorrenti.add(i, presente);
+                    throw e;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return presente != null;
     }
 
     /**
@@ -218,7 +1122,26 @@ public class Aula implements Comparable<Aula> {
      */
     public boolean removePrenotazione(Prenotazione p) {
         if(p == null) throw new NullPointerException("La prenotazione da rimuovere è null");
-        return prenotazioni.remove(p);
+        boolean rimossa;
+        lock.writeLock().lock();
+        try {
+            // La prenotazione notificata è quella memorizzata, che è uguale a
+            // p ma può avere docente e motivo diversi
+            Prenotazione presente = togli(p);
+            rimossa = presente != null;
+            if(rimossa) {
+                try {
+                    for(AulaListener l:listeners) l.prenotazioneRimossa(this, presente);
+                    confermaModifiche();
+                } catch(RuntimeException e) {
+                    metti(presente);
+                    throw e;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return rimossa;
     }
 
     /**
@@ -233,18 +1156,77 @@ public class Aula implements Comparable<Aula> {
      *                                  se il punto nel tempo passato è nullo.
      */
     public boolean  removePrenotazioniBefore(GregorianCalendar timePoint) {
+        return purgePrenotazioniBefore(timePoint) > 0;
+    }
+
+    /**
+     * Rimuove tutte le prenotazioni di questa aula che iniziano prima (o
+     * esattamente in) di un punto nel tempo specificato e restituisce quante
+     * ne sono state rimosse. Le prenotazioni ricorrenti non vengono toccate.
+     * 
+     * @param timePoint
+     *                      un certo punto nel tempo
+     * @return il numero di prenotazioni cancellate
+     * @throws NullPointerException
+     *                                  se il punto nel tempo passato è nullo.
+     */
+    public int purgePrenotazioniBefore(GregorianCalendar timePoint) {
         if(timePoint == null) throw new NullPointerException("Il punto di tempo passato è null");
-        SortedSet<Prenotazione> prenotazioniDaEliminare = new TreeSet<Prenotazione>();
-        for(Prenotazione p:prenotazioni) {
-            if(p.getTimeSlot().getStart().compareTo(timePoint) > 0) break;
-            prenotazioniDaEliminare.add(p);
+        return rimuoviFinoA(timePoint.getTimeInMillis());
+    }
+
+    /*
+     * Rimuove le prenotazioni che iniziano prima di istante o esattamente in
+     * esso, come purgePrenotazioniBefore. Lo usa anche RegistroOperazioni per
+     * rieseguire una cancellazione registrata.
+     *
+     * Le prenotazioni da cancellare sono un prefisso dell'ordinamento: vengono
+     * contate scorrendole con un cursore, senza creare oggetti, e gli
+     * ascoltatori ricevono una sola notifica per tutto l'intervallo, che
+     * confermano prima della cancellazione. Le durate vengono dimenticate a
+     * gruppi di prenotazioni consecutive con la stessa durata, gli archivi
+     * tolgono il prefisso in una volta sola e l'occupazione viene azzerata e
+     * ricostruita per giorni interi.
+     */
+    int rimuoviFinoA(long istante) {
+        lock.writeLock().lock();
+        try {
+            int rimosse = 0;
+            long primo = 0;
+            // Fine dell'ultima prenotazione cancellata
+            long ultimo = Long.MIN_VALUE;
+            for(ArchivioPrenotazioni.Cursore c = prenotazioni.da(Long.MIN_VALUE); c.avanza();) {
+                if(c.inizio() > istante) break;
+                if(rimosse++ == 0) primo = c.inizio();
+                ultimo = Math.max(ultimo, c.fine());
+            }
+            if(rimosse == 0) return 0;
+            // Se la conferma non riesce l'aula non è ancora cambiata
+            for(AulaListener l:listeners) l.prenotazioniRimosseFinoA(this, istante, primo, ultimo);
+            confermaModifiche();
+            long durata = 0;
+            int stesse = 0;
+            for(ArchivioPrenotazioni.Cursore c = prenotazioni.da(Long.MIN_VALUE); c.avanza();) {
+                if(c.inizio() > istante) break;
+                if(c.fine() - c.inizio() != durata) {
+                    if(stesse > 0) dimenticaDurate(durata, stesse);
+                    durata = c.fine() - c.inizio();
+                    stesse = 0;
+                }
+                stesse++;
+            }
+            dimenticaDurate(durata, stesse);
+            prenotazioni.rimuoviFinoA(istante);
+            lunghe.rimuoviFinoA(istante);
+            // Le prenotazioni rimaste iniziano tutte dopo istante: i giorni
+            // precedenti sono vuoti, quelli successivi vanno ricostruiti
+            long giorno = MappaOccupazione.giorno(istante);
+            occupazione.azzeraPrima(giorno);
+            if(ultimo > MappaOccupazione.inizioGiorno(giorno))
+                ricalcolaOccupazione(MappaOccupazione.inizioGiorno(giorno), ultimo);
+            return rimosse;
+        } finally {
+            lock.writeLock().unlock();
         }
-        /*
-         * NOTA: sfruttare l'ordinamento tra le prenotazioni per rispondere in
-         * maniera efficiente: poiché le prenotazioni sono in ordine crescente
-         * di time slot se ho raggiunto una prenotazione con tempo di inizio
-         * maggiore del tempo indicato posso smettere la procedura
-         */
-        return prenotazioni.removeAll(prenotazioniDaEliminare);
     }
 }
@@ -0,0 +1,125 @@
+package it.unicam.cs.asdl2122.es5;
+
+/**
+ * Un ascoltatore riceve notifica delle modifiche fatte a un'aula, in modo da
+ * poter tenere aggiornate le strutture dati costruite a partire da essa (ad
+ * esempio gli indici di un {@link GestoreAule}). Le notifiche avvengono dopo
+ * che la modifica è stata effettuata.
+ *
+ * Le notifiche avvengono tenendo il lock in scrittura dell'aula, per cui
+ * arrivano esattamente nell'ordine in cui le modifiche sono state fatte; chi
+ * le riceve non deve quindi prendere lock che possano attendere quello
+ * dell'aula. Al termine di ogni operazione, prima di rilasciare il lock, viene
+ * chiamato {@link #confermaModifiche(Aula)}: se un ascoltatore solleva
+ * un'eccezione, nella notifica o nella conferma, l'aula annulla la modifica
+ * senza notificarlo e rilancia l'eccezione.
+ *
+ * @author Collettiva
+ *
+ */
+interface AulaListener {
+
+    /**
+     * Notifica che all'aula è stata aggiunta una nuova facility. Viene
+     * chiamato tenendo il lock in scrittura dell'aula.
+     *
+     * @param a
+     *              l'aula modificata
+     * @param f
+     *              la facility aggiunta
+     */
+    void facilityAggiunta(Aula a, Facility f);
+
+    /**
+     * Notifica che all'aula è stata aggiunta una prenotazione. Viene chiamato
+     * tenendo il lock in scrittura dell'aula. Di default non fa niente.
+     *
+     * @param a
+     *              l'aula modificata
+     * @param p
+     *              la prenotazione aggiunta
+     */
+    default void prenotazioneAggiunta(Aula a, Prenotazione p) {
+    }
+
+    /**
+     * Notifica che una prenotazione dell'aula è stata cancellata. Viene
+     * chiamato tenendo il lock in scrittura dell'aula. Di default non fa
+     * niente.
+     *
+     * @param a
+     *              l'aula modificata
+     * @param p
+     *              la prenotazione cancellata
+     */
+    default void prenotazioneRimossa(Aula a, Prenotazione p) {
+    }
+
+    /**
+     * Notifica che stanno per essere cancellate, con
+     * {@link Aula#purgePrenotazioniBefore(java.util.GregorianCalendar)}, tutte
+     * le prenotazioni singole dell'aula che iniziano prima di un istante o
+     * esattamente in esso, al posto di una notifica
+     * {@link #prenotazioneRimossa(Aula, Prenotazione)} per ciascuna. A
+     * differenza delle altre notifiche arriva prima della modifica, seguita
+     * subito da {@link #confermaModifiche(Aula)}: se la conferma non riesce le
+     * prenotazioni non vengono cancellate. Viene chiamato tenendo il lock in
+     * scrittura dell'aula. Di default non fa niente.
+     *
+     * @param a
+     *                    l'aula modificata
+     * @param istante
+     *                    l'istante in millisecondi
+     * @param inizio
+     *                    l'inizio in millisecondi della prima prenotazione
+     *                    cancellata
+     * @param fine
+     *                    la fine in millisecondi più lontana fra quelle delle
+     *                    prenotazioni cancellate
+     */
+    default void prenotazioniRimosseFinoA(Aula a, long istante, long inizio,
+            long fine) {
+    }
+
+    /**
+     * Notifica che all'aula è stata aggiunta una prenotazione ricorrente.
+     * Viene chiamato tenendo il lock in scrittura dell'aula. Di default non fa
+     * niente.
+     *
+     * @param a
+     *              l'aula modificata
+     * @param r
+     *              la prenotazione ricorrente aggiunta
+     */
+    default void prenotazioneRicorrenteAggiunta(Aula a,
+            PrenotazioneRicorrente r) {
+    }
+
+    /**
+     * Notifica che una prenotazione ricorrente dell'aula è stata cancellata.
+     * Viene chiamato tenendo il lock in scrittura dell'aula. Di default non fa
+     * niente.
+     *
+     * @param a
+     *              l'aula modificata
+     * @param r
+     *              la prenotazione ricorrente cancellata
+     */
+    default void prenotazioneRicorrenteRimossa(Aula a,
+            PrenotazioneRicorrente r) {
+    }
+
+    /**
+     * Chiede di confermare le modifiche di un'operazione sull'aula, che può
+     * aver generato una o più delle notifiche precedenti. Viene chiamato
+     * tenendo il lock in scrittura dell'aula, prima di rilasciarlo, per cui
+     * le modifiche non sono ancora visibili agli altri thread; se solleva
+     * un'eccezione l'aula le annulla. Di default non fa niente.
+     *
+     * @param a
+     *              l'aula modificata
+     */
+    default void confermaModifiche(Aula a) {
+    }
+
+}
@@ -8,11 +8,17 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import static java.time.Duration.ofMillis;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 
@@ -286,6 +292,76 @@ class AulaTest {
 
     }
 
+    @Test
+    final void testIsFreePrenotazioneLungaPrecedente() {
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        // Prenotazione lunga che inizia molto prima del time slot richiesto
+        a.addPrenotazione(
+                new TimeSlot(new GregorianCalendar(2019, 10, 4, 8, 0),
+                        new GregorianCalendar(2019, 10, 4, 18, 0)),
+                "Luca Tesei", "Esami");
+        // Prenotazione breve contenuta nella prima, ammessa dalla tolleranza
+        a.addPrenotazione(
+                new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 0),
+                        new GregorianCalendar(2019, 10, 4, 9, 3)),
+                "Luca Tesei", "Ricevimento");
+        // La prenotazione che precede immediatamente il time slot non si
+        // sovrappone, ma quella lunga sì
+        assertFalse(
+                a.isFree(new TimeSlot(new GregorianCalendar(2019, 10, 4, 10, 0),
+                        new GregorianCalendar(2019, 10, 4, 11, 0))));
+        // Sovrapposizione entro la tolleranza
+        assertTrue(
+                a.isFree(new TimeSlot(new GregorianCalendar(2019, 10, 4, 17, 55),
+                        new GregorianCalendar(2019, 10, 4, 19, 0))));
+        assertFalse(
+                a.isFree(new TimeSlot(new GregorianCalendar(2019, 10, 4, 17, 54),
+                        new GregorianCalendar(2019, 10, 4, 19, 0))));
+        assertTrue(
+                a.isFree(new TimeSlot(new GregorianCalendar(2019, 10, 4, 18, 0),
+                        new GregorianCalendar(2019, 10, 4, 19, 0))));
+    }
+
+    @Test
+    final void testIsFreePrenotazioniLunghe() {
+        // Confronto con il controllo su tutte le prenotazioni presenti, con
+        // prenotazioni lunghe più giorni fra quelle corte, cancellazioni e
+        // istanti a secondi, per cui la mappa di occupazione non basta
+        Random r = new Random(1);
+        long minuto = 60000L;
+        long base = new GregorianCalendar(2019, 10, 4, 0, 0).getTimeInMillis();
+        Aula a = new Aula("LA1", "");
+        List<TimeSlot> presenti = new ArrayList<TimeSlot>();
+        for (int i = 0; i < 4000; i++) {
+            long inizio = base + r.nextInt(20 * 24 * 60) * minuto
+                    + r.nextInt(60) * 1000L;
+            long durata = r.nextInt(40) == 0
+                    ? (1 + r.nextInt(4 * 24 * 60)) * minuto
+                    : (1 + r.nextInt(180)) * minuto;
+            TimeSlot ts = slot(inizio, inizio + durata);
+            boolean libera = true;
+            for (TimeSlot t : presenti)
+                libera &= !t.overlapsWith(ts);
+            assertEquals(libera, a.isFree(ts));
+            if (libera) {
+                a.addPrenotazione(ts, "LT", "Lezione");
+                presenti.add(ts);
+            } else if (r.nextInt(3) == 0) {
+                TimeSlot t = presenti.remove(r.nextInt(presenti.size()));
+                assertTrue(a.removePrenotazione(new Prenotazione(a, t, "", "")));
+            }
+            if (i == 3000) {
+                final long limite = base + 10 * 24 * 60 * minuto;
+                GregorianCalendar g = new GregorianCalendar();
+                g.setTimeInMillis(limite);
+                a.purgePrenotazioniBefore(g);
+                presenti.removeIf(
+                        t -> t.getStart().getTimeInMillis() <= limite);
+            }
+        }
+        assertEquals(presenti.size(), a.getPrenotazioni().size());
+    }
+
     @Test
     final void testSatisfiesFacilities() {
         Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
@@ -317,6 +393,28 @@ class AulaTest {
 
     }
 
+    @Test
+    final void testSatisfiesFacilitiesQuantita() {
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        a.addFacility(new QuantitativeFacility("POSTI", "", 80));
+        a.addFacility(new PresenceFacility("HDMI", ""));
+        Set<Facility> requestedFacilities = new HashSet<Facility>();
+        requestedFacilities.add(new QuantitativeFacility("POSTI", "", 60));
+        assertTrue(a.satisfiesFacilities(requestedFacilities));
+        requestedFacilities.add(new QuantitativeFacility("POSTI", "", 80));
+        assertTrue(a.satisfiesFacilities(requestedFacilities));
+        requestedFacilities.clear();
+        requestedFacilities.add(new QuantitativeFacility("POSTI", "", 100));
+        assertFalse(a.satisfiesFacilities(requestedFacilities));
+        // Stesso codice ma tipo diverso di facility
+        requestedFacilities.clear();
+        requestedFacilities.add(new PresenceFacility("POSTI", ""));
+        assertFalse(a.satisfiesFacilities(requestedFacilities));
+        requestedFacilities.clear();
+        requestedFacilities.add(new QuantitativeFacility("HDMI", "", 1));
+        assertFalse(a.satisfiesFacilities(requestedFacilities));
+    }
+
     @Test
     final void testAddPrenotazione() {
         Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
@@ -420,4 +518,236 @@ class AulaTest {
                 new GregorianCalendar(2019, 0, 1, 16, 00)));
     }
 
+    @Test
+    final void testPurgePrenotazioniBefore() {
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        assertThrows(NullPointerException.class,
+                () -> a.purgePrenotazioniBefore(null));
+        assertEquals(0, a.purgePrenotazioniBefore(
+                new GregorianCalendar(2019, 0, 1, 16, 00)));
+        for (int giorno = 1; giorno <= 28; giorno++)
+            for (int ora = 8; ora <= 16; ora += 2)
+                a.addPrenotazione(new TimeSlot(
+                        new GregorianCalendar(2019, 0, giorno, ora, 0),
+                        new GregorianCalendar(2019, 0, giorno, ora + 2, 0)),
+                        "LT", "Pippo");
+        // La prenotazione che inizia esattamente nel punto indicato viene
+        // rimossa, quella che inizia un millisecondo dopo no
+        GregorianCalendar punto = new GregorianCalendar(2019, 0, 2, 8, 0);
+        assertEquals(6, a.purgePrenotazioniBefore(punto));
+        assertEquals(5 * 28 - 6, a.getPrenotazioni().size());
+        GregorianCalendar primaDelPunto = new GregorianCalendar(2019, 0, 2,
+                9, 59);
+        assertEquals(0, a.purgePrenotazioniBefore(primaDelPunto));
+        punto.setTimeInMillis(
+                new GregorianCalendar(2019, 0, 2, 10, 0).getTimeInMillis() - 1);
+        assertEquals(0, a.purgePrenotazioniBefore(punto));
+        assertEquals(5 * 28 - 6, a.purgePrenotazioniBefore(
+                new GregorianCalendar(2020, 0, 1, 0, 0)));
+        assertTrue(a.getPrenotazioni().isEmpty());
+    }
+
+    /*
+     * Ascoltatore che rifiuta di confermare le modifiche quando rifiuta è
+     * true, come il registro delle operazioni dopo un errore di scrittura.
+     */
+    private static final class Rifiuto implements AulaListener {
+        boolean rifiuta;
+
+        @Override
+        public void facilityAggiunta(Aula a, Facility f) {
+        }
+
+        @Override
+        public void confermaModifiche(Aula a) {
+            if (rifiuta)
+                throw new IllegalStateException("Modifica non confermata");
+        }
+    }
+
+    @Test
+    final void testModificheNonConfermate() {
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        Rifiuto r = new Rifiuto();
+        a.addListener(r);
+        TimeSlot ts1 = new TimeSlot(new GregorianCalendar(2019, 0, 1, 9, 0),
+                new GregorianCalendar(2019, 0, 1, 11, 0));
+        TimeSlot ts2 = new TimeSlot(new GregorianCalendar(2019, 0, 2, 9, 0),
+                new GregorianCalendar(2019, 0, 2, 11, 0));
+        TimeSlot lunga = new TimeSlot(new GregorianCalendar(2019, 0, 3, 9, 0),
+                new GregorianCalendar(2019, 0, 6, 11, 0));
+        a.addPrenotazione(ts1, "LT", "Lezione");
+        a.addPrenotazione(lunga, "LT", "Convegno");
+        r.rifiuta = true;
+        // Ogni modifica non confermata viene annullata
+        assertThrows(IllegalStateException.class,
+                () -> a.addPrenotazione(ts2, "LT", "Esame"));
+        assertTrue(a.isFree(ts2));
+        assertThrows(IllegalStateException.class,
+                () -> a.removePrenotazione(new Prenotazione(a, ts1, "", "")));
+        assertFalse(a.isFree(ts1));
+        assertThrows(IllegalStateException.class, () -> a
+                .purgePrenotazioniBefore(new GregorianCalendar(2019, 1, 1)));
+        assertEquals(2, a.getPrenotazioni().size());
+        assertFalse(a.isFree(ts1));
+        assertFalse(a.isFree(new TimeSlot(
+                new GregorianCalendar(2019, 0, 5, 9, 0),
+                new GregorianCalendar(2019, 0, 5, 10, 0))));
+        assertThrows(IllegalStateException.class,
+                () -> a.addPrenotazioneRicorrente(ts2, Duration.ofDays(7), 3,
+                        new HashSet<Integer>(), "LT", "Lezione"));
+        assertTrue(a.getPrenotazioniRicorrenti().isEmpty());
+        assertTrue(a.isFree(ts2));
+        assertThrows(IllegalStateException.class,
+                () -> a.addFacility(new PresenceFacility("HDMI", "")));
+        assertTrue(a.getFacilities().isEmpty());
+        // Dopo l'annullamento l'aula funziona normalmente
+        r.rifiuta = false;
+        PrenotazioneRicorrente serie = a.addPrenotazioneRicorrente(ts2,
+                Duration.ofDays(7), 3, new HashSet<Integer>(), "LT",
+                "Lezione");
+        r.rifiuta = true;
+        assertThrows(IllegalStateException.class,
+                () -> a.removePrenotazioneRicorrente(serie));
+        assertEquals(1, a.getPrenotazioniRicorrenti().size());
+        r.rifiuta = false;
+        assertTrue(a.removePrenotazione(new Prenotazione(a, ts1, "", "")));
+        assertTrue(a.isFree(ts1));
+        assertTrue(a.addFacility(new PresenceFacility("HDMI", "")));
+    }
+
+    @Test
+    final void testAddPrenotazioneConcorrente() throws InterruptedException {
+        final Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        final int numThread = 16;
+        final int turni = 500;
+        final AtomicInteger accettate = new AtomicInteger();
+        // Ad ogni turno tutti i thread partono insieme e provano a prenotare
+        // lo stesso time slot, oppure uno che gli si sovrappone: per ogni turno
+        // deve essere accettata una sola prenotazione
+        final CyclicBarrier barriera = new CyclicBarrier(numThread);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThread; t++) {
+            final int spostamento = t % 4;
+            Thread th = new Thread(() -> {
+                for (int i = 0; i < turni; i++) {
+                    GregorianCalendar inizio = new GregorianCalendar(2019, 0,
+                            1, 8, 0);
+                    inizio.add(GregorianCalendar.MINUTE,
+                            i * 60 + spostamento * 5);
+                    GregorianCalendar fine = (GregorianCalendar) inizio
+                            .clone();
+                    fine.add(GregorianCalendar.MINUTE, 30);
+                    TimeSlot ts = new TimeSlot(inizio, fine);
+                    try {
+                        barriera.await();
+                    } catch (Exception e) {
+                        return;
+                    }
+                    try {
+                        a.addPrenotazione(ts, "LT", "Pippo");
+                        accettate.incrementAndGet();
+                    } catch (IllegalArgumentException e) {
+                        // sovrapposizione: prenotazione rifiutata
+                    }
+                }
+            });
+            threads.add(th);
+            th.start();
+        }
+        for (Thread th : threads)
+            th.join();
+        assertEquals(turni, accettate.get());
+        List<Prenotazione> ps = new ArrayList<Prenotazione>(
+                a.getPrenotazioni());
+        // Nessuna prenotazione accettata è andata persa
+        assertEquals(turni, ps.size());
+        // Nessuna coppia di prenotazioni si sovrappone
+        for (int i = 0; i < ps.size(); i++)
+            for (int j = i + 1; j < ps.size(); j++)
+                assertFalse(ps.get(i).getTimeSlot()
+                        .overlapsWith(ps.get(j).getTimeSlot()));
+    }
+
+    @Test
+    final void testFindFirstFreeSlot() {
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        GregorianCalendar lunedi9 = new GregorianCalendar(2019, 10, 4, 9, 0);
+        Duration dueOre = Duration.ofHours(2);
+        assertThrows(NullPointerException.class,
+                () -> a.findFirstFreeSlot(null, dueOre));
+        assertThrows(NullPointerException.class,
+                () -> a.findFirstFreeSlot(lunedi9, null));
+        assertThrows(IllegalArgumentException.class,
+                () -> a.findFirstFreeSlot(lunedi9, Duration.ZERO));
+        // Aula vuota: libera subito
+        assertEquals(new TimeSlot(lunedi9,
+                new GregorianCalendar(2019, 10, 4, 11, 0)),
+                a.findFirstFreeSlot(lunedi9, dueOre));
+        a.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 8, 0),
+                new GregorianCalendar(2019, 10, 4, 10, 0)), "LT", "Lezione");
+        a.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 11, 0),
+                new GregorianCalendar(2019, 10, 4, 12, 0)), "LT", "Lezione");
+        a.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 14, 0),
+                new GregorianCalendar(2019, 10, 4, 16, 0)), "LT", "Lezione");
+        // Fra 9.55 e 11.05 ci sono 70 minuti: un'ora ci sta, due no
+        assertEquals(new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 55),
+                new GregorianCalendar(2019, 10, 4, 10, 55)),
+                a.findFirstFreeSlot(lunedi9, Duration.ofHours(1)));
+        // Fra 11.55 e 14.05 ci sono 130 minuti
+        TimeSlot ts = a.findFirstFreeSlot(lunedi9, dueOre);
+        assertEquals(new TimeSlot(new GregorianCalendar(2019, 10, 4, 11, 55),
+                new GregorianCalendar(2019, 10, 4, 13, 55)), ts);
+        assertTrue(a.isFree(ts));
+        assertEquals(new TimeSlot(new GregorianCalendar(2019, 10, 4, 15, 55),
+                new GregorianCalendar(2019, 10, 4, 18, 55)),
+                a.findFirstFreeSlot(lunedi9, Duration.ofHours(3)));
+        // Una prenotazione lunga con prenotazioni brevi annidate
+        Aula b = new Aula("LA2", "Polo Lodovici Piano Terra");
+        b.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 8, 0),
+                new GregorianCalendar(2019, 10, 4, 20, 0)), "LT", "Esame");
+        b.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 0),
+                new GregorianCalendar(2019, 10, 4, 9, 5)), "LT", "Ricevimento");
+        assertEquals(new TimeSlot(new GregorianCalendar(2019, 10, 4, 19, 55),
+                new GregorianCalendar(2019, 10, 4, 21, 55)),
+                b.findFirstFreeSlot(lunedi9, dueOre));
+    }
+
+    @Test
+    final void testFindFirstFreeSlotCasuale() {
+        // Confronto con la ricerca minuto per minuto tramite isFree
+        Random r = new Random(14);
+        long minuto = 60000L;
+        long base = new GregorianCalendar(2019, 10, 4, 0, 0).getTimeInMillis();
+        for (int prova = 0; prova < 20; prova++) {
+            Aula a = new Aula("LA1", "");
+            for (int i = 0; i < 60; i++) {
+                long inizio = base + r.nextInt(24 * 60) * minuto;
+                long fine = inizio + (1 + r.nextInt(180)) * minuto;
+                TimeSlot ts = slot(inizio, fine);
+                if (a.isFree(ts))
+                    a.addPrenotazione(ts, "LT", "Lezione");
+            }
+            for (int i = 0; i < 10; i++) {
+                long da = base + r.nextInt(24 * 60) * minuto;
+                long durata = (1 + r.nextInt(240)) * minuto;
+                long atteso = da;
+                while (!a.isFree(slot(atteso, atteso + durata)))
+                    atteso += minuto;
+                GregorianCalendar from = new GregorianCalendar();
+                from.setTimeInMillis(da);
+                assertEquals(slot(atteso, atteso + durata), a.findFirstFreeSlot(
+                        from, Duration.ofMillis(durata)));
+            }
+        }
+    }
+
+    private static TimeSlot slot(long inizio, long fine) {
+        GregorianCalendar g1 = new GregorianCalendar();
+        g1.setTimeInMillis(inizio);
+        GregorianCalendar g2 = new GregorianCalendar();
+        g2.setTimeInMillis(fine);
+        return new TimeSlot(g1, g2);
+    }
+
 }
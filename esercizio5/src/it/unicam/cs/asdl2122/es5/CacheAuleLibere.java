@@ -0,0 +1,330 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Cache dei risultati di
+ * {@link GestoreAule#cercaAuleLibere(Set, TimeSlot)}, di dimensione limitata:
+ * quando è piena viene espulso il risultato usato meno di recente (LRU). La
+ * chiave è il time slot insieme a una forma canonica dell'insieme di
+ * facilities richieste, che tiene conto anche del tipo e della quantità delle
+ * facilities (due richieste di 50 e di 100 posti sono chiavi diverse, anche se
+ * i due insiemi sono uguali secondo equals).
+ *
+ * Un risultato viene invalidato solo quando cambia qualcosa che può
+ * modificarlo: quando in un'aula viene inserita o cancellata una prenotazione
+ * che interseca il suo time slot, quando un'aula acquisisce una facility con
+ * un codice richiesto, oppure quando il gestore acquisisce una nuova aula. Una
+ * ricerca che si svolge in concorrenza con una di queste modifiche non viene
+ * memorizzata, perché potrebbe aver letto alcune aule prima della modifica e
+ * altre dopo.
+ *
+ * I contatori di successi (hit), fallimenti (miss), espulsioni e
+ * invalidazioni partono da zero alla creazione del gestore.
+ *
+ * @author Collettiva
+ *
+ */
+public final class CacheAuleLibere {
+
+    /*
+     * Chiave della cache. L'ordinamento (per inizio, fine e facilities)
+     * permette di trovare le chiavi che intersecano un intervallo con una
+     * vista di un TreeSet.
+     */
+    static final class Chiave implements Comparable<Chiave> {
+        final long inizio;
+
+        final long fine;
+
+        final String facilities;
+
+        // Codici delle facilities richieste; non fanno parte della chiave,
+        // servono a invalidaFacility
+        final Set<String> codici;
+
+        Chiave(long inizio, long fine, String facilities, Set<String> codici) {
+            this.inizio = inizio;
+            this.fine = fine;
+            this.facilities = facilities;
+            this.codici = codici;
+        }
+
+        @Override
+        public int compareTo(Chiave o) {
+            int cmp = Long.compare(inizio, o.inizio);
+            if (cmp == 0)
+                cmp = Long.compare(fine, o.fine);
+            return cmp != 0 ? cmp : facilities.compareTo(o.facilities);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Long.hashCode(inizio) + Long.hashCode(fine))
+                    + facilities.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Chiave))
+                return false;
+            Chiave other = (Chiave) obj;
+            return inizio == other.inizio && fine == other.fine
+                    && facilities.equals(other.facilities);
+        }
+    }
+
+    /*
+     * Una ricerca in corso: viene annullata se nel frattempo avviene una
+     * modifica che può cambiarne il risultato.
+     */
+    static final class Calcolo {
+        final Chiave chiave;
+
+        boolean annullato;
+
+        Calcolo(Chiave chiave) {
+            this.chiave = chiave;
+        }
+    }
+
+    private final int capacita;
+
+    // Risultati in ordine di accesso, dal meno recente
+    private final LinkedHashMap<Chiave, Set<Aula>> risultati;
+
+    // Le stesse chiavi ordinate per inizio
+    private final TreeSet<Chiave> perInizio;
+
+    // Durate delle chiavi memorizzate, ciascuna con il numero di chiavi che
+    // la hanno: la massima delimita le viste di perInizio come in
+    // Aula.isFree e diminuisce quando le chiavi più lunghe vengono rimosse
+    private final TreeMap<Long, Integer> durate;
+
+    private final List<Calcolo> inCorso;
+
+    private long hit;
+
+    private long miss;
+
+    private long espulsioni;
+
+    private long invalidazioni;
+
+    CacheAuleLibere(int capacita) {
+        if (capacita <= 0)
+            throw new IllegalArgumentException(
+                    "La capacità della cache deve essere positiva");
+        this.capacita = capacita;
+        this.risultati = new LinkedHashMap<Chiave, Set<Aula>>(16, 0.75f,
+                true);
+        this.perInizio = new TreeSet<Chiave>();
+        this.durate = new TreeMap<Long, Integer>();
+        this.inCorso = new ArrayList<Calcolo>();
+    }
+
+    /*
+     * Restituisce la chiave di una ricerca, oppure null se fra le facilities
+     * ce n'è una di un tipo che non si sa rendere in forma canonica: in quel
+     * caso la ricerca non passa dalla cache.
+     */
+    static Chiave chiave(Set<Facility> facilities, TimeSlot ts) {
+        List<String> canoniche = new ArrayList<String>(facilities.size());
+        Set<String> codici = new HashSet<String>();
+        for (Facility f : facilities) {
+            codici.add(f.getCodice());
+            if (f instanceof QuantitativeFacility)
+                canoniche.add("Q " + f.getCodice() + "\t"
+                        + ((QuantitativeFacility) f).getQuantity());
+            else if (f instanceof PresenceFacility)
+                canoniche.add("P " + f.getCodice());
+            else
+                return null;
+        }
+        Collections.sort(canoniche);
+        StringBuilder sb = new StringBuilder();
+        for (String s : canoniche) {
+            if (sb.length() > 0)
+                sb.append('\n');
+            sb.append(s);
+        }
+        return new Chiave(ts.getStart().getTimeInMillis(),
+                ts.getStop().getTimeInMillis(), sb.toString(), codici);
+    }
+
+    /*
+     * Restituisce una copia del risultato memorizzato per la chiave, oppure
+     * null se non c'è. Conta un successo o un fallimento.
+     */
+    synchronized Set<Aula> cerca(Chiave k) {
+        Set<Aula> r = risultati.get(k);
+        if (r == null) {
+            miss++;
+            return null;
+        }
+        hit++;
+        return new HashSet<Aula>(r);
+    }
+
+    /*
+     * Registra l'inizio di una ricerca. Va chiamato prima di leggere le aule.
+     */
+    synchronized Calcolo inizia(Chiave k) {
+        Calcolo c = new Calcolo(k);
+        inCorso.add(c);
+        return c;
+    }
+
+    /*
+     * Memorizza il risultato di una ricerca, se non è stata annullata,
+     * espellendo il risultato usato meno di recente se la cache è piena. Un
+     * risultato null indica una ricerca fallita, che viene solo dimenticata.
+     */
+    synchronized void concludi(Calcolo c, Set<Aula> risultato) {
+        inCorso.remove(c);
+        if (c.annullato || risultato == null)
+            return;
+        Chiave k = c.chiave;
+        if (risultati.put(k, Collections
+                .unmodifiableSet(new HashSet<Aula>(risultato))) == null) {
+            perInizio.add(k);
+            Integer n = durate.get(k.fine - k.inizio);
+            durate.put(k.fine - k.inizio, n == null ? 1 : n + 1);
+        }
+        if (risultati.size() > capacita) {
+            Iterator<Chiave> it = risultati.keySet().iterator();
+            Chiave vecchia = it.next();
+            it.remove();
+            dimentica(vecchia);
+            espulsioni++;
+        }
+    }
+
+    /*
+     * Toglie da perInizio e dalle durate una chiave già tolta dai risultati.
+     */
+    private void dimentica(Chiave k) {
+        perInizio.remove(k);
+        int n = durate.get(k.fine - k.inizio);
+        if (n == 1)
+            durate.remove(k.fine - k.inizio);
+        else
+            durate.put(k.fine - k.inizio, n - 1);
+    }
+
+    /*
+     * Invalida i risultati, e annulla le ricerche in corso, il cui time slot
+     * interseca [inizio, fine).
+     */
+    synchronized void invalida(long inizio, long fine) {
+        for (Calcolo c : inCorso)
+            if (c.chiave.inizio < fine && c.chiave.fine > inizio)
+                c.annullato = true;
+        if (durate.isEmpty())
+            return;
+        List<Chiave> invalidate = new ArrayList<Chiave>();
+        for (Chiave k : perInizio.subSet(
+                new Chiave(inizio - durate.lastKey(), Long.MIN_VALUE, "",
+                        null),
+                true, new Chiave(fine, Long.MIN_VALUE, "", null), false))
+            if (k.fine > inizio)
+                invalidate.add(k);
+        for (Chiave k : invalidate) {
+            risultati.remove(k);
+            dimentica(k);
+            invalidazioni++;
+        }
+    }
+
+    /*
+     * Invalida i risultati, e annulla le ricerche in corso, che richiedono
+     * una facility con il codice dato.
+     */
+    synchronized void invalidaFacility(String codice) {
+        for (Calcolo c : inCorso)
+            if (c.chiave.codici.contains(codice))
+                c.annullato = true;
+        Iterator<Map.Entry<Chiave, Set<Aula>>> it = risultati.entrySet()
+                .iterator();
+        while (it.hasNext()) {
+            Chiave k = it.next().getKey();
+            if (k.codici.contains(codice)) {
+                it.remove();
+                dimentica(k);
+                invalidazioni++;
+            }
+        }
+    }
+
+    /*
+     * Invalida tutti i risultati e annulla tutte le ricerche in corso.
+     */
+    synchronized void svuota() {
+        for (Calcolo c : inCorso)
+            c.annullato = true;
+        invalidazioni += risultati.size();
+        risultati.clear();
+        perInizio.clear();
+        durate.clear();
+    }
+
+    /**
+     * @return il numero massimo di risultati memorizzati
+     */
+    public int getCapacita() {
+        return capacita;
+    }
+
+    /**
+     * @return il numero di risultati memorizzati
+     */
+    public synchronized int getDimensione() {
+        return risultati.size();
+    }
+
+    /**
+     * @return il numero di ricerche servite dalla cache
+     */
+    public synchronized long getHit() {
+        return hit;
+    }
+
+    /**
+     * @return il numero di ricerche non trovate nella cache
+     */
+    public synchronized long getMiss() {
+        return miss;
+    }
+
+    /**
+     * @return il numero di risultati espulsi perché la cache era piena
+     */
+    public synchronized long getEspulsioni() {
+        return espulsioni;
+    }
+
+    /**
+     * @return il numero di risultati invalidati da una modifica
+     */
+    public synchronized long getInvalidazioni() {
+        return invalidazioni;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CacheAuleLibere [dimensione=" + risultati.size()
+                + ", capacita=" + capacita + ", hit=" + hit + ", miss=" + miss
+                + ", espulsioni=" + espulsioni + ", invalidazioni="
+                + invalidazioni + "]";
+    }
+
+}
@@ -0,0 +1,262 @@
+/**
+ *
+ */
+package it.unicam.cs.asdl2122.es5;
+
+import java.util.GregorianCalendar;
+
+/**
+ * Un compact time slot rappresenta lo stesso intervallo di tempo continuo di un
+ * {@link TimeSlot}, ma memorizza gli istanti di inizio e di fine come due
+ * {@code long} in millisecondi dall'epoca (1/1/1970 00:00 UTC) invece che come
+ * due oggetti {@code GregorianCalendar}. Confronti e calcoli di
+ * sovrapposizione si riducono quindi a operazioni aritmetiche sui due campi,
+ * senza ricalcolo dei campi di un calendario, e ogni oggetto occupa pochi byte.
+ * È la forma in cui {@link Prenotazione} memorizza il proprio time slot.
+ *
+ * La semantica di ordinamento, uguaglianza e sovrapposizione, compresa la
+ * soglia di tolleranza {@link TimeSlot#MINUTES_OF_TOLERANCE_FOR_OVERLAPPING},
+ * è esattamente quella di {@link TimeSlot}. Gli oggetti della classe sono
+ * immutabili.
+ *
+ * @author Collettiva
+ *
+ */
+public final class CompactTimeSlot implements Comparable<CompactTimeSlot> {
+
+    private final long start;
+
+    private final long stop;
+
+    /**
+     * Crea un compact time slot tra due istanti espressi in millisecondi
+     * dall'epoca.
+     *
+     * @param start
+     *                  inizio del time slot
+     * @param stop
+     *                  fine del time slot
+     * @throws IllegalArgumentException
+     *                                      se start è uguale o successivo a
+     *                                      stop
+     */
+    public CompactTimeSlot(long start, long stop) {
+        if (start >= stop)
+            throw new IllegalArgumentException(
+                    "Tentativo di creare un time slot con inizio maggiore o uguale di fine");
+        this.start = start;
+        this.stop = stop;
+    }
+
+    /**
+     * Crea un compact time slot tra due istanti di inizio e fine.
+     *
+     * @param start
+     *                  inizio del time slot
+     * @param stop
+     *                  fine del time slot
+     * @throws NullPointerException
+     *                                      se uno dei due istanti, start o
+     *                                      stop, è null
+     * @throws IllegalArgumentException
+     *                                      se start è uguale o successivo a
+     *                                      stop
+     */
+    public CompactTimeSlot(GregorianCalendar start, GregorianCalendar stop) {
+        this(requireNonNull(start, "inizio nullo").getTimeInMillis(),
+                requireNonNull(stop, "fine nulla").getTimeInMillis());
+    }
+
+    /**
+     * Converte un time slot nella sua rappresentazione compatta.
+     *
+     * @param ts
+     *               il time slot da convertire
+     * @return il compact time slot che rappresenta lo stesso intervallo
+     * @throws NullPointerException
+     *                                  se il time slot passato è nullo
+     */
+    public static CompactTimeSlot of(TimeSlot ts) {
+        if (ts == null)
+            throw new NullPointerException(
+                    "Tentativo di convertire un time slot nullo");
+        return new CompactTimeSlot(ts.getStart().getTimeInMillis(),
+                ts.getStop().getTimeInMillis());
+    }
+
+    /*
+     * Controllo di null con messaggio uniforme a quelli di TimeSlot, usabile
+     * nella chiamata this(...) del costruttore.
+     */
+    private static GregorianCalendar requireNonNull(GregorianCalendar g,
+            String cosa) {
+        if (g == null)
+            throw new NullPointerException(
+                    "Tentativo di creare un time slot con " + cosa);
+        return g;
+    }
+
+    /**
+     * @return l'inizio in millisecondi dall'epoca
+     */
+    public long getStartMillis() {
+        return start;
+    }
+
+    /**
+     * @return la fine in millisecondi dall'epoca
+     */
+    public long getStopMillis() {
+        return stop;
+    }
+
+    /**
+     * @return un nuovo GregorianCalendar, nel fuso orario di default, che
+     *         rappresenta l'inizio
+     */
+    public GregorianCalendar getStart() {
+        return toCalendar(start);
+    }
+
+    /**
+     * @return un nuovo GregorianCalendar, nel fuso orario di default, che
+     *         rappresenta la fine
+     */
+    public GregorianCalendar getStop() {
+        return toCalendar(stop);
+    }
+
+    /**
+     * Converte questo compact time slot in un time slot basato su
+     * GregorianCalendar.
+     *
+     * @return un time slot che rappresenta lo stesso intervallo di tempo
+     */
+    public TimeSlot toTimeSlot() {
+        return new TimeSlot(toCalendar(start), toCalendar(stop));
+    }
+
+    private static GregorianCalendar toCalendar(long millis) {
+        GregorianCalendar g = new GregorianCalendar();
+        g.setTimeInMillis(millis);
+        return g;
+    }
+
+    /*
+     * Due compact time slot sono uguali se iniziano e finiscono nello stesso
+     * istante.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof CompactTimeSlot))
+            return false;
+        CompactTimeSlot other = (CompactTimeSlot) obj;
+        return start == other.start && stop == other.stop;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + Long.hashCode(start);
+        result = prime * result + Long.hashCode(stop);
+        return result;
+    }
+
+    /*
+     * Un time slot precede un altro se inizia prima. Se due time slot iniziano
+     * nello stesso momento quello che finisce prima precede l'altro.
+     */
+    @Override
+    public int compareTo(CompactTimeSlot o) {
+        if (o == null)
+            throw new NullPointerException(
+                    "Tentativo di comparare un time slot nullo");
+        int cmp = Long.compare(this.start, o.start);
+        if (cmp != 0)
+            return cmp;
+        return Long.compare(this.stop, o.stop);
+    }
+
+    /**
+     * Determina il numero di minuti di sovrapposizione tra questo time slot e
+     * quello passato, con la stessa semantica di
+     * {@link TimeSlot#getMinutesOfOverlappingWith(TimeSlot)}.
+     *
+     * @param o
+     *              il time slot da confrontare con questo
+     * @return il numero di minuti di sovrapposizione, arrotondato per difetto,
+     *         oppure -1 se non c'è sovrapposizione
+     * @throws NullPointerException
+     *                                      se il time slot passato è nullo
+     * @throws IllegalArgumentException
+     *                                      se i minuti di sovrapposizione
+     *                                      superano Integer.MAX_VALUE
+     */
+    public int getMinutesOfOverlappingWith(CompactTimeSlot o) {
+        if (o == null)
+            throw new NullPointerException(
+                    "Tentativo di calcolare i minuti di sovrapposizione di "
+                            + "questo time slot con un time slot nullo");
+        return minutesOfOverlapping(this.start, this.stop, o.start, o.stop);
+    }
+
+    /**
+     * Determina se questo time slot si sovrappone a un altro time slot dato,
+     * considerando la soglia di tolleranza, con la stessa semantica di
+     * {@link TimeSlot#overlapsWith(TimeSlot)}.
+     *
+     * @param o
+     *              il time slot che viene passato per il controllo di
+     *              sovrapposizione
+     * @return true se questo time slot si sovrappone per più (strettamente) di
+     *         MINUTES_OF_TOLERANCE_FOR_OVERLAPPING minuti a quello passato
+     * @throws NullPointerException
+     *                                  se il time slot passato è nullo
+     */
+    public boolean overlapsWith(CompactTimeSlot o) {
+        return getMinutesOfOverlappingWith(
+                o) > TimeSlot.MINUTES_OF_TOLERANCE_FOR_OVERLAPPING;
+    }
+
+    /*
+     * Calcola i minuti di sovrapposizione tra due intervalli espressi in
+     * millisecondi. La sovrapposizione è l'intersezione [max(inizi),
+     * min(fini)]: se è vuota o di zero millisecondi il risultato è -1,
+     * altrimenti sono i minuti troncati, come in TimeSlot.
+     */
+    static int minutesOfOverlapping(long start1, long stop1, long start2,
+            long stop2) {
+        long overlappingMilliseconds = Math.min(stop1, stop2)
+                - Math.max(start1, start2);
+        if (overlappingMilliseconds <= 0)
+            return -1;
+        // 60000 millisecondi = 1 minuto
+        long truncatedOverlappingMinutes = overlappingMilliseconds / 60000;
+        if (truncatedOverlappingMinutes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(
+                    "Numero di minuti di sovrapposizione troppo grande per un int");
+        return (int) truncatedOverlappingMinutes;
+    }
+
+    /*
+     * Versione su millisecondi di overlapsWith, usata dalle strutture che
+     * memorizzano gli intervalli come coppie di long.
+     */
+    static boolean overlaps(long start1, long stop1, long start2, long stop2) {
+        return minutesOfOverlapping(start1, stop1, start2,
+                stop2) > TimeSlot.MINUTES_OF_TOLERANCE_FOR_OVERLAPPING;
+    }
+
+    /*
+     * Stesso formato di TimeSlot.toString(), ad esempio
+     * "[4/11/2019 11.0 - 4/11/2019 13.0]".
+     */
+    @Override
+    public String toString() {
+        return toTimeSlot().toString();
+    }
+
+}
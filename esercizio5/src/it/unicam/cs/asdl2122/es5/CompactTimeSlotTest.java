@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package it.unicam.cs.asdl2122.es5;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.GregorianCalendar;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Classe di test per i compact time slot.
+ *
+ * @author Collettiva
+ *
+ */
+class CompactTimeSlotTest {
+
+    @Test
+    final void testCompactTimeSlot() {
+        assertThrows(NullPointerException.class,
+                () -> new CompactTimeSlot(null, new GregorianCalendar()));
+        assertThrows(NullPointerException.class,
+                () -> new CompactTimeSlot(new GregorianCalendar(), null));
+        assertThrows(IllegalArgumentException.class,
+                () -> new CompactTimeSlot(
+                        new GregorianCalendar(2019, 10, 4, 12, 01),
+                        new GregorianCalendar(2019, 10, 4, 12, 00)));
+        assertThrows(IllegalArgumentException.class,
+                () -> new CompactTimeSlot(1000L, 1000L));
+        assertThrows(NullPointerException.class,
+                () -> CompactTimeSlot.of(null));
+    }
+
+    @Test
+    final void testConversioni() {
+        GregorianCalendar g1 = new GregorianCalendar(2019, 10, 4, 11, 00);
+        GregorianCalendar g2 = new GregorianCalendar(2019, 10, 4, 13, 00);
+        TimeSlot ts = new TimeSlot(g1, g2);
+        CompactTimeSlot c = CompactTimeSlot.of(ts);
+        assertEquals(g1.getTimeInMillis(), c.getStartMillis());
+        assertEquals(g2.getTimeInMillis(), c.getStopMillis());
+        assertEquals(ts, c.toTimeSlot());
+        assertEquals(g1, c.getStart());
+        assertEquals(g2, c.getStop());
+        assertEquals(ts.toString(), c.toString());
+        assertEquals(c, new CompactTimeSlot(g1, g2));
+        assertEquals(c.hashCode(), new CompactTimeSlot(g1, g2).hashCode());
+    }
+
+    @Test
+    final void testCompareTo() {
+        CompactTimeSlot c1 = new CompactTimeSlot(
+                new GregorianCalendar(2019, 10, 4, 11, 00),
+                new GregorianCalendar(2019, 10, 4, 13, 00));
+        CompactTimeSlot c2 = new CompactTimeSlot(
+                new GregorianCalendar(2019, 10, 4, 11, 00),
+                new GregorianCalendar(2019, 10, 4, 14, 00));
+        CompactTimeSlot c3 = new CompactTimeSlot(
+                new GregorianCalendar(2019, 10, 4, 12, 00),
+                new GregorianCalendar(2019, 10, 4, 13, 00));
+        assertTrue(c1.compareTo(c2) < 0);
+        assertTrue(c2.compareTo(c3) < 0);
+        assertTrue(c3.compareTo(c1) > 0);
+        assertEquals(0, c1.compareTo(CompactTimeSlot.of(c1.toTimeSlot())));
+        assertThrows(NullPointerException.class, () -> c1.compareTo(null));
+    }
+
+    @Test
+    final void testOverlapsWith() {
+        CompactTimeSlot c1 = new CompactTimeSlot(
+                new GregorianCalendar(2019, 10, 4, 11, 00),
+                new GregorianCalendar(2019, 10, 4, 13, 00));
+        // Sovrapposizione di esattamente 5 minuti: tollerata
+        CompactTimeSlot c2 = new CompactTimeSlot(
+                new GregorianCalendar(2019, 10, 4, 12, 55),
+                new GregorianCalendar(2019, 10, 4, 14, 00));
+        // Sovrapposizione di 6 minuti
+        CompactTimeSlot c3 = new CompactTimeSlot(
+                new GregorianCalendar(2019, 10, 4, 12, 54),
+                new GregorianCalendar(2019, 10, 4, 14, 00));
+        // Adiacente
+        CompactTimeSlot c4 = new CompactTimeSlot(
+                new GregorianCalendar(2019, 10, 4, 13, 00),
+                new GregorianCalendar(2019, 10, 4, 14, 00));
+        assertEquals(5, c1.getMinutesOfOverlappingWith(c2));
+        assertFalse(c1.overlapsWith(c2));
+        assertEquals(6, c1.getMinutesOfOverlappingWith(c3));
+        assertTrue(c1.overlapsWith(c3));
+        assertTrue(c3.overlapsWith(c1));
+        assertEquals(-1, c1.getMinutesOfOverlappingWith(c4));
+        assertFalse(c4.overlapsWith(c1));
+        assertThrows(NullPointerException.class, () -> c1.overlapsWith(null));
+    }
+
+    @Test
+    final void testStessaSemanticaDiTimeSlot() {
+        // Confronta i risultati con quelli di TimeSlot su intervalli casuali,
+        // anche non allineati al minuto
+        Random r = new Random(42);
+        long base = new GregorianCalendar(2019, 10, 4, 8, 0).getTimeInMillis();
+        for (int i = 0; i < 10000; i++) {
+            long s1 = base + r.nextInt(4 * 3600000);
+            long e1 = s1 + 1 + r.nextInt(2 * 3600000);
+            long s2 = base + r.nextInt(4 * 3600000);
+            long e2 = s2 + 1 + r.nextInt(2 * 3600000);
+            CompactTimeSlot c1 = new CompactTimeSlot(s1, e1);
+            CompactTimeSlot c2 = new CompactTimeSlot(s2, e2);
+            TimeSlot t1 = c1.toTimeSlot();
+            TimeSlot t2 = c2.toTimeSlot();
+            assertEquals(t1.getMinutesOfOverlappingWith(t2),
+                    c1.getMinutesOfOverlappingWith(c2));
+            assertEquals(t1.overlapsWith(t2), c1.overlapsWith(c2));
+            assertEquals(Integer.signum(t1.compareTo(t2)),
+                    Integer.signum(c1.compareTo(c2)));
+        }
+    }
+
+}
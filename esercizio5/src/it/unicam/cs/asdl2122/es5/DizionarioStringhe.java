@@ -0,0 +1,103 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dizionario di stringhe che assegna a ognuna un codice intero. Lo usa
+ * {@link ArchivioFuoriHeap}, uno per archivio, per memorizzare docente e
+ * motivo nei suoi record di dimensione fissa: negli orari gli stessi pochi
+ * nomi e motivi si ripetono in moltissime prenotazioni, e ogni stringa
+ * distinta viene conservata una volta sola.
+ *
+ * Il dizionario è thread-safe e può solo crescere: i codici sono assegnati in
+ * modo denso a partire da 0 e non vengono mai riusati, nemmeno quando le
+ * prenotazioni che li usano vengono cancellate. Per questo non è condiviso fra
+ * archivi diversi, e la memoria che occupa viene liberata insieme
+ * all'archivio. La codifica di una stringa già presente è una lettura di una
+ * ConcurrentHashMap; la decodifica è una lettura da un array, senza lock.
+ *
+ * @author Collettiva
+ *
+ */
+final class DizionarioStringhe {
+
+    // Le stringhe sono memorizzate in blocchi di dimensione fissa, così che
+    // crescendo non vadano mai copiate
+    private static final int BIT_BLOCCO = 10;
+
+    private static final int BLOCCO = 1 << BIT_BLOCCO;
+
+    private final ConcurrentHashMap<String, Integer> codici;
+
+    // Stringhe per codice. Il riferimento all'array dei blocchi cambia solo
+    // quando serve un nuovo blocco; è volatile perché i lettori non prendono
+    // lock
+    private volatile String[][] blocchi;
+
+    // Numero di stringhe, protetto dal lock di questo oggetto
+    private int dimensione;
+
+    DizionarioStringhe() {
+        this.codici = new ConcurrentHashMap<String, Integer>();
+        this.blocchi = new String[0][];
+    }
+
+    /*
+     * Restituisce il codice della stringa, aggiungendola se non è presente.
+     * Il codice di null è -1.
+     */
+    int codifica(String s) {
+        if (s == null)
+            return -1;
+        Integer codice = codici.get(s);
+        if (codice != null)
+            return codice;
+        synchronized (this) {
+            codice = codici.get(s);
+            if (codice != null)
+                return codice;
+            int c = dimensione;
+            int b = c >>> BIT_BLOCCO;
+            if (b == blocchi.length) {
+                String[][] nuovi = Arrays.copyOf(blocchi, b + 1);
+                nuovi[b] = new String[BLOCCO];
+                blocchi = nuovi;
+            }
+            // La stringa viene scritta prima di rendere noto il codice
+            blocchi[b][c & (BLOCCO - 1)] = s;
+            dimensione = c + 1;
+            codici.put(s, c);
+            return c;
+        }
+    }
+
+    /*
+     * Restituisce la stringa con il codice dato, assegnato da codifica.
+     */
+    String decodifica(int codice) {
+        if (codice == -1)
+            return null;
+        String[][] b = blocchi;
+        int i = codice >>> BIT_BLOCCO;
+        String s = i < b.length ? b[i][codice & (BLOCCO - 1)] : null;
+        if (s != null)
+            return s;
+        // Il codice è arrivato a questo thread senza una relazione
+        // happens-before con la sua assegnazione: lo si rilegge sotto lock
+        synchronized (this) {
+            if (codice < 0 || codice >= dimensione)
+                throw new IllegalArgumentException(
+                        "Codice non assegnato: " + codice);
+            return blocchi[i][codice & (BLOCCO - 1)];
+        }
+    }
+
+    /**
+     * @return il numero di stringhe distinte nel dizionario
+     */
+    synchronized int getDimensione() {
+        return dimensione;
+    }
+
+}
@@ -0,0 +1,96 @@
+package it.unicam.cs.asdl2122.es5;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.GregorianCalendar;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Classe di test per DizionarioStringhe e per il suo uso in
+ * ArchivioFuoriHeap
+ *
+ * @author Collettiva
+ *
+ */
+class DizionarioStringheTest {
+
+    @Test
+    final void testCodifica() {
+        DizionarioStringhe d = new DizionarioStringhe();
+        assertEquals(0, d.getDimensione());
+        assertEquals(0, d.codifica("Luca Tesei"));
+        assertEquals(1, d.codifica("Lezione"));
+        assertEquals(0, d.codifica(new String("Luca Tesei")));
+        assertEquals(-1, d.codifica(null));
+        assertNull(d.decodifica(-1));
+        assertEquals("Lezione", d.decodifica(1));
+        assertEquals(2, d.getDimensione());
+        assertThrows(IllegalArgumentException.class, () -> d.decodifica(2));
+        assertThrows(IllegalArgumentException.class, () -> d.decodifica(-2));
+        // Più blocchi
+        for (int i = 0; i < 5000; i++)
+            assertEquals(i + 2, d.codifica("s" + i));
+        for (int i = 0; i < 5000; i++)
+            assertEquals("s" + i, d.decodifica(i + 2));
+    }
+
+    @Test
+    final void testCodificaConcorrente() throws InterruptedException {
+        // Thread diversi codificano le stesse stringhe: ogni stringa riceve
+        // un solo codice e i codici sono densi
+        final DizionarioStringhe d = new DizionarioStringhe();
+        final int[][] codici = new int[8][3000];
+        final AtomicBoolean errore = new AtomicBoolean();
+        Thread[] thread = new Thread[codici.length];
+        for (int t = 0; t < thread.length; t++) {
+            final int[] miei = codici[t];
+            thread[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < miei.length; i++) {
+                        miei[i] = d.codifica("docente " + i);
+                        if (!d.decodifica(miei[i]).equals("docente " + i))
+                            errore.set(true);
+                    }
+                }
+            });
+            thread[t].start();
+        }
+        for (Thread t : thread)
+            t.join();
+        assertFalse(errore.get());
+        assertEquals(3000, d.getDimensione());
+        for (int t = 1; t < codici.length; t++)
+            assertArrayEquals(codici[0], codici[t]);
+    }
+
+    @Test
+    final void testArchivioFuoriHeap() {
+        // Le prenotazioni di un'aula fuori dallo heap ricreate dal suo
+        // dizionario condividono le stringhe uguali
+        Aula a = Aula.fuoriHeap("LA1", "", 4);
+        for (int giorno = 4; giorno <= 6; giorno++)
+            a.addPrenotazione(new TimeSlot(
+                    new GregorianCalendar(2019, 10, giorno, 9, 0),
+                    new GregorianCalendar(2019, 10, giorno, 11, 0)),
+                    new String("Luca Tesei"), new String("Lezione di ASDL"));
+        Prenotazione p1 = a.getPrenotazioni().first();
+        Prenotazione p2 = a.getPrenotazioni().last();
+        assertEquals("Luca Tesei", p1.getDocente());
+        assertSame(p1.getDocente(), p2.getDocente());
+        assertSame(p1.getMotivo(), p2.getMotivo());
+        // Le prenotazioni restituite sono copie
+        p2.setMotivo("Esame");
+        assertEquals("Lezione di ASDL", a.getPrenotazioni().last().getMotivo());
+        // Le prenotazioni sullo heap conservano le stringhe passate
+        Prenotazione p3 = new Prenotazione(a, p1.getTimeSlot(),
+                new String("Luca Tesei"), "Lezione");
+        assertEquals("Luca Tesei", p3.getDocente());
+        assertNotSame(p1.getDocente(), p3.getDocente());
+        p3.setDocente(null);
+        assertNull(p3.getDocente());
+    }
+
+}
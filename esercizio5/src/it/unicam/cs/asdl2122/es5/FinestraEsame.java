@@ -0,0 +1,73 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Una finestra d'esame è un time slot insieme a un gruppo di aule libere per
+ * tutto il time slot e al numero complessivo di posti che offrono. È il
+ * risultato di
+ * {@link GestoreAule#cercaFinestreEsame(java.util.Set, String, int, int, TimeSlot, java.time.Duration, int)}.
+ *
+ * @author Collettiva
+ *
+ */
+public final class FinestraEsame {
+
+    private final TimeSlot timeSlot;
+
+    private final List<Aula> aule;
+
+    private final int posti;
+
+    /**
+     * Costruisce una finestra d'esame.
+     *
+     * @param timeSlot
+     *                     il time slot della finestra
+     * @param aule
+     *                     le aule della finestra
+     * @param posti
+     *                     il numero complessivo di posti delle aule
+     * @throws NullPointerException
+     *                                  se il time slot o la lista di aule
+     *                                  sono nulli
+     */
+    public FinestraEsame(TimeSlot timeSlot, List<Aula> aule, int posti) {
+        if (timeSlot == null || aule == null)
+            throw new NullPointerException(
+                    "Tentativo di costruire una finestra d'esame senza time slot o aule");
+        this.timeSlot = timeSlot;
+        this.aule = Collections.unmodifiableList(new ArrayList<Aula>(aule));
+        this.posti = posti;
+    }
+
+    /**
+     * @return the timeSlot
+     */
+    public TimeSlot getTimeSlot() {
+        return timeSlot;
+    }
+
+    /**
+     * @return le aule, in sola lettura, in ordine decrescente di posti
+     */
+    public List<Aula> getAule() {
+        return aule;
+    }
+
+    /**
+     * @return il numero complessivo di posti delle aule
+     */
+    public int getPosti() {
+        return posti;
+    }
+
+    @Override
+    public String toString() {
+        return "FinestraEsame [time slot=" + timeSlot + ", aule=" + aule
+                + ", posti=" + posti + "]";
+    }
+
+}
@@ -1,24 +1,135 @@
 package it.unicam.cs.asdl2122.es5;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Un gestore di aule gestisce un insieme di aule e permette di cercare aule
  * libere con certe caratteristiche fra quelle che gestisce.
  * 
+ * Il gestore può essere usato in concorrenza da più thread. Le sue strutture
+ * (aule e indici) sono protette da un lock in lettura/scrittura, mentre le
+ * prenotazioni sono protette dal lock di ciascuna aula: prenotazioni
+ * concorrenti nella stessa aula vengono serializzate, quelle in aule diverse
+ * procedono in parallelo. Il lock del gestore non viene mai tenuto mentre si
+ * aspetta quello di un'aula, per cui i due livelli di lock non possono
+ * bloccarsi a vicenda.
+ * 
  * @author Luca Tesei
  *
  */
-public class GestoreAule {
+public class GestoreAule implements AulaListener {
+
+    /*
+     * Ad ogni aula gestita viene associato un identificativo intero, pari alla
+     * sua posizione nella lista aulePerId. Gli identificativi sono densi e
+     * vengono usati come indici dei bit negli insiemi dell'indice delle
+     * facilities.
+     */
+    private final Map<Aula, Integer> idAule;
+
+    private final List<Aula> aulePerId;
+
+    /*
+     * Indice invertito: associa al codice di una facility l'insieme (come
+     * BitSet sugli identificativi) delle aule che la possiedono. Viene
+     * aggiornato da addAula e, tramite AulaListener, da Aula.addFacility.
+     */
+    private final Map<String, BitSet> indiceFacilities;
+
+    /*
+     * Indice delle quantità: associa al codice di una quantitative facility
+     * una mappa ordinata dalla quantità all'insieme delle aule che hanno
+     * quella facility con esattamente quella quantità. Le aule con almeno una
+     * certa quantità si ottengono con una ricerca binaria (tailMap) seguita
+     * dalla scansione delle sole quantità maggiori o uguali.
+     */
+    private final Map<String, TreeMap<Integer, BitSet>> indiceQuantita;
 
-    private final Set<Aula> aule;
+    // Lock che protegge idAule, aulePerId e gli indici
+    private final ReentrantReadWriteLock lock;
+
+    // Registro su cui vengono scritte le modifiche, null se il gestore non è
+    // persistente
+    private volatile RegistroOperazioni registro;
 
     /**
-     * Crea un gestore vuoto.
+     * Numero di risultati di cercaAuleLibere memorizzati nella cache di un
+     * gestore creato con il costruttore senza parametri.
+     */
+    public static final int DIMENSIONE_CACHE_PREDEFINITA = 1024;
+
+    // Cache dei risultati di cercaAuleLibere, null se disattivata
+    private final CacheAuleLibere cache;
+
+    // Metriche delle ricerche, degli inserimenti in blocco e delle aule
+    // gestite
+    private final Metriche metriche;
+
+    /**
+     * Crea un gestore vuoto, con una cache di
+     * {@link #DIMENSIONE_CACHE_PREDEFINITA} risultati di cercaAuleLibere.
      */
     public GestoreAule() {
-        this.aule = new HashSet<Aula>();
+        this(DIMENSIONE_CACHE_PREDEFINITA);
+    }
+
+    /**
+     * Crea un gestore vuoto con una cache dei risultati di cercaAuleLibere
+     * della dimensione data.
+     * 
+     * @param dimensioneCache
+     *                            il numero massimo di risultati memorizzati,
+     *                            0 per non usare la cache
+     * @throws IllegalArgumentException
+     *                                      se la dimensione è negativa
+     */
+    public GestoreAule(int dimensioneCache) {
+        this(dimensioneCache, Metriche.getGlobali());
+    }
+
+    /**
+     * Crea un gestore vuoto con una cache dei risultati di cercaAuleLibere
+     * della dimensione data, che registra le proprie operazioni in metriche
+     * date invece che in quelle globali. Anche le aule aggiunte al gestore
+     * registrano addPrenotazione e isFree in queste metriche.
+     * 
+     * @param dimensioneCache
+     *                            il numero massimo di risultati memorizzati,
+     *                            0 per non usare la cache
+     * @param metriche
+     *                            le metriche in cui registrare le operazioni
+     * @throws IllegalArgumentException
+     *                                      se la dimensione è negativa
+     * @throws NullPointerException
+     *                                      se le metriche sono nulle
+     */
+    public GestoreAule(int dimensioneCache, Metriche metriche) {
+        if(dimensioneCache < 0) throw new IllegalArgumentException("La dimensione della cache è negativa");
+        if(metriche == null) throw new NullPointerException("Le metriche sono null");
+        this.metriche = metriche;
+        this.cache = dimensioneCache == 0 ? null : new CacheAuleLibere(dimensioneCache);
+        this.idAule = new HashMap<Aula, Integer>();
+        this.aulePerId = new ArrayList<Aula>();
+        this.indiceFacilities = new HashMap<String, BitSet>();
+        this.indiceQuantita = new HashMap<String, TreeMap<Integer, BitSet>>();
+        this.lock = new ReentrantReadWriteLock();
     }
 
     /**
@@ -32,14 +143,246 @@ public class GestoreAule {
      */
     public boolean addAula(Aula a) {
         if(a == null) throw new NullPointerException("L'aula da aggiungere è null");
-        return aule.add(a);
+        // Con un registro l'aula viene scritta su disco prima di diventare
+        // visibile nel gestore. Il registro prende il lock dell'aula, per cui
+        // va chiamato prima di prendere quello del gestore; un'aula già
+        // presente non viene scritta una seconda volta
+        RegistroOperazioni r = registro;
+        if(r != null) r.aulaAggiunta(a);
+        lock.writeLock().lock();
+        try {
+            if(idAule.containsKey(a)) return false;
+            int id = aulePerId.size();
+            idAule.put(a, id);
+            aulePerId.add(a);
+            a.setMetriche(metriche);
+            // L'ascoltatore va registrato prima di leggere le facilities: una
+            // facility aggiunta in concorrenza viene così vista almeno una volta
+            a.addListener(this);
+            for(Facility f:a.getFacilities()) indicizza(id, f);
+            // La nuova aula può comparire in qualsiasi risultato
+            if(cache != null) cache.svuota();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    /*
+     * Le metriche in cui il gestore registra le proprie operazioni. Le usa
+     * ServerAule per esportarle.
+     */
+    Metriche getMetriche() {
+        return metriche;
+    }
+
+    /*
+     * Collega il gestore a un registro: da questo momento le aule aggiunte
+     * vengono scritte nel registro. Viene chiamato da RegistroOperazioni dopo
+     * aver ripristinato il gestore.
+     */
+    void setRegistro(RegistroOperazioni registro) {
+        this.registro = registro;
+    }
+
+    /*
+     * Restituisce, in una nuova lista, le aule gestite in ordine di
+     * identificativo.
+     */
+    List<Aula> listaAule() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<Aula>(aulePerId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Restituisce l'aula gestita con il nome dato, oppure null se non c'è.
+     */
+    Aula aulaDiNome(String nome) {
+        lock.readLock().lock();
+        try {
+            // Le aule sono uguali se hanno lo stesso nome
+            Integer id = idAule.get(new Aula(nome, ""));
+            return id == null ? null : aulePerId.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return la cache dei risultati di cercaAuleLibere, con i suoi contatori,
+     *         oppure null se il gestore non usa la cache
+     */
+    public CacheAuleLibere getCache() {
+        return cache;
     }
 
     /**
-     * @return the aule
+     * @return una copia dell'insieme delle aule gestite
      */
     public Set<Aula> getAule() {
-        return aule;
+        lock.readLock().lock();
+        try {
+            return new HashSet<Aula>(idAule.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Aggiorna l'indice delle facilities quando un'aula gestita ne acquisisce
+     * una nuova.
+     */
+    @Override
+    public void facilityAggiunta(Aula a, Facility f) {
+        lock.writeLock().lock();
+        try {
+            Integer id = idAule.get(a);
+            if(id != null) {
+                indicizza(id, f);
+                if(cache != null) cache.invalidaFacility(f.getCodice());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Le notifiche sulle prenotazioni servono solo a invalidare la cache.
+     * Arrivano tenendo il lock dell'aula, per cui non prendono quello del
+     * gestore ma solo quello, interno, della cache.
+     */
+    @Override
+    public void prenotazioneAggiunta(Aula a, Prenotazione p) {
+        if(cache != null) cache.invalida(p.getCompactTimeSlot().getStartMillis(),
+                p.getCompactTimeSlot().getStopMillis());
+    }
+
+    @Override
+    public void prenotazioneRimossa(Aula a, Prenotazione p) {
+        prenotazioneAggiunta(a, p);
+    }
+
+    @Override
+    public void prenotazioniRimosseFinoA(Aula a, long istante, long inizio, long fine) {
+        if(cache != null) cache.invalida(inizio, fine);
+    }
+
+    @Override
+    public void prenotazioneRicorrenteAggiunta(Aula a, PrenotazioneRicorrente r) {
+        if(cache != null) cache.invalida(r.getInizioMillis(), r.getFineMillis());
+    }
+
+    @Override
+    public void prenotazioneRicorrenteRimossa(Aula a, PrenotazioneRicorrente r) {
+        prenotazioneRicorrenteAggiunta(a, r);
+    }
+
+    private void indicizza(int id, Facility f) {
+        BitSet aule = indiceFacilities.get(f.getCodice());
+        if(aule == null) {
+            aule = new BitSet();
+            indiceFacilities.put(f.getCodice(), aule);
+        }
+        aule.set(id);
+        if(f instanceof QuantitativeFacility) {
+            int quantita = ((QuantitativeFacility) f).getQuantity();
+            TreeMap<Integer, BitSet> perQuantita = indiceQuantita.get(f.getCodice());
+            if(perQuantita == null) {
+                perQuantita = new TreeMap<Integer, BitSet>();
+                indiceQuantita.put(f.getCodice(), perQuantita);
+            }
+            BitSet conQuantita = perQuantita.get(quantita);
+            if(conQuantita == null) {
+                conQuantita = new BitSet();
+                perQuantita.put(quantita, conQuantita);
+            }
+            conQuantita.set(id);
+        }
+    }
+
+    /*
+     * Restituisce l'insieme degli identificativi delle aule che hanno la
+     * quantitative facility di codice dato con quantità maggiore o uguale a
+     * quella indicata.
+     */
+    private BitSet auleConAlmeno(String codice, int quantita) {
+        BitSet risultato = new BitSet();
+        TreeMap<Integer, BitSet> perQuantita = indiceQuantita.get(codice);
+        if(perQuantita == null) return risultato;
+        for(BitSet aule:perQuantita.tailMap(quantita, true).values()) risultato.or(aule);
+        return risultato;
+    }
+
+    /**
+     * Cerca tutte le aule che hanno una quantitative facility con un certo
+     * codice e con quantità almeno pari a quella indicata, ad esempio tutte le
+     * aule con almeno 100 "POSTI".
+     *
+     * @param codice
+     *                     il codice della quantitative facility
+     * @param quantita
+     *                     la quantità minima richiesta
+     * @return l'insieme delle aule gestite che soddisfano la richiesta,
+     *         eventualmente vuoto
+     * @throws NullPointerException
+     *                                  se il codice passato è nullo
+     */
+    public Set<Aula> cercaAuleConAlmeno(String codice, int quantita) {
+        if(codice == null) throw new NullPointerException("Il codice della facility è null");
+        lock.readLock().lock();
+        try {
+            Set<Aula> risultato = new HashSet<Aula>();
+            BitSet aule = auleConAlmeno(codice, quantita);
+            for(int id = aule.nextSetBit(0); id >= 0; id = aule.nextSetBit(id + 1)) risultato.add(aulePerId.get(id));
+            return risultato;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Restituisce l'insieme degli identificativi delle aule che possiedono
+     * tutti i codici delle facilities richieste, calcolato come AND dei BitSet
+     * dell'indice; per le quantitative facility si usano solo le aule con
+     * quantità sufficiente. Il risultato è un sovrainsieme delle aule che
+     * soddisfano la richiesta, da confermare con Aula.satisfiesFacilities. Il
+     * BitSet restituito è una copia e può essere modificato.
+     */
+    private BitSet auleCandidate(Set<Facility> requestedFacilities) {
+        BitSet candidate = new BitSet(aulePerId.size());
+        candidate.set(0, aulePerId.size());
+        for(Facility f:requestedFacilities) {
+            BitSet aule;
+            if(f instanceof QuantitativeFacility) aule = auleConAlmeno(f.getCodice(),
+                    ((QuantitativeFacility) f).getQuantity());
+            else aule = indiceFacilities.get(f.getCodice());
+            // Nessuna aula ha questa facility
+            if(aule == null) return new BitSet();
+            candidate.and(aule);
+            if(candidate.isEmpty()) break;
+        }
+        return candidate;
+    }
+
+    /*
+     * Restituisce, in una nuova lista, le aule corrispondenti ad
+     * auleCandidate, leggendo gli indici sotto il lock in lettura del gestore.
+     */
+    private List<Aula> listaCandidate(Set<Facility> requestedFacilities) {
+        lock.readLock().lock();
+        try {
+            BitSet candidate = auleCandidate(requestedFacilities);
+            List<Aula> lista = new ArrayList<Aula>(candidate.cardinality());
+            for(int id = candidate.nextSetBit(0); id >= 0; id = candidate.nextSetBit(id + 1))
+                lista.add(aulePerId.get(id));
+            return lista;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -53,6 +396,10 @@ public class GestoreAule {
      *                                il time slot in cui un'aula deve essere
      *                                libera
      * 
+     * Se il gestore usa la cache (vedi {@link #getCache()}) e la stessa
+     * ricerca è già stata fatta senza che nel frattempo cambiasse qualcosa che
+     * ne può modificare il risultato, il risultato viene preso dalla cache.
+     * 
      * @return l'insieme di tutte le aule gestite da questo gestore che
      *         soddisfano tutte le facilities richieste e sono libere nel time
      *         slot indicato. Se non ci sono aule che soddisfano i requisiti
@@ -65,11 +412,452 @@ public class GestoreAule {
             TimeSlot ts) {
         if(requestedFacilities == null || ts == null) throw new NullPointerException("Una delle informazioni passate " +
                 "per cercare aule libere è null");
+        return cerca(requestedFacilities, ts, null, 0);
+    }
+
+    /**
+     * Cerca tutte le aule che soddisfano un certo insieme di facilities e che
+     * siano libere in un time slot specificato, come
+     * {@link #cercaAuleLibere(Set, TimeSlot)}, controllando le aule candidate
+     * in parallelo. Le aule vengono divise ricorsivamente in due metà, come
+     * task fork/join eseguiti nel pool dato, finché non ne restano al più
+     * {@code soglia}, che vengono controllate in sequenza. Ogni task
+     * restituisce la propria lista di aule libere e le liste vengono
+     * concatenate risalendo, per cui i thread non condividono nessun insieme.
+     * Il risultato è lo stesso della ricerca sequenziale.
+     * 
+     * @param requestedFacilities
+     *                                insieme di facilities richieste che
+     *                                un'aula deve soddisfare
+     * @param ts
+     *                                il time slot in cui un'aula deve essere
+     *                                libera
+     * @param pool
+     *                                il pool in cui eseguire i task
+     * @param soglia
+     *                                numero massimo di aule controllate in
+     *                                sequenza da un task
+     * @return l'insieme di tutte le aule gestite da questo gestore che
+     *         soddisfano tutte le facilities richieste e sono libere nel time
+     *         slot indicato, eventualmente vuoto
+     * @throws NullPointerException
+     *                                      se una qualsiasi delle informazioni
+     *                                      passate è nulla
+     * @throws IllegalArgumentException
+     *                                      se la soglia non è positiva
+     */
+    public Set<Aula> cercaAuleLibere(Set<Facility> requestedFacilities, TimeSlot ts, ForkJoinPool pool, int soglia) {
+        if(requestedFacilities == null || ts == null || pool == null) throw new NullPointerException("Una delle "
+                + "informazioni passate per cercare aule libere è null");
+        if(soglia <= 0) throw new IllegalArgumentException("La soglia deve essere positiva");
+        return cerca(requestedFacilities, ts, pool, soglia);
+    }
+
+    /*
+     * Ricerca comune alle due versioni di cercaAuleLibere, sequenziale se il
+     * pool è null.
+     */
+    private Set<Aula> cerca(Set<Facility> requestedFacilities, TimeSlot ts, ForkJoinPool pool, int soglia) {
+        long t0 = System.nanoTime();
+        CacheAuleLibere.Chiave chiave = cache == null ? null : CacheAuleLibere.chiave(requestedFacilities, ts);
+        CacheAuleLibere.Calcolo calcolo = null;
+        if(chiave != null) {
+            Set<Aula> memorizzato = cache.cerca(chiave);
+            if(memorizzato != null) {
+                metriche.cercaAuleLibere(t0, 0);
+                return memorizzato;
+            }
+            // Va registrato prima di leggere le aule: le modifiche successive
+            // annullano la memorizzazione del risultato
+            calcolo = cache.inizia(chiave);
+        }
         HashSet<Aula> auleDisponibili = new HashSet<>();
-        for(Aula a:aule) {
-            if(a.satisfiesFacilities(requestedFacilities) && a.isFree(ts)) auleDisponibili.add(a);
+        boolean concluso = false;
+        try {
+            // Il filtro sulle facilities si fa sugli indici, prima di guardare
+            // le prenotazioni; satisfiesFacilities conferma il tipo delle
+            // facilities solo per le poche aule candidate. isFree prende il
+            // lock di ciascuna aula, per cui viene chiamato dopo aver
+            // rilasciato quello del gestore
+            List<Aula> candidate = listaCandidate(requestedFacilities);
+            // La richiesta viene tradotta in identificativi una sola volta
+            RegistroFacilities.Richiesta tradotta = RegistroFacilities.getGlobale().richiesta(requestedFacilities);
+            if(pool == null || candidate.size() <= soglia) {
+                for(Aula a:candidate) {
+                    if(a.satisfiesFacilities(requestedFacilities, tradotta) && a.isFree(ts)) auleDisponibili.add(a);
+                }
+            } else {
+                // I calendari del time slot calcolano i millisecondi alla
+                // prima richiesta: li si fa calcolare qui, così che i task
+                // li leggano soltanto
+                ts.getStart().getTimeInMillis();
+                ts.getStop().getTimeInMillis();
+                auleDisponibili.addAll(pool.invoke(new RicercaParallela(candidate.toArray(new Aula[0]), 0,
+                        candidate.size(), soglia, requestedFacilities, tradotta, ts)));
+            }
+            concluso = true;
+            metriche.cercaAuleLibere(t0, candidate.size());
+        } finally {
+            if(calcolo != null) cache.concludi(calcolo, concluso ? auleDisponibili : null);
         }
         return auleDisponibili;
     }
 
+    /*
+     * Task fork/join che controlla le aule candidate comprese fra da
+     * (incluso) e a (escluso) e restituisce, in una lista propria, quelle che
+     * soddisfano le facilities e sono libere.
+     */
+    private static final class RicercaParallela extends RecursiveTask<List<Aula>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Aula[] candidate;
+        private final int da;
+        private final int a;
+        private final int soglia;
+        private final Set<Facility> requestedFacilities;
+        private final RegistroFacilities.Richiesta tradotta;
+        private final TimeSlot ts;
+
+        RicercaParallela(Aula[] candidate, int da, int a, int soglia, Set<Facility> requestedFacilities,
+                RegistroFacilities.Richiesta tradotta, TimeSlot ts) {
+            this.candidate = candidate;
+            this.da = da;
+            this.a = a;
+            this.soglia = soglia;
+            this.requestedFacilities = requestedFacilities;
+            this.tradotta = tradotta;
+            this.ts = ts;
+        }
+
+        @Override
+        protected List<Aula> compute() {
+            if(a - da <= soglia) {
+                List<Aula> libere = new ArrayList<Aula>();
+                for(int i = da; i < a; i++)
+                    if(candidate[i].satisfiesFacilities(requestedFacilities, tradotta) && candidate[i].isFree(ts))
+                        libere.add(candidate[i]);
+                return libere;
+            }
+            int meta = (da + a) >>> 1;
+            RicercaParallela sinistra = new RicercaParallela(candidate, da, meta, soglia, requestedFacilities, tradotta, ts);
+            sinistra.fork();
+            List<Aula> libere = new RicercaParallela(candidate, meta, a, soglia, requestedFacilities, tradotta, ts).compute();
+            libere.addAll(sinistra.join());
+            return libere;
+        }
+    }
+
+    /*
+     * Aula candidata per una finestra d'esame, con i suoi posti. Sono ordinate
+     * per posti decrescenti e poi per aula.
+     */
+    private static final class AulaConPosti implements Comparable<AulaConPosti> {
+        final Aula aula;
+        final int posti;
+
+        AulaConPosti(Aula aula, int posti) {
+            this.aula = aula;
+            this.posti = posti;
+        }
+
+        @Override
+        public int compareTo(AulaConPosti o) {
+            int cmp = Integer.compare(o.posti, posti);
+            return cmp != 0 ? cmp : aula.compareTo(o.aula);
+        }
+    }
+
+    /*
+     * Evento della scansione di cercaFinestreEsame: in un certo istante
+     * un'aula smette (inizio == true) o torna (inizio == false) a poter
+     * ospitare una finestra che inizia in quell'istante.
+     */
+    private static final class Evento {
+        final long istante;
+        final AulaConPosti aula;
+        final boolean inizio;
+
+        Evento(long istante, AulaConPosti aula, boolean inizio) {
+            this.istante = istante;
+            this.aula = aula;
+            this.inizio = inizio;
+        }
+    }
+
+    /**
+     * Cerca le prime finestre, all'interno di un intervallo di tempo, in cui
+     * al massimo un certo numero di aule sono libere contemporaneamente e
+     * offrono insieme almeno un certo numero di posti, ad esempio per un
+     * esame scritto. Sono considerate solo le aule che soddisfano le
+     * facilities richieste; i posti di un'aula sono la quantità della sua
+     * quantitative facility con il codice indicato.
+     * 
+     * Per ogni aula le prenotazioni nell'intervallo vengono trasformate negli
+     * intervalli di inizi vietati per una finestra della durata richiesta
+     * (quelli in cui la finestra si sovrapporrebbe alla prenotazione secondo
+     * {@link TimeSlot#overlapsWith(TimeSlot)}), e questi vengono fusi. Gli
+     * estremi di tutti gli intervalli vietati, ordinati, vengono poi scanditi
+     * una sola volta (sweep line) tenendo l'insieme delle aule libere ordinato
+     * per posti: in ogni istante in cui le aule libere con più posti bastano
+     * viene trovata una finestra. Le finestre restituite non si sovrappongono
+     * fra loro: dopo una finestra la ricerca riprende dalla sua fine.
+     * 
+     * Le aule di ogni finestra sono il minimo numero di aule, scelte fra
+     * quelle libere con più posti, che raggiunge i posti richiesti. Il
+     * risultato fotografa le prenotazioni al momento della ricerca.
+     * 
+     * @param requestedFacilities
+     *                                insieme di facilities richieste che ogni
+     *                                aula deve soddisfare
+     * @param codicePosti
+     *                                codice della quantitative facility che
+     *                                rappresenta i posti, ad esempio "POSTI"
+     * @param posti
+     *                                numero complessivo di posti richiesti
+     * @param maxAule
+     *                                numero massimo di aule di una finestra
+     * @param intervallo
+     *                                l'intervallo di tempo che deve contenere
+     *                                le finestre
+     * @param durata
+     *                                la durata di ogni finestra
+     * @param maxFinestre
+     *                                numero massimo di finestre da restituire
+     * @return le prime finestre trovate, in ordine di inizio, al massimo
+     *         maxFinestre; la lista è vuota se non ce ne sono
+     * @throws NullPointerException
+     *                                      se una qualsiasi delle informazioni
+     *                                      passate è nulla
+     * @throws IllegalArgumentException
+     *                                      se posti, maxAule, durata o
+     *                                      maxFinestre non sono positivi
+     */
+    public List<FinestraEsame> cercaFinestreEsame(Set<Facility> requestedFacilities, String codicePosti, int posti,
+            int maxAule, TimeSlot intervallo, Duration durata, int maxFinestre) {
+        if(requestedFacilities == null || codicePosti == null || intervallo == null || durata == null)
+            throw new NullPointerException("Una delle informazioni passate per cercare finestre d'esame è null");
+        if(posti <= 0 || maxAule <= 0 || durata.isNegative() || durata.isZero() || maxFinestre <= 0)
+            throw new IllegalArgumentException("Posti, numero di aule, durata e numero di finestre devono essere"
+                    + " positivi");
+        long d = durata.toMillis();
+        long da = intervallo.getStart().getTimeInMillis();
+        // Ultimo inizio possibile perché la finestra resti nell'intervallo
+        long ultimoInizio = intervallo.getStop().getTimeInMillis() - d;
+        List<FinestraEsame> finestre = new ArrayList<FinestraEsame>();
+        if(ultimoInizio < da) return finestre;
+        // Una finestra che inizia in t si sovrappone a una prenotazione [s, e)
+        // se l'intersezione dura almeno soglia millisecondi, cioè per t in
+        // [s - d + soglia, e - soglia]. Come in Aula.findFirstFreeSlot la
+        // finestra può ripartire solo da e - tolleranza, così che gli inizi
+        // trovati restino a minuti interi se lo sono le prenotazioni
+        long tolleranza = TimeSlot.MINUTES_OF_TOLERANCE_FOR_OVERLAPPING * 60000L;
+        long soglia = tolleranza + 60000L;
+        List<Evento> eventi = new ArrayList<Evento>();
+        TreeSet<AulaConPosti> libere = new TreeSet<AulaConPosti>();
+        RegistroFacilities.Richiesta tradotta = RegistroFacilities.getGlobale().richiesta(requestedFacilities);
+        for(Aula a:listaCandidate(requestedFacilities)) {
+            if(!a.satisfiesFacilities(requestedFacilities, tradotta)) continue;
+            int postiAula = 0;
+            for(Facility f:a.getFacilities())
+                if(f instanceof QuantitativeFacility && f.getCodice().equals(codicePosti))
+                    postiAula = ((QuantitativeFacility) f).getQuantity();
+            if(postiAula <= 0) continue;
+            AulaConPosti aula = new AulaConPosti(a, postiAula);
+            libere.add(aula);
+            // Intervalli vietati [inizio, fine), già ordinati per inizio:
+            // quelli che si sovrappongono vengono fusi
+            long[] occupati = a.intervalliFra(da, ultimoInizio + d);
+            long inizioFuso = 0;
+            long fineFusa = Long.MIN_VALUE;
+            for(int i = 0; i < occupati.length; i += 2) {
+                // Una prenotazione più breve della soglia, o una finestra più
+                // breve della soglia, non possono sovrapporsi a niente
+                if(occupati[i + 1] - occupati[i] < soglia || d < soglia) continue;
+                long inizio = Math.max(occupati[i] - d + soglia, da);
+                long fine = occupati[i + 1] - tolleranza;
+                if(inizio >= fine) continue;
+                if(inizio <= fineFusa) fineFusa = Math.max(fineFusa, fine);
+                else {
+                    if(fineFusa != Long.MIN_VALUE) {
+                        eventi.add(new Evento(inizioFuso, aula, true));
+                        eventi.add(new Evento(fineFusa, aula, false));
+                    }
+                    inizioFuso = inizio;
+                    fineFusa = fine;
+                }
+            }
+            if(fineFusa != Long.MIN_VALUE) {
+                eventi.add(new Evento(inizioFuso, aula, true));
+                eventi.add(new Evento(fineFusa, aula, false));
+            }
+        }
+        Collections.sort(eventi, new Comparator<Evento>() {
+            @Override
+            public int compare(Evento e1, Evento e2) {
+                return Long.compare(e1.istante, e2.istante);
+            }
+        });
+        // Scansione: prima di controllare un istante si applicano tutti gli
+        // eventi che avvengono in esso o prima
+        long t = da;
+        int i = 0;
+        while(t <= ultimoInizio && finestre.size() < maxFinestre) {
+            while(i < eventi.size() && eventi.get(i).istante <= t) {
+                Evento e = eventi.get(i++);
+                if(e.inizio) libere.remove(e.aula);
+                else libere.add(e.aula);
+            }
+            List<Aula> scelte = new ArrayList<Aula>();
+            int totale = 0;
+            for(AulaConPosti a:libere) {
+                if(totale >= posti || scelte.size() == maxAule) break;
+                scelte.add(a.aula);
+                totale += a.posti;
+            }
+            if(totale >= posti) {
+                finestre.add(new FinestraEsame(slot(t, t + d), scelte, totale));
+                t += d;
+            } else if(i < eventi.size()) t = eventi.get(i).istante;
+            else break;
+        }
+        return finestre;
+    }
+
+    private static TimeSlot slot(long inizio, long fine) {
+        GregorianCalendar g1 = new GregorianCalendar();
+        g1.setTimeInMillis(inizio);
+        GregorianCalendar g2 = new GregorianCalendar();
+        g2.setTimeInMillis(fine);
+        return new TimeSlot(g1, g2);
+    }
+
+    /**
+     * Cerca il primo time slot di una certa durata, a partire da un certo
+     * istante, in cui un'aula gestita è libera. Vedi
+     * {@link Aula#findFirstFreeSlot(GregorianCalendar, Duration)}.
+     * 
+     * @param a
+     *                   l'aula in cui cercare
+     * @param from
+     *                   l'istante a partire dal quale cercare
+     * @param length
+     *                   la durata del time slot cercato
+     * @return il primo time slot libero della durata richiesta che non inizia
+     *         prima di from
+     * @throws NullPointerException
+     *                                      se una qualsiasi delle informazioni
+     *                                      passate è nulla
+     * @throws IllegalArgumentException
+     *                                      se l'aula non è gestita da questo
+     *                                      gestore o la durata non è positiva
+     */
+    public TimeSlot findFirstFreeSlot(Aula a, GregorianCalendar from, Duration length) {
+        if(a == null) throw new NullPointerException("L'aula passata è null");
+        Aula gestita;
+        lock.readLock().lock();
+        try {
+            Integer id = idAule.get(a);
+            if(id == null) throw new IllegalArgumentException("L'aula " + a.getNome()
+                    + " non è gestita da questo gestore");
+            gestita = aulePerId.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return gestita.findFirstFreeSlot(from, length);
+    }
+
+    /**
+     * Inserisce in blocco un insieme di prenotazioni, ad esempio quelle di un
+     * orario delle lezioni, con semantica tutto-o-niente: se nessuna
+     * prenotazione è in conflitto vengono inserite tutte, altrimenti non ne
+     * viene inserita nessuna e vengono restituite tutte quelle in conflitto.
+     * Una prenotazione è in conflitto se si sovrappone (secondo
+     * {@link TimeSlot#overlapsWith(TimeSlot)}) a una prenotazione già
+     * presente nella sua aula oppure a un'altra prenotazione dello stesso
+     * blocco nella stessa aula.
+     * 
+     * Le prenotazioni vengono raggruppate per aula e ordinate, e ogni gruppo
+     * viene confrontato con le prenotazioni esistenti dell'aula in un'unica
+     * scansione. Vengono inserite delle copie che si riferiscono alle aule di
+     * questo gestore, anche se l'aula di una prenotazione passata è un altro
+     * oggetto con lo stesso nome. Durante il controllo e l'inserimento tutte le aule coinvolte
+     * sono bloccate, per cui nessuna prenotazione concorrente può inserirsi
+     * fra i due passi.
+     * 
+     * @param richieste
+     *                      le prenotazioni da inserire, relative ad aule
+     *                      gestite da questo gestore
+     * @return la lista, ordinata per aula e per time slot, delle prenotazioni
+     *         in conflitto; se è vuota tutte le prenotazioni sono state
+     *         inserite
+     * @throws NullPointerException
+     *                                      se la collezione o una delle
+     *                                      prenotazioni passate è nulla
+     * @throws IllegalArgumentException
+     *                                      se una delle prenotazioni riguarda
+     *                                      un'aula non gestita da questo
+     *                                      gestore
+     */
+    public List<Prenotazione> addPrenotazioniBatch(Collection<Prenotazione> richieste) {
+        if(richieste == null) throw new NullPointerException("La collezione di prenotazioni è null");
+        // Raggruppa per aula; l'ordine delle aule è anche l'ordine in cui
+        // vengono presi i loro lock, per evitare stalli fra blocchi concorrenti
+        TreeMap<Aula, List<Prenotazione>> perAula = new TreeMap<Aula, List<Prenotazione>>();
+        lock.readLock().lock();
+        try {
+            for(Prenotazione p:richieste) {
+                if(p == null) throw new NullPointerException("Una delle prenotazioni è null");
+                Integer id = idAule.get(p.getAula());
+                if(id == null) throw new IllegalArgumentException("L'aula " + p.getAula().getNome()
+                        + " non è gestita da questo gestore");
+                Aula a = aulePerId.get(id);
+                List<Prenotazione> gruppo = perAula.get(a);
+                if(gruppo == null) {
+                    gruppo = new ArrayList<Prenotazione>();
+                    perAula.put(a, gruppo);
+                }
+                gruppo.add(Prenotazione.of(a, p.getCompactTimeSlot(), p.getDocente(), p.getMotivo()));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Prenotazione> conflitti = new ArrayList<Prenotazione>();
+        List<Lock> bloccati = new ArrayList<Lock>();
+        try {
+            for(Map.Entry<Aula, List<Prenotazione>> gruppo:perAula.entrySet()) {
+                Lock l = gruppo.getKey().getLock().writeLock();
+                l.lock();
+                bloccati.add(l);
+                Collections.sort(gruppo.getValue());
+                conflitti.addAll(gruppo.getKey().conflitti(gruppo.getValue()));
+            }
+            if(conflitti.isEmpty()) {
+                // Con un registro le prenotazioni del blocco vengono scritte
+                // in un solo record, che su disco c'è tutto o per niente
+                RegistroOperazioni r = registro;
+                if(r != null) r.apriBlocco();
+                try {
+                    for(Map.Entry<Aula, List<Prenotazione>> gruppo:perAula.entrySet())
+                        for(Prenotazione p:gruppo.getValue()) gruppo.getKey().inserisci(p);
+                    if(r != null) r.chiudiBlocco();
+                    for(Aula a:perAula.keySet()) a.confermaModifiche();
+                } catch(RuntimeException e) {
+                    // Tutto o niente anche quando la conferma fallisce: le
+                    // prenotazioni inserite vengono tolte prima di
+                    // rilasciare i lock
+                    for(Map.Entry<Aula, List<Prenotazione>> gruppo:perAula.entrySet())
+                        for(Prenotazione p:gruppo.getValue()) gruppo.getKey().togli(p);
+                    throw e;
+                } finally {
+                    if(r != null) r.scartaBlocco();
+                }
+            }
+        } finally {
+            for(int i = bloccati.size() - 1; i >= 0; i--) bloccati.get(i).unlock();
+        }
+        metriche.prenotazioniInBlocco(conflitti.isEmpty() ? richieste.size() : 0, conflitti.size());
+        return conflitti;
+    }
+
 }
@@ -5,9 +5,15 @@ package it.unicam.cs.asdl2122.es5;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 
@@ -125,4 +131,627 @@ class GestoreAuleTest {
         assertEquals(ris,g.cercaAuleLibere(requestedFacilities, requestedTimeSlot));
     }
 
+    @Test
+    final void testCercaAuleLibereFacilityAggiuntaDopo() {
+        GestoreAule g = new GestoreAule();
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        a.addFacility(new PresenceFacility("HDMI", ""));
+        Aula b = new Aula("LB1", "Polo Lodovici Edificio B");
+        assertTrue(g.addAula(a));
+        assertTrue(g.addAula(b));
+        TimeSlot ts = new TimeSlot(new GregorianCalendar(2019, 10, 4, 11, 0),
+                new GregorianCalendar(2019, 10, 4, 13, 0));
+        Set<Facility> requestedFacilities = new HashSet<Facility>();
+        // L'insieme vuoto di facilities è soddisfatto da tutte le aule
+        Set<Aula> ris = new HashSet<Aula>();
+        ris.add(a);
+        ris.add(b);
+        assertEquals(ris, g.cercaAuleLibere(requestedFacilities, ts));
+        requestedFacilities.add(new PresenceFacility("HDMI", ""));
+        ris.remove(b);
+        assertEquals(ris, g.cercaAuleLibere(requestedFacilities, ts));
+        // La facility aggiunta dopo l'inserimento nel gestore deve essere
+        // vista dalla ricerca
+        assertTrue(b.addFacility(new PresenceFacility("HDMI", "")));
+        ris.add(b);
+        assertEquals(ris, g.cercaAuleLibere(requestedFacilities, ts));
+        requestedFacilities.add(new PresenceFacility("VGA", ""));
+        assertTrue(g.cercaAuleLibere(requestedFacilities, ts).isEmpty());
+        a.addFacility(new PresenceFacility("VGA", ""));
+        a.addPrenotazione(ts, "LT", "Lezione");
+        assertTrue(g.cercaAuleLibere(requestedFacilities, ts).isEmpty());
+    }
+
+    @Test
+    final void testCacheAuleLibere() {
+        assertThrows(IllegalArgumentException.class, () -> new GestoreAule(-1));
+        assertNull(new GestoreAule(0).getCache());
+        GestoreAule g = new GestoreAule(2);
+        CacheAuleLibere cache = g.getCache();
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        a.addFacility(new QuantitativeFacility("POSTI", "", 80));
+        Aula b = new Aula("LB1", "Polo Lodovici Edificio B");
+        b.addFacility(new QuantitativeFacility("POSTI", "", 40));
+        g.addAula(a);
+        g.addAula(b);
+        TimeSlot ts = new TimeSlot(new GregorianCalendar(2019, 10, 4, 11, 0),
+                new GregorianCalendar(2019, 10, 4, 13, 0));
+        Set<Facility> trenta = new HashSet<Facility>();
+        trenta.add(new QuantitativeFacility("POSTI", "", 30));
+        Set<Facility> cinquanta = new HashSet<Facility>();
+        cinquanta.add(new QuantitativeFacility("POSTI", "", 50));
+        assertEquals(2, g.cercaAuleLibere(trenta, ts).size());
+        assertEquals(1, cache.getMiss());
+        // Il risultato restituito è una copia
+        g.cercaAuleLibere(trenta, ts).clear();
+        assertEquals(2, g.cercaAuleLibere(trenta, ts).size());
+        assertEquals(2, cache.getHit());
+        // Insiemi uguali secondo equals ma con quantità diverse
+        assertEquals(1, g.cercaAuleLibere(cinquanta, ts).size());
+        assertEquals(2, cache.getMiss());
+        assertEquals(2, cache.getDimensione());
+        // Una prenotazione che non interseca il time slot non invalida niente
+        b.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 0),
+                new GregorianCalendar(2019, 10, 4, 11, 0)), "", "");
+        assertEquals(2, g.cercaAuleLibere(trenta, ts).size());
+        assertEquals(3, cache.getHit());
+        assertEquals(0, cache.getInvalidazioni());
+        // Una che lo interseca invalida entrambi i risultati
+        b.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 12, 0),
+                new GregorianCalendar(2019, 10, 4, 14, 0)), "", "");
+        assertEquals(2, cache.getInvalidazioni());
+        assertEquals(1, g.cercaAuleLibere(trenta, ts).size());
+        assertEquals(3, cache.getMiss());
+        // Anche la cancellazione
+        assertTrue(b.removePrenotazione(new Prenotazione(b, new TimeSlot(
+                new GregorianCalendar(2019, 10, 4, 12, 0),
+                new GregorianCalendar(2019, 10, 4, 14, 0)), "", "")));
+        assertEquals(2, g.cercaAuleLibere(trenta, ts).size());
+        assertEquals(4, cache.getMiss());
+        // Una facility con un codice richiesto
+        assertEquals(1, g.cercaAuleLibere(cinquanta, ts).size());
+        Set<Facility> hdmi = new HashSet<Facility>();
+        hdmi.add(new PresenceFacility("HDMI", ""));
+        assertTrue(g.cercaAuleLibere(hdmi, ts).isEmpty());
+        assertEquals(1, cache.getEspulsioni());
+        long invalidazioni = cache.getInvalidazioni();
+        a.addFacility(new PresenceFacility("VGA", ""));
+        assertEquals(invalidazioni, cache.getInvalidazioni());
+        b.addFacility(new PresenceFacility("HDMI", ""));
+        assertEquals(invalidazioni + 1, cache.getInvalidazioni());
+        assertEquals(1, g.cercaAuleLibere(hdmi, ts).size());
+        // Una nuova aula invalida tutto
+        Aula c = new Aula("LC1", "");
+        c.addFacility(new PresenceFacility("HDMI", ""));
+        g.addAula(c);
+        assertEquals(0, cache.getDimensione());
+        assertEquals(2, g.cercaAuleLibere(hdmi, ts).size());
+        // Una prenotazione ricorrente che interseca il time slot
+        Set<Integer> nessuna = new HashSet<Integer>();
+        c.addPrenotazioneRicorrente(new TimeSlot(
+                new GregorianCalendar(2019, 10, 4, 12, 0),
+                new GregorianCalendar(2019, 10, 4, 14, 0)), Duration.ofDays(7),
+                4, nessuna, "", "");
+        assertEquals(1, g.cercaAuleLibere(hdmi, ts).size());
+    }
+
+    @Test
+    final void testCercaAuleLibereConcorrenti() throws InterruptedException {
+        // Ricerche e prenotazioni concorrenti: alla fine la cache non deve
+        // restituire risultati superati
+        final GestoreAule g = new GestoreAule(4);
+        final Aula[] aule = new Aula[8];
+        for (int i = 0; i < aule.length; i++) {
+            aule[i] = new Aula("A" + i, "");
+            g.addAula(aule[i]);
+        }
+        final TimeSlot[] slots = new TimeSlot[6];
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = new TimeSlot(new GregorianCalendar(2019, 10, 4, 8 + i, 0),
+                    new GregorianCalendar(2019, 10, 4, 9 + i, 0));
+        final Set<Facility> nessuna = new HashSet<Facility>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int numero = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random r = new Random(numero);
+                    for (int i = 0; i < 2000; i++) {
+                        TimeSlot ts = slots[r.nextInt(slots.length)];
+                        if (numero % 2 == 0)
+                            g.cercaAuleLibere(nessuna, ts);
+                        else {
+                            Aula a = aule[r.nextInt(aule.length)];
+                            if (r.nextBoolean() && a.isFree(ts)) {
+                                try {
+                                    a.addPrenotazione(ts, "", "");
+                                } catch (IllegalArgumentException e) {
+                                    // Prenotata nel frattempo da un altro
+                                    // thread
+                                }
+                            } else
+                                a.removePrenotazione(new Prenotazione(a, ts, "", ""));
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        for (TimeSlot ts : slots) {
+            Set<Aula> attese = new HashSet<Aula>();
+            for (Aula a : aule)
+                if (a.isFree(ts))
+                    attese.add(a);
+            assertEquals(attese, g.cercaAuleLibere(nessuna, ts));
+        }
+    }
+
+    @Test
+    final void testCercaAuleLibereParallela() {
+        // Senza cache, per confrontare davvero le due ricerche
+        GestoreAule g = new GestoreAule(0);
+        Random r = new Random(19);
+        for (int i = 0; i < 500; i++) {
+            Aula a = new Aula("A" + i, "");
+            a.addFacility(new QuantitativeFacility("POSTI", "", r.nextInt(200)));
+            if (r.nextBoolean())
+                a.addFacility(new PresenceFacility("HDMI", ""));
+            for (int j = 0; j < 20; j++) {
+                TimeSlot ts = slotCasuale(r);
+                if (a.isFree(ts))
+                    a.addPrenotazione(ts, "", "");
+            }
+            g.addAula(a);
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Set<Facility> richieste = new HashSet<Facility>();
+            TimeSlot ts0 = slotCasuale(r);
+            assertThrows(NullPointerException.class,
+                    () -> g.cercaAuleLibere(richieste, ts0, null, 8));
+            assertThrows(IllegalArgumentException.class,
+                    () -> g.cercaAuleLibere(richieste, ts0, pool, 0));
+            for (int prova = 0; prova < 200; prova++) {
+                richieste.clear();
+                richieste.add(new QuantitativeFacility("POSTI", "", r.nextInt(200)));
+                if (r.nextBoolean())
+                    richieste.add(new PresenceFacility("HDMI", ""));
+                TimeSlot ts = slotCasuale(r);
+                Set<Aula> attese = g.cercaAuleLibere(richieste, ts);
+                int soglia = 1 + r.nextInt(64);
+                assertEquals(attese, g.cercaAuleLibere(richieste, ts, pool, soglia));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    final void testCercaAuleConAlmeno() {
+        GestoreAule g = new GestoreAule();
+        assertThrows(NullPointerException.class,
+                () -> g.cercaAuleConAlmeno(null, 10));
+        assertTrue(g.cercaAuleConAlmeno("POSTI", 10).isEmpty());
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        a.addFacility(new QuantitativeFacility("POSTI", "", 100));
+        Aula b = new Aula("LB1", "Polo Lodovici Edificio B");
+        b.addFacility(new QuantitativeFacility("POSTI", "", 40));
+        Aula c = new Aula("C", "Pippo");
+        c.addFacility(new PresenceFacility("HDMI", ""));
+        g.addAula(a);
+        g.addAula(b);
+        g.addAula(c);
+        Set<Aula> ris = new HashSet<Aula>();
+        ris.add(a);
+        assertEquals(ris, g.cercaAuleConAlmeno("POSTI", 41));
+        assertEquals(ris, g.cercaAuleConAlmeno("POSTI", 100));
+        ris.add(b);
+        assertEquals(ris, g.cercaAuleConAlmeno("POSTI", 40));
+        assertTrue(g.cercaAuleConAlmeno("POSTI", 101).isEmpty());
+        // Quantità aggiunta dopo l'inserimento nel gestore
+        c.addFacility(new QuantitativeFacility("POSTI", "", 200));
+        ris.add(c);
+        assertEquals(ris, g.cercaAuleConAlmeno("POSTI", 10));
+        // La ricerca di aule libere tiene conto delle quantità
+        TimeSlot ts = new TimeSlot(new GregorianCalendar(2019, 10, 4, 11, 0),
+                new GregorianCalendar(2019, 10, 4, 13, 0));
+        Set<Facility> requestedFacilities = new HashSet<Facility>();
+        requestedFacilities.add(new QuantitativeFacility("POSTI", "", 90));
+        ris.remove(b);
+        assertEquals(ris, g.cercaAuleLibere(requestedFacilities, ts));
+        requestedFacilities.add(new PresenceFacility("HDMI", ""));
+        ris.remove(a);
+        assertEquals(ris, g.cercaAuleLibere(requestedFacilities, ts));
+    }
+
+    @Test
+    final void testPrenotazioniConcorrentiAuleDiverse()
+            throws InterruptedException {
+        final GestoreAule g = new GestoreAule();
+        final int numAule = 8;
+        for (int i = 0; i < numAule; i++) {
+            Aula a = new Aula("A" + i, "Polo Lodovici");
+            a.addFacility(new PresenceFacility("HDMI", ""));
+            g.addAula(a);
+        }
+        final List<Aula> aule = new ArrayList<Aula>(g.getAule());
+        final Set<Facility> requestedFacilities = new HashSet<Facility>();
+        requestedFacilities.add(new PresenceFacility("HDMI", ""));
+        final TimeSlot ts = new TimeSlot(
+                new GregorianCalendar(2019, 10, 4, 11, 0),
+                new GregorianCalendar(2019, 10, 4, 13, 0));
+        final AtomicInteger accettate = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        // Più thread cercano aule libere e prenotano tutte lo stesso time
+        // slot: ogni aula deve essere prenotata esattamente una volta
+        for (int t = 0; t < 16; t++) {
+            Thread th = new Thread(() -> {
+                for (Aula a : aule) {
+                    if (!g.cercaAuleLibere(requestedFacilities, ts).contains(a))
+                        continue;
+                    try {
+                        a.addPrenotazione(ts, "LT", "Esame");
+                        accettate.incrementAndGet();
+                    } catch (IllegalArgumentException e) {
+                        // prenotata da un altro thread
+                    }
+                }
+            });
+            threads.add(th);
+            th.start();
+        }
+        for (Thread th : threads)
+            th.join();
+        assertEquals(numAule, accettate.get());
+        for (Aula a : aule)
+            assertEquals(1, a.getPrenotazioni().size());
+        assertTrue(g.cercaAuleLibere(requestedFacilities, ts).isEmpty());
+    }
+
+    @Test
+    final void testAddPrenotazioniBatch() {
+        GestoreAule g = new GestoreAule();
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        Aula b = new Aula("LB1", "Polo Lodovici Edificio B");
+        g.addAula(a);
+        g.addAula(b);
+        assertThrows(NullPointerException.class,
+                () -> g.addPrenotazioniBatch(null));
+        List<Prenotazione> batch = new ArrayList<Prenotazione>();
+        batch.add(null);
+        assertThrows(NullPointerException.class,
+                () -> g.addPrenotazioniBatch(batch));
+        batch.clear();
+        batch.add(new Prenotazione(new Aula("X", ""),
+                new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 0),
+                        new GregorianCalendar(2019, 10, 4, 11, 0)),
+                "LT", "Lezione"));
+        assertThrows(IllegalArgumentException.class,
+                () -> g.addPrenotazioniBatch(batch));
+        a.addPrenotazione(
+                new TimeSlot(new GregorianCalendar(2019, 10, 4, 11, 0),
+                        new GregorianCalendar(2019, 10, 4, 13, 0)),
+                "LT", "Lezione");
+        // Blocco senza conflitti, in ordine sparso: tollera 5 minuti di
+        // sovrapposizione con la prenotazione esistente
+        batch.clear();
+        Prenotazione p1 = new Prenotazione(a,
+                new TimeSlot(new GregorianCalendar(2019, 10, 4, 14, 0),
+                        new GregorianCalendar(2019, 10, 4, 16, 0)),
+                "LT", "Lezione");
+        Prenotazione p2 = new Prenotazione(a,
+                new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 0),
+                        new GregorianCalendar(2019, 10, 4, 11, 5)),
+                "LT", "Lezione");
+        Prenotazione p3 = new Prenotazione(b,
+                new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 0),
+                        new GregorianCalendar(2019, 10, 4, 11, 0)),
+                "LT", "Lezione");
+        batch.add(p1);
+        batch.add(p2);
+        batch.add(p3);
+        assertTrue(g.addPrenotazioniBatch(batch).isEmpty());
+        assertEquals(3, a.getPrenotazioni().size());
+        assertTrue(a.getPrenotazioni().contains(p1));
+        assertTrue(a.getPrenotazioni().contains(p2));
+        assertTrue(b.getPrenotazioni().contains(p3));
+        // Blocco con un conflitto con le prenotazioni esistenti e due
+        // conflitti interni al blocco: non viene inserito niente
+        batch.clear();
+        Prenotazione q1 = new Prenotazione(a,
+                new TimeSlot(new GregorianCalendar(2019, 10, 4, 12, 0),
+                        new GregorianCalendar(2019, 10, 4, 12, 30)),
+                "LT", "Ricevimento");
+        Prenotazione q2 = new Prenotazione(b,
+                new TimeSlot(new GregorianCalendar(2019, 10, 5, 9, 0),
+                        new GregorianCalendar(2019, 10, 5, 11, 0)),
+                "LT", "Lezione");
+        Prenotazione q3 = new Prenotazione(b,
+                new TimeSlot(new GregorianCalendar(2019, 10, 5, 10, 0),
+                        new GregorianCalendar(2019, 10, 5, 12, 0)),
+                "LT", "Esame");
+        Prenotazione q4 = new Prenotazione(b,
+                new TimeSlot(new GregorianCalendar(2019, 10, 5, 14, 0),
+                        new GregorianCalendar(2019, 10, 5, 16, 0)),
+                "LT", "Lezione");
+        batch.add(q4);
+        batch.add(q3);
+        batch.add(q2);
+        batch.add(q1);
+        List<Prenotazione> attesi = new ArrayList<Prenotazione>();
+        attesi.add(q1);
+        attesi.add(q2);
+        attesi.add(q3);
+        assertEquals(attesi, g.addPrenotazioniBatch(batch));
+        assertEquals(3, a.getPrenotazioni().size());
+        assertEquals(1, b.getPrenotazioni().size());
+        // Un time slot già presente è un conflitto
+        batch.clear();
+        batch.add(p3);
+        assertEquals(batch, g.addPrenotazioniBatch(batch));
+        // La prenotazione inserita si riferisce all'aula del gestore, anche
+        // se quella passata è un altro oggetto con lo stesso nome
+        batch.clear();
+        Prenotazione r1 = new Prenotazione(new Aula("LB1", ""),
+                new TimeSlot(new GregorianCalendar(2019, 10, 6, 9, 0),
+                        new GregorianCalendar(2019, 10, 6, 11, 0)),
+                "LT", "Lezione");
+        batch.add(r1);
+        assertTrue(g.addPrenotazioniBatch(batch).isEmpty());
+        assertSame(b, b.getPrenotazioni().last().getAula());
+        assertEquals("Lezione", b.getPrenotazioni().last().getMotivo());
+        // Se un'aula non conferma le modifiche (ad esempio il registro non
+        // riesce a scriverle) non viene inserito niente, neanche nelle altre
+        b.addListener(new AulaListener() {
+            @Override
+            public void facilityAggiunta(Aula x, Facility f) {
+            }
+
+            @Override
+            public void confermaModifiche(Aula x) {
+                throw new IllegalStateException("Modifica non confermata");
+            }
+        });
+        batch.clear();
+        Prenotazione s1 = new Prenotazione(a,
+                new TimeSlot(new GregorianCalendar(2019, 10, 7, 9, 0),
+                        new GregorianCalendar(2019, 10, 7, 11, 0)),
+                "LT", "Lezione");
+        batch.add(s1);
+        batch.add(q4);
+        assertThrows(IllegalStateException.class,
+                () -> g.addPrenotazioniBatch(batch));
+        assertEquals(3, a.getPrenotazioni().size());
+        assertEquals(2, b.getPrenotazioni().size());
+        assertTrue(a.isFree(s1.getTimeSlot()));
+        assertTrue(b.isFree(q4.getTimeSlot()));
+    }
+
+    @Test
+    final void testAddPrenotazioniBatchCasuale() {
+        // Confronta i conflitti trovati con quelli calcolati per forza bruta
+        Random r = new Random(7);
+        for (int prova = 0; prova < 50; prova++) {
+            GestoreAule g = new GestoreAule();
+            Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+            g.addAula(a);
+            for (int i = 0; i < 40; i++) {
+                try {
+                    a.addPrenotazione(slotCasuale(r), "LT", "Esistente");
+                } catch (IllegalArgumentException e) {
+                    // sovrapposta, non inserita
+                }
+            }
+            List<Prenotazione> esistenti = new ArrayList<Prenotazione>(
+                    a.getPrenotazioni());
+            List<Prenotazione> batch = new ArrayList<Prenotazione>();
+            for (int i = 0; i < 20; i++)
+                batch.add(new Prenotazione(a, slotCasuale(r), "LT", "Nuova"));
+            Set<Prenotazione> attesi = new HashSet<Prenotazione>();
+            for (int i = 0; i < batch.size(); i++) {
+                TimeSlot ts = batch.get(i).getTimeSlot();
+                for (Prenotazione e : esistenti)
+                    if (e.getTimeSlot().overlapsWith(ts)
+                            || e.getTimeSlot().equals(ts))
+                        attesi.add(batch.get(i));
+                for (int j = 0; j < batch.size(); j++)
+                    if (i != j && (batch.get(j).getTimeSlot().overlapsWith(ts)
+                            || batch.get(j).getTimeSlot().equals(ts)))
+                        attesi.add(batch.get(i));
+            }
+            List<Prenotazione> conflitti = g.addPrenotazioniBatch(batch);
+            assertEquals(attesi, new HashSet<Prenotazione>(conflitti));
+            if (attesi.isEmpty())
+                assertEquals(esistenti.size() + batch.size(),
+                        a.getPrenotazioni().size());
+            else
+                assertEquals(esistenti, new ArrayList<Prenotazione>(
+                        a.getPrenotazioni()));
+        }
+    }
+
+    /*
+     * Time slot casuale di 1-180 minuti nell'arco di due giornate.
+     */
+    private static TimeSlot slotCasuale(Random r) {
+        int inizio = r.nextInt(2 * 24 * 60);
+        int durata = 1 + r.nextInt(180);
+        GregorianCalendar g1 = new GregorianCalendar(2019, 10, 4, 0, 0);
+        g1.add(GregorianCalendar.MINUTE, inizio);
+        GregorianCalendar g2 = (GregorianCalendar) g1.clone();
+        g2.add(GregorianCalendar.MINUTE, durata);
+        return new TimeSlot(g1, g2);
+    }
+
+    @Test
+    final void testFindFirstFreeSlot() {
+        GestoreAule g = new GestoreAule();
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        g.addAula(a);
+        a.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 0),
+                new GregorianCalendar(2019, 10, 4, 11, 0)), "LT", "Lezione");
+        GregorianCalendar lunedi9 = new GregorianCalendar(2019, 10, 4, 9, 0);
+        assertThrows(NullPointerException.class,
+                () -> g.findFirstFreeSlot(null, lunedi9, Duration.ofHours(2)));
+        assertThrows(IllegalArgumentException.class,
+                () -> g.findFirstFreeSlot(new Aula("AB1", ""), lunedi9,
+                        Duration.ofHours(2)));
+        // L'aula viene cercata per nome fra quelle gestite
+        assertEquals(new TimeSlot(new GregorianCalendar(2019, 10, 4, 10, 55),
+                new GregorianCalendar(2019, 10, 4, 12, 55)),
+                g.findFirstFreeSlot(new Aula("LA1", ""), lunedi9,
+                        Duration.ofHours(2)));
+    }
+
+    private static TimeSlot slot(long inizio, long fine) {
+        GregorianCalendar g1 = new GregorianCalendar();
+        g1.setTimeInMillis(inizio);
+        GregorianCalendar g2 = new GregorianCalendar();
+        g2.setTimeInMillis(fine);
+        return new TimeSlot(g1, g2);
+    }
+
+    @Test
+    final void testCercaFinestreEsame() {
+        GestoreAule g = new GestoreAule();
+        Set<Facility> richieste = new HashSet<Facility>();
+        TimeSlot giorno = new TimeSlot(new GregorianCalendar(2019, 10, 4, 8, 0),
+                new GregorianCalendar(2019, 10, 4, 20, 0));
+        Duration dueOre = Duration.ofHours(2);
+        assertThrows(NullPointerException.class, () -> g.cercaFinestreEsame(
+                null, "POSTI", 100, 2, giorno, dueOre, 1));
+        assertThrows(NullPointerException.class, () -> g.cercaFinestreEsame(
+                richieste, "POSTI", 100, 2, null, dueOre, 1));
+        assertThrows(IllegalArgumentException.class, () -> g
+                .cercaFinestreEsame(richieste, "POSTI", 0, 2, giorno, dueOre, 1));
+        assertThrows(IllegalArgumentException.class, () -> g.cercaFinestreEsame(
+                richieste, "POSTI", 100, 2, giorno, Duration.ZERO, 1));
+        Aula a = new Aula("A", "");
+        a.addFacility(new QuantitativeFacility("POSTI", "", 80));
+        a.addFacility(new PresenceFacility("HDMI", ""));
+        Aula b = new Aula("B", "");
+        b.addFacility(new QuantitativeFacility("POSTI", "", 60));
+        Aula c = new Aula("C", "");
+        c.addFacility(new QuantitativeFacility("POSTI", "", 40));
+        c.addFacility(new PresenceFacility("HDMI", ""));
+        g.addAula(a);
+        g.addAula(b);
+        g.addAula(c);
+        g.addAula(new Aula("SENZAPOSTI", ""));
+        // A occupata 8-10 e 12-13, B 8-11
+        a.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 8, 0),
+                new GregorianCalendar(2019, 10, 4, 10, 0)), "LT", "Lezione");
+        a.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 12, 0),
+                new GregorianCalendar(2019, 10, 4, 13, 0)), "LT", "Lezione");
+        b.addPrenotazione(new TimeSlot(new GregorianCalendar(2019, 10, 4, 8, 0),
+                new GregorianCalendar(2019, 10, 4, 11, 0)), "LT", "Lezione");
+        // 120 posti: dalle 9.55 A e C bastano
+        List<FinestraEsame> f = g.cercaFinestreEsame(richieste, "POSTI", 120,
+                2, giorno, dueOre, 3);
+        assertEquals(3, f.size());
+        assertEquals(new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 55),
+                new GregorianCalendar(2019, 10, 4, 11, 55)),
+                f.get(0).getTimeSlot());
+        assertEquals(2, f.get(0).getAule().size());
+        assertEquals(new Aula("A", ""), f.get(0).getAule().get(0));
+        assertEquals(new Aula("C", ""), f.get(0).getAule().get(1));
+        assertEquals(120, f.get(0).getPosti());
+        // Dalle 11.55 A è di nuovo occupata e B e C non bastano: la finestra
+        // successiva inizia quando A si libera
+        assertEquals(new TimeSlot(new GregorianCalendar(2019, 10, 4, 12, 55),
+                new GregorianCalendar(2019, 10, 4, 14, 55)),
+                f.get(1).getTimeSlot());
+        // Le aule con più posti vengono scelte per prime
+        assertEquals(new Aula("A", ""), f.get(1).getAule().get(0));
+        assertEquals(new Aula("B", ""), f.get(1).getAule().get(1));
+        assertEquals(140, f.get(1).getPosti());
+        assertEquals(new TimeSlot(new GregorianCalendar(2019, 10, 4, 14, 55),
+                new GregorianCalendar(2019, 10, 4, 16, 55)),
+                f.get(2).getTimeSlot());
+        // Con una sola aula da 80 posti la finestra delle 11.55 non c'è più
+        f = g.cercaFinestreEsame(richieste, "POSTI", 80, 1, giorno, dueOre, 2);
+        assertEquals(2, f.size());
+        assertEquals(new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 55),
+                new GregorianCalendar(2019, 10, 4, 11, 55)),
+                f.get(0).getTimeSlot());
+        assertEquals(new TimeSlot(new GregorianCalendar(2019, 10, 4, 12, 55),
+                new GregorianCalendar(2019, 10, 4, 14, 55)),
+                f.get(1).getTimeSlot());
+        // Filtro sulle facilities: solo A e C hanno HDMI, e insieme hanno 120
+        // posti solo se A è libera
+        richieste.add(new PresenceFacility("HDMI", ""));
+        f = g.cercaFinestreEsame(richieste, "POSTI", 120, 3, giorno, dueOre, 10);
+        // 9.55, 12.55, 14.55 e 16.55: una finestra alle 18.55 uscirebbe dal
+        // giorno
+        assertEquals(4, f.size());
+        assertEquals(new TimeSlot(new GregorianCalendar(2019, 10, 4, 12, 55),
+                new GregorianCalendar(2019, 10, 4, 14, 55)),
+                f.get(1).getTimeSlot());
+        assertEquals(120, f.get(1).getPosti());
+        // Posti impossibili da raggiungere
+        assertTrue(g.cercaFinestreEsame(richieste, "POSTI", 1000, 3, giorno,
+                dueOre, 10).isEmpty());
+    }
+
+    @Test
+    final void testCercaFinestreEsameCasuale() {
+        // Confronto con la ricerca minuto per minuto tramite isFree
+        Random r = new Random(15);
+        long minuto = 60000L;
+        long base = new GregorianCalendar(2019, 10, 4, 0, 0).getTimeInMillis();
+        for (int prova = 0; prova < 10; prova++) {
+            GestoreAule g = new GestoreAule();
+            List<Aula> aule = new ArrayList<Aula>();
+            for (int i = 0; i < 6; i++) {
+                Aula a = new Aula("A" + i, "");
+                a.addFacility(new QuantitativeFacility("POSTI", "",
+                        10 * (1 + r.nextInt(10))));
+                for (int j = 0; j < 15; j++) {
+                    long inizio = base + r.nextInt(24 * 60) * minuto;
+                    TimeSlot ts = slot(inizio,
+                            inizio + (1 + r.nextInt(180)) * minuto);
+                    if (a.isFree(ts))
+                        a.addPrenotazione(ts, "LT", "Lezione");
+                }
+                g.addAula(a);
+                aule.add(a);
+            }
+            int posti = 50 + r.nextInt(150);
+            int maxAule = 1 + r.nextInt(3);
+            long d = (30 + r.nextInt(150)) * minuto;
+            TimeSlot giorno = slot(base, base + 24 * 60 * minuto);
+            List<FinestraEsame> trovate = g.cercaFinestreEsame(
+                    new HashSet<Facility>(), "POSTI", posti, maxAule, giorno,
+                    Duration.ofMillis(d), 5);
+            List<TimeSlot> attese = new ArrayList<TimeSlot>();
+            long t = base;
+            while (t + d <= base + 24 * 60 * minuto && attese.size() < 5) {
+                List<Integer> liberi = new ArrayList<Integer>();
+                for (Aula a : aule)
+                    if (a.isFree(slot(t, t + d)))
+                        liberi.add(((QuantitativeFacility) a.getFacilities()
+                                .iterator().next()).getQuantity());
+                liberi.sort(null);
+                int totale = 0;
+                for (int i = 0; i < maxAule && i < liberi.size(); i++)
+                    totale += liberi.get(liberi.size() - 1 - i);
+                if (totale >= posti) {
+                    attese.add(slot(t, t + d));
+                    t += d;
+                } else
+                    t += minuto;
+            }
+            assertEquals(attese.size(), trovate.size());
+            for (int i = 0; i < attese.size(); i++) {
+                assertEquals(attese.get(i), trovate.get(i).getTimeSlot());
+                assertTrue(trovate.get(i).getPosti() >= posti);
+                for (Aula a : trovate.get(i).getAule())
+                    assertTrue(a.isFree(trovate.get(i).getTimeSlot()));
+            }
+        }
+    }
+
 }
@@ -0,0 +1,628 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Un importatore di orari carica in un {@link GestoreAule} le prenotazioni
+ * lette da un file CSV, anche molto grande, senza mai tenerlo tutto in
+ * memoria. Ogni riga del file ha la forma
+ *
+ * <pre>
+ * aula;inizio;fine;docente;motivo
+ * </pre>
+ *
+ * con inizio e fine nel formato {@code yyyy-MM-dd HH:mm}, nel fuso orario di
+ * default. Il motivo è tutto ciò che segue il quarto separatore. Le righe vuote
+ * e quelle che iniziano con {@code #} vengono ignorate.
+ *
+ * L'importazione è una catena di tre stadi collegati da code limitate, per cui
+ * la memoria usata non dipende dalla dimensione del file:
+ * <ol>
+ * <li>il thread chiamante legge il file e passa blocchi di righe;</li>
+ * <li>più thread analizzano le righe, convertendo gli istanti in millisecondi
+ * senza costruire GregorianCalendar, e smistano le prenotazioni per aula;</li>
+ * <li>più thread scrittori inseriscono le prenotazioni: ogni aula è assegnata
+ * a un solo scrittore, che riceve le prenotazioni nell'ordine del file, anche
+ * se i blocchi sono stati analizzati in un altro ordine, e le inserisce a
+ * lotti con {@link GestoreAule#addPrenotazioniBatch(java.util.Collection)}.</li>
+ * </ol>
+ * Le righe non valide, relative ad aule non gestite o in conflitto con altre
+ * prenotazioni vengono scartate e contate nell'{@link Esito}. Di due righe in
+ * conflitto viene inserita quella che compare prima nel file, qualunque sia il
+ * numero di analizzatori e di scrittori: il risultato è lo stesso che si
+ * avrebbe inserendo le righe una per volta, a meno di prenotazioni inserite
+ * nelle stesse aule da altri thread durante l'importazione.
+ *
+ * @author Collettiva
+ *
+ */
+public class ImportatoreOrari {
+
+    private static final char SEPARATORE = ';';
+
+    // Righe per blocco passato dal lettore agli analizzatori
+    private static final int RIGHE_PER_BLOCCO = 1024;
+
+    // Blocchi in coda per ogni analizzatore o scrittore
+    private static final int BLOCCHI_IN_CODA = 4;
+
+    // Blocchi letti e non ancora ricevuti da tutti gli scrittori, per ogni
+    // analizzatore: limita quelli che uno scrittore tiene da parte mentre
+    // aspetta un blocco precedente, ancora in mano a un analizzatore
+    private static final int BLOCCHI_IN_VOLO = 2 * BLOCCHI_IN_CODA;
+
+    // Prenotazioni accumulate da uno scrittore prima di inserirle
+    private static final int DIM_LOTTO = 8192;
+
+    // Attesa massima su una coda piena prima di controllare gli errori
+    private static final long ATTESA_MS = 100;
+
+    // Massimo numero di stringhe distinte condivise durante un'importazione,
+    // o da un server: oltre, le stringhe nuove vengono usate così come sono
+    // lette
+    private static final int MAX_STRINGHE_CONDIVISE = 1 << 16;
+
+    // Segnale di fine dei blocchi di righe
+    private static final List<String> FINE_RIGHE = new ArrayList<String>();
+
+    // Segnale di fine delle prenotazioni per uno scrittore
+    private static final Parte FINE_PARTI = new Parte(null,
+            new ArrayList<Riga>());
+
+    private final GestoreAule gestore;
+
+    private final int numAnalizzatori;
+
+    private final int numScrittori;
+
+    /**
+     * Esito di un'importazione.
+     */
+    public static final class Esito {
+        /**
+         * Numero massimo di messaggi di errore conservati.
+         */
+        public static final int MAX_ERRORI = 100;
+
+        private final AtomicLong importate = new AtomicLong();
+
+        private final AtomicLong scartate = new AtomicLong();
+
+        private final List<String> errori = new ArrayList<String>();
+
+        private Esito() {
+        }
+
+        private void scarta(long riga, String motivo) {
+            scartate.incrementAndGet();
+            synchronized (errori) {
+                if (errori.size() < MAX_ERRORI)
+                    errori.add("riga " + riga + ": " + motivo);
+            }
+        }
+
+        /**
+         * @return il numero di prenotazioni inserite
+         */
+        public long getImportate() {
+            return importate.get();
+        }
+
+        /**
+         * @return il numero di righe scartate
+         */
+        public long getScartate() {
+            return scartate.get();
+        }
+
+        /**
+         * @return i messaggi relativi alle prime {@link #MAX_ERRORI} righe
+         *         scartate, non necessariamente in ordine di riga
+         */
+        public List<String> getErrori() {
+            synchronized (errori) {
+                return new ArrayList<String>(errori);
+            }
+        }
+    }
+
+    /*
+     * Prenotazione letta da una riga, con gli istanti in millisecondi.
+     */
+    private static final class Riga {
+        final long numero;
+        final Aula aula;
+        final long inizio;
+        final long fine;
+        final String docente;
+        final String motivo;
+
+        Riga(long numero, Aula aula, long inizio, long fine, String docente,
+                String motivo) {
+            this.numero = numero;
+            this.aula = aula;
+            this.inizio = inizio;
+            this.fine = fine;
+            this.docente = docente;
+            this.motivo = motivo;
+        }
+    }
+
+    /*
+     * Blocco di righe del file, con il suo numero d'ordine e il numero della
+     * prima riga.
+     */
+    private static final class Blocco {
+        final long sequenza;
+        final long primaRiga;
+        final List<String> righe;
+
+        // Scrittori che non hanno ancora ricevuto la loro parte del blocco
+        final AtomicInteger scrittoriMancanti;
+
+        Blocco(long sequenza, long primaRiga, List<String> righe,
+                int numScrittori) {
+            this.sequenza = sequenza;
+            this.primaRiga = primaRiga;
+            this.righe = righe;
+            this.scrittoriMancanti = new AtomicInteger(numScrittori);
+        }
+    }
+
+    /*
+     * Le prenotazioni di un blocco destinate a uno scrittore, eventualmente
+     * nessuna: ogni scrittore riceve una parte di ogni blocco, per sapere
+     * quando può passare al blocco successivo.
+     */
+    private static final class Parte {
+        final Blocco blocco;
+        final List<Riga> righe;
+
+        Parte(Blocco blocco, List<Riga> righe) {
+            this.blocco = blocco;
+            this.righe = righe;
+        }
+    }
+
+    /**
+     * Crea un importatore che usa un analizzatore e uno scrittore per ogni
+     * processore disponibile.
+     *
+     * @param gestore
+     *                    il gestore in cui importare le prenotazioni
+     * @throws NullPointerException
+     *                                  se il gestore è nullo
+     */
+    public ImportatoreOrari(GestoreAule gestore) {
+        this(gestore, Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Crea un importatore.
+     *
+     * @param gestore
+     *                            il gestore in cui importare le prenotazioni
+     * @param numAnalizzatori
+     *                            numero di thread che analizzano le righe
+     * @param numScrittori
+     *                            numero di thread che inseriscono le
+     *                            prenotazioni
+     * @throws NullPointerException
+     *                                      se il gestore è nullo
+     * @throws IllegalArgumentException
+     *                                      se il numero di analizzatori o di
+     *                                      scrittori non è positivo
+     */
+    public ImportatoreOrari(GestoreAule gestore, int numAnalizzatori,
+            int numScrittori) {
+        if (gestore == null)
+            throw new NullPointerException("Il gestore è nullo");
+        if (numAnalizzatori <= 0 || numScrittori <= 0)
+            throw new IllegalArgumentException(
+                    "Il numero di analizzatori e di scrittori deve essere positivo");
+        this.gestore = gestore;
+        this.numAnalizzatori = numAnalizzatori;
+        this.numScrittori = numScrittori;
+    }
+
+    /**
+     * Importa le prenotazioni lette da una sorgente. La sorgente non viene
+     * chiusa.
+     *
+     * @param sorgente
+     *                     la sorgente del CSV
+     * @return l'esito dell'importazione
+     * @throws NullPointerException
+     *                                  se la sorgente è nulla
+     * @throws IOException
+     *                                  se la lettura della sorgente non riesce
+     * @throws InterruptedException
+     *                                  se il thread viene interrotto durante
+     *                                  l'importazione
+     */
+    public Esito importa(Reader sorgente)
+            throws IOException, InterruptedException {
+        if (sorgente == null)
+            throw new NullPointerException("La sorgente è nulla");
+        final Esito esito = new Esito();
+        final Map<String, Aula> aule = new HashMap<String, Aula>();
+        for (Aula a : gestore.getAule())
+            aule.put(a.getNome(), a);
+        final BlockingQueue<Blocco> blocchi = new ArrayBlockingQueue<Blocco>(
+                BLOCCHI_IN_CODA * numAnalizzatori);
+        final List<BlockingQueue<Parte>> code = new ArrayList<BlockingQueue<Parte>>();
+        for (int i = 0; i < numScrittori; i++)
+            code.add(new ArrayBlockingQueue<Parte>(
+                    BLOCCHI_IN_CODA * numAnalizzatori));
+        final Semaphore inVolo = new Semaphore(
+                BLOCCHI_IN_VOLO * numAnalizzatori);
+        final AtomicInteger analizzatoriAttivi = new AtomicInteger(
+                numAnalizzatori);
+        final ConcurrentHashMap<String, String> stringhe = new ConcurrentHashMap<String, String>();
+        ExecutorService esecutore = Executors
+                .newFixedThreadPool(numAnalizzatori + numScrittori);
+        List<Future<Void>> lavori = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < numAnalizzatori; i++)
+                lavori.add(esecutore.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        analizza(blocchi, code, aule, stringhe, esito,
+                                analizzatoriAttivi);
+                        return null;
+                    }
+                }));
+            for (int i = 0; i < numScrittori; i++) {
+                final BlockingQueue<Parte> coda = code.get(i);
+                lavori.add(esecutore.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        scrivi(coda, inVolo, esito);
+                        return null;
+                    }
+                }));
+            }
+            leggi(new BufferedReader(sorgente), blocchi, inVolo, lavori);
+            for (int i = 0; i < numAnalizzatori; i++)
+                metti(blocchi, new Blocco(-1, 0, FINE_RIGHE, 0), lavori);
+            attendiTutti(lavori);
+        } catch (ExecutionException e) {
+            Throwable causa = e.getCause();
+            if (causa instanceof RuntimeException)
+                throw (RuntimeException) causa;
+            if (causa instanceof Error)
+                throw (Error) causa;
+            throw new IllegalStateException(causa);
+        } finally {
+            // In caso di errore sblocca i thread fermi sulle code
+            esecutore.shutdownNow();
+        }
+        return esito;
+    }
+
+    /*
+     * Primo stadio: legge le righe e le passa agli analizzatori a blocchi,
+     * numerati nell'ordine del file. Ogni blocco occupa un permesso di
+     * inVolo finché tutti gli scrittori non l'hanno ricevuto.
+     */
+    private void leggi(BufferedReader in, BlockingQueue<Blocco> blocchi,
+            Semaphore inVolo, List<Future<Void>> lavori)
+            throws IOException, InterruptedException, ExecutionException {
+        long numero = 0;
+        long sequenza = 0;
+        List<String> righe = new ArrayList<String>(RIGHE_PER_BLOCCO);
+        String riga;
+        while ((riga = in.readLine()) != null) {
+            righe.add(riga);
+            if (righe.size() == RIGHE_PER_BLOCCO) {
+                acquisisci(inVolo, lavori);
+                metti(blocchi, new Blocco(sequenza++, numero + 1, righe,
+                        numScrittori), lavori);
+                numero += righe.size();
+                righe = new ArrayList<String>(RIGHE_PER_BLOCCO);
+            }
+        }
+        if (!righe.isEmpty()) {
+            acquisisci(inVolo, lavori);
+            metti(blocchi, new Blocco(sequenza, numero + 1, righe,
+                    numScrittori), lavori);
+        }
+    }
+
+    /*
+     * Acquisisce un permesso, controllando periodicamente, come metti, che
+     * nessuno stadio sia terminato con un errore.
+     */
+    private static void acquisisci(Semaphore permessi,
+            List<Future<Void>> lavori)
+            throws InterruptedException, ExecutionException {
+        while (!permessi.tryAcquire(ATTESA_MS, TimeUnit.MILLISECONDS))
+            controlla(lavori);
+    }
+
+    /*
+     * Inserisce in una coda limitata. Se la coda resta piena controlla
+     * periodicamente che nessuno stadio sia terminato con un errore, che
+     * altrimenti lascerebbe il chiamante bloccato per sempre.
+     */
+    private static <T> void metti(BlockingQueue<T> coda, T x,
+            List<Future<Void>> lavori)
+            throws InterruptedException, ExecutionException {
+        while (!coda.offer(x, ATTESA_MS, TimeUnit.MILLISECONDS))
+            controlla(lavori);
+    }
+
+    /*
+     * Aspetta la fine di tutti i thread, controllando periodicamente che
+     * nessuno sia terminato con un errore: uno scrittore fallito lascerebbe
+     * bloccati gli analizzatori, e con loro l'attesa.
+     */
+    private static void attendiTutti(List<Future<Void>> lavori)
+            throws InterruptedException, ExecutionException {
+        for (Future<Void> f : lavori) {
+            while (true) {
+                try {
+                    f.get(ATTESA_MS, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    controlla(lavori);
+                }
+            }
+        }
+    }
+
+    // Rilancia l'errore del primo thread terminato con un errore
+    private static void controlla(List<Future<Void>> lavori)
+            throws InterruptedException, ExecutionException {
+        for (Future<Void> f : lavori)
+            if (f.isDone())
+                f.get();
+    }
+
+    /*
+     * Secondo stadio: analizza i blocchi di righe e smista le prenotazioni
+     * fra gli scrittori in base all'aula; ogni scrittore riceve una parte,
+     * anche vuota, di ogni blocco. Docente e motivo uguali in righe diverse
+     * diventano la stessa stringa, condivisa attraverso stringhe, che vive
+     * solo per l'importazione. L'ultimo analizzatore che termina segnala la
+     * fine a tutti gli scrittori.
+     */
+    private void analizza(BlockingQueue<Blocco> blocchi,
+            List<BlockingQueue<Parte>> code, Map<String, Aula> aule,
+            ConcurrentHashMap<String, String> stringhe, Esito esito,
+            AtomicInteger analizzatoriAttivi)
+            throws InterruptedException {
+        ZoneId fuso = ZoneId.systemDefault();
+        while (true) {
+            Blocco b = blocchi.take();
+            if (b.righe == FINE_RIGHE)
+                break;
+            List<List<Riga>> perScrittore = new ArrayList<List<Riga>>();
+            for (int i = 0; i < numScrittori; i++)
+                perScrittore.add(new ArrayList<Riga>());
+            long numero = b.primaRiga;
+            for (String s : b.righe) {
+                Riga r = analizzaRiga(numero++, s, aule, stringhe, fuso,
+                        esito);
+                if (r != null)
+                    perScrittore.get(scrittore(r.aula)).add(r);
+            }
+            for (int i = 0; i < numScrittori; i++)
+                code.get(i).put(new Parte(b, perScrittore.get(i)));
+        }
+        if (analizzatoriAttivi.decrementAndGet() == 0)
+            for (BlockingQueue<Parte> coda : code)
+                coda.put(FINE_PARTI);
+    }
+
+    /*
+     * Lo scrittore di un'aula dipende solo dal suo nome, per cui tutte le
+     * prenotazioni di un'aula passano dallo stesso scrittore.
+     */
+    private int scrittore(Aula a) {
+        int h = a.hashCode();
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % numScrittori;
+    }
+
+    /*
+     * Analizza una riga. Restituisce null, dopo averla scartata, se non è
+     * valida, e anche per le righe vuote o di commento.
+     */
+    private static Riga analizzaRiga(long numero, String s,
+            Map<String, Aula> aule, ConcurrentHashMap<String, String> stringhe,
+            ZoneId fuso, Esito esito) {
+        if (s.isEmpty() || s.charAt(0) == '#')
+            return null;
+        int[] separatori = new int[4];
+        int da = 0;
+        for (int i = 0; i < 4; i++) {
+            separatori[i] = s.indexOf(SEPARATORE, da);
+            if (separatori[i] < 0) {
+                esito.scarta(numero, "campi mancanti");
+                return null;
+            }
+            da = separatori[i] + 1;
+        }
+        String nome = s.substring(0, separatori[0]);
+        Aula a = aule.get(nome);
+        if (a == null) {
+            esito.scarta(numero, "aula sconosciuta " + nome);
+            return null;
+        }
+        long inizio;
+        long fine;
+        try {
+            inizio = istante(s, separatori[0] + 1, separatori[1], fuso);
+            fine = istante(s, separatori[1] + 1, separatori[2], fuso);
+        } catch (IllegalArgumentException | DateTimeException e) {
+            esito.scarta(numero, "istante non valido");
+            return null;
+        }
+        if (inizio >= fine) {
+            esito.scarta(numero, "inizio non precedente alla fine");
+            return null;
+        }
+        return new Riga(numero, a, inizio, fine,
+                condivisa(stringhe,
+                        s.substring(separatori[2] + 1, separatori[3])),
+                condivisa(stringhe, s.substring(separatori[3] + 1)));
+    }
+
+    /*
+     * Restituisce la copia condivisa della stringa, registrandola se non c'è
+     * e se il limite non è stato raggiunto. Usato anche da ServerAule.
+     */
+    static String condivisa(ConcurrentHashMap<String, String> stringhe,
+            String s) {
+        String c = stringhe.get(s);
+        if (c != null)
+            return c;
+        if (stringhe.size() >= MAX_STRINGHE_CONDIVISE)
+            return s;
+        c = stringhe.putIfAbsent(s, s);
+        return c == null ? s : c;
+    }
+
+    /*
+     * Converte in millisecondi un istante yyyy-MM-dd HH:mm compreso fra le
+     * posizioni da (incluso) e a (escluso) della stringa. Usato anche da
+     * ServerAule.
+     */
+    static long istante(String s, int da, int a, ZoneId fuso) {
+        if (a - da != 16 || s.charAt(da + 4) != '-' || s.charAt(da + 7) != '-'
+                || s.charAt(da + 10) != ' ' || s.charAt(da + 13) != ':')
+            throw new IllegalArgumentException("Formato non valido");
+        return LocalDateTime
+                .of(cifre(s, da, 4), cifre(s, da + 5, 2), cifre(s, da + 8, 2),
+                        cifre(s, da + 11, 2), cifre(s, da + 14, 2))
+                .atZone(fuso).toInstant().toEpochMilli();
+    }
+
+    private static int cifre(String s, int da, int n) {
+        int valore = 0;
+        for (int i = da; i < da + n; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                throw new IllegalArgumentException("Cifra non valida");
+            valore = valore * 10 + (c - '0');
+        }
+        return valore;
+    }
+
+    /*
+     * Terzo stadio: rimette in ordine di blocco le parti ricevute, accumula
+     * le prenotazioni delle aule assegnate a questo scrittore nell'ordine del
+     * file e le inserisce a lotti. Le parti arrivate prima di quelle dei
+     * blocchi precedenti vengono tenute da parte; sono al più tante quanti i
+     * permessi di inVolo.
+     */
+    private void scrivi(BlockingQueue<Parte> coda, Semaphore inVolo,
+            Esito esito) throws InterruptedException {
+        Map<Long, Parte> daParte = new HashMap<Long, Parte>();
+        long prossimo = 0;
+        List<Riga> lotto = new ArrayList<Riga>();
+        while (true) {
+            Parte p = coda.take();
+            if (p == FINE_PARTI)
+                break;
+            daParte.put(p.blocco.sequenza, p);
+            Parte q;
+            while ((q = daParte.remove(prossimo)) != null) {
+                prossimo++;
+                lotto.addAll(q.righe);
+                if (q.blocco.scrittoriMancanti.decrementAndGet() == 0)
+                    inVolo.release();
+                if (lotto.size() >= DIM_LOTTO) {
+                    inserisci(lotto, esito);
+                    lotto.clear();
+                }
+            }
+        }
+        inserisci(lotto, esito);
+    }
+
+    /*
+     * Inserisce un lotto, nell'ordine del file, con
+     * GestoreAule.addPrenotazioniBatch, che controlla ogni aula in un'unica
+     * scansione. Se ci sono conflitti il lotto non viene inserito: si
+     * inseriscono in blocco le prenotazioni che non sono in conflitto con
+     * niente e poi, una per volta nell'ordine del file, quelle in conflitto,
+     * così che di due righe in conflitto venga inserita la prima. Le
+     * prenotazioni senza conflitti non si sovrappongono a nessuna di quelle
+     * in conflitto, per cui il risultato è lo stesso dell'inserimento di
+     * tutte le righe una per volta.
+     */
+    private void inserisci(List<Riga> lotto, Esito esito) {
+        if (lotto.isEmpty())
+            return;
+        List<Prenotazione> prenotazioni = new ArrayList<Prenotazione>(
+                lotto.size());
+        for (Riga r : lotto)
+            prenotazioni.add(Prenotazione.of(r.aula,
+                    new CompactTimeSlot(r.inizio, r.fine), r.docente,
+                    r.motivo));
+        List<Prenotazione> conflitti = gestore
+                .addPrenotazioniBatch(prenotazioni);
+        if (conflitti.isEmpty()) {
+            esito.importate.addAndGet(lotto.size());
+            return;
+        }
+        Set<Prenotazione> inConflitto = new HashSet<Prenotazione>(conflitti);
+        List<Prenotazione> libere = new ArrayList<Prenotazione>();
+        List<Riga> singole = new ArrayList<Riga>();
+        for (int i = 0; i < lotto.size(); i++)
+            if (inConflitto.contains(prenotazioni.get(i)))
+                singole.add(lotto.get(i));
+            else
+                libere.add(prenotazioni.get(i));
+        if (libere.isEmpty() || gestore.addPrenotazioniBatch(libere).isEmpty())
+            esito.importate.addAndGet(libere.size());
+        else
+            // Un altro thread ha prenotato nelle stesse aule: si inseriscono
+            // tutte le righe una per volta
+            singole = lotto;
+        for (Riga r : singole) {
+            try {
+                r.aula.addPrenotazione(
+                        new TimeSlot(calendario(r.inizio), calendario(r.fine)),
+                        r.docente, r.motivo);
+                esito.importate.incrementAndGet();
+            } catch (IllegalArgumentException ex) {
+                esito.scarta(r.numero, "sovrapposta a un'altra prenotazione");
+            }
+        }
+    }
+
+    private static GregorianCalendar calendario(long millis) {
+        GregorianCalendar g = new GregorianCalendar();
+        g.setTimeInMillis(millis);
+        return g;
+    }
+
+}
@@ -0,0 +1,172 @@
+package it.unicam.cs.asdl2122.es5;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Classe di test per ImportatoreOrari
+ *
+ * @author Collettiva
+ *
+ */
+class ImportatoreOrariTest {
+
+    @Test
+    final void testCostruttori() {
+        assertThrows(NullPointerException.class,
+                () -> new ImportatoreOrari(null));
+        assertThrows(IllegalArgumentException.class,
+                () -> new ImportatoreOrari(new GestoreAule(), 0, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new ImportatoreOrari(new GestoreAule(), 1, 0));
+        assertThrows(NullPointerException.class,
+                () -> new ImportatoreOrari(new GestoreAule()).importa(null));
+    }
+
+    @Test
+    final void testImporta() throws IOException, InterruptedException {
+        GestoreAule g = new GestoreAule();
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        g.addAula(a);
+        Aula b = new Aula("AB1", "Polo Lodovici Primo Piano");
+        g.addAula(b);
+        String csv = "# aula;inizio;fine;docente;motivo\n"
+                + "LA1;2019-11-04 11:00;2019-11-04 13:00;Luca Tesei;Lezione ASDL\n"
+                + "\n"
+                + "LA1;2019-11-04 09:00;2019-11-04 11:00;Luca Tesei;Esame; scritto\n"
+                + "AB1;2019-11-04 09:00;2019-11-04 11:00;Michela Quadrini;Lezione\n"
+                // In conflitto con la seconda prenotazione di LA1
+                + "LA1;2019-11-04 10:00;2019-11-04 12:00;Luca Tesei;Doppia\n"
+                + "XX9;2019-11-04 09:00;2019-11-04 11:00;Luca Tesei;Lezione\n"
+                + "LA1;2019-11-04 9:00;2019-11-04 11:00;Luca Tesei;Lezione\n"
+                + "LA1;2019-13-04 09:00;2019-13-04 11:00;Luca Tesei;Lezione\n"
+                + "LA1;2019-11-05 11:00;2019-11-05 10:00;Luca Tesei;Lezione\n"
+                + "LA1;2019-11-05 11:00\n";
+        ImportatoreOrari.Esito esito = new ImportatoreOrari(g, 2, 2)
+                .importa(new StringReader(csv));
+        assertEquals(3, esito.getImportate());
+        assertEquals(6, esito.getScartate());
+        assertEquals(6, esito.getErrori().size());
+        assertEquals(2, a.getPrenotazioni().size());
+        assertEquals(1, b.getPrenotazioni().size());
+        Prenotazione p = a.getPrenotazioni().first();
+        assertEquals(new GregorianCalendar(2019, 10, 4, 9, 0),
+                p.getTimeSlot().getStart());
+        assertEquals(new GregorianCalendar(2019, 10, 4, 11, 0),
+                p.getTimeSlot().getStop());
+        assertEquals("Luca Tesei", p.getDocente());
+        assertEquals("Esame; scritto", p.getMotivo());
+    }
+
+    /*
+     * Sorgente che genera righe senza tenerle in memoria: una prenotazione
+     * di mezz'ora ogni ora per ciascuna aula.
+     */
+    private static final class SorgenteGenerata extends Reader {
+        private final int numAule;
+        private final int righe;
+        private int prodotte;
+        private String corrente = "";
+        private int posizione;
+
+        SorgenteGenerata(int numAule, int righe) {
+            this.numAule = numAule;
+            this.righe = righe;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (posizione == corrente.length()) {
+                if (prodotte == righe)
+                    return -1;
+                int ora = prodotte / numAule;
+                GregorianCalendar g = new GregorianCalendar(2019, 0, 1, 0, 0);
+                g.add(GregorianCalendar.HOUR_OF_DAY, ora);
+                corrente = String.format(
+                        "A%d;%4$tY-%4$tm-%4$td %4$tH:00;%4$tY-%4$tm-%4$td %4$tH:30;D%2$d;M%3$d%n",
+                        prodotte % numAule, ora, prodotte, g);
+                posizione = 0;
+                prodotte++;
+            }
+            int n = Math.min(len, corrente.length() - posizione);
+            corrente.getChars(posizione, posizione + n, cbuf, off);
+            posizione += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    final void testImportaMolteRighe() throws IOException, InterruptedException {
+        GestoreAule g = new GestoreAule();
+        int numAule = 37;
+        for (int i = 0; i < numAule; i++)
+            g.addAula(new Aula("A" + i, ""));
+        int righe = 50000;
+        ImportatoreOrari.Esito esito = new ImportatoreOrari(g, 3, 4)
+                .importa(new SorgenteGenerata(numAule, righe));
+        assertEquals(righe, esito.getImportate());
+        assertEquals(0, esito.getScartate());
+        int totale = 0;
+        for (Aula a : g.getAule())
+            totale += a.getPrenotazioni().size();
+        assertEquals(righe, totale);
+    }
+
+    @Test
+    final void testConflittiDeterministici()
+            throws IOException, InterruptedException {
+        // Righe di un'ora in ore scelte a caso, per cui molte righe sono in
+        // conflitto con righe precedenti in altri blocchi: vince sempre la
+        // prima nel file
+        int numAule = 5;
+        int righe = 6000;
+        Random r = new Random(7);
+        StringBuilder csv = new StringBuilder();
+        Map<String, String> vincitrici = new HashMap<String, String>();
+        for (int i = 0; i < righe; i++) {
+            String aula = "A" + (i % numAule);
+            GregorianCalendar g = new GregorianCalendar(2019, 0, 1, 0, 0);
+            g.add(GregorianCalendar.HOUR_OF_DAY, r.nextInt(2000));
+            csv.append(String.format(
+                    "%s;%2$tY-%2$tm-%2$td %2$tH:00;%2$tY-%2$tm-%2$td %2$tH:59;D;M%3$d%n",
+                    aula, g, i));
+            String chiave = aula + " " + g.getTimeInMillis();
+            if (!vincitrici.containsKey(chiave))
+                vincitrici.put(chiave, "M" + i);
+        }
+        for (int prova = 0; prova < 3; prova++) {
+            GestoreAule g = new GestoreAule();
+            for (int i = 0; i < numAule; i++)
+                g.addAula(new Aula("A" + i, ""));
+            ImportatoreOrari.Esito esito = new ImportatoreOrari(g, 4, 3)
+                    .importa(new StringReader(csv.toString()));
+            assertEquals(vincitrici.size(), esito.getImportate());
+            assertEquals(righe - vincitrici.size(), esito.getScartate());
+            String docente = null;
+            for (Aula a : g.getAule())
+                for (Prenotazione p : a.getPrenotazioni()) {
+                    assertEquals(vincitrici.get(a.getNome() + " "
+                            + p.getTimeSlot().getStart().getTimeInMillis()),
+                            p.getMotivo());
+                    // Il docente, uguale in tutte le righe, è una sola stringa
+                    if (docente == null)
+                        docente = p.getDocente();
+                    assertSame(docente, p.getDocente());
+                }
+        }
+    }
+
+}
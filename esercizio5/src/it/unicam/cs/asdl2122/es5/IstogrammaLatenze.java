@@ -0,0 +1,271 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Istogramma di valori non negativi (tipicamente latenze in nanosecondi) con
+ * bucket logaritmici, nello stile di HdrHistogram: i valori da 0 a 7 hanno un
+ * bucket ciascuno, poi ogni potenza di due [2^e, 2^(e+1)) è divisa in 8
+ * bucket della stessa ampiezza. Un valore viene quindi ricordato con un
+ * errore relativo al più di 1/8, con 488 bucket per tutto l'intervallo dei
+ * long.
+ *
+ * I contatori sono divisi in strisce, come le celle di un
+ * {@link java.util.concurrent.atomic.LongAdder}: ogni thread scrive nella
+ * striscia scelta da un hash del suo identificativo, con aggiornamenti
+ * atomici senza lock, per cui thread diversi si contendono un contatore solo
+ * quando capitano nella stessa striscia. Le strisce sono una potenza di due
+ * non minore del doppio dei processori, e vengono create alla prima scrittura:
+ * la memoria non dipende dal numero di thread, né un thread nuovo deve
+ * registrarsi. Un'istantanea somma le strisce mentre i thread continuano a
+ * scrivere: ogni contatore letto è un valore effettivamente raggiunto, ma
+ * valori registrati durante la lettura possono comparire o no.
+ *
+ * @author Collettiva
+ *
+ */
+public final class IstogrammaLatenze {
+
+    // Bit della mantissa usati per suddividere ogni potenza di due
+    private static final int BIT_SUDDIVISIONE = 3;
+
+    private static final int SUDDIVISIONI = 1 << BIT_SUDDIVISIONE;
+
+    /**
+     * Numero di bucket dell'istogramma.
+     */
+    static final int BUCKET = indice(Long.MAX_VALUE) + 1;
+
+    // Posizioni, dopo i bucket, della somma e del massimo dei valori
+    private static final int SOMMA = BUCKET;
+
+    private static final int MASSIMO = BUCKET + 1;
+
+    // Numero di strisce, una potenza di due
+    private static final int STRISCE = Integer.highestOneBit(
+            Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1))
+            << 1;
+
+    private final String nome;
+
+    // Conteggi dei bucket, somma e massimo di ogni striscia, null finché
+    // nessun thread ci ha scritto
+    private final AtomicReferenceArray<AtomicLongArray> strisce;
+
+    /**
+     * Crea un istogramma vuoto.
+     *
+     * @param nome
+     *                 il nome dell'istogramma, usato nell'esportazione
+     * @throws NullPointerException
+     *                                  se il nome è nullo
+     */
+    public IstogrammaLatenze(String nome) {
+        if (nome == null)
+            throw new NullPointerException("Il nome è null");
+        this.nome = nome;
+        this.strisce = new AtomicReferenceArray<AtomicLongArray>(STRISCE);
+    }
+
+    /*
+     * La striscia del thread corrente, creata se nessuno ci ha ancora
+     * scritto. L'identificativo del thread viene mescolato, perché thread
+     * creati di seguito hanno identificativi consecutivi.
+     */
+    private AtomicLongArray striscia() {
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        int i = (int) (id >>> 32) & (STRISCE - 1);
+        AtomicLongArray s = strisce.get(i);
+        if (s == null) {
+            strisce.compareAndSet(i, null, new AtomicLongArray(BUCKET + 2));
+            s = strisce.get(i);
+        }
+        return s;
+    }
+
+    /*
+     * Indice del bucket che contiene il valore dato, non negativo.
+     */
+    static int indice(long valore) {
+        if (valore < SUDDIVISIONI)
+            return (int) valore;
+        int esponente = 63 - Long.numberOfLeadingZeros(valore);
+        int mantissa = (int) (valore >>> (esponente - BIT_SUDDIVISIONE))
+                & (SUDDIVISIONI - 1);
+        return (esponente - BIT_SUDDIVISIONE + 1) * SUDDIVISIONI + mantissa;
+    }
+
+    /*
+     * Il più piccolo valore che cade nel bucket dato.
+     */
+    static long minimoBucket(int indice) {
+        if (indice < SUDDIVISIONI)
+            return indice;
+        int spostamento = indice / SUDDIVISIONI - 1;
+        return (long) (SUDDIVISIONI + indice % SUDDIVISIONI) << spostamento;
+    }
+
+    /*
+     * Il più grande valore che cade nel bucket dato.
+     */
+    static long massimoBucket(int indice) {
+        if (indice < SUDDIVISIONI)
+            return indice;
+        return minimoBucket(indice) + (1L << (indice / SUDDIVISIONI - 1)) - 1;
+    }
+
+    /**
+     * @return il nome dell'istogramma
+     */
+    public String getNome() {
+        return nome;
+    }
+
+    /**
+     * Registra un valore. I valori negativi, che per le latenze possono
+     * venire solo da un orologio non monotono, sono registrati come 0.
+     *
+     * @param valore
+     *                   il valore da registrare
+     */
+    public void registra(long valore) {
+        if (valore < 0)
+            valore = 0;
+        AtomicLongArray v = striscia();
+        v.incrementAndGet(indice(valore));
+        v.addAndGet(SOMMA, valore);
+        long massimo = v.get(MASSIMO);
+        while (valore > massimo && !v.compareAndSet(MASSIMO, massimo, valore))
+            massimo = v.get(MASSIMO);
+    }
+
+    /**
+     * Restituisce un'istantanea dell'istogramma senza fermare i thread che
+     * registrano valori.
+     *
+     * @return un'istantanea dei valori registrati finora
+     */
+    public Istantanea istantanea() {
+        long[] totali = new long[BUCKET + 2];
+        for (int s = 0; s < STRISCE; s++) {
+            AtomicLongArray v = strisce.get(s);
+            if (v == null)
+                continue;
+            for (int i = 0; i < BUCKET + 1; i++)
+                totali[i] += v.get(i);
+            totali[MASSIMO] = Math.max(totali[MASSIMO], v.get(MASSIMO));
+        }
+        return new Istantanea(nome, totali);
+    }
+
+    @Override
+    public String toString() {
+        return istantanea().toString();
+    }
+
+    /**
+     * Istantanea immutabile di un {@link IstogrammaLatenze}, da cui si
+     * ricavano conteggio, media, massimo e percentili.
+     *
+     * @author Collettiva
+     *
+     */
+    public static final class Istantanea {
+
+        private final String nome;
+
+        // I conteggi dei bucket, seguiti da somma e massimo
+        private final long[] valori;
+
+        private final long conteggio;
+
+        private Istantanea(String nome, long[] valori) {
+            this.nome = nome;
+            this.valori = valori;
+            long n = 0;
+            for (int i = 0; i < BUCKET; i++)
+                n += valori[i];
+            this.conteggio = n;
+        }
+
+        /**
+         * @return il nome dell'istogramma
+         */
+        public String getNome() {
+            return nome;
+        }
+
+        /**
+         * @return il numero di valori registrati
+         */
+        public long getConteggio() {
+            return conteggio;
+        }
+
+        /**
+         * @return la somma dei valori registrati
+         */
+        public long getSomma() {
+            return valori[SOMMA];
+        }
+
+        /**
+         * @return il valore massimo registrato, 0 se non ce ne sono
+         */
+        public long getMassimo() {
+            return valori[MASSIMO];
+        }
+
+        /**
+         * @return la media dei valori registrati, 0 se non ce ne sono
+         */
+        public double getMedia() {
+            return conteggio == 0 ? 0 : (double) valori[SOMMA] / conteggio;
+        }
+
+        /**
+         * Restituisce il percentile dato: il più grande valore del bucket che
+         * contiene il valore di quel rango, limitato al massimo registrato.
+         * Il risultato non è mai minore del valore esatto e lo supera al più
+         * di 1/8.
+         *
+         * @param percentuale
+         *                        il percentile richiesto, fra 0 e 100
+         * @return il valore del percentile, 0 se non ci sono valori
+         * @throws IllegalArgumentException
+         *                                      se la percentuale non è fra 0
+         *                                      e 100
+         */
+        public long getPercentile(double percentuale) {
+            if (!(percentuale >= 0 && percentuale <= 100))
+                throw new IllegalArgumentException(
+                        "Percentuale non valida: " + percentuale);
+            if (conteggio == 0)
+                return 0;
+            long rango = Math.max(1,
+                    (long) Math.ceil(percentuale / 100 * conteggio));
+            long visti = 0;
+            for (int i = 0; i < BUCKET; i++) {
+                visti += valori[i];
+                if (visti >= rango)
+                    return Math.min(massimoBucket(i), getMassimo());
+            }
+            return getMassimo();
+        }
+
+        /**
+         * Restituisce l'istantanea come una riga di testo con conteggio,
+         * media, i percentili 50, 90, 99 e 99.9 e il massimo.
+         */
+        @Override
+        public String toString() {
+            return nome + " conteggio=" + conteggio + " media="
+                    + Math.round(getMedia()) + " p50=" + getPercentile(50)
+                    + " p90=" + getPercentile(90) + " p99="
+                    + getPercentile(99) + " p999=" + getPercentile(99.9)
+                    + " max=" + getMassimo();
+        }
+    }
+
+}
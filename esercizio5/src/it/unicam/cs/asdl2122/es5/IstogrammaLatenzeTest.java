@@ -0,0 +1,183 @@
+package it.unicam.cs.asdl2122.es5;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Classe di test per IstogrammaLatenze e Metriche
+ *
+ * @author Collettiva
+ *
+ */
+class IstogrammaLatenzeTest {
+
+    @Test
+    final void testBucket() {
+        // I bucket sono contigui e coprono tutti i long non negativi
+        assertEquals(0, IstogrammaLatenze.minimoBucket(0));
+        for (int i = 0; i < IstogrammaLatenze.BUCKET; i++) {
+            long min = IstogrammaLatenze.minimoBucket(i);
+            long max = IstogrammaLatenze.massimoBucket(i);
+            assertTrue(min <= max);
+            assertEquals(i, IstogrammaLatenze.indice(min));
+            assertEquals(i, IstogrammaLatenze.indice(max));
+            if (i > 0)
+                assertEquals(IstogrammaLatenze.massimoBucket(i - 1) + 1, min);
+            // Errore relativo al più di 1/8
+            assertTrue(max - min <= min / 8);
+        }
+        assertEquals(Long.MAX_VALUE,
+                IstogrammaLatenze.massimoBucket(IstogrammaLatenze.BUCKET - 1));
+    }
+
+    @Test
+    final void testPercentili() {
+        IstogrammaLatenze h = new IstogrammaLatenze("prova");
+        assertEquals(0, h.istantanea().getConteggio());
+        assertEquals(0, h.istantanea().getPercentile(99));
+        assertThrows(NullPointerException.class,
+                () -> new IstogrammaLatenze(null));
+        assertThrows(IllegalArgumentException.class,
+                () -> h.istantanea().getPercentile(101));
+        Random caso = new Random(21);
+        long[] valori = new long[10000];
+        for (int i = 0; i < valori.length; i++) {
+            valori[i] = (long) Math.exp(caso.nextDouble() * 20);
+            h.registra(valori[i]);
+        }
+        h.registra(-5);
+        valori = Arrays.copyOf(valori, valori.length + 1);
+        Arrays.sort(valori);
+        IstogrammaLatenze.Istantanea s = h.istantanea();
+        assertEquals(valori.length, s.getConteggio());
+        assertEquals(valori[valori.length - 1], s.getMassimo());
+        long somma = 0;
+        for (long v : valori)
+            somma += v;
+        assertEquals(somma, s.getSomma());
+        for (double p : new double[] { 0, 1, 50, 90, 99, 99.9, 100 }) {
+            long esatto = valori[Math.max(0,
+                    (int) Math.ceil(p / 100 * valori.length) - 1)];
+            long stimato = s.getPercentile(p);
+            assertTrue(stimato >= esatto && stimato <= esatto + esatto / 8,
+                    p + ": " + stimato + " invece di " + esatto);
+        }
+        assertTrue(s.toString().startsWith("prova conteggio=10001 "));
+    }
+
+    @Test
+    final void testScrittoriConcorrenti() throws InterruptedException {
+        // Le istantanee si prendono mentre i thread scrivono; i conteggi dei
+        // thread terminati non vanno persi
+        final IstogrammaLatenze h = new IstogrammaLatenze("prova");
+        final AtomicBoolean errore = new AtomicBoolean();
+        Thread[] scrittori = new Thread[50];
+        for (int i = 0; i < scrittori.length; i++) {
+            final int valore = i;
+            scrittori[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 20000; j++)
+                        h.registra(valore);
+                }
+            });
+        }
+        Thread lettore = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long precedente = 0;
+                for (int i = 0; i < 200; i++) {
+                    long conteggio = h.istantanea().getConteggio();
+                    if (conteggio < precedente)
+                        errore.set(true);
+                    precedente = conteggio;
+                }
+            }
+        });
+        lettore.start();
+        for (Thread t : scrittori)
+            t.start();
+        for (Thread t : scrittori)
+            t.join();
+        lettore.join();
+        assertFalse(errore.get());
+        IstogrammaLatenze.Istantanea s = h.istantanea();
+        assertEquals(50 * 20000, s.getConteggio());
+        assertEquals(49, s.getMassimo());
+        assertEquals(20000L * 49 * 50 / 2, s.getSomma());
+        // La mediana 24 cade nel bucket [24, 25]
+        assertEquals(25, s.getPercentile(50));
+    }
+
+    @Test
+    final void testMetriche() {
+        assertThrows(NullPointerException.class,
+                () -> new GestoreAule(0, null));
+        Metriche m = new Metriche();
+        Metriche.Istantanea prima = m.istantanea();
+        Metriche.Istantanea globali = Metriche.getGlobali().istantanea();
+        // Le aule registrano nelle metriche del gestore a cui appartengono
+        GestoreAule g = new GestoreAule(
+                GestoreAule.DIMENSIONE_CACHE_PREDEFINITA, m);
+        Aula a = new Aula("LA1", "");
+        a.addFacility(new PresenceFacility("HDMI", ""));
+        g.addAula(a);
+        g.addAula(new Aula("AB1", ""));
+        TimeSlot ts = new TimeSlot(new GregorianCalendar(2019, 10, 4, 9, 0),
+                new GregorianCalendar(2019, 10, 4, 11, 0));
+        assertTrue(a.isFree(ts));
+        a.addPrenotazione(ts, "d", "m");
+        assertThrows(IllegalArgumentException.class,
+                () -> a.addPrenotazione(ts, "d", "m"));
+        Set<Facility> richieste = new HashSet<Facility>();
+        g.cercaAuleLibere(richieste, ts);
+        g.cercaAuleLibere(richieste, ts);
+        Metriche.Istantanea dopo = m.istantanea();
+        assertEquals(1, dopo.getPrenotazioniAccettate()
+                - prima.getPrenotazioniAccettate());
+        assertEquals(1, dopo.getPrenotazioniRifiutate()
+                - prima.getPrenotazioniRifiutate());
+        assertEquals(2, dopo.getAddPrenotazione().getConteggio()
+                - prima.getAddPrenotazione().getConteggio());
+        // Una chiamata diretta e una per ciascuna aula della prima ricerca;
+        // la seconda ricerca è servita dalla cache
+        assertEquals(3, dopo.getIsFree().getConteggio()
+                - prima.getIsFree().getConteggio());
+        assertEquals(2, dopo.getCercaAuleLibere().getConteggio()
+                - prima.getCercaAuleLibere().getConteggio());
+        assertEquals(2, dopo.getAuleEsaminate().getSomma()
+                - prima.getAuleEsaminate().getSomma());
+        assertTrue(dopo.toString().contains("\nprenotazioniRifiutate "));
+        // Gli inserimenti in blocco contano allo stesso modo
+        List<Prenotazione> blocco = new ArrayList<Prenotazione>();
+        blocco.add(new Prenotazione(a, ts, "d", "m"));
+        TimeSlot ts2 = new TimeSlot(new GregorianCalendar(2019, 10, 5, 9, 0),
+                new GregorianCalendar(2019, 10, 5, 11, 0));
+        blocco.add(new Prenotazione(a, ts2, "d", "m"));
+        assertEquals(1, g.addPrenotazioniBatch(blocco).size());
+        blocco.remove(0);
+        assertTrue(g.addPrenotazioniBatch(blocco).isEmpty());
+        Metriche.Istantanea finale = m.istantanea();
+        assertEquals(1, finale.getPrenotazioniAccettate()
+                - dopo.getPrenotazioniAccettate());
+        assertEquals(1, finale.getPrenotazioniRifiutate()
+                - dopo.getPrenotazioniRifiutate());
+        // Le metriche globali non sono state toccate
+        Metriche.Istantanea globaliDopo = Metriche.getGlobali().istantanea();
+        assertEquals(globali.getIsFree().getConteggio(),
+                globaliDopo.getIsFree().getConteggio());
+        assertEquals(globali.getPrenotazioniAccettate(),
+                globaliDopo.getPrenotazioniAccettate());
+    }
+
+}
@@ -0,0 +1,201 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Mappa di occupazione delle prenotazioni di un'aula, giorno per giorno: per
+ * ogni giorno un bit per ciascuno dei 1440 minuti (23 long), acceso se il
+ * minuto è occupato da una prenotazione. Permette a {@link Aula#isFree(TimeSlot)}
+ * di rispondere con poche operazioni su parole di 64 bit invece di scorrere
+ * le prenotazioni.
+ *
+ * La risposta è esatta, con la stessa tolleranza di
+ * {@link TimeSlot#overlapsWith(TimeSlot)}, quando il time slot da controllare
+ * inizia e finisce a minuti interi, dura almeno 11 minuti e cade in un solo
+ * giorno, e le prenotazioni di quel giorno iniziano e finiscono a minuti
+ * interi. Infatti una prenotazione di almeno 6 minuti si sovrappone per più
+ * di 5 minuti al time slot [a, z) se e solo se occupa uno dei minuti
+ * [a + 5, z - 5): un suo tratto di 6 minuti che contiene uno di quei minuti
+ * cade tutto dentro [a, z), e viceversa una sovrapposizione di almeno 6
+ * minuti non può stare tutta nei primi o negli ultimi 5 minuti. Le
+ * prenotazioni più brevi di 6 minuti non si sovrappongono mai a niente e non
+ * vengono segnate. Negli altri casi la mappa risponde
+ * {@link #INDETERMINATA} e va usato il controllo sulle prenotazioni.
+ *
+ * I giorni sono intervalli consecutivi di esattamente 1440 minuti che
+ * iniziano alla mezzanotte dell'ora solare del fuso orario predefinito, per
+ * cui non risentono del cambio dell'ora legale. La mappa non è thread-safe:
+ * viene protetta dal lock dell'aula.
+ *
+ * @author Collettiva
+ *
+ */
+final class MappaOccupazione {
+
+    /**
+     * Il time slot non si sovrappone a nessuna prenotazione segnata.
+     */
+    static final int LIBERA = 0;
+
+    /**
+     * Il time slot si sovrappone a una prenotazione segnata.
+     */
+    static final int OCCUPATA = 1;
+
+    /**
+     * La mappa non può rispondere in modo esatto.
+     */
+    static final int INDETERMINATA = 2;
+
+    static final long MINUTO = 60000L;
+
+    static final long GIORNO = 1440 * MINUTO;
+
+    private static final int TOLLERANZA = TimeSlot.MINUTES_OF_TOLERANCE_FOR_OVERLAPPING;
+
+    // Durata minima, in minuti, di una prenotazione che può sovrapporsi
+    private static final int SOGLIA = TOLLERANZA + 1;
+
+    // Inizio dei giorni rispetto all'epoca: la mezzanotte dell'ora solare
+    private static final long SPOSTAMENTO = TimeZone.getDefault()
+            .getRawOffset() / MINUTO * MINUTO;
+
+    /*
+     * Occupazione di un giorno. Un giorno non è esatto se contiene una
+     * prenotazione di almeno SOGLIA minuti che non inizia o non finisce a un
+     * minuto intero.
+     */
+    private static final class Giorno {
+        final long[] minuti = new long[(1440 + 63) / 64];
+
+        boolean esatto = true;
+    }
+
+    // Solo i giorni che contengono prenotazioni segnate
+    private final Map<Long, Giorno> giorni;
+
+    MappaOccupazione() {
+        this.giorni = new HashMap<Long, Giorno>();
+    }
+
+    /*
+     * Il giorno che contiene l'istante dato.
+     */
+    static long giorno(long istante) {
+        return Math.floorDiv(istante + SPOSTAMENTO, GIORNO);
+    }
+
+    static long inizioGiorno(long giorno) {
+        return giorno * GIORNO - SPOSTAMENTO;
+    }
+
+    /*
+     * Segna una prenotazione [inizio, fine) in tutti i giorni che tocca.
+     */
+    void aggiungi(long inizio, long fine) {
+        for (long g = giorno(inizio); g <= giorno(fine - 1); g++)
+            segna(g, inizio, fine);
+    }
+
+    /*
+     * Dimentica tutte le prenotazioni segnate in un giorno, che andranno
+     * segnate di nuovo con segna.
+     */
+    void azzera(long giorno) {
+        giorni.remove(giorno);
+    }
+
+    /*
+     * Dimentica tutte le prenotazioni segnate nei giorni precedenti a quello
+     * dato.
+     */
+    void azzeraPrima(long giorno) {
+        Iterator<Long> it = giorni.keySet().iterator();
+        while (it.hasNext())
+            if (it.next() < giorno)
+                it.remove();
+    }
+
+    /*
+     * Segna nel giorno dato la parte della prenotazione [inizio, fine) che vi
+     * cade.
+     */
+    void segna(long giorno, long inizio, long fine) {
+        if (fine - inizio < SOGLIA * MINUTO)
+            return;
+        Giorno occupazione = giorni.get(giorno);
+        if (occupazione == null) {
+            occupazione = new Giorno();
+            giorni.put(giorno, occupazione);
+        }
+        if (inizio % MINUTO != 0 || fine % MINUTO != 0) {
+            occupazione.esatto = false;
+            return;
+        }
+        long base = inizioGiorno(giorno);
+        int da = (int) ((Math.max(inizio, base) - base) / MINUTO);
+        int a = (int) ((Math.min(fine, base + GIORNO) - base) / MINUTO);
+        accendi(occupazione.minuti, da, a);
+    }
+
+    /*
+     * Determina se il time slot [inizio, fine) si sovrappone a una delle
+     * prenotazioni segnate: restituisce LIBERA, OCCUPATA oppure INDETERMINATA
+     * se la mappa non può rispondere in modo esatto.
+     */
+    int verifica(long inizio, long fine) {
+        if (inizio % MINUTO != 0 || fine % MINUTO != 0
+                || fine - inizio < (2 * TOLLERANZA + 1) * MINUTO)
+            return INDETERMINATA;
+        long g = giorno(inizio);
+        if (giorno(fine - 1) != g)
+            return INDETERMINATA;
+        Giorno occupazione = giorni.get(g);
+        if (occupazione == null)
+            return LIBERA;
+        if (!occupazione.esatto)
+            return INDETERMINATA;
+        long base = inizioGiorno(g);
+        int da = (int) ((inizio - base) / MINUTO) + TOLLERANZA;
+        int a = (int) ((fine - base) / MINUTO) - TOLLERANZA;
+        return qualcunoAcceso(occupazione.minuti, da, a) ? OCCUPATA : LIBERA;
+    }
+
+    /*
+     * Accende i bit [da, a).
+     */
+    private static void accendi(long[] bit, int da, int a) {
+        for (int w = da >>> 6; da < a; w++) {
+            int fineParola = Math.min(a, (w + 1) << 6);
+            bit[w] |= maschera(da, fineParola);
+            da = fineParola;
+        }
+    }
+
+    /*
+     * Determina se uno dei bit [da, a) è acceso, una parola per volta.
+     */
+    private static boolean qualcunoAcceso(long[] bit, int da, int a) {
+        for (int w = da >>> 6; da < a; w++) {
+            int fineParola = Math.min(a, (w + 1) << 6);
+            if ((bit[w] & maschera(da, fineParola)) != 0)
+                return true;
+            da = fineParola;
+        }
+        return false;
+    }
+
+    /*
+     * Maschera dei bit [da, a) della parola che li contiene, con da < a e
+     * nella stessa parola (a può essere l'inizio della parola successiva).
+     */
+    private static long maschera(int da, int a) {
+        long alti = -1L << (da & 63);
+        int n = a - ((da >>> 6) << 6);
+        return n == 64 ? alti : alti & ((1L << n) - 1);
+    }
+
+}
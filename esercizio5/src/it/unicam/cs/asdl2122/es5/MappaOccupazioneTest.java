@@ -0,0 +1,134 @@
+package it.unicam.cs.asdl2122.es5;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Classe di test per MappaOccupazione e per il suo uso in Aula.isFree
+ *
+ * @author Collettiva
+ *
+ */
+class MappaOccupazioneTest {
+
+    private static final long MINUTO = MappaOccupazione.MINUTO;
+
+    private static TimeSlot slot(long inizio, long fine) {
+        GregorianCalendar g1 = new GregorianCalendar();
+        g1.setTimeInMillis(inizio);
+        GregorianCalendar g2 = new GregorianCalendar();
+        g2.setTimeInMillis(fine);
+        return new TimeSlot(g1, g2);
+    }
+
+    @Test
+    final void testVerifica() {
+        MappaOccupazione m = new MappaOccupazione();
+        long base = MappaOccupazione
+                .inizioGiorno(MappaOccupazione.giorno(new GregorianCalendar(
+                        2019, 10, 4, 12, 0).getTimeInMillis()));
+        long nove = base + 9 * 60 * MINUTO;
+        assertEquals(MappaOccupazione.LIBERA,
+                m.verifica(nove, nove + 60 * MINUTO));
+        m.aggiungi(nove, nove + 120 * MINUTO);
+        assertEquals(MappaOccupazione.OCCUPATA,
+                m.verifica(nove + 60 * MINUTO, nove + 180 * MINUTO));
+        // Sovrapposizioni entro la tolleranza
+        assertEquals(MappaOccupazione.LIBERA,
+                m.verifica(nove + 115 * MINUTO, nove + 180 * MINUTO));
+        assertEquals(MappaOccupazione.LIBERA,
+                m.verifica(nove - 60 * MINUTO, nove + 5 * MINUTO));
+        assertEquals(MappaOccupazione.OCCUPATA,
+                m.verifica(nove - 60 * MINUTO, nove + 6 * MINUTO));
+        // Time slot troppo corti, non a minuti interi o su due giorni
+        assertEquals(MappaOccupazione.INDETERMINATA,
+                m.verifica(nove, nove + 10 * MINUTO));
+        assertEquals(MappaOccupazione.INDETERMINATA,
+                m.verifica(nove + 1, nove + 60 * MINUTO));
+        assertEquals(MappaOccupazione.INDETERMINATA,
+                m.verifica(base - 60 * MINUTO, base + 60 * MINUTO));
+        // Una prenotazione non a minuti interi rende il giorno inesatto
+        m.aggiungi(nove + 300 * MINUTO + 1, nove + 400 * MINUTO);
+        assertEquals(MappaOccupazione.INDETERMINATA,
+                m.verifica(nove + 200 * MINUTO, nove + 250 * MINUTO));
+        m.azzera(MappaOccupazione.giorno(nove));
+        assertEquals(MappaOccupazione.LIBERA,
+                m.verifica(nove, nove + 60 * MINUTO));
+        // Le prenotazioni più brevi di 6 minuti non vengono segnate
+        m.aggiungi(nove, nove + 5 * MINUTO + 59999);
+        assertEquals(MappaOccupazione.LIBERA,
+                m.verifica(nove - 30 * MINUTO, nove + 30 * MINUTO));
+        // Una prenotazione su più giorni
+        m.aggiungi(base - 60 * MINUTO, base + MappaOccupazione.GIORNO
+                + 60 * MINUTO);
+        assertEquals(MappaOccupazione.OCCUPATA,
+                m.verifica(nove, nove + 60 * MINUTO));
+        assertEquals(MappaOccupazione.OCCUPATA,
+                m.verifica(base - 120 * MINUTO, base - 30 * MINUTO));
+        m.azzeraPrima(MappaOccupazione.giorno(nove) + 1);
+        assertEquals(MappaOccupazione.LIBERA,
+                m.verifica(nove, nove + 60 * MINUTO));
+        assertEquals(MappaOccupazione.OCCUPATA,
+                m.verifica(base + MappaOccupazione.GIORNO,
+                        base + MappaOccupazione.GIORNO + 30 * MINUTO));
+    }
+
+    /*
+     * Confronta isFree di un'aula, che usa la mappa di occupazione, con il
+     * confronto del time slot con tutte le prenotazioni, mentre si aggiungono
+     * e si cancellano prenotazioni anche su più giorni, brevi o non a minuti
+     * interi.
+     */
+    @Test
+    final void testIsFreeCasuale() {
+        Random caso = new Random(17);
+        long base = new GregorianCalendar(2019, 10, 4, 0, 0).getTimeInMillis();
+        for (int prova = 0; prova < 20; prova++) {
+            Aula a = new Aula("LA1", "");
+            List<Prenotazione> presenti = new ArrayList<Prenotazione>();
+            for (int passo = 0; passo < 400; passo++) {
+                int scelta = caso.nextInt(10);
+                if (scelta < 5) {
+                    long inizio = base + caso.nextInt(4 * 1440) * MINUTO;
+                    long durata = caso.nextInt(20) == 0
+                            ? caso.nextInt(3000) * MINUTO
+                            : (1 + caso.nextInt(180)) * MINUTO;
+                    if (caso.nextInt(20) == 0)
+                        durata += 1 + caso.nextInt(59999);
+                    TimeSlot ts = slot(inizio, inizio + durata);
+                    if (a.isFree(ts)) {
+                        a.addPrenotazione(ts, "", "");
+                        presenti.add(new Prenotazione(a, ts, "", ""));
+                    }
+                } else if (scelta < 7 && !presenti.isEmpty()) {
+                    assertTrue(a.removePrenotazione(
+                            presenti.remove(caso.nextInt(presenti.size()))));
+                } else if (scelta == 7 && caso.nextInt(10) == 0) {
+                    GregorianCalendar t = new GregorianCalendar();
+                    t.setTimeInMillis(
+                            base + caso.nextInt(2 * 1440) * MINUTO);
+                    a.purgePrenotazioniBefore(t);
+                    List<Prenotazione> rimaste = new ArrayList<Prenotazione>();
+                    for (Prenotazione p : presenti)
+                        if (p.getTimeSlot().getStart().after(t))
+                            rimaste.add(p);
+                    presenti = rimaste;
+                }
+                long inizio = base + caso.nextInt(4 * 1440) * MINUTO;
+                TimeSlot ts = slot(inizio,
+                        inizio + (1 + caso.nextInt(240)) * MINUTO);
+                boolean libera = true;
+                for (Prenotazione p : presenti)
+                    libera &= !p.getTimeSlot().overlapsWith(ts);
+                assertEquals(libera, a.isFree(ts), ts.toString());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metriche delle operazioni sulle aule: gli
+ * istogrammi delle latenze, in nanosecondi, di
+ * {@link Aula#addPrenotazione(TimeSlot, String, String)},
+ * {@link Aula#isFree(TimeSlot)} e {@link GestoreAule#cercaAuleLibere}, e i
+ * contatori delle prenotazioni accettate, di quelle rifiutate perché si
+ * sovrappongono a un'altra e delle aule esaminate da ogni ricerca.
+ *
+ * Registrare un valore costa due letture di {@link System#nanoTime()} e
+ * qualche aggiornamento atomico nei contatori di una delle strisce (vedi
+ * {@link IstogrammaLatenze}), senza lock; i contatori semplici sono
+ * {@link LongAdder}. Le metriche si possono leggere in ogni momento, anche
+ * mentre vengono aggiornate, con {@link #istantanea()}.
+ *
+ * Le aule e i gestori registrano nelle metriche globali del processo
+ * ({@link #getGlobali()}), a meno che il gestore non ne riceva altre nel
+ * costruttore {@link GestoreAule#GestoreAule(int, Metriche)}. Le prenotazioni
+ * ricostruite da una fotografia o da un registro delle operazioni non vengono
+ * registrate.
+ *
+ * @author Collettiva
+ *
+ */
+public final class Metriche {
+
+    private static final Metriche GLOBALI = new Metriche();
+
+    private final IstogrammaLatenze addPrenotazione;
+
+    private final IstogrammaLatenze isFree;
+
+    private final IstogrammaLatenze cercaAuleLibere;
+
+    // Aule esaminate da ogni ricerca, dopo il filtro sulle facilities
+    private final IstogrammaLatenze auleEsaminate;
+
+    private final LongAdder accettate;
+
+    private final LongAdder rifiutate;
+
+    /**
+     * Crea metriche vuote, separate da quelle globali.
+     */
+    public Metriche() {
+        this.addPrenotazione = new IstogrammaLatenze("addPrenotazione");
+        this.isFree = new IstogrammaLatenze("isFree");
+        this.cercaAuleLibere = new IstogrammaLatenze("cercaAuleLibere");
+        this.auleEsaminate = new IstogrammaLatenze("auleEsaminate");
+        this.accettate = new LongAdder();
+        this.rifiutate = new LongAdder();
+    }
+
+    /**
+     * @return le metriche di questo processo
+     */
+    public static Metriche getGlobali() {
+        return GLOBALI;
+    }
+
+    /*
+     * Registra la durata di una chiamata di addPrenotazione iniziata
+     * all'istante inizio (di System.nanoTime) e il suo esito.
+     */
+    void addPrenotazione(long inizio, boolean accettata) {
+        addPrenotazione.registra(System.nanoTime() - inizio);
+        if (accettata)
+            accettate.increment();
+        else
+            rifiutate.increment();
+    }
+
+    /*
+     * Registra l'esito di un inserimento in blocco: le prenotazioni inserite
+     * e quelle in conflitto.
+     */
+    void prenotazioniInBlocco(int accettate, int rifiutate) {
+        this.accettate.add(accettate);
+        this.rifiutate.add(rifiutate);
+    }
+
+    /*
+     * Registra la durata di una chiamata di isFree iniziata all'istante
+     * inizio.
+     */
+    void isFree(long inizio) {
+        isFree.registra(System.nanoTime() - inizio);
+    }
+
+    /*
+     * Registra la durata di una ricerca iniziata all'istante inizio e il
+     * numero di aule che ha esaminato (0 se il risultato era nella cache).
+     */
+    void cercaAuleLibere(long inizio, int aule) {
+        cercaAuleLibere.registra(System.nanoTime() - inizio);
+        auleEsaminate.registra(aule);
+    }
+
+    /**
+     * Restituisce un'istantanea delle metriche senza fermare i thread che le
+     * aggiornano.
+     *
+     * @return un'istantanea delle metriche
+     */
+    public Istantanea istantanea() {
+        return new Istantanea(addPrenotazione.istantanea(),
+                isFree.istantanea(), cercaAuleLibere.istantanea(),
+                auleEsaminate.istantanea(), accettate.sum(), rifiutate.sum());
+    }
+
+    @Override
+    public String toString() {
+        return istantanea().toString();
+    }
+
+    /**
+     * Istantanea immutabile delle {@link Metriche}.
+     *
+     * @author Collettiva
+     *
+     */
+    public static final class Istantanea {
+
+        private final IstogrammaLatenze.Istantanea addPrenotazione;
+
+        private final IstogrammaLatenze.Istantanea isFree;
+
+        private final IstogrammaLatenze.Istantanea cercaAuleLibere;
+
+        private final IstogrammaLatenze.Istantanea auleEsaminate;
+
+        private final long accettate;
+
+        private final long rifiutate;
+
+        private Istantanea(IstogrammaLatenze.Istantanea addPrenotazione,
+                IstogrammaLatenze.Istantanea isFree,
+                IstogrammaLatenze.Istantanea cercaAuleLibere,
+                IstogrammaLatenze.Istantanea auleEsaminate, long accettate,
+                long rifiutate) {
+            this.addPrenotazione = addPrenotazione;
+            this.isFree = isFree;
+            this.cercaAuleLibere = cercaAuleLibere;
+            this.auleEsaminate = auleEsaminate;
+            this.accettate = accettate;
+            this.rifiutate = rifiutate;
+        }
+
+        /**
+         * @return le latenze di addPrenotazione, in nanosecondi
+         */
+        public IstogrammaLatenze.Istantanea getAddPrenotazione() {
+            return addPrenotazione;
+        }
+
+        /**
+         * @return le latenze di isFree, in nanosecondi
+         */
+        public IstogrammaLatenze.Istantanea getIsFree() {
+            return isFree;
+        }
+
+        /**
+         * @return le latenze di cercaAuleLibere, in nanosecondi
+         */
+        public IstogrammaLatenze.Istantanea getCercaAuleLibere() {
+            return cercaAuleLibere;
+        }
+
+        /**
+         * @return il numero di aule esaminate da ogni ricerca
+         */
+        public IstogrammaLatenze.Istantanea getAuleEsaminate() {
+            return auleEsaminate;
+        }
+
+        /**
+         * @return il numero di prenotazioni accettate da addPrenotazione e
+         *         da addPrenotazioniBatch
+         */
+        public long getPrenotazioniAccettate() {
+            return accettate;
+        }
+
+        /**
+         * @return il numero di prenotazioni rifiutate da addPrenotazione e
+         *         da addPrenotazioniBatch perché si sovrapponevano a
+         *         un'altra
+         */
+        public long getPrenotazioniRifiutate() {
+            return rifiutate;
+        }
+
+        /**
+         * Restituisce l'istantanea come testo, una riga per metrica.
+         */
+        @Override
+        public String toString() {
+            return addPrenotazione + "\n" + isFree + "\n" + cercaAuleLibere
+                    + "\n" + auleEsaminate + "\nprenotazioniAccettate "
+                    + accettate + "\nprenotazioniRifiutate " + rifiutate
+                    + "\n";
+        }
+    }
+
+}
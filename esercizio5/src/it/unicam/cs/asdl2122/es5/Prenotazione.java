@@ -10,8 +10,14 @@ public class Prenotazione implements Comparable<Prenotazione> {
 
     private final Aula aula;
 
-    private final TimeSlot timeSlot;
-
+    // L'intervallo è memorizzato in forma compatta, come due long: il
+    // TimeSlot con i due GregorianCalendar viene creato solo quando viene
+    // richiesto con getTimeSlot()
+    private final CompactTimeSlot timeSlot;
+
+    // Docente e motivo sono conservati come vengono passati: chi crea molte
+    // prenotazioni con le stesse stringhe (ImportatoreOrari) le condivide
+    // prima, e ArchivioFuoriHeap li codifica nel suo DizionarioStringhe
     private String docente;
 
     private String motivo;
@@ -46,11 +52,31 @@ public class Prenotazione implements Comparable<Prenotazione> {
             throw new NullPointerException(
                     "Tentativo di costruire una prenotazione senza motivo");
         this.aula = aula;
+        this.timeSlot = CompactTimeSlot.of(timeSlot);
+        this.docente = docente;
+        this.motivo = motivo;
+    }
+
+    private Prenotazione(Aula aula, CompactTimeSlot timeSlot, String docente,
+            String motivo) {
+        this.aula = aula;
         this.timeSlot = timeSlot;
         this.docente = docente;
         this.motivo = motivo;
     }
 
+    /*
+     * Costruisce una prenotazione da un time slot compatto, senza controlli e
+     * senza creare calendari: usato per le copie e da chi ricrea prenotazioni
+     * già controllate (ArchivioFuoriHeap, ImportatoreOrari). È un metodo e
+     * non un costruttore perché new Prenotazione(aula, null, d, m) resti non
+     * ambiguo.
+     */
+    static Prenotazione of(Aula aula, CompactTimeSlot timeSlot, String docente,
+            String motivo) {
+        return new Prenotazione(aula, timeSlot, docente, motivo);
+    }
+
     /**
      * @return the aula
      */
@@ -59,9 +85,18 @@ public class Prenotazione implements Comparable<Prenotazione> {
     }
 
     /**
-     * @return the timeSlot
+     * @return un nuovo time slot, con calendari nel fuso orario di default,
+     *         con l'inizio e la fine della prenotazione
      */
     public TimeSlot getTimeSlot() {
+        return timeSlot.toTimeSlot();
+    }
+
+    /**
+     * @return il time slot della prenotazione nella forma compatta in cui è
+     *         memorizzato
+     */
+    public CompactTimeSlot getCompactTimeSlot() {
         return timeSlot;
     }
 
@@ -144,7 +179,8 @@ public class Prenotazione implements Comparable<Prenotazione> {
     @Override
     public String toString() {
         return "Prenotazione [aula = " + aula + ", time slot =" + timeSlot
-                + ", docente=" + docente + ", motivo=" + motivo + "]";
+                + ", docente=" + getDocente() + ", motivo=" + getMotivo()
+                + "]";
     }
 
 }
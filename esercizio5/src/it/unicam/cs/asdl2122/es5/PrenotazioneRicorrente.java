@@ -0,0 +1,396 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Una prenotazione ricorrente riguarda una certa aula per una serie di time
+ * slot della stessa durata che si ripetono a intervalli regolari, ad esempio
+ * una lezione settimanale per tutto un semestre. Viene memorizzata come un
+ * solo oggetto (inizio e durata della prima occorrenza, periodo, numero di
+ * occorrenze ed eventuali eccezioni, cioè occorrenze saltate) invece che come
+ * tante {@link Prenotazione}: le occorrenze vengono create solo quando si
+ * scorre la serie, e i controlli di sovrapposizione si fanno con operazioni
+ * aritmetiche sugli istanti.
+ *
+ * Il periodo è una durata fissa: le occorrenze sono a distanza costante in
+ * millisecondi, per cui una serie settimanale che attraversa il cambio
+ * dell'ora legale si sposta di un'ora rispetto all'ora locale e va divisa in
+ * due serie.
+ *
+ * Gli oggetti della classe sono immutabili.
+ *
+ * @author Collettiva
+ *
+ */
+public final class PrenotazioneRicorrente implements Iterable<Prenotazione> {
+
+    private final Aula aula;
+
+    // Inizio della prima occorrenza in millisecondi dall'epoca
+    private final long inizio;
+
+    private final long durata;
+
+    private final long periodo;
+
+    private final int numero;
+
+    // Indici delle occorrenze saltate, ordinati e senza ripetizioni
+    private final int[] eccezioni;
+
+    private final String docente;
+
+    private final String motivo;
+
+    /**
+     * Costruisce una prenotazione ricorrente.
+     *
+     * @param aula
+     *                      l'aula a cui la prenotazione si riferisce
+     * @param primo
+     *                      il time slot della prima occorrenza
+     * @param periodo
+     *                      la distanza fra gli inizi di due occorrenze
+     *                      successive
+     * @param numero
+     *                      il numero di occorrenze, comprese le eccezioni
+     * @param eccezioni
+     *                      gli indici, a partire da 0, delle occorrenze da
+     *                      saltare, ad esempio per le festività
+     * @param docente
+     *                      il nome del docente che ha prenotato l'aula
+     * @param motivo
+     *                      il motivo della prenotazione
+     * @throws NullPointerException
+     *                                      se uno qualsiasi degli oggetti
+     *                                      passati è null
+     * @throws IllegalArgumentException
+     *                                      se il numero di occorrenze non è
+     *                                      positivo, se il periodo è minore
+     *                                      della durata di un'occorrenza
+     *                                      (le occorrenze si sovrapporrebbero)
+     *                                      oppure se un'eccezione non è
+     *                                      l'indice di un'occorrenza
+     */
+    public PrenotazioneRicorrente(Aula aula, TimeSlot primo, Duration periodo,
+            int numero, Set<Integer> eccezioni, String docente,
+            String motivo) {
+        if (aula == null || primo == null || periodo == null
+                || eccezioni == null || docente == null || motivo == null)
+            throw new NullPointerException(
+                    "Tentativo di costruire una prenotazione ricorrente con informazioni nulle");
+        this.inizio = primo.getStart().getTimeInMillis();
+        this.durata = primo.getStop().getTimeInMillis() - inizio;
+        this.periodo = periodo.toMillis();
+        if (numero <= 0)
+            throw new IllegalArgumentException(
+                    "Il numero di occorrenze deve essere positivo");
+        if (this.periodo < durata)
+            throw new IllegalArgumentException(
+                    "Il periodo è minore della durata di un'occorrenza");
+        this.eccezioni = new int[eccezioni.size()];
+        int i = 0;
+        for (Integer e : new TreeSet<Integer>(eccezioni)) {
+            if (e < 0 || e >= numero)
+                throw new IllegalArgumentException(
+                        "Eccezione non valida: " + e);
+            this.eccezioni[i++] = e;
+        }
+        this.aula = aula;
+        this.numero = numero;
+        this.docente = docente;
+        this.motivo = motivo;
+    }
+
+    /*
+     * Costruttore usato per ripristinare una serie da un registro o da una
+     * fotografia, con i valori già in millisecondi. Le eccezioni devono essere
+     * ordinate e valide.
+     */
+    PrenotazioneRicorrente(Aula aula, long inizio, long durata, long periodo,
+            int numero, int[] eccezioni, String docente, String motivo) {
+        if (durata <= 0 || numero <= 0 || periodo < durata)
+            throw new IllegalArgumentException(
+                    "Prenotazione ricorrente non valida");
+        for (int i = 0; i < eccezioni.length; i++)
+            if (eccezioni[i] < 0 || eccezioni[i] >= numero
+                    || (i > 0 && eccezioni[i] <= eccezioni[i - 1]))
+                throw new IllegalArgumentException(
+                        "Eccezioni non valide");
+        this.aula = aula;
+        this.inizio = inizio;
+        this.durata = durata;
+        this.periodo = periodo;
+        this.numero = numero;
+        this.eccezioni = eccezioni.clone();
+        this.docente = docente;
+        this.motivo = motivo;
+    }
+
+    /**
+     * @return the aula
+     */
+    public Aula getAula() {
+        return aula;
+    }
+
+    /**
+     * @return il time slot della prima occorrenza, anche se è un'eccezione
+     */
+    public TimeSlot getPrimoTimeSlot() {
+        return getTimeSlot(0);
+    }
+
+    /**
+     * @return la distanza fra gli inizi di due occorrenze successive
+     */
+    public Duration getPeriodo() {
+        return Duration.ofMillis(periodo);
+    }
+
+    /**
+     * @return il numero di occorrenze, comprese le eccezioni
+     */
+    public int getNumero() {
+        return numero;
+    }
+
+    /**
+     * @return gli indici delle occorrenze saltate, in sola lettura
+     */
+    public SortedSet<Integer> getEccezioni() {
+        SortedSet<Integer> s = new TreeSet<Integer>();
+        for (int e : eccezioni)
+            s.add(e);
+        return Collections.unmodifiableSortedSet(s);
+    }
+
+    /**
+     * @return the docente
+     */
+    public String getDocente() {
+        return docente;
+    }
+
+    /**
+     * @return the motivo
+     */
+    public String getMotivo() {
+        return motivo;
+    }
+
+    /**
+     * Determina se l'occorrenza di indice dato fa parte della serie, cioè se
+     * non è un'eccezione.
+     *
+     * @param k
+     *              l'indice dell'occorrenza
+     * @return true se l'occorrenza fa parte della serie
+     * @throws IndexOutOfBoundsException
+     *                                       se k non è compreso fra 0 e
+     *                                       getNumero() - 1
+     */
+    public boolean isOccorrenza(int k) {
+        if (k < 0 || k >= numero)
+            throw new IndexOutOfBoundsException("Occorrenza " + k);
+        return Arrays.binarySearch(eccezioni, k) < 0;
+    }
+
+    /**
+     * Restituisce il time slot dell'occorrenza di indice dato, anche se è
+     * un'eccezione.
+     *
+     * @param k
+     *              l'indice dell'occorrenza
+     * @return il time slot dell'occorrenza
+     * @throws IndexOutOfBoundsException
+     *                                       se k non è compreso fra 0 e
+     *                                       getNumero() - 1
+     */
+    public TimeSlot getTimeSlot(int k) {
+        if (k < 0 || k >= numero)
+            throw new IndexOutOfBoundsException("Occorrenza " + k);
+        GregorianCalendar g1 = new GregorianCalendar();
+        g1.setTimeInMillis(inizioOccorrenza(k));
+        GregorianCalendar g2 = new GregorianCalendar();
+        g2.setTimeInMillis(inizioOccorrenza(k) + durata);
+        return new TimeSlot(g1, g2);
+    }
+
+    /**
+     * Restituisce un iteratore sulle occorrenze della serie, eccezioni
+     * escluse, in ordine di tempo. Le prenotazioni vengono create una per
+     * volta, man mano che si scorre l'iteratore.
+     */
+    @Override
+    public Iterator<Prenotazione> iterator() {
+        return new Iterator<Prenotazione>() {
+            private int prossima = successiva(0);
+
+            @Override
+            public boolean hasNext() {
+                return prossima < numero;
+            }
+
+            @Override
+            public Prenotazione next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Prenotazione p = new Prenotazione(aula, getTimeSlot(prossima),
+                        docente, motivo);
+                prossima = successiva(prossima + 1);
+                return p;
+            }
+        };
+    }
+
+    /*
+     * Indice della prima occorrenza, a partire da k, che non è un'eccezione;
+     * numero se non ce ne sono.
+     */
+    private int successiva(int k) {
+        while (k < numero && Arrays.binarySearch(eccezioni, k) >= 0)
+            k++;
+        return k;
+    }
+
+    long inizioOccorrenza(int k) {
+        return inizio + k * periodo;
+    }
+
+    long getInizioMillis() {
+        return inizio;
+    }
+
+    long getDurataMillis() {
+        return durata;
+    }
+
+    long getPeriodoMillis() {
+        return periodo;
+    }
+
+    int[] eccezioni() {
+        return eccezioni.clone();
+    }
+
+    /*
+     * Fine dell'ultima occorrenza, eccezione o no.
+     */
+    long getFineMillis() {
+        return inizioOccorrenza(numero - 1) + durata;
+    }
+
+    /*
+     * Restituisce l'indice della prima occorrenza, eccezioni escluse, che si
+     * sovrappone (secondo TimeSlot.overlapsWith) all'intervallo [a, b) in
+     * millisecondi, oppure -1 se non ce ne sono. Gli indici delle occorrenze
+     * che possono intersecare [a, b) si calcolano con una divisione.
+     */
+    int primaOccorrenzaSovrapposta(long a, long b) {
+        // s_k + durata > a e s_k < b
+        long kMin = Math.max(0, Math.floorDiv(a - durata - inizio, periodo) + 1);
+        long kMax = Math.min(numero - 1, Math.floorDiv(b - 1 - inizio, periodo));
+        for (long k = kMin; k <= kMax; k++) {
+            long s = inizio + k * periodo;
+            if (CompactTimeSlot.overlaps(s, s + durata, a, b)
+                    && Arrays.binarySearch(eccezioni, (int) k) < 0)
+                return (int) k;
+        }
+        return -1;
+    }
+
+    /*
+     * Determina se un'occorrenza di questa serie si sovrappone a
+     * un'occorrenza di un'altra serie. Se le due serie hanno lo stesso periodo
+     * la distanza fra le occorrenze i e i + m è costante per ogni i, per cui
+     * basta esaminare i pochi valori di m per cui le occorrenze possono
+     * intersecarsi e cercare un i valido per entrambe; altrimenti si scorrono
+     * insieme le due serie, come nella fusione di due liste ordinate.
+     */
+    boolean siSovrapponeA(PrenotazioneRicorrente o) {
+        if (getFineMillis() <= o.inizio || o.getFineMillis() <= inizio)
+            return false;
+        if (periodo == o.periodo) {
+            long delta = o.inizio - inizio;
+            // L'occorrenza i + m di o inizia in delta + m * periodo rispetto
+            // all'occorrenza i di questa serie: serve -o.durata < differenza <
+            // durata
+            long mMin = Math.floorDiv(-o.durata - delta, periodo) + 1;
+            long mMax = Math.floorDiv(durata - 1 - delta, periodo);
+            for (long m = mMin; m <= mMax; m++) {
+                long differenza = delta + m * periodo;
+                if (!CompactTimeSlot.overlaps(0, durata, differenza,
+                        differenza + o.durata))
+                    continue;
+                long iMin = Math.max(0, -m);
+                long iMax = Math.min(numero - 1, o.numero - 1 - m);
+                // Le eccezioni sono poche: il primo i valido si trova in al
+                // più eccezioni.length + o.eccezioni.length + 1 passi
+                for (long i = iMin; i <= iMax; i++)
+                    if (Arrays.binarySearch(eccezioni, (int) i) < 0 && Arrays
+                            .binarySearch(o.eccezioni, (int) (i + m)) < 0)
+                        return true;
+            }
+            return false;
+        }
+        int i = successiva(0);
+        int j = o.successiva(0);
+        while (i < numero && j < o.numero) {
+            long s1 = inizioOccorrenza(i);
+            long s2 = o.inizioOccorrenza(j);
+            if (CompactTimeSlot.overlaps(s1, s1 + durata, s2, s2 + o.durata))
+                return true;
+            // Avanza la serie la cui occorrenza corrente finisce prima
+            if (s1 + durata <= s2 + o.durata)
+                i = successiva(i + 1);
+            else
+                j = o.successiva(j + 1);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + aula.hashCode();
+        result = prime * result + Long.hashCode(inizio);
+        result = prime * result + Long.hashCode(durata);
+        return result;
+    }
+
+    /*
+     * Due prenotazioni ricorrenti sono uguali se riguardano la stessa aula e
+     * hanno la stessa prima occorrenza: nella stessa aula non possono esistere
+     * due serie diverse con la stessa prima occorrenza.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof PrenotazioneRicorrente))
+            return false;
+        PrenotazioneRicorrente other = (PrenotazioneRicorrente) obj;
+        return aula.equals(other.aula) && inizio == other.inizio
+                && durata == other.durata;
+    }
+
+    @Override
+    public String toString() {
+        return "PrenotazioneRicorrente [aula = " + aula + ", primo time slot ="
+                + getPrimoTimeSlot() + ", periodo=" + getPeriodo()
+                + ", numero=" + numero + ", eccezioni="
+                + Arrays.toString(eccezioni) + ", docente=" + docente
+                + ", motivo=" + motivo + "]";
+    }
+
+}
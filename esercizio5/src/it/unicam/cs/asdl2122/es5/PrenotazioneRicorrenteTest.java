@@ -0,0 +1,237 @@
+package it.unicam.cs.asdl2122.es5;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Classe di test per PrenotazioneRicorrente e per le prenotazioni ricorrenti
+ * di Aula
+ *
+ * @author Collettiva
+ *
+ */
+class PrenotazioneRicorrenteTest {
+
+    private static TimeSlot slot(int giorno, int ora, int oraFine) {
+        return new TimeSlot(new GregorianCalendar(2019, 10, giorno, ora, 0),
+                new GregorianCalendar(2019, 10, giorno, oraFine, 0));
+    }
+
+    private static TimeSlot slot(long inizio, long fine) {
+        GregorianCalendar g1 = new GregorianCalendar();
+        g1.setTimeInMillis(inizio);
+        GregorianCalendar g2 = new GregorianCalendar();
+        g2.setTimeInMillis(fine);
+        return new TimeSlot(g1, g2);
+    }
+
+    private static Set<Integer> insieme(int... valori) {
+        Set<Integer> s = new HashSet<Integer>();
+        for (int v : valori)
+            s.add(v);
+        return s;
+    }
+
+    @Test
+    final void testCostruttore() {
+        Aula a = new Aula("LA1", "");
+        Duration settimana = Duration.ofDays(7);
+        assertThrows(NullPointerException.class,
+                () -> new PrenotazioneRicorrente(null, slot(4, 9, 11),
+                        settimana, 3, insieme(), "", ""));
+        assertThrows(NullPointerException.class,
+                () -> new PrenotazioneRicorrente(a, slot(4, 9, 11), null, 3,
+                        insieme(), "", ""));
+        assertThrows(NullPointerException.class,
+                () -> new PrenotazioneRicorrente(a, slot(4, 9, 11), settimana,
+                        3, null, "", ""));
+        assertThrows(IllegalArgumentException.class,
+                () -> new PrenotazioneRicorrente(a, slot(4, 9, 11), settimana,
+                        0, insieme(), "", ""));
+        // Le occorrenze si sovrapporrebbero
+        assertThrows(IllegalArgumentException.class,
+                () -> new PrenotazioneRicorrente(a, slot(4, 9, 11),
+                        Duration.ofHours(1), 3, insieme(), "", ""));
+        assertThrows(IllegalArgumentException.class,
+                () -> new PrenotazioneRicorrente(a, slot(4, 9, 11), settimana,
+                        3, insieme(3), "", ""));
+        PrenotazioneRicorrente r = new PrenotazioneRicorrente(a,
+                slot(4, 9, 11), settimana, 3, insieme(1), "Luca Tesei",
+                "Lezione ASDL");
+        assertEquals(slot(4, 9, 11), r.getPrimoTimeSlot());
+        assertEquals(slot(18, 9, 11), r.getTimeSlot(2));
+        assertEquals(insieme(1), r.getEccezioni());
+        assertTrue(r.isOccorrenza(0));
+        assertFalse(r.isOccorrenza(1));
+        assertThrows(IndexOutOfBoundsException.class, () -> r.getTimeSlot(3));
+        // L'uguaglianza dipende solo da aula e prima occorrenza
+        assertEquals(r, new PrenotazioneRicorrente(a, slot(4, 9, 11),
+                Duration.ofDays(1), 1, insieme(), "", ""));
+        assertNotEquals(r, new PrenotazioneRicorrente(a, slot(4, 9, 12),
+                settimana, 3, insieme(1), "", ""));
+    }
+
+    @Test
+    final void testIterator() {
+        Aula a = new Aula("LA1", "");
+        PrenotazioneRicorrente r = new PrenotazioneRicorrente(a,
+                slot(4, 9, 11), Duration.ofDays(7), 4, insieme(0, 2),
+                "Luca Tesei", "Lezione ASDL");
+        Iterator<Prenotazione> it = r.iterator();
+        assertTrue(it.hasNext());
+        Prenotazione p = it.next();
+        assertEquals(new Prenotazione(a, slot(11, 9, 11), "", ""), p);
+        assertEquals("Lezione ASDL", p.getMotivo());
+        assertEquals(new Prenotazione(a, slot(25, 9, 11), "", ""), it.next());
+        assertFalse(it.hasNext());
+        assertThrows(NoSuchElementException.class, () -> it.next());
+        PrenotazioneRicorrente tutteEccezioni = new PrenotazioneRicorrente(a,
+                slot(4, 9, 11), Duration.ofDays(7), 2, insieme(0, 1), "", "");
+        assertFalse(tutteEccezioni.iterator().hasNext());
+    }
+
+    @Test
+    final void testAulaIsFree() {
+        Aula a = new Aula("LA1", "");
+        a.addPrenotazione(slot(5, 9, 11), "", "");
+        PrenotazioneRicorrente r = a.addPrenotazioneRicorrente(slot(4, 9, 11),
+                Duration.ofDays(7), 3, insieme(1), "Luca Tesei", "Lezione");
+        assertEquals(1, a.getPrenotazioni().size());
+        assertEquals(1, a.getPrenotazioniRicorrenti().size());
+        assertFalse(a.isFree(slot(4, 10, 12)));
+        assertFalse(a.isFree(slot(18, 8, 10)));
+        // L'eccezione è libera
+        assertTrue(a.isFree(slot(11, 9, 11)));
+        a.addPrenotazione(slot(11, 9, 11), "", "");
+        // Tolleranza di sovrapposizione come per le prenotazioni singole
+        assertTrue(a.isFree(new TimeSlot(
+                new GregorianCalendar(2019, 10, 18, 10, 55),
+                new GregorianCalendar(2019, 10, 18, 12, 0))));
+        assertThrows(IllegalArgumentException.class,
+                () -> a.addPrenotazione(slot(18, 10, 12), "", ""));
+        // Una serie che si sovrappone a una prenotazione singola
+        assertThrows(IllegalArgumentException.class,
+                () -> a.addPrenotazioneRicorrente(slot(3, 10, 12),
+                        Duration.ofDays(2), 5, insieme(), "", ""));
+        // Una serie che si sovrappone a un'altra serie
+        assertThrows(IllegalArgumentException.class,
+                () -> a.addPrenotazioneRicorrente(slot(4, 10, 12),
+                        Duration.ofDays(14), 2, insieme(), "", ""));
+        assertEquals(1, a.getPrenotazioniRicorrenti().size());
+        // Saltando l'occorrenza in conflitto la serie è accettata
+        a.addPrenotazioneRicorrente(slot(3, 10, 12), Duration.ofDays(2), 5,
+                insieme(1, 4), "", "");
+        assertEquals(2, a.getPrenotazioniRicorrenti().size());
+        assertTrue(a.removePrenotazioneRicorrente(r));
+        assertFalse(a.removePrenotazioneRicorrente(r));
+        assertTrue(a.isFree(slot(18, 8, 10)));
+        assertThrows(NullPointerException.class,
+                () -> a.removePrenotazioneRicorrente(null));
+    }
+
+    @Test
+    final void testIteratorOccorrenze() {
+        Aula a = new Aula("LA1", "");
+        a.addPrenotazione(slot(5, 9, 11), "", "");
+        a.addPrenotazione(slot(20, 9, 11), "", "");
+        a.addPrenotazioneRicorrente(slot(4, 9, 11), Duration.ofDays(7), 3,
+                insieme(1), "", "");
+        a.addPrenotazioneRicorrente(slot(4, 14, 16), Duration.ofDays(1), 3,
+                insieme(), "", "");
+        List<Prenotazione> attese = new ArrayList<Prenotazione>();
+        attese.add(new Prenotazione(a, slot(4, 9, 11), "", ""));
+        attese.add(new Prenotazione(a, slot(4, 14, 16), "", ""));
+        attese.add(new Prenotazione(a, slot(5, 9, 11), "", ""));
+        attese.add(new Prenotazione(a, slot(5, 14, 16), "", ""));
+        attese.add(new Prenotazione(a, slot(6, 14, 16), "", ""));
+        attese.add(new Prenotazione(a, slot(18, 9, 11), "", ""));
+        attese.add(new Prenotazione(a, slot(20, 9, 11), "", ""));
+        List<Prenotazione> trovate = new ArrayList<Prenotazione>();
+        Iterator<Prenotazione> it = a.iteratorOccorrenze();
+        while (it.hasNext())
+            trovate.add(it.next());
+        assertEquals(attese, trovate);
+        assertThrows(NoSuchElementException.class, () -> it.next());
+        assertFalse(new Aula("VUOTA", "").iteratorOccorrenze().hasNext());
+    }
+
+    @Test
+    final void testFindFirstFreeSlot() {
+        Aula a = new Aula("LA1", "");
+        a.addPrenotazioneRicorrente(slot(4, 9, 11), Duration.ofDays(1), 5,
+                insieme(), "", "");
+        a.addPrenotazione(slot(4, 11, 13), "", "");
+        // Subito dopo la prenotazione singola, che segue l'occorrenza
+        assertEquals(
+                new TimeSlot(new GregorianCalendar(2019, 10, 4, 12, 55),
+                        new GregorianCalendar(2019, 10, 4, 14, 55)),
+                a.findFirstFreeSlot(new GregorianCalendar(2019, 10, 4, 9, 0),
+                        Duration.ofHours(2)));
+        // Una durata che non entra fra due occorrenze
+        a.addPrenotazioneRicorrente(slot(4, 13, 23), Duration.ofDays(1), 5,
+                insieme(), "", "");
+        assertEquals(
+                new TimeSlot(new GregorianCalendar(2019, 10, 8, 22, 55),
+                        new GregorianCalendar(2019, 10, 9, 9, 55)),
+                a.findFirstFreeSlot(new GregorianCalendar(2019, 10, 4, 0, 0),
+                        Duration.ofHours(11)));
+    }
+
+    /*
+     * Confronta il controllo aritmetico di sovrapposizione fra due serie con
+     * il confronto di tutte le coppie di occorrenze, con periodi uguali e
+     * diversi.
+     */
+    @Test
+    final void testSovrapposizioneCasuale() {
+        Random caso = new Random(16);
+        Aula a = new Aula("LA1", "");
+        long base = new GregorianCalendar(2019, 10, 4, 8, 0).getTimeInMillis();
+        long minuto = 60000L;
+        for (int prova = 0; prova < 3000; prova++) {
+            PrenotazioneRicorrente[] r = new PrenotazioneRicorrente[2];
+            for (int i = 0; i < 2; i++) {
+                long durata = (1 + caso.nextInt(120)) * minuto;
+                long periodo = durata + caso.nextInt(3) * 60 * minuto;
+                long inizio = base + caso.nextInt(600) * minuto;
+                int numero = 1 + caso.nextInt(8);
+                Set<Integer> eccezioni = new HashSet<Integer>();
+                for (int k = 0; k < numero; k++)
+                    if (caso.nextInt(4) == 0)
+                        eccezioni.add(k);
+                r[i] = new PrenotazioneRicorrente(a,
+                        slot(inizio, inizio + durata), Duration.ofMillis(periodo),
+                        numero, eccezioni, "", "");
+            }
+            boolean attesa = false;
+            for (Prenotazione p : r[0])
+                for (Prenotazione q : r[1])
+                    attesa |= p.getTimeSlot().overlapsWith(q.getTimeSlot());
+            assertEquals(attesa, r[0].siSovrapponeA(r[1]), r[0] + " " + r[1]);
+            assertEquals(attesa, r[1].siSovrapponeA(r[0]), r[0] + " " + r[1]);
+            // isFree di un'aula che contiene solo la prima serie
+            Aula b = new Aula("B", "");
+            b.addPrenotazioneRicorrente(r[0].getPrimoTimeSlot(),
+                    r[0].getPeriodo(), r[0].getNumero(), r[0].getEccezioni(),
+                    "", "");
+            long inizio = base + caso.nextInt(900) * minuto;
+            TimeSlot ts = slot(inizio, inizio + (1 + caso.nextInt(90)) * minuto);
+            boolean libera = true;
+            for (Prenotazione p : r[0])
+                libera &= !p.getTimeSlot().overlapsWith(ts);
+            assertEquals(libera, b.isFree(ts));
+        }
+    }
+
+}
@@ -104,6 +104,24 @@ class PrenotazioneTest {
         assertEquals(ts2, p1.getTimeSlot());
     }
 
+    @Test
+    final void testGetCompactTimeSlot() {
+        GregorianCalendar g1 = new GregorianCalendar(2019, 10, 4, 11, 00);
+        GregorianCalendar g2 = new GregorianCalendar(2019, 10, 4, 13, 00);
+        Prenotazione p1 = new Prenotazione(a, new TimeSlot(g1, g2),
+                "Luca Tesei", "Lezione ASDL");
+        assertEquals(new CompactTimeSlot(g1.getTimeInMillis(),
+                g2.getTimeInMillis()), p1.getCompactTimeSlot());
+        // Il time slot è memorizzato in forma compatta: modificare i
+        // calendari passati o quelli restituiti non cambia la prenotazione
+        g1.add(Calendar.HOUR_OF_DAY, 1);
+        p1.getTimeSlot().getStop().add(Calendar.HOUR_OF_DAY, 1);
+        assertEquals(new TimeSlot(new GregorianCalendar(2019, 10, 4, 11, 00),
+                new GregorianCalendar(2019, 10, 4, 13, 00)),
+                p1.getTimeSlot());
+        assertNotSame(p1.getTimeSlot(), p1.getTimeSlot());
+    }
+
     /**
      * Test method for
      * {@link it.unicam.cs.asdl1920.mp1.Prenotazione#getDocente()}.
@@ -187,18 +205,24 @@ class PrenotazioneTest {
         // p2 inizia prima di p1
         assertTrue(p1.compareTo(p2) > 0);
         assertTrue(p2.compareTo(p1) < 0);
+        // La prenotazione copia il time slot: dopo aver modificato i
+        // calendari le prenotazioni vanno ricreate
         g3.roll(Calendar.HOUR_OF_DAY, 1);
+        p2 = new Prenotazione(new Aula("M1","Pippo"), new TimeSlot(g3, g4), "CC", "DD");
+        p3 = new Prenotazione(a, new TimeSlot(g3, g4), "CC", "DD");
         // ts2 == ts1, aula di p1 precede aula di p2
         assertTrue(p1.compareTo(p2) < 0);
         assertTrue(p2.compareTo(p1) > 0);
         // p1 == p3
         assertTrue(p1.compareTo(p3) == 0);
         g3.roll(Calendar.HOUR_OF_DAY, 1);
+        p2 = new Prenotazione(new Aula("M1","Pippo"), new TimeSlot(g3, g4), "CC", "DD");
         // p2 inizia dopo p1
         assertTrue(p1.compareTo(p2) < 0);
         assertTrue(p2.compareTo(p1) > 0);
         // p2 inizia dopo p1
         g4.roll(Calendar.HOUR_OF_DAY, 1);
+        p2 = new Prenotazione(new Aula("M1","Pippo"), new TimeSlot(g3, g4), "CC", "DD");
         assertTrue(p2.compareTo(p1) > 0);
         assertTrue(p1.compareTo(p2) < 0);
     }
@@ -0,0 +1,210 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro, comune a tutto il processo, delle facilities di tipo
+ * {@link PresenceFacility} e {@link QuantitativeFacility}. Ogni coppia (tipo,
+ * codice) riceve un identificativo intero, assegnato in modo denso a partire
+ * da 0, che le aule usano per memorizzare le proprie facilities come coppie
+ * (identificativo, quantità) e per controllare una richiesta confrontando
+ * interi invece di codici (vedi {@link Aula#satisfiesFacilities(Set)}). Due
+ * facilities con lo stesso codice ma di tipo diverso hanno identificativi
+ * diversi, perché non si soddisfano a vicenda.
+ *
+ * Il registro conserva anche un'istanza canonica per ogni facility distinta
+ * (stesso tipo, codice, descrizione e quantità), così che le aule di un polo
+ * con le stesse dotazioni condividano gli stessi oggetti. Le facilities di
+ * altri tipi, sottoclassi comprese, non vengono registrate e sono
+ * controllate con {@link Facility#satisfies(Facility)}.
+ *
+ * Il registro è thread-safe; gli identificativi non vengono mai riusati.
+ *
+ * @author Collettiva
+ *
+ */
+public final class RegistroFacilities {
+
+    private static final RegistroFacilities GLOBALE = new RegistroFacilities();
+
+    // Identificativi per tipo e codice
+    private final ConcurrentHashMap<String, Integer> identificativi;
+
+    // Codici per identificativo, protetti dal lock di questo oggetto
+    private final List<String> codici;
+
+    // Istanze canoniche per tipo, codice, descrizione e quantità
+    private final ConcurrentHashMap<String, Facility> canoniche;
+
+    RegistroFacilities() {
+        this.identificativi = new ConcurrentHashMap<String, Integer>();
+        this.codici = new ArrayList<String>();
+        this.canoniche = new ConcurrentHashMap<String, Facility>();
+    }
+
+    /**
+     * @return il registro di questo processo
+     */
+    public static RegistroFacilities getGlobale() {
+        return GLOBALE;
+    }
+
+    /*
+     * Tipo e codice della facility, oppure null se non è di un tipo che il
+     * registro conosce.
+     */
+    private static String chiave(Facility f) {
+        if (f.getClass() == PresenceFacility.class)
+            return "P " + f.getCodice();
+        if (f.getClass() == QuantitativeFacility.class)
+            return "Q " + f.getCodice();
+        return null;
+    }
+
+    /**
+     * Restituisce l'identificativo della facility, assegnandone uno nuovo se
+     * il suo tipo e il suo codice non sono ancora stati registrati.
+     *
+     * @param f
+     *              la facility
+     * @return l'identificativo della facility, oppure -1 se non è di un tipo
+     *         che il registro conosce
+     * @throws NullPointerException
+     *                                  se la facility è nulla
+     */
+    public int registra(Facility f) {
+        String k = chiave(f);
+        if (k == null)
+            return -1;
+        Integer id = identificativi.get(k);
+        if (id != null)
+            return id;
+        synchronized (this) {
+            id = identificativi.get(k);
+            if (id == null) {
+                id = codici.size();
+                codici.add(f.getCodice());
+                identificativi.put(k, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Restituisce l'identificativo della facility senza registrarla.
+     *
+     * @param f
+     *              la facility
+     * @return l'identificativo della facility, oppure -1 se non è registrata
+     *         o non è di un tipo che il registro conosce
+     * @throws NullPointerException
+     *                                  se la facility è nulla
+     */
+    public int cerca(Facility f) {
+        String k = chiave(f);
+        if (k == null)
+            return -1;
+        Integer id = identificativi.get(k);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param id
+     *               un identificativo assegnato dal registro
+     * @return il codice delle facilities con quell'identificativo
+     * @throws IndexOutOfBoundsException
+     *                                       se l'identificativo non è stato
+     *                                       assegnato
+     */
+    public synchronized String getCodice(int id) {
+        return codici.get(id);
+    }
+
+    /**
+     * @return il numero di identificativi assegnati
+     */
+    public synchronized int getDimensione() {
+        return codici.size();
+    }
+
+    /*
+     * Restituisce l'istanza canonica di una facility registrabile, uguale in
+     * tipo, codice, descrizione e quantità a quella data, oppure la facility
+     * stessa se non è di un tipo che il registro conosce.
+     */
+    Facility canonica(Facility f) {
+        String k = chiave(f);
+        if (k == null)
+            return f;
+        k += "\t" + f.getDescrizione();
+        if (f instanceof QuantitativeFacility)
+            k += "\t" + ((QuantitativeFacility) f).getQuantity();
+        Facility c = canoniche.putIfAbsent(k, f);
+        return c == null ? f : c;
+    }
+
+    /*
+     * Quantità memorizzata per una facility registrata: la quantità per le
+     * facilities quantitative, 0 per quelle di presenza.
+     */
+    static int quantita(Facility f) {
+        return f instanceof QuantitativeFacility
+                ? ((QuantitativeFacility) f).getQuantity()
+                : 0;
+    }
+
+    /*
+     * Traduce un insieme di facilities richieste, una volta per ricerca, in
+     * una Richiesta che le aule controllano confrontando interi. Restituisce
+     * null se una facility non è di un tipo che il registro conosce: in quel
+     * caso la richiesta va controllata con satisfies.
+     */
+    Richiesta richiesta(Set<Facility> facilities) {
+        long[] coppie = new long[facilities.size()];
+        int n = 0;
+        boolean impossibile = false;
+        for (Facility f : facilities) {
+            if (chiave(f) == null)
+                return null;
+            int id = cerca(f);
+            // Una facility mai registrata non appartiene a nessuna aula
+            if (id < 0)
+                impossibile = true;
+            else
+                coppie[n++] = ((long) id << 32)
+                        | (quantita(f) & 0xFFFFFFFFL);
+        }
+        Arrays.sort(coppie, 0, n);
+        int[] ids = new int[n];
+        int[] minimi = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = (int) (coppie[i] >>> 32);
+            minimi[i] = (int) coppie[i];
+        }
+        return new Richiesta(ids, minimi, impossibile);
+    }
+
+    /*
+     * Facilities richieste tradotte in identificativi, in ordine crescente,
+     * con le quantità minime (0 per le facilities di presenza).
+     */
+    static final class Richiesta {
+        final int[] ids;
+
+        final int[] minimi;
+
+        // Vale se è richiesta una facility che nessuna aula ha
+        final boolean impossibile;
+
+        Richiesta(int[] ids, int[] minimi, boolean impossibile) {
+            this.ids = ids;
+            this.minimi = minimi;
+            this.impossibile = impossibile;
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package it.unicam.cs.asdl2122.es5;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Classe di test per RegistroFacilities e per il suo uso in Aula
+ *
+ * @author Collettiva
+ *
+ */
+class RegistroFacilitiesTest {
+
+    /*
+     * Facility di un tipo che il registro non conosce: soddisfa qualsiasi
+     * richiesta con il proprio codice.
+     */
+    private static final class Jolly extends PresenceFacility {
+        Jolly(String codice) {
+            super(codice, "");
+        }
+
+        @Override
+        public boolean satisfies(Facility o) {
+            return getCodice().equals(o.getCodice());
+        }
+    }
+
+    @Test
+    final void testRegistra() {
+        RegistroFacilities r = new RegistroFacilities();
+        assertEquals(0, r.getDimensione());
+        assertEquals(-1, r.cerca(new PresenceFacility("HDMI", "")));
+        assertEquals(0, r.registra(new PresenceFacility("HDMI", "")));
+        // La descrizione e la quantità non contano, il tipo sì
+        assertEquals(0, r.registra(new PresenceFacility("HDMI", "Cavo")));
+        assertEquals(1, r.registra(new QuantitativeFacility("HDMI", "", 2)));
+        assertEquals(1, r.cerca(new QuantitativeFacility("HDMI", "", 5)));
+        assertEquals(2, r.registra(new QuantitativeFacility("POSTI", "", 80)));
+        assertEquals(-1, r.registra(new Jolly("HDMI")));
+        assertEquals(-1, r.cerca(new Jolly("HDMI")));
+        assertEquals(3, r.getDimensione());
+        assertEquals("POSTI", r.getCodice(2));
+        assertThrows(IndexOutOfBoundsException.class, () -> r.getCodice(3));
+        assertThrows(NullPointerException.class, () -> r.registra(null));
+    }
+
+    @Test
+    final void testCanonica() {
+        // Aule con le stesse dotazioni condividono le stesse istanze
+        Aula a = new Aula("LA1", "");
+        Aula b = new Aula("LA2", "");
+        a.addFacility(new QuantitativeFacility("POSTI-T", "Posti", 80));
+        b.addFacility(new QuantitativeFacility("POSTI-T", "Posti", 80));
+        assertSame(a.getFacilities().iterator().next(),
+                b.getFacilities().iterator().next());
+        Aula c = new Aula("LA3", "");
+        c.addFacility(new QuantitativeFacility("POSTI-T", "Posti", 40));
+        assertNotSame(a.getFacilities().iterator().next(),
+                c.getFacilities().iterator().next());
+        // L'insieme restituito non si può modificare
+        assertThrows(UnsupportedOperationException.class,
+                () -> a.getFacilities().add(new PresenceFacility("X", "")));
+        Iterator<Facility> it = a.getFacilities().iterator();
+        it.next();
+        assertThrows(UnsupportedOperationException.class, () -> it.remove());
+        assertFalse(a.addFacility(new PresenceFacility("POSTI-T", "")));
+        assertEquals(1, a.getFacilities().size());
+    }
+
+    @Test
+    final void testFacilitiesNonRegistrate() {
+        Aula a = new Aula("LA1", "");
+        a.addFacility(new Jolly("LAVAGNA-J"));
+        Set<Facility> richieste = new HashSet<Facility>();
+        richieste.add(new QuantitativeFacility("LAVAGNA-J", "", 3));
+        assertTrue(a.satisfiesFacilities(richieste));
+        richieste.add(new PresenceFacility("MAI-VISTA-J", ""));
+        assertFalse(a.satisfiesFacilities(richieste));
+        Aula b = new Aula("LA2", "");
+        b.addFacility(new PresenceFacility("LAVAGNA-J", ""));
+        richieste.clear();
+        richieste.add(new Jolly("LAVAGNA-J"));
+        assertTrue(b.satisfiesFacilities(richieste));
+    }
+
+    /*
+     * Confronta satisfiesFacilities sugli identificativi con il controllo
+     * tramite satisfies, su aule e richieste casuali.
+     */
+    @Test
+    final void testSatisfiesCasuale() {
+        Random caso = new Random(22);
+        String[] codici = { "C0", "C1", "C2", "C3", "C4", "C5" };
+        for (int prova = 0; prova < 2000; prova++) {
+            Aula a = new Aula("LA1", "");
+            for (int i = caso.nextInt(5); i > 0; i--)
+                a.addFacility(casuale(caso, codici));
+            Set<Facility> richieste = new HashSet<Facility>();
+            for (int i = caso.nextInt(4); i > 0; i--)
+                richieste.add(casuale(caso, codici));
+            boolean atteso = true;
+            for (Facility r : richieste) {
+                boolean soddisfatta = false;
+                for (Facility f : a.getFacilities())
+                    soddisfatta |= f.satisfies(r);
+                atteso &= soddisfatta;
+            }
+            assertEquals(atteso, a.satisfiesFacilities(richieste));
+        }
+    }
+
+    private static Facility casuale(Random caso, String[] codici) {
+        String codice = "RF-" + codici[caso.nextInt(codici.length)];
+        return caso.nextBoolean() ? new PresenceFacility(codice, "")
+                : new QuantitativeFacility(codice, "", caso.nextInt(100));
+    }
+
+}
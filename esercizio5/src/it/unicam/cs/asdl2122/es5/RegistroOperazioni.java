@@ -0,0 +1,978 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Un registro delle operazioni (write-ahead log) rende persistente un
+ * {@link GestoreAule}. Ogni aula aggiunta al gestore, ogni facility aggiunta a
+ * un'aula e ogni prenotazione, singola o ricorrente, inserita o cancellata
+ * viene scritta in fondo a
+ * un file come record binario, e la modifica diventa visibile agli altri
+ * thread solo dopo che il record è stato forzato su disco: il registro
+ * conferma le modifiche di un'aula ({@link AulaListener#confermaModifiche})
+ * mentre l'aula tiene ancora il lock in scrittura, e se la scrittura non
+ * riesce l'aula annulla la modifica. Un'aula viene scritta prima di essere
+ * aggiunta al gestore. Dopo un errore di scrittura il registro non è più
+ * utilizzabile: le modifiche successive alle aule registrate falliscono e
+ * vengono annullate, per cui lo stato in memoria non si allontana da quello
+ * su disco. Riaprendo il file con {@link #apri(Path)} il
+ * gestore viene ricostruito rieseguendo i record nell'ordine in cui sono stati
+ * scritti.
+ *
+ * Le scritture su disco sono raggruppate (group commit): i record vengono
+ * accodati in memoria e il primo thread che deve attendere la loro
+ * persistenza scrive e forza con una sola {@code FileChannel.force} tutti
+ * quelli accodati fino a quel momento, anche dagli altri thread. Mentre la
+ * scrittura è in corso si accodano i record successivi, che verranno forzati
+ * tutti insieme dalla scrittura seguente. Il numero di force al secondo resta
+ * così limitato dal disco, mentre il numero di prenotazioni al secondo cresce
+ * con il numero di thread che prenotano aule diverse; le modifiche di una
+ * stessa aula, che ne tengono il lock fino alla forzatura, si susseguono al
+ * ritmo del disco.
+ *
+ * Il registro cresce con il numero di operazioni, anche quando le
+ * prenotazioni vengono cancellate. {@link #compatta()} scrive una fotografia
+ * ({@link SnapshotAule}) di tutte le aule in un file accanto al registro,
+ * chiamato come il registro seguito da {@code .<generazione>.fotografia}, e
+ * ricomincia il registro da un solo record che indica la fotografia:
+ * all'apertura la fotografia viene caricata e vengono rieseguiti solo i
+ * record successivi.
+ *
+ * Ogni record è composto dalla lunghezza del contenuto (un int), dal contenuto,
+ * il cui primo byte indica il tipo di record, e dal CRC32 del contenuto (un
+ * int). Un record incompleto o con CRC errato in fondo al file, lasciato ad
+ * esempio da un'interruzione durante la scrittura, viene scartato
+ * all'apertura e il file viene troncato prima di esso. Le prenotazioni
+ * inserite da {@link GestoreAule#addPrenotazioniBatch(java.util.Collection)}
+ * sono scritte in un solo record, che contiene i record delle singole
+ * prenotazioni: all'apertura il blocco viene rieseguito per intero oppure,
+ * se il record è incompleto, per niente. Una cancellazione con
+ * {@link Aula#purgePrenotazioniBefore(java.util.GregorianCalendar)} è scritta
+ * come un solo record con l'istante, per quante siano le prenotazioni
+ * cancellate.
+ *
+ * Sono supportate solo facilities di tipo {@link PresenceFacility} e
+ * {@link QuantitativeFacility}.
+ *
+ * @author Collettiva
+ *
+ */
+public final class RegistroOperazioni implements AulaListener, Closeable {
+
+    // Tipi di record
+    private static final byte AULA = 1;
+
+    private static final byte FACILITY = 2;
+
+    private static final byte PRENOTAZIONE = 3;
+
+    private static final byte RIMOZIONE = 4;
+
+    private static final byte RICORRENTE = 5;
+
+    private static final byte RIMOZIONE_RICORRENTE = 6;
+
+    // Primo record di un registro compattato: la fotografia da cui ripartire
+    private static final byte FOTOGRAFIA = 7;
+
+    // Record che ne contiene altri, da rieseguire tutti insieme
+    private static final byte BLOCCO = 8;
+
+    // Cancellazione delle prenotazioni che iniziano fino a un istante
+    private static final byte PURGA = 9;
+
+    // Tipi di facility nei record FACILITY
+    private static final byte PRESENZA = 0;
+
+    private static final byte QUANTITA = 1;
+
+    private final Path file;
+
+    private final GestoreAule gestore;
+
+    /*
+     * Lock che protegge tutti i campi seguenti. Viene preso anche tenendo il
+     * lock di un'aula, ma non viene mai tenuto mentre si aspetta il lock di
+     * un'aula né durante la scrittura su disco dei record, che avviene fuori
+     * dal lock; la compattazione lo tiene mentre scrive la fotografia, con
+     * tutte le aule già bloccate.
+     */
+    private final ReentrantLock lock;
+
+    // Il file del registro; cambia quando il registro viene compattato
+    private FileChannel canale;
+
+    // Lunghezza della parte del file scritta e forzata su disco
+    private long dimensioneDurevole;
+
+    // Generazione della fotografia da cui riparte il registro, 0 se nessuna
+    private long fotografia;
+
+    // Segnalata alla fine di ogni scrittura su disco
+    private final Condition scrittura;
+
+    // Record accodati e non ancora scritti
+    private final ByteArrayOutputStream inAttesa;
+
+    private final DataOutputStream uscita;
+
+    // Numero di record accodati dall'apertura
+    private long accodati;
+
+    // Numero di record scritti e forzati su disco dall'apertura
+    private long durevoli;
+
+    // true mentre un thread sta scrivendo su disco
+    private boolean scritturaInCorso;
+
+    // Primo errore di scrittura: da quel momento il registro è inutilizzabile
+    private IOException errore;
+
+    private boolean chiuso;
+
+    /*
+     * Aule il cui record AULA è già stato accodato: le notifiche relative alle
+     * altre aule vengono ignorate, perché il loro stato verrà scritto per
+     * intero da aulaAggiunta.
+     */
+    private final Set<Aula> auleRegistrate;
+
+    // Numero dell'ultimo record accodato da ciascun thread
+    private final ThreadLocal<long[]> ultimoAccodato = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    // Record del blocco aperto da ciascun thread, null se nessuno
+    private final ThreadLocal<DataOutputStream> blocco = new ThreadLocal<DataOutputStream>();
+
+    private final ThreadLocal<ByteArrayOutputStream> contenutoBlocco = new ThreadLocal<ByteArrayOutputStream>();
+
+    private RegistroOperazioni(Path file, FileChannel canale,
+            Ripristino ripristino) {
+        this.file = file;
+        this.canale = canale;
+        this.dimensioneDurevole = ripristino.valido;
+        this.fotografia = ripristino.fotografia;
+        this.gestore = ripristino.gestore;
+        this.lock = new ReentrantLock();
+        this.scrittura = lock.newCondition();
+        this.inAttesa = new ByteArrayOutputStream();
+        this.uscita = new DataOutputStream(inAttesa);
+        this.auleRegistrate = new HashSet<Aula>();
+    }
+
+    /**
+     * Apre un registro, creando il file se non esiste, e ricostruisce il
+     * gestore caricando la fotografia da cui riparte, se è stato compattato,
+     * e rieseguendo i record già presenti. Le modifiche successive al
+     * gestore restituito da {@link #getGestore()}, e alle sue aule, vengono
+     * scritte nel registro.
+     *
+     * @param file
+     *                 il file del registro
+     * @return il registro aperto
+     * @throws NullPointerException
+     *                                  se il file passato è nullo
+     * @throws IOException
+     *                                  se il file o la fotografia non possono
+     *                                  essere letti o scritti, oppure il file
+     *                                  contiene un record integro ma non
+     *                                  valido
+     */
+    public static RegistroOperazioni apri(Path file) throws IOException {
+        if (file == null)
+            throw new NullPointerException("Il file del registro è nullo");
+        FileChannel canale = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            Ripristino ripristino = ripristina(file, canale);
+            // Scarta l'eventuale record interrotto in fondo al file
+            canale.truncate(ripristino.valido);
+            canale.position(ripristino.valido);
+            canale.force(true);
+            cancellaFotografie(file, ripristino.fotografia);
+            RegistroOperazioni registro = new RegistroOperazioni(file, canale,
+                    ripristino);
+            registro.collega();
+            return registro;
+        } catch (IOException | RuntimeException e) {
+            canale.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return il gestore ricostruito dal registro, le cui modifiche vengono
+     *         scritte nel registro
+     */
+    public GestoreAule getGestore() {
+        return gestore;
+    }
+
+    /*
+     * Registra il registro come ascoltatore del gestore e delle aule
+     * ripristinate.
+     */
+    private void collega() {
+        for (Aula a : gestore.listaAule()) {
+            auleRegistrate.add(a);
+            a.addListener(this);
+        }
+        gestore.setRegistro(this);
+    }
+
+    /**
+     * Scrive su disco i record in attesa e chiude il file. Le modifiche fatte
+     * al gestore dopo la chiusura non vengono più registrate.
+     *
+     * @throws IOException
+     *                         se la scrittura o la chiusura del file non
+     *                         riescono
+     */
+    @Override
+    public void close() throws IOException {
+        gestore.setRegistro(null);
+        for (Aula a : gestore.listaAule())
+            a.removeListener(this);
+        long ultimo;
+        lock.lock();
+        try {
+            if (chiuso)
+                return;
+            ultimo = accodati;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            attendi(ultimo);
+        } catch (UncheckedIOException e) {
+            lock.lock();
+            try {
+                chiuso = true;
+                canale.close();
+            } finally {
+                lock.unlock();
+            }
+            throw e.getCause();
+        }
+        FileChannel c;
+        lock.lock();
+        try {
+            chiuso = true;
+            c = canale;
+        } finally {
+            lock.unlock();
+        }
+        c.close();
+    }
+
+    /*
+     * Scrive lo stato completo di un'aula che sta per essere aggiunta al
+     * gestore: il record dell'aula, le sue facilities e le sue prenotazioni.
+     * L'ascoltatore viene registrato prima di leggere le facilities e le
+     * prenotazioni, e le notifiche che arrivano prima del record dell'aula
+     * vengono ignorate: sono già comprese nello stato letto. Restituisce
+     * quando i record sono su disco; un'aula già registrata non viene scritta
+     * di nuovo. Se i record non possono essere scritti l'aula viene
+     * dimenticata, così da poter essere usata senza registro.
+     */
+    void aulaAggiunta(Aula a) {
+        a.addListener(this);
+        boolean nuova = false;
+        try {
+            // Il lock in lettura dell'aula impedisce modifiche alle
+            // prenotazioni mentre vengono copiate nel registro
+            a.getLock().readLock().lock();
+            try {
+                lock.lock();
+                try {
+                    if (!auleRegistrate.add(a)) {
+                        // Un'aula già registrata ha già il suo ascoltatore
+                        a.removeListener(this);
+                        return;
+                    }
+                    nuova = true;
+                    accoda(recordAula(a));
+                    for (Facility f : a.getFacilities())
+                        accoda(recordFacility(a, f));
+                    for (Prenotazione p : a.getPrenotazioni())
+                        accoda(recordPrenotazione(PRENOTAZIONE, p));
+                    for (PrenotazioneRicorrente r : a
+                            .getPrenotazioniRicorrenti())
+                        accoda(recordRicorrente(RICORRENTE, r));
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                a.getLock().readLock().unlock();
+            }
+            attendi(ultimoAccodato.get()[0]);
+        } catch (RuntimeException e) {
+            if (nuova) {
+                lock.lock();
+                try {
+                    auleRegistrate.remove(a);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            a.removeListener(this);
+            throw e;
+        }
+    }
+
+    @Override
+    public void facilityAggiunta(Aula a, Facility f) {
+        accodaSeRegistrata(a, recordFacility(a, f));
+    }
+
+    @Override
+    public void prenotazioneAggiunta(Aula a, Prenotazione p) {
+        accodaSeRegistrata(a, recordPrenotazione(PRENOTAZIONE, p));
+    }
+
+    @Override
+    public void prenotazioneRimossa(Aula a, Prenotazione p) {
+        accodaSeRegistrata(a, recordPrenotazione(RIMOZIONE, p));
+    }
+
+    @Override
+    public void prenotazioniRimosseFinoA(Aula a, long istante, long inizio,
+            long fine) {
+        accodaSeRegistrata(a, recordPurga(a, istante));
+    }
+
+    @Override
+    public void prenotazioneRicorrenteAggiunta(Aula a,
+            PrenotazioneRicorrente r) {
+        accodaSeRegistrata(a, recordRicorrente(RICORRENTE, r));
+    }
+
+    @Override
+    public void prenotazioneRicorrenteRimossa(Aula a,
+            PrenotazioneRicorrente r) {
+        accodaSeRegistrata(a, recordRicorrente(RIMOZIONE_RICORRENTE, r));
+    }
+
+    /*
+     * Aspetta che i record accodati da questo thread siano su disco. Viene
+     * chiamato tenendo il lock in scrittura dell'aula: le modifiche diventano
+     * visibili solo dopo essere state scritte, e se la scrittura non riesce
+     * l'aula le annulla.
+     */
+    @Override
+    public void confermaModifiche(Aula a) {
+        attendi(ultimoAccodato.get()[0]);
+    }
+
+    private void accodaSeRegistrata(Aula a, byte[] contenuto) {
+        lock.lock();
+        try {
+            if (!auleRegistrate.contains(a))
+                return;
+            DataOutputStream b = blocco.get();
+            if (b == null)
+                accoda(contenuto);
+            else
+                try {
+                    b.writeInt(contenuto.length);
+                    b.write(contenuto);
+                } catch (IOException e) {
+                    // Non succede: si scrive in memoria
+                    throw new UncheckedIOException(e);
+                }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Apre un blocco per questo thread: fino a chiudiBlocco i record delle
+     * notifiche non vengono accodati ma raccolti, per essere scritti in un
+     * solo record BLOCCO. Lo usa GestoreAule.addPrenotazioniBatch tenendo i
+     * lock in scrittura di tutte le aule coinvolte.
+     */
+    void apriBlocco() {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        b.write(BLOCCO);
+        contenutoBlocco.set(b);
+        blocco.set(new DataOutputStream(b));
+    }
+
+    /*
+     * Chiude il blocco di questo thread e, se contiene dei record, lo accoda
+     * come un solo record, con un'unica presa del lock del registro: una
+     * scrittura concorrente lo porta su disco tutto insieme. Le modifiche
+     * vanno poi confermate come al solito.
+     */
+    void chiudiBlocco() {
+        ByteArrayOutputStream b = contenutoBlocco.get();
+        scartaBlocco();
+        if (b == null || b.size() == 1)
+            return;
+        lock.lock();
+        try {
+            accoda(b.toByteArray());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Dimentica il blocco di questo thread, se è ancora aperto.
+     */
+    void scartaBlocco() {
+        blocco.remove();
+        contenutoBlocco.remove();
+    }
+
+    /*
+     * Accoda un record in memoria. Va chiamato tenendo il lock del registro.
+     */
+    private void accoda(byte[] contenuto) {
+        controllaUtilizzabile();
+        incornicia(uscita, contenuto);
+        accodati++;
+        ultimoAccodato.get()[0] = accodati;
+    }
+
+    /*
+     * Aspetta che i primi n record accodati siano su disco. Se nessun altro
+     * thread sta scrivendo, questo thread scrive e forza tutti i record
+     * accodati finora; altrimenti aspetta la fine della scrittura in corso e
+     * ricontrolla, perché i suoi record potrebbero essere stati accodati dopo
+     * il suo inizio.
+     */
+    private void attendi(long n) {
+        lock.lock();
+        try {
+            while (durevoli < n) {
+                if (errore != null)
+                    throw new UncheckedIOException(errore);
+                if (scritturaInCorso) {
+                    scrittura.awaitUninterruptibly();
+                    continue;
+                }
+                scritturaInCorso = true;
+                long fino = accodati;
+                ByteBuffer dati = ByteBuffer.wrap(inAttesa.toByteArray());
+                inAttesa.reset();
+                FileChannel c = canale;
+                long base = dimensioneDurevole;
+                IOException e = null;
+                lock.unlock();
+                try {
+                    while (dati.hasRemaining())
+                        c.write(dati);
+                    // Il contenuto basta: la lunghezza del file viene
+                    // comunque aggiornata se necessario per rileggerlo
+                    c.force(false);
+                } catch (IOException ex) {
+                    e = ex;
+                    // I record di questa scrittura vengono annullati dalle
+                    // aule: si prova a toglierli anche dal file
+                    try {
+                        c.truncate(base);
+                    } catch (IOException ex2) {
+                        e.addSuppressed(ex2);
+                    }
+                } finally {
+                    lock.lock();
+                }
+                scritturaInCorso = false;
+                if (e == null) {
+                    durevoli = fino;
+                    dimensioneDurevole = base + dati.capacity();
+                } else
+                    errore = e;
+                scrittura.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compatta il registro: scrive una fotografia di tutte le aule registrate
+     * e ricomincia il registro da un solo record che la indica, poi cancella
+     * la fotografia precedente. Le aule vengono bloccate in scrittura, in
+     * ordine, per tutta la durata della fotografia, che è quindi uno stato
+     * consistente di tutte le aule; le operazioni concorrenti aspettano la
+     * fine della compattazione.
+     *
+     * Il nuovo registro viene scritto in un file a parte e sostituisce il
+     * precedente con una rinomina atomica, dopo che la fotografia è stata
+     * forzata su disco: se il processo si interrompe durante la
+     * compattazione, all'apertura si ritrovano il registro precedente e la
+     * sua fotografia, oppure quelli nuovi.
+     *
+     * @throws IllegalStateException
+     *                                   se il registro è chiuso o non è più
+     *                                   utilizzabile dopo un errore di
+     *                                   scrittura
+     * @throws IOException
+     *                                   se la fotografia o il nuovo registro
+     *                                   non possono essere scritti; il
+     *                                   registro resta quello precedente
+     */
+    public void compatta() throws IOException {
+        while (true) {
+            List<Aula> aule;
+            lock.lock();
+            try {
+                controllaUtilizzabile();
+                aule = new ArrayList<Aula>(auleRegistrate);
+            } finally {
+                lock.unlock();
+            }
+            // Stesso ordine di GestoreAule.addPrenotazioniBatch, per evitare
+            // stalli con i blocchi di prenotazioni
+            Collections.sort(aule);
+            List<Lock> bloccati = new ArrayList<Lock>();
+            try {
+                for (Aula a : aule) {
+                    Lock l = a.getLock().writeLock();
+                    l.lock();
+                    bloccati.add(l);
+                }
+                // Con le aule bloccate restano da scrivere al più i record di
+                // un'aula appena registrata
+                attendi(accodatiFinora());
+                lock.lock();
+                try {
+                    controllaUtilizzabile();
+                    // Si riprova se nel frattempo è stata registrata
+                    // un'altra aula, che la fotografia non comprenderebbe
+                    if (auleRegistrate.size() == aule.size()
+                            && durevoli == accodati) {
+                        compattaBloccato(aule);
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                for (int i = bloccati.size() - 1; i >= 0; i--)
+                    bloccati.get(i).unlock();
+            }
+        }
+    }
+
+    private long accodatiFinora() {
+        lock.lock();
+        try {
+            return accodati;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void controllaUtilizzabile() {
+        if (errore != null)
+            throw new IllegalStateException(
+                    "Il registro non è più utilizzabile dopo un errore di scrittura",
+                    errore);
+        if (chiuso)
+            throw new IllegalStateException("Il registro è chiuso");
+    }
+
+    /*
+     * Scrive la fotografia e il nuovo registro e li sostituisce a quelli
+     * attuali. Va chiamato tenendo il lock del registro e i lock in scrittura
+     * di tutte le aule registrate, senza record in attesa.
+     */
+    private void compattaBloccato(List<Aula> aule) throws IOException {
+        long generazione = fotografia + 1;
+        Path nuovaFotografia = fotografia(file, generazione);
+        Path nuovoFile = file.resolveSibling(file.getFileName() + ".nuovo");
+        FileChannel nuovo = null;
+        try {
+            SnapshotAule.scriviAule(aule, nuovaFotografia);
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            incornicia(new DataOutputStream(b), recordFotografia(generazione));
+            ByteBuffer dati = ByteBuffer.wrap(b.toByteArray());
+            nuovo = FileChannel.open(nuovoFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            while (dati.hasRemaining())
+                nuovo.write(dati);
+            nuovo.force(true);
+            forzaCartella(file);
+            Files.move(nuovoFile, file, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            if (nuovo != null)
+                nuovo.close();
+            Files.deleteIfExists(nuovoFile);
+            Files.deleteIfExists(nuovaFotografia);
+            throw e;
+        }
+        // Da qui il registro è quello nuovo
+        forzaCartella(file);
+        FileChannel vecchio = canale;
+        canale = nuovo;
+        dimensioneDurevole = nuovo.size();
+        long precedente = fotografia;
+        fotografia = generazione;
+        vecchio.close();
+        if (precedente != 0)
+            Files.deleteIfExists(fotografia(file, precedente));
+    }
+
+    /*
+     * Il file della fotografia di una certa generazione di un registro.
+     */
+    private static Path fotografia(Path file, long generazione) {
+        return file.resolveSibling(
+                file.getFileName() + "." + generazione + ".fotografia");
+    }
+
+    /*
+     * Cancella le fotografie del registro diverse da quella da cui riparte,
+     * lasciate da una compattazione interrotta.
+     */
+    private static void cancellaFotografie(Path file, long generazione)
+            throws IOException {
+        final String prefisso = file.getFileName() + ".";
+        final String attuale = fotografia(file, generazione).getFileName()
+                .toString();
+        DirectoryStream.Filter<Path> filtro = new DirectoryStream.Filter<Path>() {
+            @Override
+            public boolean accept(Path p) {
+                String nome = p.getFileName().toString();
+                return nome.startsWith(prefisso) && nome.endsWith(".fotografia")
+                        && !nome.equals(attuale);
+            }
+        };
+        DirectoryStream<Path> superate = Files.newDirectoryStream(
+                file.toAbsolutePath().getParent(), filtro);
+        try {
+            for (Path p : superate)
+                Files.deleteIfExists(p);
+        } finally {
+            superate.close();
+        }
+    }
+
+    /*
+     * Forza su disco la cartella del registro, in modo che le rinomine e le
+     * creazioni di file siano persistenti. Non tutti i sistemi permettono di
+     * aprire una cartella: in quel caso non si fa niente.
+     */
+    private static void forzaCartella(Path file) {
+        try {
+            FileChannel c = FileChannel.open(file.toAbsolutePath().getParent(),
+                    StandardOpenOption.READ);
+            try {
+                c.force(true);
+            } finally {
+                c.close();
+            }
+        } catch (IOException e) {
+            // Cartella non apribile: la rinomina resta comunque atomica
+        }
+    }
+
+    /*
+     * Scrive un record: lunghezza del contenuto, contenuto e CRC32.
+     */
+    private static void incornicia(DataOutputStream out, byte[] contenuto) {
+        CRC32 crc = new CRC32();
+        crc.update(contenuto, 0, contenuto.length);
+        try {
+            out.writeInt(contenuto.length);
+            out.write(contenuto);
+            out.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            // Non succede: si scrive in memoria
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] recordFotografia(long generazione) {
+        return ByteBuffer.allocate(9).put(FOTOGRAFIA).putLong(generazione)
+                .array();
+    }
+
+    private static byte[] recordAula(Aula a) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        try {
+            out.writeByte(AULA);
+            out.writeUTF(a.getNome());
+            out.writeUTF(a.getLocation());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return b.toByteArray();
+    }
+
+    private static byte[] recordFacility(Aula a, Facility f) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        try {
+            out.writeByte(FACILITY);
+            out.writeUTF(a.getNome());
+            if (f instanceof QuantitativeFacility) {
+                out.writeByte(QUANTITA);
+                out.writeUTF(f.getCodice());
+                out.writeUTF(f.getDescrizione());
+                out.writeInt(((QuantitativeFacility) f).getQuantity());
+            } else if (f instanceof PresenceFacility) {
+                out.writeByte(PRESENZA);
+                out.writeUTF(f.getCodice());
+                out.writeUTF(f.getDescrizione());
+            } else
+                throw new IllegalArgumentException(
+                        "Tipo di facility non supportato dal registro: "
+                                + f.getClass().getName());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return b.toByteArray();
+    }
+
+    /*
+     * Record PRENOTAZIONE o RIMOZIONE: per la rimozione bastano aula e time
+     * slot, che identificano la prenotazione.
+     */
+    private static byte[] recordPrenotazione(byte tipo, Prenotazione p) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        try {
+            out.writeByte(tipo);
+            out.writeUTF(p.getAula().getNome());
+            out.writeLong(p.getCompactTimeSlot().getStartMillis());
+            out.writeLong(p.getCompactTimeSlot().getStopMillis());
+            if (tipo == PRENOTAZIONE) {
+                out.writeUTF(p.getDocente());
+                out.writeUTF(p.getMotivo());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return b.toByteArray();
+    }
+
+    private static byte[] recordPurga(Aula a, long istante) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        try {
+            out.writeByte(PURGA);
+            out.writeUTF(a.getNome());
+            out.writeLong(istante);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return b.toByteArray();
+    }
+
+    /*
+     * Record RICORRENTE o RIMOZIONE_RICORRENTE: per la rimozione bastano aula
+     * e prima occorrenza, che identificano la prenotazione ricorrente.
+     */
+    private static byte[] recordRicorrente(byte tipo,
+            PrenotazioneRicorrente r) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        try {
+            out.writeByte(tipo);
+            out.writeUTF(r.getAula().getNome());
+            out.writeLong(r.getInizioMillis());
+            out.writeLong(r.getDurataMillis());
+            if (tipo == RICORRENTE) {
+                out.writeLong(r.getPeriodoMillis());
+                out.writeInt(r.getNumero());
+                int[] eccezioni = r.eccezioni();
+                out.writeInt(eccezioni.length);
+                for (int e : eccezioni)
+                    out.writeInt(e);
+                out.writeUTF(r.getDocente());
+                out.writeUTF(r.getMotivo());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return b.toByteArray();
+    }
+
+    /*
+     * Stato ricostruito all'apertura del registro.
+     */
+    private static final class Ripristino {
+        GestoreAule gestore = new GestoreAule();
+
+        // Aule del gestore per nome
+        final Map<String, Aula> aule = new HashMap<String, Aula>();
+
+        // Docenti e motivi già letti: i record con lo stesso docente o lo
+        // stesso motivo vengono ripristinati con la stessa stringa
+        final Map<String, String> stringhe = new HashMap<String, String>();
+
+        // Generazione della fotografia caricata, 0 se nessuna
+        long fotografia;
+
+        // Posizione in cui finisce l'ultimo record integro
+        long valido;
+    }
+
+    /*
+     * Riesegue sul gestore i record integri del file, dall'inizio, caricando
+     * la fotografia indicata dal primo record se il registro è stato
+     * compattato.
+     */
+    private static Ripristino ripristina(Path file, FileChannel canale)
+            throws IOException {
+        long dimensione = canale.size();
+        // Lo stream non va chiuso: chiuderebbe anche il canale
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(canale.position(0)), 1 << 16));
+        Ripristino r = new Ripristino();
+        long valido = 0;
+        while (dimensione - valido >= 8) {
+            int lunghezza = in.readInt();
+            if (lunghezza <= 0 || lunghezza > dimensione - valido - 8)
+                break;
+            byte[] contenuto = new byte[lunghezza];
+            in.readFully(contenuto);
+            int crcLetto = in.readInt();
+            CRC32 crc = new CRC32();
+            crc.update(contenuto, 0, lunghezza);
+            if ((int) crc.getValue() != crcLetto)
+                break;
+            if (contenuto[0] == FOTOGRAFIA) {
+                if (valido != 0 || lunghezza != 9)
+                    throw new IOException(
+                            "Record della fotografia non valido");
+                r.fotografia = ByteBuffer.wrap(contenuto, 1, 8).getLong();
+                r.gestore = SnapshotAule.carica(fotografia(file, r.fotografia));
+                for (Aula a : r.gestore.listaAule())
+                    r.aule.put(a.getNome(), a);
+            } else
+                applica(contenuto, r);
+            valido += 8 + lunghezza;
+        }
+        r.valido = valido;
+        return r;
+    }
+
+    private static void applica(byte[] contenuto, Ripristino r)
+            throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(contenuto));
+        try {
+            byte tipo = in.readByte();
+            if (tipo == BLOCCO) {
+                // I record contenuti sono stati controllati tutti insieme
+                // prima di essere scritti
+                while (in.available() > 0) {
+                    byte[] interno = new byte[in.readInt()];
+                    in.readFully(interno);
+                    if (interno.length == 0 || interno[0] == BLOCCO
+                            || interno[0] == AULA)
+                        throw new IOException("Blocco non valido");
+                    applica(interno, r);
+                }
+                return;
+            }
+            if (tipo == AULA) {
+                Aula a = new Aula(in.readUTF(), in.readUTF());
+                if (r.aule.put(a.getNome(), a) != null)
+                    throw new IOException(
+                            "Aula registrata due volte: " + a.getNome());
+                r.gestore.addAula(a);
+                return;
+            }
+            Aula a = r.aule.get(in.readUTF());
+            if (a == null)
+                throw new IOException("Record relativo a un'aula sconosciuta");
+            if (tipo == FACILITY) {
+                byte tipoFacility = in.readByte();
+                String codice = in.readUTF();
+                String descrizione = in.readUTF();
+                if (tipoFacility == QUANTITA)
+                    a.addFacility(new QuantitativeFacility(codice, descrizione,
+                            in.readInt()));
+                else
+                    a.addFacility(new PresenceFacility(codice, descrizione));
+            } else if (tipo == PRENOTAZIONE) {
+                // Le prenotazioni vengono ricostruite direttamente dagli
+                // istanti registrati, senza passare dai calendari
+                CompactTimeSlot ts = new CompactTimeSlot(in.readLong(),
+                        in.readLong());
+                if (!a.prenota(Prenotazione.of(a, ts, condivisa(r, in),
+                        condivisa(r, in))))
+                    throw new IOException("Record non applicabile: "
+                            + "prenotazione sovrapposta in " + a.getNome());
+            } else if (tipo == RIMOZIONE) {
+                CompactTimeSlot ts = new CompactTimeSlot(in.readLong(),
+                        in.readLong());
+                a.removePrenotazione(Prenotazione.of(a, ts, null, null));
+            } else if (tipo == PURGA) {
+                a.rimuoviFinoA(in.readLong());
+            } else if (tipo == RICORRENTE) {
+                long inizio = in.readLong();
+                long durata = in.readLong();
+                long periodo = in.readLong();
+                int numero = in.readInt();
+                int[] eccezioni = new int[in.readInt()];
+                for (int i = 0; i < eccezioni.length; i++)
+                    eccezioni[i] = in.readInt();
+                a.aggiungiRicorrente(new PrenotazioneRicorrente(a, inizio,
+                        durata, periodo, numero, eccezioni, condivisa(r, in),
+                        condivisa(r, in)));
+            } else if (tipo == RIMOZIONE_RICORRENTE) {
+                long inizio = in.readLong();
+                long durata = in.readLong();
+                a.removePrenotazioneRicorrente(new PrenotazioneRicorrente(a,
+                        inizio, durata, durata, 1, new int[0], "", ""));
+            } else
+                throw new IOException("Record di tipo sconosciuto: " + tipo);
+        } catch (EOFException e) {
+            throw new IOException("Record troncato", e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Record non applicabile", e);
+        }
+    }
+
+    /*
+     * Legge una stringa del record e restituisce la copia già letta, se c'è.
+     */
+    private static String condivisa(Ripristino r, DataInputStream in)
+            throws IOException {
+        String s = in.readUTF();
+        String c = r.stringhe.putIfAbsent(s, s);
+        return c == null ? s : c;
+    }
+
+}
@@ -0,0 +1,359 @@
+package it.unicam.cs.asdl2122.es5;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Classe di test per RegistroOperazioni
+ *
+ * @author Collettiva
+ *
+ */
+class RegistroOperazioniTest {
+
+    private Path file;
+
+    @BeforeEach
+    void creaFile() throws IOException {
+        file = Files.createTempFile("registro", ".wal");
+    }
+
+    @AfterEach
+    void cancellaFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static TimeSlot slot(int giorno, int ora, int oraFine) {
+        return new TimeSlot(new GregorianCalendar(2019, 10, giorno, ora, 0),
+                new GregorianCalendar(2019, 10, giorno, oraFine, 0));
+    }
+
+    @Test
+    final void testApriFileVuoto() throws IOException {
+        assertThrows(NullPointerException.class,
+                () -> RegistroOperazioni.apri(null));
+        RegistroOperazioni r = RegistroOperazioni.apri(file);
+        assertTrue(r.getGestore().getAule().isEmpty());
+        r.close();
+        r = RegistroOperazioni.apri(file);
+        assertTrue(r.getGestore().getAule().isEmpty());
+        r.close();
+    }
+
+    @Test
+    final void testRipristino() throws IOException {
+        RegistroOperazioni r = RegistroOperazioni.apri(file);
+        GestoreAule g = r.getGestore();
+        // Un'aula che ha già facilities e prenotazioni quando viene aggiunta
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        a.addFacility(new PresenceFacility("HDMI", "Proiettore HDMI"));
+        a.addPrenotazione(slot(4, 9, 11), "Luca Tesei", "Lezione ASDL");
+        assertTrue(g.addAula(a));
+        // Modifiche successive
+        a.addFacility(new QuantitativeFacility("POSTI", "Posti a sedere", 80));
+        a.addPrenotazione(slot(4, 11, 13), "Luca Tesei", "Esame ASDL");
+        a.addPrenotazione(slot(5, 11, 13), "Michela Quadrini", "Lezione");
+        a.addPrenotazione(slot(6, 11, 13), "Michela Quadrini", "Lezione");
+        assertTrue(a.removePrenotazione(
+                new Prenotazione(a, slot(5, 11, 13), "", "")));
+        Aula b = new Aula("AB1", "Polo Lodovici Primo Piano");
+        g.addAula(b);
+        List<Prenotazione> blocco = new ArrayList<Prenotazione>();
+        blocco.add(new Prenotazione(b, slot(4, 9, 11), "Luca Tesei", "Lab"));
+        blocco.add(new Prenotazione(a, slot(7, 9, 11), "Luca Tesei", "Lab"));
+        assertTrue(g.addPrenotazioniBatch(blocco).isEmpty());
+        assertEquals(1, a.purgePrenotazioniBefore(slot(4, 10, 11).getStart()));
+        Set<Integer> eccezioni = new HashSet<Integer>();
+        eccezioni.add(2);
+        a.addPrenotazioneRicorrente(slot(11, 14, 16), Duration.ofDays(7), 3,
+                eccezioni, "Luca Tesei", "Lezione settimanale");
+        PrenotazioneRicorrente rimossa = b.addPrenotazioneRicorrente(
+                slot(11, 14, 16), Duration.ofDays(1), 5,
+                new HashSet<Integer>(), "", "");
+        assertTrue(b.removePrenotazioneRicorrente(rimossa));
+        r.close();
+        // Dopo la chiusura le modifiche non vengono registrate
+        a.addPrenotazione(slot(20, 9, 11), "Luca Tesei", "Non registrata");
+
+        // Le prenotazioni ripristinate non finiscono nelle metriche
+        Metriche.Istantanea metriche = Metriche.getGlobali().istantanea();
+        r = RegistroOperazioni.apri(file);
+        assertEquals(metriche.getAddPrenotazione().getConteggio(), Metriche
+                .getGlobali().istantanea().getAddPrenotazione().getConteggio());
+        GestoreAule g2 = r.getGestore();
+        Set<Aula> aule = new HashSet<Aula>();
+        aule.add(new Aula("LA1", ""));
+        aule.add(new Aula("AB1", ""));
+        assertEquals(aule, g2.getAule());
+        Aula a2 = null;
+        for (Aula x : g2.getAule())
+            if (x.getNome().equals("LA1"))
+                a2 = x;
+        assertEquals("Polo Lodovici Piano Terra", a2.getLocation());
+        Set<Facility> facilities = new HashSet<Facility>();
+        facilities.add(new PresenceFacility("HDMI", ""));
+        facilities.add(new QuantitativeFacility("POSTI", "", 80));
+        assertTrue(a2.satisfiesFacilities(facilities));
+        facilities.clear();
+        facilities.add(new QuantitativeFacility("POSTI", "", 81));
+        assertFalse(a2.satisfiesFacilities(facilities));
+        List<Prenotazione> attese = new ArrayList<Prenotazione>();
+        attese.add(new Prenotazione(a2, slot(4, 11, 13), "", ""));
+        attese.add(new Prenotazione(a2, slot(6, 11, 13), "", ""));
+        attese.add(new Prenotazione(a2, slot(7, 9, 11), "", ""));
+        assertEquals(attese, new ArrayList<Prenotazione>(a2.getPrenotazioni()));
+        assertEquals("Esame ASDL", a2.getPrenotazioni().first().getMotivo());
+        assertEquals(1, a2.getPrenotazioniRicorrenti().size());
+        PrenotazioneRicorrente ricorrente = a2.getPrenotazioniRicorrenti()
+                .get(0);
+        assertEquals(3, ricorrente.getNumero());
+        assertEquals(eccezioni, ricorrente.getEccezioni());
+        assertEquals("Lezione settimanale", ricorrente.getMotivo());
+        assertFalse(a2.isFree(slot(18, 15, 17)));
+        assertTrue(a2.isFree(slot(25, 15, 17)));
+        for (Aula x : g2.getAule())
+            if (x.getNome().equals("AB1"))
+                assertTrue(x.getPrenotazioniRicorrenti().isEmpty());
+        // Il gestore ripristinato continua a registrare
+        a2.addPrenotazione(slot(8, 9, 11), "Luca Tesei", "Dopo il ripristino");
+        r.close();
+        r = RegistroOperazioni.apri(file);
+        int n = 0;
+        for (Aula x : r.getGestore().getAule())
+            n += x.getPrenotazioni().size();
+        assertEquals(5, n);
+        r.close();
+    }
+
+    @Test
+    final void testRecordInterrotto() throws IOException {
+        RegistroOperazioni r = RegistroOperazioni.apri(file);
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        r.getGestore().addAula(a);
+        a.addPrenotazione(slot(4, 9, 11), "Luca Tesei", "Lezione ASDL");
+        r.close();
+        long dimensione = Files.size(file);
+        // Simula una scrittura interrotta: metà di un record in fondo al file
+        FileChannel c = FileChannel.open(file, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        c.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 40, 3, 0, 3 }));
+        c.close();
+        r = RegistroOperazioni.apri(file);
+        assertEquals(dimensione, Files.size(file));
+        Aula a2 = r.getGestore().getAule().iterator().next();
+        assertEquals(1, a2.getPrenotazioni().size());
+        a2.addPrenotazione(slot(5, 9, 11), "Luca Tesei", "Lezione ASDL");
+        r.close();
+        r = RegistroOperazioni.apri(file);
+        assertEquals(2, r.getGestore().getAule().iterator().next()
+                .getPrenotazioni().size());
+        r.close();
+    }
+
+    @Test
+    final void testPurga() throws IOException {
+        RegistroOperazioni r = RegistroOperazioni.apri(file);
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        r.getGestore().addAula(a);
+        for (int giorno = 1; giorno <= 20; giorno++)
+            a.addPrenotazione(slot(giorno, 9, 11), "Luca Tesei", "Lezione");
+        long prima = Files.size(file);
+        assertEquals(14, a.purgePrenotazioniBefore(slot(14, 9, 11).getStart()));
+        // Un solo record, per quante siano le prenotazioni cancellate:
+        // lunghezza, tipo, aula, istante e CRC
+        assertEquals(4 + 1 + 2 + "LA1".length() + 8 + 4,
+                Files.size(file) - prima);
+        assertEquals(0, a.purgePrenotazioniBefore(slot(14, 9, 11).getStart()));
+        assertEquals(prima + 4 + 1 + 2 + "LA1".length() + 8 + 4,
+                Files.size(file));
+        r.close();
+        r = RegistroOperazioni.apri(file);
+        Aula a2 = r.getGestore().getAule().iterator().next();
+        assertEquals(6, a2.getPrenotazioni().size());
+        assertEquals(new Prenotazione(a2, slot(15, 9, 11), "", ""),
+                a2.getPrenotazioni().first());
+        assertTrue(a2.isFree(slot(14, 9, 11)));
+        r.close();
+    }
+
+    @Test
+    final void testBloccoInterrotto() throws IOException {
+        RegistroOperazioni r = RegistroOperazioni.apri(file);
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        Aula b = new Aula("AB1", "Polo Lodovici Primo Piano");
+        r.getGestore().addAula(a);
+        r.getGestore().addAula(b);
+        List<Prenotazione> blocco = new ArrayList<Prenotazione>();
+        for (int giorno = 4; giorno <= 8; giorno++) {
+            blocco.add(new Prenotazione(a, slot(giorno, 9, 11), "Luca Tesei",
+                    "Lezione"));
+            blocco.add(new Prenotazione(b, slot(giorno, 9, 11), "Luca Tesei",
+                    "Laboratorio"));
+        }
+        assertTrue(r.getGestore().addPrenotazioniBatch(blocco).isEmpty());
+        r.close();
+        // Il blocco è l'ultimo record: troncandolo a metà non se ne
+        // ripristina nessuna prenotazione
+        long dimensione = Files.size(file);
+        FileChannel c = FileChannel.open(file, StandardOpenOption.WRITE);
+        c.truncate(dimensione - 60);
+        c.close();
+        r = RegistroOperazioni.apri(file);
+        assertEquals(2, r.getGestore().getAule().size());
+        for (Aula x : r.getGestore().getAule())
+            assertTrue(x.getPrenotazioni().isEmpty());
+        r.close();
+    }
+
+    @Test
+    final void testBlocco() throws IOException {
+        RegistroOperazioni r = RegistroOperazioni.apri(file);
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        r.getGestore().addAula(a);
+        long prima = Files.size(file);
+        List<Prenotazione> blocco = new ArrayList<Prenotazione>();
+        for (int giorno = 4; giorno <= 8; giorno++)
+            blocco.add(new Prenotazione(a, slot(giorno, 9, 11), "Luca Tesei",
+                    "Lezione"));
+        assertTrue(r.getGestore().addPrenotazioniBatch(blocco).isEmpty());
+        // Un solo record: lunghezza, tipo, cinque record interni e CRC
+        long record = Files.size(file) - prima;
+        assertEquals(4 + 1 + 4, record - 5 * (4 + 1 + 2 + 3 + 8 + 8 + 2
+                + "Luca Tesei".length() + 2 + "Lezione".length()));
+        // Un blocco con un conflitto non scrive niente
+        blocco.clear();
+        blocco.add(new Prenotazione(a, slot(9, 9, 11), "", ""));
+        blocco.add(new Prenotazione(a, slot(4, 10, 12), "", ""));
+        assertEquals(1, r.getGestore().addPrenotazioniBatch(blocco).size());
+        assertEquals(prima + record, Files.size(file));
+        r.close();
+        r = RegistroOperazioni.apri(file);
+        Aula a2 = r.getGestore().getAule().iterator().next();
+        assertEquals(5, a2.getPrenotazioni().size());
+        // I record con lo stesso docente lo ripristinano con la stessa stringa
+        assertSame(a2.getPrenotazioni().first().getDocente(),
+                a2.getPrenotazioni().last().getDocente());
+        r.close();
+    }
+
+    private Path fotografia(long generazione) {
+        return file.resolveSibling(
+                file.getFileName() + "." + generazione + ".fotografia");
+    }
+
+    @Test
+    final void testCompattazione() throws IOException {
+        RegistroOperazioni r = RegistroOperazioni.apri(file);
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        a.addFacility(new PresenceFacility("HDMI", "Proiettore HDMI"));
+        r.getGestore().addAula(a);
+        for (int giorno = 1; giorno <= 20; giorno++)
+            a.addPrenotazione(slot(giorno, 9, 11), "Luca Tesei", "Lezione");
+        a.purgePrenotazioniBefore(slot(15, 9, 11).getStart());
+        long prima = Files.size(file);
+        r.compatta();
+        // Il registro contiene solo il record della fotografia
+        assertTrue(Files.size(file) < prima);
+        assertEquals(4 + 9 + 4, Files.size(file));
+        assertTrue(Files.exists(fotografia(1)));
+        // Modifiche dopo la compattazione
+        a.addPrenotazione(slot(21, 9, 11), "Luca Tesei", "Esame");
+        Aula b = new Aula("AB1", "Polo Lodovici Primo Piano");
+        r.getGestore().addAula(b);
+        b.addPrenotazioneRicorrente(slot(4, 14, 16), Duration.ofDays(7), 4,
+                new HashSet<Integer>(), "Luca Tesei", "Laboratorio");
+        r.close();
+        assertThrows(IllegalStateException.class, () -> r.compatta());
+
+        RegistroOperazioni r2 = RegistroOperazioni.apri(file);
+        assertEquals(2, r2.getGestore().getAule().size());
+        Aula a2 = null;
+        Aula b2 = null;
+        for (Aula x : r2.getGestore().getAule())
+            if (x.getNome().equals("LA1"))
+                a2 = x;
+            else
+                b2 = x;
+        assertEquals(6, a2.getPrenotazioni().size());
+        assertEquals("Esame", a2.getPrenotazioni().last().getMotivo());
+        assertEquals(1, a2.getFacilities().size());
+        assertEquals(1, b2.getPrenotazioniRicorrenti().size());
+        assertFalse(b2.isFree(slot(25, 14, 16)));
+        // Una seconda compattazione cancella la fotografia precedente, e il
+        // gestore ripristinato continua a registrare
+        r2.compatta();
+        assertFalse(Files.exists(fotografia(1)));
+        assertTrue(Files.exists(fotografia(2)));
+        assertTrue(a2.removePrenotazione(
+                new Prenotazione(a2, slot(21, 9, 11), "", "")));
+        r2.close();
+        // Una fotografia lasciata da una compattazione interrotta viene
+        // ignorata e cancellata
+        Files.write(fotografia(3), new byte[] { 1, 2, 3 });
+        RegistroOperazioni r3 = RegistroOperazioni.apri(file);
+        assertFalse(Files.exists(fotografia(3)));
+        int n = 0;
+        for (Aula x : r3.getGestore().getAule())
+            n += x.getPrenotazioni().size();
+        assertEquals(5, n);
+        r3.close();
+        Files.deleteIfExists(fotografia(2));
+    }
+
+    @Test
+    final void testScrittureConcorrenti() throws Exception {
+        final RegistroOperazioni r = RegistroOperazioni.apri(file);
+        final int numThread = 8;
+        final int perThread = 200;
+        final Aula[] aule = new Aula[numThread];
+        for (int i = 0; i < numThread; i++) {
+            aule[i] = new Aula("A" + i, "");
+            r.getGestore().addAula(aule[i]);
+        }
+        Thread[] threads = new Thread[numThread];
+        for (int t = 0; t < numThread; t++) {
+            final Aula a = aule[t];
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        GregorianCalendar inizio = new GregorianCalendar(2019,
+                                0, 1, 0, 0);
+                        inizio.add(GregorianCalendar.HOUR_OF_DAY, i);
+                        GregorianCalendar fine = (GregorianCalendar) inizio
+                                .clone();
+                        fine.add(GregorianCalendar.MINUTE, 30);
+                        a.addPrenotazione(new TimeSlot(inizio, fine), "D",
+                                "M");
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        r.close();
+        RegistroOperazioni r2 = RegistroOperazioni.apri(file);
+        assertEquals(numThread, r2.getGestore().getAule().size());
+        for (Aula a : r2.getGestore().getAule())
+            assertEquals(perThread, a.getPrenotazioni().size());
+        r2.close();
+    }
+
+}
@@ -0,0 +1,532 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Un server HTTP, in ascolto solo sull'interfaccia di loopback, che espone un
+ * {@link GestoreAule} per prove di carico e per l'uso da altri processi sulla
+ * stessa macchina. Le connessioni sono gestite dal server HTTP del JDK con un
+ * solo thread di selezione (NIO), per cui non serve un thread per ogni
+ * connessione aperta; ogni richiesta viene poi eseguita su un thread virtuale
+ * se la JVM li supporta (Java 21 e successivi), altrimenti su un pool di
+ * thread di dimensione fissa.
+ *
+ * Il pool non è equivalente ai thread virtuali: esegue insieme al più tante
+ * richieste quanti sono i suoi thread, e le altre aspettano in una coda senza
+ * limite. Una richiesta occupa il suo thread anche mentre aspetta il lock di
+ * un'aula o, se il gestore è collegato a un {@link RegistroOperazioni}, la
+ * scrittura su disco, per cui con molte richieste lente la latenza cresce con
+ * la coda. La dimensione predefinita è di quattro thread per processore; chi
+ * si aspetta più richieste contemporanee la sceglie con
+ * {@link #avvia(GestoreAule, int, int)}. All'avvio senza thread virtuali viene
+ * registrato un avviso con la dimensione del pool.
+ *
+ * Le risposte sono testo UTF-8, una riga per elemento e i campi separati da
+ * {@code ;}. Gli istanti sono nel formato {@code yyyy-MM-dd HH:mm}, nel fuso
+ * orario di default, come in {@link ImportatoreOrari}. I parametri si passano
+ * nella query string oppure, per le POST, anche nel corpo come
+ * {@code application/x-www-form-urlencoded}.
+ *
+ * <pre>
+ * GET  /aule                                   nome;location per ogni aula
+ * GET  /prenotazioni?aula=                     inizio;fine;docente;motivo per
+ *                                              ogni prenotazione, comprese le
+ *                                              occorrenze delle ricorrenti
+ * GET  /cerca?inizio=&amp;fine=&amp;facility=...      nomi delle aule libere, in
+ *                                              ordine; facility è ripetibile,
+ *                                              CODICE oppure CODICE:quantità
+ * POST /prenota?aula=&amp;inizio=&amp;fine=&amp;docente=&amp;motivo=
+ * POST /cancella?aula=&amp;inizio=&amp;fine=
+ * GET  /metriche                               le {@link Metriche} del
+ *                                              gestore, una riga per metrica
+ * </pre>
+ *
+ * Codici di risposta: 200 (201 per una prenotazione inserita), 400 per
+ * parametri mancanti o non validi, 404 per un'aula o una prenotazione che non
+ * esistono, 405 per un metodo sbagliato, 409 per una prenotazione che si
+ * sovrappone a un'altra.
+ *
+ * @author Collettiva
+ *
+ */
+public final class ServerAule implements Closeable {
+
+    // Connessioni in attesa di essere accettate
+    private static final int BACKLOG = 16384;
+
+    // Thread per processore del pool usato quando mancano i thread virtuali
+    private static final int THREAD_PER_PROCESSORE = 4;
+
+    private static final Logger LOG = Logger
+            .getLogger(ServerAule.class.getName());
+
+    private static final DateTimeFormatter FORMATO = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd HH:mm");
+
+    private final GestoreAule gestore;
+
+    private final HttpServer server;
+
+    private final ExecutorService esecutore;
+
+    private final boolean threadVirtuali;
+
+    // Docenti e motivi delle prenotazioni ricevute: le prenotazioni con lo
+    // stesso docente o lo stesso motivo condividono la stessa stringa
+    private final ConcurrentHashMap<String, String> stringhe = new ConcurrentHashMap<String, String>();
+
+    private ServerAule(GestoreAule gestore, HttpServer server,
+            ExecutorService esecutore, boolean threadVirtuali) {
+        this.gestore = gestore;
+        this.server = server;
+        this.esecutore = esecutore;
+        this.threadVirtuali = threadVirtuali;
+    }
+
+    /**
+     * Avvia un server sull'interfaccia di loopback. Se la JVM non ha i thread
+     * virtuali usa un pool di quattro thread per processore.
+     *
+     * @param gestore
+     *                    il gestore da esporre
+     * @param porta
+     *                    la porta su cui ascoltare, 0 per sceglierne una
+     *                    libera
+     * @return il server avviato
+     * @throws NullPointerException
+     *                                  se il gestore è nullo
+     * @throws IOException
+     *                                  se non è possibile mettersi in ascolto
+     *                                  sulla porta
+     */
+    public static ServerAule avvia(GestoreAule gestore, int porta)
+            throws IOException {
+        return avvia(gestore, porta, THREAD_PER_PROCESSORE
+                * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Avvia un server sull'interfaccia di loopback, scegliendo il numero di
+     * thread del pool usato se la JVM non ha i thread virtuali, cioè il
+     * massimo numero di richieste eseguite insieme.
+     *
+     * @param gestore
+     *                       il gestore da esporre
+     * @param porta
+     *                       la porta su cui ascoltare, 0 per sceglierne una
+     *                       libera
+     * @param threadPool
+     *                       il numero di thread del pool; viene ignorato se
+     *                       ci sono i thread virtuali
+     * @return il server avviato
+     * @throws NullPointerException
+     *                                      se il gestore è nullo
+     * @throws IllegalArgumentException
+     *                                      se il numero di thread non è
+     *                                      positivo
+     * @throws IOException
+     *                                      se non è possibile mettersi in
+     *                                      ascolto sulla porta
+     */
+    public static ServerAule avvia(GestoreAule gestore, int porta,
+            int threadPool) throws IOException {
+        if (gestore == null)
+            throw new NullPointerException("Il gestore è nullo");
+        if (threadPool < 1)
+            throw new IllegalArgumentException(
+                    "Il numero di thread deve essere positivo");
+        HttpServer server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), porta), BACKLOG);
+        ExecutorService esecutore = esecutoreVirtuale();
+        boolean threadVirtuali = esecutore != null;
+        if (esecutore == null) {
+            LOG.warning("Thread virtuali non disponibili: le richieste "
+                    + "vengono eseguite da un pool di " + threadPool
+                    + " thread");
+            esecutore = Executors.newFixedThreadPool(threadPool);
+        }
+        ServerAule s = new ServerAule(gestore, server, esecutore,
+                threadVirtuali);
+        server.createContext("/", s.new Gestore());
+        server.setExecutor(esecutore);
+        server.start();
+        return s;
+    }
+
+    /*
+     * Restituisce un esecutore che avvia un thread virtuale per ogni
+     * richiesta, oppure null se la JVM non li supporta. Il metodo viene
+     * cercato per riflessione, perché il codice deve compilare anche con JDK
+     * che non lo hanno.
+     */
+    private static ExecutorService esecutoreVirtuale() {
+        try {
+            Method m = Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Metodo assente, oppure presente ma in anteprima e non abilitato
+            return null;
+        }
+    }
+
+    /**
+     * @return la porta su cui il server è in ascolto
+     */
+    public int getPorta() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return true se le richieste vengono eseguite su thread virtuali, false
+     *         se su un pool di thread
+     */
+    public boolean usaThreadVirtuali() {
+        return threadVirtuali;
+    }
+
+    /**
+     * Ferma il server, aspettando al più un secondo che finiscano le
+     * richieste in corso.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        esecutore.shutdown();
+        try {
+            esecutore.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Parametri mancanti o non validi: diventa una risposta 400.
+     */
+    private static final class RichiestaNonValida extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        RichiestaNonValida(String messaggio) {
+            super(messaggio);
+        }
+    }
+
+    /*
+     * Gestisce tutte le richieste, smistandole in base al percorso.
+     */
+    private final class Gestore implements HttpHandler {
+        @Override
+        public void handle(HttpExchange scambio) throws IOException {
+            try {
+                String percorso = scambio.getRequestURI().getPath();
+                String metodo = scambio.getRequestMethod();
+                boolean post = metodo.equals("POST");
+                if (!post && !metodo.equals("GET")) {
+                    rispondi(scambio, 405, "Metodo non supportato");
+                    return;
+                }
+                Map<String, List<String>> parametri = parametri(scambio,
+                        post);
+                if (percorso.equals("/aule") && !post)
+                    aule(scambio);
+                else if (percorso.equals("/prenotazioni") && !post)
+                    prenotazioni(scambio, parametri);
+                else if (percorso.equals("/cerca") && !post)
+                    cerca(scambio, parametri);
+                else if (percorso.equals("/prenota") && post)
+                    prenota(scambio, parametri);
+                else if (percorso.equals("/cancella") && post)
+                    cancella(scambio, parametri);
+                else if (percorso.equals("/metriche") && !post)
+                    rispondi(scambio, 200,
+                            gestore.getMetriche().istantanea().toString());
+                else if (percorso.equals("/aule")
+                        || percorso.equals("/prenotazioni")
+                        || percorso.equals("/cerca")
+                        || percorso.equals("/prenota")
+                        || percorso.equals("/cancella")
+                        || percorso.equals("/metriche"))
+                    rispondi(scambio, 405, "Metodo non supportato");
+                else
+                    rispondi(scambio, 404, "Percorso sconosciuto");
+            } catch (RichiestaNonValida e) {
+                rispondi(scambio, 400, e.getMessage());
+            } catch (RuntimeException e) {
+                // Il dettaglio resta nel log, il client non deve vederlo
+                LOG.log(Level.SEVERE, "Errore nella richiesta "
+                        + scambio.getRequestMethod() + " "
+                        + scambio.getRequestURI(), e);
+                rispondi(scambio, 500, "Errore interno del server");
+            } finally {
+                scambio.close();
+            }
+        }
+    }
+
+    private void aule(HttpExchange scambio) throws IOException {
+        List<Aula> aule = gestore.listaAule();
+        Collections.sort(aule);
+        StringBuilder sb = new StringBuilder();
+        for (Aula a : aule)
+            sb.append(a.getNome()).append(';').append(a.getLocation())
+                    .append('\n');
+        rispondi(scambio, 200, sb.toString());
+    }
+
+    private void prenotazioni(HttpExchange scambio,
+            Map<String, List<String>> parametri)
+            throws IOException, RichiestaNonValida {
+        Aula a = gestore.aulaDiNome(parametro(parametri, "aula"));
+        if (a == null) {
+            rispondi(scambio, 404, "Aula sconosciuta");
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        // La vista delle prenotazioni non va scorsa mentre l'aula cambia
+        a.getLock().readLock().lock();
+        try {
+            Iterator<Prenotazione> it = a.iteratorOccorrenze();
+            while (it.hasNext()) {
+                Prenotazione p = it.next();
+                sb.append(formatta(p.getTimeSlot().getStart())).append(';')
+                        .append(formatta(p.getTimeSlot().getStop()))
+                        .append(';').append(p.getDocente()).append(';')
+                        .append(p.getMotivo()).append('\n');
+            }
+        } finally {
+            a.getLock().readLock().unlock();
+        }
+        rispondi(scambio, 200, sb.toString());
+    }
+
+    private void cerca(HttpExchange scambio,
+            Map<String, List<String>> parametri)
+            throws IOException, RichiestaNonValida {
+        TimeSlot ts = timeSlot(parametri);
+        Set<Facility> richieste = new HashSet<Facility>();
+        List<String> facilities = parametri.get("facility");
+        if (facilities != null)
+            for (String f : facilities) {
+                int duePunti = f.indexOf(':');
+                if (duePunti < 0)
+                    richieste.add(new PresenceFacility(f, ""));
+                else
+                    try {
+                        richieste.add(new QuantitativeFacility(
+                                f.substring(0, duePunti), "", Integer
+                                        .parseInt(f.substring(duePunti + 1))));
+                    } catch (NumberFormatException e) {
+                        throw new RichiestaNonValida(
+                                "Quantità non valida: " + f);
+                    }
+            }
+        List<Aula> libere = new ArrayList<Aula>(
+                gestore.cercaAuleLibere(richieste, ts));
+        Collections.sort(libere);
+        StringBuilder sb = new StringBuilder();
+        for (Aula a : libere)
+            sb.append(a.getNome()).append('\n');
+        rispondi(scambio, 200, sb.toString());
+    }
+
+    private void prenota(HttpExchange scambio,
+            Map<String, List<String>> parametri)
+            throws IOException, RichiestaNonValida {
+        Aula a = gestore.aulaDiNome(parametro(parametri, "aula"));
+        TimeSlot ts = timeSlot(parametri);
+        String docente = ImportatoreOrari.condivisa(stringhe,
+                parametro(parametri, "docente"));
+        String motivo = ImportatoreOrari.condivisa(stringhe,
+                parametro(parametri, "motivo"));
+        if (a == null) {
+            rispondi(scambio, 404, "Aula sconosciuta");
+            return;
+        }
+        try {
+            a.addPrenotazione(ts, docente, motivo);
+        } catch (IllegalArgumentException e) {
+            rispondi(scambio, 409, e.getMessage());
+            return;
+        }
+        rispondi(scambio, 201, "Prenotazione inserita");
+    }
+
+    private void cancella(HttpExchange scambio,
+            Map<String, List<String>> parametri)
+            throws IOException, RichiestaNonValida {
+        Aula a = gestore.aulaDiNome(parametro(parametri, "aula"));
+        TimeSlot ts = timeSlot(parametri);
+        if (a == null) {
+            rispondi(scambio, 404, "Aula sconosciuta");
+            return;
+        }
+        if (a.removePrenotazione(new Prenotazione(a, ts, "", "")))
+            rispondi(scambio, 200, "Prenotazione cancellata");
+        else
+            rispondi(scambio, 404, "Prenotazione inesistente");
+    }
+
+    private static TimeSlot timeSlot(Map<String, List<String>> parametri)
+            throws RichiestaNonValida {
+        GregorianCalendar inizio = calendario(parametro(parametri, "inizio"));
+        GregorianCalendar fine = calendario(parametro(parametri, "fine"));
+        try {
+            return new TimeSlot(inizio, fine);
+        } catch (IllegalArgumentException e) {
+            throw new RichiestaNonValida("Time slot non valido");
+        }
+    }
+
+    private static GregorianCalendar calendario(String s)
+            throws RichiestaNonValida {
+        GregorianCalendar g = new GregorianCalendar();
+        try {
+            g.setTimeInMillis(ImportatoreOrari.istante(s, 0, s.length(),
+                    ZoneId.systemDefault()));
+        } catch (RuntimeException e) {
+            throw new RichiestaNonValida("Istante non valido: " + s);
+        }
+        return g;
+    }
+
+    private static String formatta(GregorianCalendar g) {
+        return FORMATO.format(Instant.ofEpochMilli(g.getTimeInMillis())
+                .atZone(ZoneId.systemDefault()));
+    }
+
+    private static String parametro(Map<String, List<String>> parametri,
+            String nome) throws RichiestaNonValida {
+        List<String> valori = parametri.get(nome);
+        if (valori == null || valori.size() != 1)
+            throw new RichiestaNonValida(
+                    "Il parametro " + nome + " deve comparire una volta");
+        return valori.get(0);
+    }
+
+    /*
+     * Legge i parametri della query string e, per le POST, del corpo.
+     */
+    private static Map<String, List<String>> parametri(HttpExchange scambio,
+            boolean post) throws IOException, RichiestaNonValida {
+        Map<String, List<String>> parametri = new HashMap<String, List<String>>();
+        aggiungiParametri(scambio.getRequestURI().getRawQuery(), parametri);
+        if (post) {
+            InputStream in = scambio.getRequestBody();
+            ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+                corpo.write(buffer, 0, n);
+            aggiungiParametri(
+                    new String(corpo.toByteArray(), StandardCharsets.UTF_8),
+                    parametri);
+        }
+        return parametri;
+    }
+
+    private static void aggiungiParametri(String query,
+            Map<String, List<String>> parametri) throws RichiestaNonValida {
+        if (query == null || query.isEmpty())
+            return;
+        for (String coppia : query.split("&")) {
+            if (coppia.isEmpty())
+                continue;
+            int uguale = coppia.indexOf('=');
+            String nome = uguale < 0 ? coppia : coppia.substring(0, uguale);
+            String valore = uguale < 0 ? "" : coppia.substring(uguale + 1);
+            List<String> valori = parametri.get(decodifica(nome));
+            if (valori == null) {
+                valori = new ArrayList<String>();
+                parametri.put(decodifica(nome), valori);
+            }
+            valori.add(decodifica(valore));
+        }
+    }
+
+    private static String decodifica(String s) throws RichiestaNonValida {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalArgumentException e) {
+            throw new RichiestaNonValida("Codifica non valida: " + s);
+        }
+    }
+
+    private static void rispondi(HttpExchange scambio, int codice,
+            String testo) throws IOException {
+        byte[] corpo = testo.getBytes(StandardCharsets.UTF_8);
+        scambio.getResponseHeaders().set("Content-Type",
+                "text/plain; charset=utf-8");
+        scambio.sendResponseHeaders(codice, corpo.length == 0 ? -1
+                : corpo.length);
+        if (corpo.length > 0) {
+            OutputStream out = scambio.getResponseBody();
+            out.write(corpo);
+            out.close();
+        }
+    }
+
+    /**
+     * Avvia un server con un gestore di prova, per le prove di carico.
+     *
+     * <pre>
+     * java it.unicam.cs.asdl2122.es5.ServerAule [porta] [numero di aule]
+     * </pre>
+     *
+     * I valori di default sono la porta 8080 e 100 aule, chiamate A0, A1, ...,
+     * con la facility "POSTI" e un numero di posti variabile.
+     *
+     * @param args
+     *                 porta e numero di aule, facoltativi
+     * @throws IOException
+     *                         se il server non può essere avviato
+     */
+    public static void main(String[] args) throws IOException {
+        int porta = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int numAule = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        GestoreAule g = new GestoreAule();
+        for (int i = 0; i < numAule; i++) {
+            Aula a = new Aula("A" + i, "");
+            a.addFacility(new QuantitativeFacility("POSTI", "Posti a sedere",
+                    20 + 10 * (i % 20)));
+            g.addAula(a);
+        }
+        ServerAule s = avvia(g, porta);
+        System.out.println("In ascolto su 127.0.0.1:" + s.getPorta()
+                + (s.usaThreadVirtuali() ? " con thread virtuali"
+                        : " con un pool di thread"));
+    }
+
+}
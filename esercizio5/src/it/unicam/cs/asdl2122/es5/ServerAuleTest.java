@@ -0,0 +1,208 @@
+package it.unicam.cs.asdl2122.es5;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Classe di test per ServerAule
+ *
+ * @author Collettiva
+ *
+ */
+class ServerAuleTest {
+
+    private GestoreAule gestore;
+
+    private ServerAule server;
+
+    @BeforeEach
+    void avvia() throws IOException {
+        gestore = new GestoreAule();
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        a.addFacility(new QuantitativeFacility("POSTI", "", 80));
+        a.addFacility(new PresenceFacility("HDMI", ""));
+        Aula b = new Aula("AB1", "Polo Lodovici Primo Piano");
+        b.addFacility(new QuantitativeFacility("POSTI", "", 40));
+        gestore.addAula(a);
+        gestore.addAula(b);
+        server = ServerAule.avvia(gestore, 0);
+    }
+
+    @AfterEach
+    void ferma() {
+        server.close();
+    }
+
+    /*
+     * Esegue una richiesta e restituisce il codice di risposta seguito da un
+     * a capo e dal corpo.
+     */
+    private String richiesta(String metodo, String percorso, String corpo)
+            throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(
+                "http://127.0.0.1:" + server.getPorta() + percorso)
+                        .openConnection();
+        c.setRequestMethod(metodo);
+        if (corpo != null) {
+            c.setDoOutput(true);
+            c.setRequestProperty("Content-Type",
+                    "application/x-www-form-urlencoded");
+            OutputStream out = c.getOutputStream();
+            out.write(corpo.getBytes(StandardCharsets.UTF_8));
+            out.close();
+        }
+        int codice = c.getResponseCode();
+        InputStream in = codice < 400 ? c.getInputStream() : c.getErrorStream();
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        if (in != null) {
+            byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+                b.write(buffer, 0, n);
+            in.close();
+        }
+        return codice + "\n" + new String(b.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String codifica(String s) throws IOException {
+        return URLEncoder.encode(s, "UTF-8");
+    }
+
+    @Test
+    final void testAvvia() {
+        assertThrows(NullPointerException.class,
+                () -> ServerAule.avvia(null, 0));
+        assertTrue(server.getPorta() > 0);
+        // Fino a Java 18 non ci sono thread virtuali
+        String versione = System.getProperty("java.specification.version");
+        if (versione.startsWith("1.") || Integer.parseInt(versione) < 19)
+            assertFalse(server.usaThreadVirtuali());
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerAule.avvia(gestore, 0, 0));
+    }
+
+    @Test
+    final void testOperazioni() throws IOException {
+        assertEquals("200\nAB1;Polo Lodovici Primo Piano\n"
+                + "LA1;Polo Lodovici Piano Terra\n",
+                richiesta("GET", "/aule", null));
+        String ts = "&inizio=" + codifica("2019-11-04 09:00") + "&fine="
+                + codifica("2019-11-04 11:00");
+        assertEquals("200\nAB1\nLA1\n", richiesta("GET",
+                "/cerca?facility=POSTI:30" + ts, null));
+        assertEquals("200\nLA1\n", richiesta("GET",
+                "/cerca?facility=POSTI:30&facility=HDMI" + ts, null));
+        assertTrue(richiesta("POST", "/prenota?aula=LA1" + ts,
+                "docente=Luca+Tesei&motivo=" + codifica("Lezione; ASDL"))
+                        .startsWith("201\n"));
+        // La stessa prenotazione si sovrappone
+        assertTrue(richiesta("POST", "/prenota?aula=LA1" + ts,
+                "docente=x&motivo=y").startsWith("409\n"));
+        assertEquals("200\nAB1\n", richiesta("GET",
+                "/cerca?facility=POSTI:30" + ts, null));
+        // Le occorrenze delle prenotazioni ricorrenti sono elencate
+        gestore.aulaDiNome("LA1").addPrenotazioneRicorrente(
+                new TimeSlot(new GregorianCalendar(2019, 10, 5, 9, 0),
+                        new GregorianCalendar(2019, 10, 5, 10, 0)),
+                Duration.ofDays(1), 2, new HashSet<Integer>(), "MQ", "Lab");
+        assertEquals("200\n2019-11-04 09:00;2019-11-04 11:00;Luca Tesei;"
+                + "Lezione; ASDL\n2019-11-05 09:00;2019-11-05 10:00;MQ;Lab\n"
+                + "2019-11-06 09:00;2019-11-06 10:00;MQ;Lab\n",
+                richiesta("GET", "/prenotazioni?aula=LA1", null));
+        assertTrue(richiesta("POST", "/cancella?aula=LA1" + ts, null)
+                .startsWith("200\n"));
+        assertTrue(richiesta("POST", "/cancella?aula=LA1" + ts, null)
+                .startsWith("404\n"));
+        assertEquals("200\nAB1\nLA1\n", richiesta("GET",
+                "/cerca?facility=POSTI:30" + ts, null));
+    }
+
+    @Test
+    final void testErrori() throws IOException {
+        String ts = "&inizio=" + codifica("2019-11-04 09:00") + "&fine="
+                + codifica("2019-11-04 11:00");
+        assertTrue(richiesta("GET", "/niente", null).startsWith("404\n"));
+        assertTrue(richiesta("POST", "/aule", "").startsWith("405\n"));
+        assertTrue(richiesta("GET", "/prenota?aula=LA1" + ts, null)
+                .startsWith("405\n"));
+        assertTrue(richiesta("DELETE", "/aule", null).startsWith("405\n"));
+        assertTrue(richiesta("GET", "/prenotazioni?aula=XX", null)
+                .startsWith("404\n"));
+        assertTrue(richiesta("POST", "/prenota?aula=XX" + ts,
+                "docente=x&motivo=y").startsWith("404\n"));
+        // Parametri mancanti, ripetuti o non validi
+        assertTrue(richiesta("GET", "/prenotazioni", null).startsWith("400\n"));
+        assertTrue(richiesta("GET", "/prenotazioni?aula=LA1&aula=AB1", null)
+                .startsWith("400\n"));
+        assertTrue(richiesta("POST", "/prenota?aula=LA1" + ts, "docente=x")
+                .startsWith("400\n"));
+        assertTrue(richiesta("GET",
+                "/cerca?inizio=2019-11-04&fine=2019-11-05", null)
+                        .startsWith("400\n"));
+        assertTrue(richiesta("GET", "/cerca?facility=POSTI:molti" + ts, null)
+                .startsWith("400\n"));
+        // Fine prima dell'inizio
+        assertTrue(richiesta("GET", "/cerca?inizio="
+                + codifica("2019-11-04 11:00") + "&fine="
+                + codifica("2019-11-04 09:00"), null).startsWith("400\n"));
+        assertTrue(richiesta("GET", "/cerca?x=%zz" + ts, null)
+                .startsWith("400\n"));
+    }
+
+    @Test
+    final void testClientConcorrenti() throws Exception {
+        // Molti client cercano di prenotare gli stessi dieci time slot: ogni
+        // time slot deve essere assegnato esattamente una volta
+        final AtomicInteger inserite = new AtomicInteger();
+        final AtomicInteger rifiutate = new AtomicInteger();
+        final AtomicInteger errori = new AtomicInteger();
+        Thread[] client = new Thread[200];
+        for (int i = 0; i < client.length; i++) {
+            final int ora = 8 + i % 10;
+            client[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String r = richiesta("POST", "/prenota", "aula=AB1"
+                                + "&inizio=" + codifica(String.format(
+                                        "2019-11-04 %02d:00", ora))
+                                + "&fine=" + codifica(String.format(
+                                        "2019-11-04 %02d:00", ora + 1))
+                                + "&docente=d&motivo=m");
+                        if (r.startsWith("201\n"))
+                            inserite.incrementAndGet();
+                        else if (r.startsWith("409\n"))
+                            rifiutate.incrementAndGet();
+                        else
+                            errori.incrementAndGet();
+                    } catch (IOException e) {
+                        errori.incrementAndGet();
+                    }
+                }
+            });
+            client[i].start();
+        }
+        for (Thread t : client)
+            t.join();
+        assertEquals(0, errori.get());
+        assertEquals(10, inserite.get());
+        assertEquals(190, rifiutate.get());
+        assertEquals(10, gestore.aulaDiNome("AB1").getPrenotazioni().size());
+    }
+
+}
@@ -0,0 +1,544 @@
+package it.unicam.cs.asdl2122.es5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Fotografia (snapshot) binaria di un {@link GestoreAule}: aule, facilities e
+ * prenotazioni, in un formato che si scrive e si rilegge molto più in fretta
+ * di un formato testuale. Il file viene scritto con un {@code FileChannel} e
+ * riletto attraverso un {@code MappedByteBuffer}, senza copiarlo prima in
+ * memoria: le prenotazioni di ogni aula sono memorizzate come coppie di
+ * {@code long} (inizio e fine in millisecondi dall'epoca) già ordinate, e
+ * vengono lette in blocco e inserite senza ripetere i controlli di
+ * sovrapposizione e senza creare calendari. I docenti e i motivi sono scritti
+ * una volta sola, in una tabella delle stringhe che precede le aule, e le
+ * prenotazioni vi fanno riferimento per indice: le prenotazioni caricate con
+ * lo stesso docente o lo stesso motivo condividono la stessa stringa.
+ *
+ * La tabella e ogni aula sono sezioni con il proprio CRC, controllato subito
+ * prima di leggerle: il file viene percorso una volta sola, sezione per sezione, e le
+ * pagine di una sezione vengono lette dal CRC e subito dopo dalla lettura
+ * vera e propria, mentre sono ancora in memoria.
+ *
+ * Formato, con gli interi in big endian e le stringhe come lunghezza in byte
+ * (int) seguita dai byte UTF-8:
+ *
+ * <pre>
+ * int   MAGIC ("AULE")
+ * int   VERSIONE
+ * int   lunghezza della sezione della tabella delle stringhe
+ *   sezione:
+ *     int k, numero di stringhe
+ *     k stringhe, tutte diverse
+ *   long CRC32 della sezione
+ * int   numero di aule
+ * per ogni aula:
+ *   int lunghezza della sezione
+ *   sezione:
+ *     nome, location
+ *     int numero di facilities
+ *     per ogni facility: byte tipo (0 presence, 1 quantitative), codice,
+ *                        descrizione, int quantità (per le quantitative)
+ *     int n, numero di prenotazioni
+ *     n coppie long inizio, long fine, in ordine crescente
+ *     n coppie int docente, int motivo (indici nella tabella), nello stesso
+ *                        ordine
+ *     int m, numero di prenotazioni ricorrenti
+ *     per ogni prenotazione ricorrente: long inizio, long durata, long
+ *                        periodo (in millisecondi), int numero di
+ *                        occorrenze, int e, e int indici delle eccezioni,
+ *                        int docente, int motivo
+ *   long CRC32 della sezione
+ * </pre>
+ *
+ * La versione 3 non ha la tabella delle stringhe: i docenti e i motivi sono
+ * scritti per esteso al posto dei loro indici. Le versioni 1 e 2 non hanno
+ * neppure le sezioni: le aule seguono direttamente il numero di aule, senza
+ * lunghezza né CRC, e il file termina con il CRC32 di tutto ciò che precede,
+ * controllato prima di leggerlo. La versione 1 non ha prenotazioni
+ * ricorrenti.
+ *
+ * Il file mappato non può superare i 2 GB.
+ *
+ * @author Collettiva
+ *
+ */
+public final class SnapshotAule {
+
+    // "AULE" in ASCII
+    private static final int MAGIC = 0x41554C45;
+
+    /**
+     * Versione del formato scritta da questa classe. Vengono letti anche i
+     * file delle versioni da 1 a 3; i file di altre versioni vengono
+     * rifiutati.
+     */
+    public static final int VERSIONE = 4;
+
+    private static final byte PRESENZA = 0;
+
+    private static final byte QUANTITA = 1;
+
+    // Dimensione del buffer di scrittura
+    private static final int DIM_BUFFER = 1 << 20;
+
+    private SnapshotAule() {
+    }
+
+    /**
+     * Scrive la fotografia di tutte le aule di un gestore, sovrascrivendo il
+     * file se esiste. Le prenotazioni di ciascuna aula vengono lette tenendo
+     * il lock dell'aula, per cui ogni aula è fotografata in uno stato
+     * consistente.
+     *
+     * @param g
+     *                 il gestore da fotografare
+     * @param file
+     *                 il file da scrivere
+     * @throws NullPointerException
+     *                                  se una delle informazioni passate è
+     *                                  nulla
+     * @throws IllegalArgumentException
+     *                                      se un'aula ha una facility di un
+     *                                      tipo non supportato
+     * @throws IOException
+     *                                      se il file non può essere scritto
+     */
+    public static void scrivi(GestoreAule g, Path file) throws IOException {
+        if (g == null || file == null)
+            throw new NullPointerException(
+                    "Il gestore o il file della fotografia sono nulli");
+        scriviAule(g.listaAule(), file);
+    }
+
+    /*
+     * Scrive la fotografia di un elenco di aule. Lo usa anche
+     * RegistroOperazioni, che fotografa le aule che ha registrato tenendo i
+     * loro lock in scrittura.
+     */
+    static void scriviAule(List<Aula> aule, Path file) throws IOException {
+        FileChannel canale = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        // Le prenotazioni di ogni aula vengono copiate tenendo il suo lock, e i
+        // loro docenti e motivi raccolti nella tabella delle stringhe, che
+        // nel file precede le aule
+        List<List<Prenotazione>> prenotazioni = new ArrayList<List<Prenotazione>>(
+                aule.size());
+        List<List<PrenotazioneRicorrente>> ricorrenti = new ArrayList<List<PrenotazioneRicorrente>>(
+                aule.size());
+        Map<String, Integer> indici = new HashMap<String, Integer>();
+        List<String> tabella = new ArrayList<String>();
+        for (Aula a : aule) {
+            List<Prenotazione> p;
+            List<PrenotazioneRicorrente> r;
+            a.getLock().readLock().lock();
+            try {
+                p = new ArrayList<Prenotazione>(a.getPrenotazioni());
+                r = a.getPrenotazioniRicorrenti();
+            } finally {
+                a.getLock().readLock().unlock();
+            }
+            for (Prenotazione x : p) {
+                registra(x.getDocente(), indici, tabella);
+                registra(x.getMotivo(), indici, tabella);
+            }
+            for (PrenotazioneRicorrente x : r) {
+                registra(x.getDocente(), indici, tabella);
+                registra(x.getMotivo(), indici, tabella);
+            }
+            prenotazioni.add(p);
+            ricorrenti.add(r);
+        }
+        try {
+            Scrittore out = new Scrittore(canale);
+            out.scriviInt(MAGIC);
+            out.scriviInt(VERSIONE);
+            out.iniziaSezione();
+            out.scriviInt(tabella.size());
+            for (String s : tabella)
+                out.scriviStringa(s);
+            out.chiudiSezione();
+            out.scriviInt(aule.size());
+            for (int i = 0; i < aule.size(); i++) {
+                out.iniziaSezione();
+                scriviAula(out, aule.get(i), prenotazioni.get(i),
+                        ricorrenti.get(i), indici);
+                out.chiudiSezione();
+            }
+            out.chiudi();
+            canale.force(true);
+        } finally {
+            canale.close();
+        }
+    }
+
+    private static void registra(String s, Map<String, Integer> indici,
+            List<String> tabella) {
+        if (!indici.containsKey(s)) {
+            indici.put(s, tabella.size());
+            tabella.add(s);
+        }
+    }
+
+    private static void scriviAula(Scrittore out, Aula a,
+            List<Prenotazione> prenotazioni,
+            List<PrenotazioneRicorrente> ricorrenti,
+            Map<String, Integer> indici) throws IOException {
+        out.scriviStringa(a.getNome());
+        out.scriviStringa(a.getLocation());
+        List<Facility> facilities = new ArrayList<Facility>(a.getFacilities());
+        out.scriviInt(facilities.size());
+        for (Facility f : facilities) {
+            if (f instanceof QuantitativeFacility) {
+                out.scriviByte(QUANTITA);
+                out.scriviStringa(f.getCodice());
+                out.scriviStringa(f.getDescrizione());
+                out.scriviInt(((QuantitativeFacility) f).getQuantity());
+            } else if (f instanceof PresenceFacility) {
+                out.scriviByte(PRESENZA);
+                out.scriviStringa(f.getCodice());
+                out.scriviStringa(f.getDescrizione());
+            } else
+                throw new IllegalArgumentException(
+                        "Tipo di facility non supportato dalla fotografia: "
+                                + f.getClass().getName());
+        }
+        out.scriviInt(prenotazioni.size());
+        for (Prenotazione p : prenotazioni) {
+            out.scriviLong(p.getCompactTimeSlot().getStartMillis());
+            out.scriviLong(p.getCompactTimeSlot().getStopMillis());
+        }
+        for (Prenotazione p : prenotazioni) {
+            out.scriviInt(indici.get(p.getDocente()));
+            out.scriviInt(indici.get(p.getMotivo()));
+        }
+        out.scriviInt(ricorrenti.size());
+        for (PrenotazioneRicorrente r : ricorrenti) {
+            out.scriviLong(r.getInizioMillis());
+            out.scriviLong(r.getDurataMillis());
+            out.scriviLong(r.getPeriodoMillis());
+            out.scriviInt(r.getNumero());
+            int[] eccezioni = r.eccezioni();
+            out.scriviInt(eccezioni.length);
+            for (int e : eccezioni)
+                out.scriviInt(e);
+            out.scriviInt(indici.get(r.getDocente()));
+            out.scriviInt(indici.get(r.getMotivo()));
+        }
+    }
+
+    /**
+     * Ricostruisce un gestore da una fotografia scritta con
+     * {@link #scrivi(GestoreAule, Path)}.
+     *
+     * @param file
+     *                 il file da leggere
+     * @return un nuovo gestore con le aule, le facilities e le prenotazioni
+     *         della fotografia
+     * @throws NullPointerException
+     *                                  se il file passato è nullo
+     * @throws IOException
+     *                                  se il file non può essere letto, non è
+     *                                  una fotografia, è di una versione non
+     *                                  supportata oppure è danneggiato
+     */
+    public static GestoreAule carica(Path file) throws IOException {
+        if (file == null)
+            throw new NullPointerException("Il file della fotografia è nullo");
+        FileChannel canale = FileChannel.open(file, StandardOpenOption.READ);
+        MappedByteBuffer dati;
+        try {
+            if (canale.size() > Integer.MAX_VALUE)
+                throw new IOException("Fotografia troppo grande da mappare");
+            dati = canale.map(FileChannel.MapMode.READ_ONLY, 0,
+                    canale.size());
+        } finally {
+            // La mappatura resta valida anche dopo la chiusura del canale
+            canale.close();
+        }
+        if (dati.limit() < 12 || dati.getInt(0) != MAGIC)
+            throw new IOException("Il file non è una fotografia di aule");
+        int versione = dati.getInt(4);
+        if (versione < 1 || versione > VERSIONE)
+            throw new IOException(
+                    "Versione della fotografia non supportata: " + versione);
+        if (versione < 3) {
+            // Un solo CRC in fondo al file
+            if (dati.limit() < 20)
+                throw new IOException("Fotografia troncata");
+            int fineDati = dati.limit() - 8;
+            controllaCrc(dati, 0, fineDati, dati.getLong(fineDati));
+            dati.limit(fineDati);
+        }
+        dati.position(8);
+        try {
+            GestoreAule g = new GestoreAule();
+            String[] tabella = null;
+            if (versione >= 4) {
+                ByteBuffer sezione = sezione(dati);
+                tabella = leggiTabella(sezione);
+                if (sezione.hasRemaining())
+                    throw new IOException(
+                            "Dati in eccesso nella tabella delle stringhe");
+            }
+            int numAule = dati.getInt();
+            for (int i = 0; i < numAule; i++)
+                if (versione < 3)
+                    g.addAula(leggiAula(dati, versione, null));
+                else {
+                    ByteBuffer sezione = sezione(dati);
+                    g.addAula(leggiAula(sezione, versione, tabella));
+                    if (sezione.hasRemaining())
+                        throw new IOException(
+                                "Dati in eccesso nella sezione di un'aula");
+                }
+            if (dati.hasRemaining())
+                throw new IOException("Dati in eccesso in fondo alla fotografia");
+            return g;
+        } catch (RuntimeException e) {
+            // BufferUnderflowException, IllegalArgumentException e simili: il
+            // CRC è giusto ma il contenuto non è valido
+            throw new IOException("Fotografia non valida", e);
+        }
+    }
+
+    /*
+     * Restituisce la prossima sezione, dopo averne controllato il CRC, e
+     * porta dati oltre la sezione e il suo CRC.
+     */
+    private static ByteBuffer sezione(ByteBuffer dati) throws IOException {
+        if (dati.remaining() < 4)
+            throw new IOException("Fotografia troncata");
+        int lunghezza = dati.getInt();
+        if (lunghezza < 0 || lunghezza > dati.remaining() - 8)
+            throw new IOException("Fotografia troncata");
+        int inizio = dati.position();
+        controllaCrc(dati, inizio, inizio + lunghezza,
+                dati.getLong(inizio + lunghezza));
+        ByteBuffer sezione = dati.duplicate();
+        sezione.limit(inizio + lunghezza);
+        dati.position(inizio + lunghezza + 8);
+        return sezione.slice();
+    }
+
+    private static void controllaCrc(ByteBuffer dati, int da, int a,
+            long atteso) throws IOException {
+        ByteBuffer contenuto = dati.duplicate();
+        contenuto.limit(a);
+        contenuto.position(da);
+        CRC32 crc = new CRC32();
+        crc.update(contenuto);
+        if (crc.getValue() != atteso)
+            throw new IOException("Fotografia danneggiata: CRC errato");
+    }
+
+    private static String[] leggiTabella(ByteBuffer in) {
+        int k = in.getInt();
+        if (k < 0 || k > in.remaining() / 4)
+            throw new IllegalArgumentException(
+                    "Numero di stringhe non valido: " + k);
+        String[] tabella = new String[k];
+        for (int i = 0; i < k; i++)
+            tabella[i] = leggiStringa(in);
+        return tabella;
+    }
+
+    /*
+     * Legge un docente o un motivo: un indice nella tabella delle stringhe
+     * se c'è, altrimenti la stringa per esteso.
+     */
+    private static String leggiTesto(ByteBuffer in, String[] tabella) {
+        return tabella == null ? leggiStringa(in) : tabella[in.getInt()];
+    }
+
+    private static Aula leggiAula(ByteBuffer in, int versione,
+            String[] tabella) {
+        Aula a = new Aula(leggiStringa(in), leggiStringa(in));
+        int numFacilities = in.getInt();
+        for (int i = 0; i < numFacilities; i++) {
+            byte tipo = in.get();
+            String codice = leggiStringa(in);
+            String descrizione = leggiStringa(in);
+            if (tipo == QUANTITA)
+                a.addFacility(new QuantitativeFacility(codice, descrizione,
+                        in.getInt()));
+            else if (tipo == PRESENZA)
+                a.addFacility(new PresenceFacility(codice, descrizione));
+            else
+                throw new IllegalArgumentException(
+                        "Tipo di facility sconosciuto: " + tipo);
+        }
+        int n = in.getInt();
+        if (n < 0 || n > in.remaining() / 16)
+            throw new IllegalArgumentException(
+                    "Numero di prenotazioni non valido: " + n);
+        // Gli istanti vengono letti in blocco dalle pagine mappate
+        long[] istanti = new long[2 * n];
+        in.asLongBuffer().get(istanti);
+        in.position(in.position() + 16 * n);
+        // La fotografia contiene prenotazioni già controllate: vengono
+        // inserite senza ripetere il controllo di sovrapposizione
+        a.getLock().writeLock().lock();
+        try {
+            for (int i = 0; i < n; i++)
+                a.inserisci(Prenotazione.of(a,
+                        new CompactTimeSlot(istanti[2 * i],
+                                istanti[2 * i + 1]),
+                        leggiTesto(in, tabella), leggiTesto(in, tabella)));
+            int m = versione == 1 ? 0 : in.getInt();
+            for (int i = 0; i < m; i++) {
+                long inizio = in.getLong();
+                long durata = in.getLong();
+                long periodo = in.getLong();
+                int numero = in.getInt();
+                int e = in.getInt();
+                if (e < 0 || e > in.remaining() / 4)
+                    throw new IllegalArgumentException(
+                            "Numero di eccezioni non valido: " + e);
+                int[] eccezioni = new int[e];
+                in.asIntBuffer().get(eccezioni);
+                in.position(in.position() + 4 * e);
+                a.inserisciRicorrente(new PrenotazioneRicorrente(a, inizio,
+                        durata, periodo, numero, eccezioni,
+                        leggiTesto(in, tabella), leggiTesto(in, tabella)));
+            }
+        } finally {
+            a.getLock().writeLock().unlock();
+        }
+        return a;
+    }
+
+    private static String leggiStringa(ByteBuffer in) {
+        int lunghezza = in.getInt();
+        if (lunghezza < 0 || lunghezza > in.remaining())
+            throw new IllegalArgumentException(
+                    "Lunghezza di stringa non valida: " + lunghezza);
+        byte[] b = new byte[lunghezza];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Scrive su un canale attraverso un buffer diretto, aggiornando il CRC
+     * della sezione in corso.
+     */
+    private static final class Scrittore {
+        private final FileChannel canale;
+
+        private final ByteBuffer buffer;
+
+        private final CRC32 crc;
+
+        // Byte già scritti sul canale
+        private long scritti;
+
+        // Posizione nel buffer da cui inizia il contenuto della sezione, che
+        // entra nel CRC; dopo il primo svuotamento è 0
+        private int inizioCrc;
+
+        // Posizione nel file della lunghezza della sezione in corso
+        private long posizioneSezione;
+
+        Scrittore(FileChannel canale) {
+            this.canale = canale;
+            this.buffer = ByteBuffer.allocateDirect(DIM_BUFFER);
+            this.crc = new CRC32();
+        }
+
+        private void spazio(int n) throws IOException {
+            if (buffer.remaining() < n)
+                svuota();
+        }
+
+        private void svuota() throws IOException {
+            buffer.flip();
+            ByteBuffer contenuto = buffer.duplicate();
+            contenuto.position(inizioCrc);
+            crc.update(contenuto);
+            inizioCrc = 0;
+            while (buffer.hasRemaining())
+                scritti += canale.write(buffer);
+            buffer.clear();
+        }
+
+        /*
+         * Inizia una sezione: lascia spazio per la sua lunghezza e azzera il
+         * CRC.
+         */
+        void iniziaSezione() throws IOException {
+            svuota();
+            posizioneSezione = scritti;
+            buffer.putInt(0);
+            inizioCrc = 4;
+            crc.reset();
+        }
+
+        /*
+         * Chiude la sezione: scrive il suo CRC e, al suo posto, la sua
+         * lunghezza.
+         */
+        void chiudiSezione() throws IOException {
+            svuota();
+            long lunghezza = scritti - posizioneSezione - 4;
+            if (lunghezza > Integer.MAX_VALUE - 8)
+                throw new IOException("Aula troppo grande per la fotografia");
+            ByteBuffer l = ByteBuffer.allocate(4);
+            l.putInt((int) lunghezza);
+            l.flip();
+            while (l.hasRemaining())
+                canale.write(l, posizioneSezione + l.position());
+            buffer.putLong(crc.getValue());
+        }
+
+        void scriviByte(byte b) throws IOException {
+            spazio(1);
+            buffer.put(b);
+        }
+
+        void scriviInt(int i) throws IOException {
+            spazio(4);
+            buffer.putInt(i);
+        }
+
+        void scriviLong(long l) throws IOException {
+            spazio(8);
+            buffer.putLong(l);
+        }
+
+        void scriviStringa(String s) throws IOException {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            scriviInt(b.length);
+            if (b.length <= buffer.capacity()) {
+                spazio(b.length);
+                buffer.put(b);
+            } else {
+                // Stringa più grande del buffer: la si scrive direttamente
+                svuota();
+                ByteBuffer grande = ByteBuffer.wrap(b);
+                crc.update(grande.duplicate());
+                while (grande.hasRemaining())
+                    scritti += canale.write(grande);
+            }
+        }
+
+        /*
+         * Scrive i dati rimasti nel buffer.
+         */
+        void chiudi() throws IOException {
+            svuota();
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+package it.unicam.cs.asdl2122.es5;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Classe di test per SnapshotAule
+ *
+ * @author Collettiva
+ *
+ */
+class SnapshotAuleTest {
+
+    private Path file;
+
+    @BeforeEach
+    void creaFile() throws IOException {
+        file = Files.createTempFile("aule", ".snapshot");
+    }
+
+    @AfterEach
+    void cancellaFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static TimeSlot slot(int giorno, int ora, int oraFine) {
+        return new TimeSlot(new GregorianCalendar(2019, 10, giorno, ora, 0),
+                new GregorianCalendar(2019, 10, giorno, oraFine, 0));
+    }
+
+    private static GestoreAule gestore() {
+        GestoreAule g = new GestoreAule();
+        Aula a = new Aula("LA1", "Polo Lodovici Piano Terra");
+        a.addFacility(new PresenceFacility("HDMI", "Proiettore HDMI"));
+        a.addFacility(new QuantitativeFacility("POSTI", "Posti a sedere", 80));
+        a.addPrenotazione(slot(4, 11, 13), "Luca Tesei", "Lezione ASDL");
+        a.addPrenotazione(slot(4, 9, 11), "Michela Quadrini", "Esame àèìòù");
+        Set<Integer> eccezioni = new HashSet<Integer>();
+        eccezioni.add(1);
+        a.addPrenotazioneRicorrente(slot(11, 9, 11), Duration.ofDays(7), 3,
+                eccezioni, "Luca Tesei", "Lezione settimanale");
+        g.addAula(a);
+        Aula b = new Aula("AB1", "Polo Lodovici Primo Piano");
+        for (int i = 1; i <= 28; i++)
+            b.addPrenotazione(slot(i, 8, 18), "Docente " + i, "");
+        g.addAula(b);
+        g.addAula(new Aula("VUOTA", ""));
+        return g;
+    }
+
+    @Test
+    final void testScriviCarica() throws IOException {
+        assertThrows(NullPointerException.class,
+                () -> SnapshotAule.scrivi(null, file));
+        assertThrows(NullPointerException.class,
+                () -> SnapshotAule.scrivi(new GestoreAule(), null));
+        assertThrows(NullPointerException.class,
+                () -> SnapshotAule.carica(null));
+        GestoreAule g = gestore();
+        SnapshotAule.scrivi(g, file);
+        GestoreAule g2 = SnapshotAule.carica(file);
+        assertEquals(g.getAule(), g2.getAule());
+        for (Aula a : g.getAule()) {
+            Aula a2 = null;
+            for (Aula x : g2.getAule())
+                if (x.equals(a))
+                    a2 = x;
+            assertEquals(a.getLocation(), a2.getLocation());
+            assertEquals(a.getFacilities(), a2.getFacilities());
+            assertTrue(a2.satisfiesFacilities(a.getFacilities()));
+            List<Prenotazione> l = new ArrayList<Prenotazione>(
+                    a.getPrenotazioni());
+            List<Prenotazione> l2 = new ArrayList<Prenotazione>(
+                    a2.getPrenotazioni());
+            assertEquals(l, l2);
+            for (int i = 0; i < l.size(); i++) {
+                assertSame(a2, l2.get(i).getAula());
+                assertEquals(l.get(i).getDocente(), l2.get(i).getDocente());
+                assertEquals(l.get(i).getMotivo(), l2.get(i).getMotivo());
+            }
+            List<PrenotazioneRicorrente> r = a.getPrenotazioniRicorrenti();
+            List<PrenotazioneRicorrente> r2 = a2.getPrenotazioniRicorrenti();
+            assertEquals(r, r2);
+            for (int i = 0; i < r.size(); i++) {
+                assertSame(a2, r2.get(i).getAula());
+                assertEquals(r.get(i).getPeriodo(), r2.get(i).getPeriodo());
+                assertEquals(r.get(i).getNumero(), r2.get(i).getNumero());
+                assertEquals(r.get(i).getEccezioni(),
+                        r2.get(i).getEccezioni());
+                assertEquals(r.get(i).getMotivo(), r2.get(i).getMotivo());
+            }
+        }
+        // Le aule caricate funzionano come le altre
+        Set<Facility> richieste = new HashSet<Facility>();
+        richieste.add(new QuantitativeFacility("POSTI", "", 50));
+        assertEquals(1, g2.cercaAuleLibere(richieste, slot(5, 9, 11)).size());
+        assertTrue(g2.cercaAuleLibere(richieste, slot(4, 10, 12)).isEmpty());
+        Aula b2 = null;
+        for (Aula x : g2.getAule())
+            if (x.getNome().equals("AB1"))
+                b2 = x;
+        assertFalse(b2.isFree(slot(3, 17, 19)));
+        // Le occorrenze delle prenotazioni ricorrenti occupano l'aula, tranne
+        // l'eccezione
+        assertTrue(g2.cercaAuleLibere(richieste, slot(25, 10, 12)).isEmpty());
+        assertEquals(1, g2.cercaAuleLibere(richieste, slot(18, 10, 12)).size());
+        assertThrows(IllegalArgumentException.class,
+                () -> SnapshotAule.carica(file).getAule().iterator().next()
+                        .addPrenotazione(slot(4, 10, 12), "", ""));
+    }
+
+    @Test
+    final void testGestoreVuoto() throws IOException {
+        SnapshotAule.scrivi(new GestoreAule(), file);
+        assertTrue(SnapshotAule.carica(file).getAule().isEmpty());
+    }
+
+    @Test
+    final void testFileNonValidi() throws IOException {
+        // File vuoto
+        assertThrows(IOException.class, () -> SnapshotAule.carica(file));
+        SnapshotAule.scrivi(gestore(), file);
+        // Versione diversa
+        FileChannel c = FileChannel.open(file, StandardOpenOption.WRITE);
+        c.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 99 }), 4);
+        c.close();
+        assertThrows(IOException.class, () -> SnapshotAule.carica(file));
+        // Un byte modificato nei dati
+        SnapshotAule.scrivi(gestore(), file);
+        c = FileChannel.open(file, StandardOpenOption.WRITE);
+        c.write(ByteBuffer.wrap(new byte[] { 'X' }), 20);
+        c.close();
+        assertThrows(IOException.class, () -> SnapshotAule.carica(file));
+        // Un byte modificato nel CRC dell'ultima aula
+        SnapshotAule.scrivi(gestore(), file);
+        c = FileChannel.open(file, StandardOpenOption.WRITE);
+        c.write(ByteBuffer.wrap(new byte[] { 'X' }), c.size() - 1);
+        c.close();
+        assertThrows(IOException.class, () -> SnapshotAule.carica(file));
+        // File troncato nel mezzo di una sezione
+        SnapshotAule.scrivi(gestore(), file);
+        c = FileChannel.open(file, StandardOpenOption.WRITE);
+        c.truncate(c.size() - 20);
+        c.close();
+        assertThrows(IOException.class, () -> SnapshotAule.carica(file));
+    }
+
+    @Test
+    final void testVersione1() throws IOException {
+        // Fotografia della versione 1, senza prenotazioni ricorrenti: un'aula
+        // "A" senza facilities con una prenotazione
+        ByteBuffer b = ByteBuffer.allocate(100);
+        b.putInt(0x41554C45).putInt(1).putInt(1);
+        b.putInt(1).put((byte) 'A').putInt(0);
+        b.putInt(0);
+        b.putInt(1);
+        b.putLong(slot(4, 9, 11).getStart().getTimeInMillis());
+        b.putLong(slot(4, 9, 11).getStop().getTimeInMillis());
+        b.putInt(1).put((byte) 'D').putInt(1).put((byte) 'M');
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), 0, b.position());
+        b.putLong(crc.getValue());
+        b.flip();
+        FileChannel c = FileChannel.open(file, StandardOpenOption.WRITE);
+        c.write(b);
+        c.close();
+        Aula a = SnapshotAule.carica(file).getAule().iterator().next();
+        assertEquals("A", a.getNome());
+        assertEquals(1, a.getPrenotazioni().size());
+        assertEquals("D", a.getPrenotazioni().first().getDocente());
+        assertTrue(a.getPrenotazioniRicorrenti().isEmpty());
+    }
+
+    @Test
+    final void testMoltePrenotazioni() throws IOException {
+        GestoreAule g = new GestoreAule();
+        Aula a = new Aula("A", "");
+        GregorianCalendar inizio = new GregorianCalendar(2019, 0, 1, 0, 0);
+        for (int i = 0; i < 50000; i++) {
+            GregorianCalendar fine = (GregorianCalendar) inizio.clone();
+            fine.add(GregorianCalendar.MINUTE, 30);
+            a.addPrenotazione(new TimeSlot(inizio, fine), "D", "M" + i);
+            inizio = (GregorianCalendar) inizio.clone();
+            inizio.add(GregorianCalendar.HOUR_OF_DAY, 1);
+        }
+        g.addAula(a);
+        SnapshotAule.scrivi(g, file);
+        Aula a2 = SnapshotAule.carica(file).getAule().iterator().next();
+        assertEquals(50000, a2.getPrenotazioni().size());
+        // Lo stesso docente viene caricato una volta sola
+        assertSame(a2.getPrenotazioni().first().getDocente(),
+                a2.getPrenotazioni().last().getDocente());
+        Iterator<Prenotazione> it = a.getPrenotazioni().iterator();
+        for (Prenotazione p : a2.getPrenotazioni()) {
+            Prenotazione q = it.next();
+            assertEquals(q, p);
+            assertEquals(q.getMotivo(), p.getMotivo());
+        }
+    }
+
+}